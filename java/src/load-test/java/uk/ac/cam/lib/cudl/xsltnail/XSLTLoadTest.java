@@ -0,0 +1,619 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import com.facebook.nailgun.NGListeningAddress;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.docopt.Docopt;
+
+/**
+ * A load generator which drives an xslt-nailgun server with concurrent transform requests over the
+ * Nailgun protocol, according to {@link #USAGE}.
+ *
+ * <p>Requests are measured in closed-loop mode, where a fixed number of clients each send requests
+ * back to back, or open-loop mode, where requests arrive at a fixed rate. Open-loop latency is
+ * measured from each request's scheduled arrival, so a server which falls behind is charged for the
+ * time requests spend waiting to be sent.
+ *
+ * <p>This isn't part of the server's jar. It's built into its own jar in {@code target/load-test},
+ * and run with {@code load-test/run.sh}.
+ */
+public final class XSLTLoadTest implements Closeable {
+  static final String USAGE =
+      Constants.requireResourceAsString(XSLTLoadTest.class, "load-test-usage.txt");
+
+  /** Open-loop requests beyond this many in progress are dropped, and counted as such. */
+  static final int MAXIMUM_OPEN_REQUESTS = 1000;
+
+  private static final Pattern WEIGHTED_STYLESHEET = Pattern.compile("^(\\d+)=(.+)$");
+
+  enum Mode {
+    CLOSED,
+    OPEN
+  }
+
+  static final class Stylesheet {
+    final Path path;
+    final int weight;
+
+    Stylesheet(@Nonnull Path path, int weight) {
+      if (weight < 1) throw new IllegalArgumentException("stylesheet weights must be at least 1");
+      this.path = Objects.requireNonNull(path);
+      this.weight = weight;
+    }
+
+    /** Parse a stylesheet argument, which is a path optionally prefixed with "weight=". */
+    static Stylesheet parse(@Nonnull String value) {
+      Matcher match = WEIGHTED_STYLESHEET.matcher(value);
+      if (match.matches())
+        return new Stylesheet(Path.of(match.group(2)).toAbsolutePath(), parseCount(match.group(1)));
+      return new Stylesheet(Path.of(value).toAbsolutePath(), 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Stylesheet that = (Stylesheet) o;
+      return weight == that.weight && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, weight);
+    }
+  }
+
+  /** The latencies of the requests started during a measurement. */
+  private static final class Recorder {
+    private final long start;
+    private final long end;
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+    private int dropped;
+    private String firstError;
+
+    Recorder(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    private boolean isMeasured(long startedAt) {
+      return startedAt >= start && startedAt < end;
+    }
+
+    synchronized void record(long startedAt, long latency, Option<String> error) {
+      if (!isMeasured(startedAt)) return;
+      if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+      latencies[count++] = latency;
+      if (error.isDefined()) {
+        errors++;
+        if (firstError == null) firstError = error.get();
+      }
+    }
+
+    synchronized void recordDropped(long startedAt) {
+      if (isMeasured(startedAt)) dropped++;
+    }
+
+    synchronized java.util.Map<String, Object> getResult(
+        Map<String, Object> statusBefore, Map<String, Object> statusAfter) {
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      double seconds = (end - start) / 1e9;
+
+      java.util.Map<String, Object> latency = new LinkedHashMap<>();
+      latency.put("mean", count == 0 ? 0 : toMillis(Arrays.stream(sorted).sum() / (double) count));
+      for (double p : new double[] {50, 90, 99, 99.9}) {
+        latency.put(
+            "p" + (p == (int) p ? String.valueOf((int) p) : String.valueOf(p)),
+            toMillis(percentile(sorted, p)));
+      }
+      latency.put("max", toMillis(count == 0 ? 0 : sorted[count - 1]));
+
+      java.util.Map<String, Object> result = new LinkedHashMap<>();
+      result.put("duration-seconds", seconds);
+      result.put("requests", count);
+      result.put("errors", errors);
+      result.put("dropped", dropped);
+      result.put("throughput", count / seconds);
+      result.put("latency-ms", latency);
+      result.put("server", getServerMemoryUse(statusBefore, statusAfter));
+      if (firstError != null) result.put("first-error", firstError);
+      return result;
+    }
+  }
+
+  private final NGListeningAddress address;
+  private final List<Stylesheet> stylesheets;
+  private final int totalWeight;
+  private final double cacheHitRatio;
+  private final Duration warmup;
+  private final Duration duration;
+  private final ScheduledExecutorService heartbeats;
+
+  public XSLTLoadTest(
+      @Nonnull NGListeningAddress address,
+      @Nonnull List<Stylesheet> stylesheets,
+      double cacheHitRatio,
+      @Nonnull Duration warmup,
+      @Nonnull Duration duration) {
+    if (stylesheets.isEmpty()) throw new IllegalArgumentException("no stylesheets specified");
+    if (!(cacheHitRatio >= 0 && cacheHitRatio <= 1))
+      throw new IllegalArgumentException("--cache-hit-ratio must be between 0 and 1");
+    this.address = Objects.requireNonNull(address);
+    this.stylesheets = stylesheets;
+    this.totalWeight = stylesheets.map(s -> s.weight).sum().intValue();
+    this.cacheHitRatio = cacheHitRatio;
+    this.warmup = Objects.requireNonNull(warmup);
+    this.duration = Objects.requireNonNull(duration);
+    this.heartbeats =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "xslt-load-test-heartbeat");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  public static void main(String[] args) {
+    Map<String, Object> parsedArgs =
+        HashMap.ofAll(
+            new Docopt(USAGE)
+                .withExit(true)
+                .withHelp(true)
+                .withVersion(Constants.VERSION)
+                .parse(args));
+    try {
+      Object report = run(parsedArgs);
+      Json.write(System.out, report);
+      System.out.println();
+    } catch (IllegalArgumentException e) {
+      System.err.format("Error: %s\n", e.getMessage());
+      System.exit(Constants.EXIT_STATUS_USER_ERROR);
+    } catch (IOException | SaxonApiException | InterruptedException e) {
+      System.err.format("Error: load test failed: %s\n", e.getMessage());
+      System.exit(Constants.EXIT_STATUS_INTERNAL_ERROR);
+    }
+  }
+
+  private static Object run(Map<String, Object> args)
+      throws IOException, SaxonApiException, InterruptedException {
+    List<Stylesheet> stylesheets = listArg(args, "<stylesheet>").map(Stylesheet::parse);
+    for (Stylesheet stylesheet : stylesheets) {
+      if (!Files.isRegularFile(stylesheet.path))
+        throw new IllegalArgumentException("stylesheet does not exist: " + stylesheet.path);
+    }
+    Mode mode =
+        List.of(Mode.values())
+            .find(m -> m.name().toLowerCase().equals(stringArg(args, "--mode")))
+            .getOrElseThrow(
+                () -> new IllegalArgumentException("--mode must be \"closed\" or \"open\""));
+    List<Integer> concurrencies =
+        parseList(stringArg(args, "--concurrency"), XSLTLoadTest::parseCount);
+    List<Double> rates = parseList(stringArg(args, "--rate"), XSLTLoadTest::parseRate);
+    List<Integer> inputSizes = parseList(stringArg(args, "--input-size"), XSLTLoadTest::parseCount);
+    double cacheHitRatio = parseRatio(stringArg(args, "--cache-hit-ratio"));
+    Duration warmup = parseSeconds("--warmup", stringArg(args, "--warmup"));
+    Duration duration = parseSeconds("--duration", stringArg(args, "--duration"));
+
+    Option<String> server = Option.of((String) Values.requireKey(args, "--server").get());
+    List<String> jvmOptions = listArg(args, "--jvm-option");
+    Path socketDir = null;
+    Process serverProcess = null;
+    try {
+      NGListeningAddress address;
+      if (server.isDefined()) {
+        address = XSLTNailgunServer.parseAddress(server.get());
+      } else {
+        socketDir = Files.createTempDirectory("xslt-load-test");
+        Path socket = socketDir.resolve("server.sock");
+        serverProcess = startServer(socket, jvmOptions);
+        address = new NGListeningAddress(socket.toString());
+      }
+
+      java.util.List<Object> runs = new java.util.ArrayList<>();
+      try (XSLTLoadTest test =
+          new XSLTLoadTest(address, stylesheets, cacheHitRatio, warmup, duration)) {
+        for (int inputSize : inputSizes) {
+          for (Number level : mode == Mode.CLOSED ? concurrencies : rates) {
+            System.err.format(
+                "Measuring %s load: %s %s, input size %d bytes\n",
+                mode.name().toLowerCase(),
+                mode == Mode.CLOSED ? "concurrency" : "rate",
+                level,
+                inputSize);
+            runs.add(
+                mode == Mode.CLOSED
+                    ? test.runClosed(level.intValue(), inputSize)
+                    : test.runOpen(level.doubleValue(), inputSize));
+          }
+        }
+      }
+      java.util.Map<String, Object> report = new LinkedHashMap<>();
+      report.put("stylesheets", stylesheets.map(s -> s.path.toString()).toJavaList());
+      report.put("cache-hit-ratio", cacheHitRatio);
+      report.put("runs", runs);
+      return report;
+    } catch (XSLTNailgunServer.FatalError e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    } finally {
+      if (serverProcess != null) {
+        serverProcess.destroy();
+        serverProcess.waitFor();
+      }
+      if (socketDir != null) socketDir.toFile().delete();
+    }
+  }
+
+  private static String stringArg(Map<String, Object> args, String name) {
+    return Values.requireKey(args, name).flatMap(Values::castToString).get();
+  }
+
+  private static List<String> listArg(Map<String, Object> args, String name) {
+    return Option.of(Values.requireKey(args, name).get())
+        .map(value -> (java.util.List<?>) value)
+        .map(List::ofAll)
+        .getOrElse(List.empty())
+        .map(String.class::cast);
+  }
+
+  static <T> List<T> parseList(String value, java.util.function.Function<String, T> parser) {
+    return List.of(value.split(",")).map(String::trim).map(parser);
+  }
+
+  static int parseCount(String value) {
+    try {
+      int count = Integer.parseInt(value);
+      if (count > 0) return count;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException(
+        String.format("expected a positive integer, got: \"%s\"", value));
+  }
+
+  private static double parseRate(String value) {
+    try {
+      double rate = Double.parseDouble(value);
+      if (rate > 0 && Double.isFinite(rate)) return rate;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException(
+        String.format("expected a positive rate, got: \"%s\"", value));
+  }
+
+  private static double parseRatio(String value) {
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          String.format("--cache-hit-ratio must be a number, got: \"%s\"", value), e);
+    }
+  }
+
+  private static Duration parseSeconds(String option, String value) {
+    return Values.parseSeconds(value)
+        .getOrElseThrow(e -> new IllegalArgumentException(option + " " + e.getMessage(), e));
+  }
+
+  /** Start a server in a new JVM, using this JVM's classpath. */
+  private static Process startServer(Path socket, List<String> jvmOptions) throws IOException {
+    List<String> command =
+        List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString())
+            .appendAll(jvmOptions)
+            .appendAll(
+                List.of(
+                    "-cp",
+                    System.getProperty("java.class.path"),
+                    XSLTNailgunServer.class.getName(),
+                    "--require-running-process",
+                    String.valueOf(ProcessHandle.current().pid()),
+                    "--address-type=local",
+                    socket.toString()));
+    Process process =
+        new ProcessBuilder(command.toJavaList())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    BufferedReader stdout =
+        new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    for (String line = stdout.readLine(); line != null; line = stdout.readLine()) {
+      if (line.startsWith("NGServer ") && line.contains(" started")) {
+        // Keep draining the server's output so that it never blocks writing to it
+        Thread drain =
+            new Thread(
+                () -> {
+                  try {
+                    stdout.transferTo(Writer.nullWriter());
+                  } catch (IOException e) {
+                    // The server has exited
+                  }
+                },
+                "xslt-load-test-server-output");
+        drain.setDaemon(true);
+        drain.start();
+        return process;
+      }
+    }
+    throw new IOException("server exited before it started listening");
+  }
+
+  /**
+   * Generate an XML document of (at least) the given size, containing a sequence of small records.
+   */
+  static byte[] generateInput(int size) {
+    String end = "</records>";
+    StringBuilder xml = new StringBuilder("<records>");
+    for (int i = 0; xml.length() + end.length() < size; i++) {
+      xml.append(String.format("<record id=\"r%d\"><title>Record %d</title></record>", i, i));
+    }
+    return xml.append(end).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Get the nearest-rank percentile of sorted values. */
+  static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) return 0;
+    int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+  }
+
+  private static double toMillis(double nanos) {
+    return Math.round(nanos / 1e3) / 1e3;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static java.util.Map<String, Object> getServerMemoryUse(
+      Map<String, Object> before, Map<String, Object> after) {
+    java.util.Map<String, Object> memory = new LinkedHashMap<>();
+    Option<java.util.Map<String, Object>> memoryBefore =
+        before.get("memory").map(m -> (java.util.Map<String, Object>) m);
+    Option<java.util.Map<String, Object>> memoryAfter =
+        after.get("memory").map(m -> (java.util.Map<String, Object>) m);
+    if (memoryBefore.isEmpty() || memoryAfter.isEmpty()) return memory;
+    for (String counter : new String[] {"gc-collections", "gc-time-ms"}) {
+      memory.put(
+          counter,
+          ((Number) memoryAfter.get().get(counter)).longValue()
+              - ((Number) memoryBefore.get().get(counter)).longValue());
+    }
+    for (String gauge : new String[] {"heap-used-bytes", "rss-bytes"}) {
+      Object value = memoryAfter.get().get(gauge);
+      if (value != null) memory.put(gauge, ((Number) value).longValue());
+    }
+    return memory;
+  }
+
+  /** Get the server's status report. */
+  @SuppressWarnings("unchecked")
+  Map<String, Object> getStatus() throws IOException, SaxonApiException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    try (NailgunClient client = NailgunClient.connect(address)) {
+      int status =
+          client.run(
+              "xslt",
+              new String[] {"status"},
+              java.util.Map.of(),
+              System.getProperty("user.dir"),
+              InputStream.nullInputStream(),
+              out,
+              err,
+              heartbeats);
+      if (status != 0)
+        throw new IOException("xslt status failed: " + err.toString(StandardCharsets.UTF_8));
+    }
+    return HashMap.ofAll(
+        (java.util.Map<String, Object>) Json.read(new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  private Path chooseStylesheet() {
+    int choice = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (Stylesheet stylesheet : stylesheets) {
+      choice -= stylesheet.weight;
+      if (choice < 0) return stylesheet.path;
+    }
+    throw new AssertionError();
+  }
+
+  /**
+   * Transform an input with a randomly-chosen stylesheet.
+   *
+   * @return An error message if the request failed.
+   */
+  private Option<String> request(byte[] input) {
+    Path stylesheet = chooseStylesheet();
+    Path copy = null;
+    try {
+      // A new file has to be compiled by the server, as compilations are cached by path
+      if (ThreadLocalRandom.current().nextDouble() >= cacheHitRatio) {
+        copy =
+            stylesheet.resolveSibling(
+                ".xslt-load-test-" + UUID.randomUUID() + "-" + stylesheet.getFileName());
+        Files.copy(stylesheet, copy);
+        stylesheet = copy;
+      }
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      try (NailgunClient client = NailgunClient.connect(address)) {
+        int status =
+            client.run(
+                "xslt",
+                new String[] {"transform", "--", stylesheet.toString(), "-"},
+                java.util.Map.of(),
+                System.getProperty("user.dir"),
+                new ByteArrayInputStream(input),
+                OutputStream.nullOutputStream(),
+                err,
+                heartbeats);
+        return status == 0
+            ? Option.none()
+            : Option.some(
+                String.format(
+                    "exit status %d: %s", status, err.toString(StandardCharsets.UTF_8).trim()));
+      }
+    } catch (IOException e) {
+      return Option.some(e.toString());
+    } finally {
+      if (copy != null) {
+        try {
+          Files.deleteIfExists(copy);
+        } catch (IOException e) {
+          // Leave it
+        }
+      }
+    }
+  }
+
+  private static void sleepUntil(long nanoTime) throws InterruptedException {
+    long remaining;
+    while ((remaining = nanoTime - System.nanoTime()) > 0) TimeUnit.NANOSECONDS.sleep(remaining);
+  }
+
+  /** Measure a fixed number of clients which each send requests back to back, after warming up. */
+  public java.util.Map<String, Object> runClosed(int clients, int inputSize)
+      throws IOException, SaxonApiException, InterruptedException {
+    byte[] input = generateInput(inputSize);
+    long start = System.nanoTime();
+    long measureStart = start + warmup.toNanos();
+    long end = measureStart + duration.toNanos();
+    Recorder recorder = new Recorder(measureStart, end);
+
+    java.util.List<Thread> threads = new java.util.ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread client =
+          new Thread(
+              () -> {
+                long startedAt;
+                while ((startedAt = System.nanoTime()) < end) {
+                  Option<String> error = request(input);
+                  recorder.record(startedAt, System.nanoTime() - startedAt, error);
+                }
+              },
+              "xslt-load-test-client-" + i);
+      client.setDaemon(true);
+      client.start();
+      threads.add(client);
+    }
+
+    Map<String, Object> statusBefore;
+    Map<String, Object> statusAfter;
+    try {
+      sleepUntil(measureStart);
+      statusBefore = getStatus();
+      sleepUntil(end);
+      statusAfter = getStatus();
+    } finally {
+      for (Thread thread : threads) thread.join();
+    }
+
+    java.util.Map<String, Object> result = new LinkedHashMap<>();
+    result.put("mode", "closed");
+    result.put("concurrency", clients);
+    result.put("input-size-bytes", input.length);
+    result.putAll(recorder.getResult(statusBefore, statusAfter));
+    return result;
+  }
+
+  /** Measure requests arriving at a fixed rate, after warming up. */
+  public java.util.Map<String, Object> runOpen(double rate, int inputSize)
+      throws IOException, SaxonApiException, InterruptedException {
+    byte[] input = generateInput(inputSize);
+    long start = System.nanoTime();
+    long measureStart = start + warmup.toNanos();
+    long end = measureStart + duration.toNanos();
+    Recorder recorder = new Recorder(measureStart, end);
+    Semaphore inProgress = new Semaphore(MAXIMUM_OPEN_REQUESTS);
+    ExecutorService clients =
+        java.util.concurrent.Executors.newCachedThreadPool(
+            runnable -> {
+              Thread thread = new Thread(runnable, "xslt-load-test-client");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    Thread arrivals =
+        new Thread(
+            () -> {
+              try {
+                for (long i = 0; ; i++) {
+                  long arrival = start + (long) (i * 1e9 / rate);
+                  if (arrival >= end) return;
+                  sleepUntil(arrival);
+                  if (!inProgress.tryAcquire()) {
+                    recorder.recordDropped(arrival);
+                    continue;
+                  }
+                  clients.execute(
+                      () -> {
+                        try {
+                          Option<String> error = request(input);
+                          recorder.record(arrival, System.nanoTime() - arrival, error);
+                        } finally {
+                          inProgress.release();
+                        }
+                      });
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            },
+            "xslt-load-test-arrivals");
+    arrivals.setDaemon(true);
+    arrivals.start();
+
+    Map<String, Object> statusBefore;
+    Map<String, Object> statusAfter;
+    try {
+      sleepUntil(measureStart);
+      statusBefore = getStatus();
+      sleepUntil(end);
+      statusAfter = getStatus();
+    } finally {
+      arrivals.join();
+      clients.shutdown();
+      clients.awaitTermination(1, TimeUnit.DAYS);
+    }
+
+    java.util.Map<String, Object> result = new LinkedHashMap<>();
+    result.put("mode", "open");
+    result.put("rate", rate);
+    result.put("input-size-bytes", input.length);
+    result.putAll(recorder.getResult(statusBefore, statusAfter));
+    return result;
+  }
+
+  @Override
+  public void close() {
+    heartbeats.shutdownNow();
+  }
+}
@@ -0,0 +1,232 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.control.Option;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import javax.annotation.Nonnull;
+
+/**
+ * Publishes log records to another handler from a background thread, so that logging threads don't
+ * wait for records to be formatted and written.
+ *
+ * <p>Records are queued in a bounded lock-free ring buffer, which a single writer thread drains.
+ * When the buffer is full, records are either dropped and counted, or the logging thread waits for
+ * space, according to the {@link OverflowPolicy}. The writer reports drops with a warning once it
+ * catches up.
+ */
+final class AsyncLogHandler extends Handler {
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  // How long the writer sleeps when idle before checking for records that arrived without waking it
+  private static final long WRITER_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long PRODUCER_FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /** What a logging thread does when the buffer is full. */
+  public enum OverflowPolicy {
+    /** Discard the record, counting it as dropped. */
+    DROP,
+    /** Wait for the writer to make space. */
+    BLOCK;
+
+    public String getName() {
+      return name().toLowerCase();
+    }
+
+    public static Option<OverflowPolicy> fromName(String name) {
+      for (OverflowPolicy policy : values()) {
+        if (policy.getName().equals(name)) return Option.some(policy);
+      }
+      return Option.none();
+    }
+  }
+
+  private final Handler delegate;
+  private final OverflowPolicy overflowPolicy;
+  private final RingBuffer buffer;
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean writerParked;
+  private volatile boolean closed;
+  private long reportedDropped;
+
+  public AsyncLogHandler(@Nonnull Handler delegate, @Nonnull OverflowPolicy overflowPolicy) {
+    this(delegate, overflowPolicy, DEFAULT_CAPACITY);
+  }
+
+  public AsyncLogHandler(
+      @Nonnull Handler delegate, @Nonnull OverflowPolicy overflowPolicy, int capacity) {
+    this.delegate = Objects.requireNonNull(delegate);
+    this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+    this.buffer = new RingBuffer(capacity);
+    this.writer = new Thread(this::drain, "xslt-nail-log-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /** The number of records discarded because the buffer was full. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) return;
+    // The caller is inferred from the stack when first requested, so it must happen on this thread
+    record.getSourceClassName();
+    while (!buffer.offer(record)) {
+      if (overflowPolicy == OverflowPolicy.DROP || closed) {
+        dropped.incrementAndGet();
+        return;
+      }
+      wakeWriter();
+      LockSupport.parkNanos(this, PRODUCER_FULL_PARK_NANOS);
+    }
+    wakeWriter();
+  }
+
+  private void wakeWriter() {
+    if (writerParked) LockSupport.unpark(writer);
+  }
+
+  private void drain() {
+    while (true) {
+      LogRecord record = buffer.poll();
+      if (record != null) {
+        write(record);
+        continue;
+      }
+      reportDropped();
+      if (closed) return;
+      writerParked = true;
+      // Re-check after advertising that we're parked, so a record published meanwhile isn't missed
+      if (buffer.isEmpty() && !closed) LockSupport.parkNanos(this, WRITER_IDLE_PARK_NANOS);
+      writerParked = false;
+    }
+  }
+
+  private void write(LogRecord record) {
+    try {
+      delegate.publish(record);
+    } catch (RuntimeException e) {
+      reportError("Failed to publish log record", e, ErrorManager.WRITE_FAILURE);
+    }
+  }
+
+  private void reportDropped() {
+    long total = dropped.get();
+    if (total == reportedDropped) return;
+    LogRecord warning =
+        new LogRecord(
+            Level.WARNING,
+            String.format(
+                "Dropped %d log records because the log buffer was full (%d in total)",
+                total - reportedDropped, total));
+    warning.setLoggerName(AsyncLogHandler.class.getName());
+    warning.setSourceClassName(AsyncLogHandler.class.getName());
+    warning.setSourceMethodName("publish");
+    reportedDropped = total;
+    write(warning);
+    delegate.flush();
+  }
+
+  /** Wait for the records published so far to be written, then flush them. */
+  @Override
+  public void flush() {
+    long published = buffer.getTail();
+    while (buffer.getHead() < published && writer.isAlive()) {
+      wakeWriter();
+      LockSupport.parkNanos(this, PRODUCER_FULL_PARK_NANOS);
+    }
+    delegate.flush();
+  }
+
+  /** Write the buffered records, then close the handler we publish to. */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    delegate.close();
+  }
+
+  /**
+   * A bounded queue which many threads can add to, and one thread takes from, without locking.
+   *
+   * <p>Each slot has a sequence number, which tells producers whether the slot is free for the
+   * position they've claimed, and the consumer whether the slot's record has been stored.
+   */
+  static final class RingBuffer {
+    private final int mask;
+    private final AtomicReferenceArray<LogRecord> records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    RingBuffer(int capacity) {
+      if (capacity < 2 || Integer.bitCount(capacity) != 1)
+        throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+      this.mask = capacity - 1;
+      this.records = new AtomicReferenceArray<>(capacity);
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) sequences.set(i, i);
+    }
+
+    /** Add a record, or return false if the buffer is full. */
+    boolean offer(@Nonnull LogRecord record) {
+      long position = tail.get();
+      while (true) {
+        int index = (int) (position & mask);
+        long available = sequences.get(index) - position;
+        if (available == 0) {
+          if (tail.compareAndSet(position, position + 1)) {
+            records.set(index, record);
+            sequences.set(index, position + 1);
+            return true;
+          }
+          position = tail.get();
+        } else if (available < 0) {
+          return false;
+        } else {
+          position = tail.get();
+        }
+      }
+    }
+
+    /** Take the next record, or null if none is ready. Must only be called by one thread. */
+    LogRecord poll() {
+      long position = head;
+      int index = (int) (position & mask);
+      if (sequences.get(index) != position + 1) return null;
+      LogRecord record = records.get(index);
+      records.set(index, null);
+      sequences.set(index, position + mask + 1);
+      head = position + 1;
+      return record;
+    }
+
+    boolean isEmpty() {
+      return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    long getHead() {
+      return head;
+    }
+
+    long getTail() {
+      return tail.get();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes files by renaming a temporary file into place, so readers never see a partially-written
+ * file.
+ *
+ * <p>Temporary files are created like any other new file, so the file which replaces the
+ * destination gets the usual permissions (e.g. following the umask on POSIX), rather than the
+ * owner-only permissions of {@link Files#createTempFile}.
+ */
+final class AtomicFiles {
+  private AtomicFiles() {}
+
+  /** Writes a file's content. */
+  interface Content {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** Replace a file with the given content, creating its directory if necessary. */
+  static void write(Path file, Content content) throws IOException {
+    Path destination = file.toAbsolutePath();
+    Files.createDirectories(destination.getParent());
+    Tuple2<Path, OutputStream> tmp = newTemporarySibling(destination);
+    try {
+      try (OutputStream out = tmp._2) {
+        content.writeTo(out);
+      }
+      replace(tmp._1, destination);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp._1);
+      throw e;
+    }
+  }
+
+  /**
+   * Open a new temporary file alongside a file, to write its replacement to. The file's directory
+   * must exist.
+   *
+   * @return The path of the temporary file, and a stream writing to it.
+   */
+  static Tuple2<Path, OutputStream> newTemporarySibling(Path file) throws IOException {
+    Path destination = file.toAbsolutePath();
+    while (true) {
+      Path tmp = temporarySibling(destination);
+      try {
+        return Tuple.of(
+            tmp,
+            Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+      } catch (FileAlreadyExistsException e) {
+        // Try another name
+      }
+    }
+  }
+
+  /** Atomically replace a file with a temporary file written alongside it. */
+  static void replace(Path tmp, Path file) throws IOException {
+    try {
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static Path temporarySibling(Path destination) {
+    return destination.resolveSibling(
+        String.format(
+            ".%s.%016x.tmp", destination.getFileName(), ThreadLocalRandom.current().nextLong()));
+  }
+}
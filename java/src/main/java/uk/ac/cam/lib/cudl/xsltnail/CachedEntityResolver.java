@@ -0,0 +1,156 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.vavr.Tuple;
+import io.vavr.collection.HashSet;
+import io.vavr.collection.List;
+import io.vavr.collection.Set;
+import io.vavr.control.Option;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import javax.xml.catalog.CatalogException;
+import javax.xml.catalog.CatalogFeatures;
+import javax.xml.catalog.CatalogManager;
+import javax.xml.catalog.CatalogResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolves DTDs and external entities through OASIS XML catalogs, keeping their content in memory
+ * so that documents which declare the same DTD don't read it again.
+ *
+ * <p>Local files are cached while they're unchanged. When catalogs are configured, entities they
+ * don't map to a local copy are not fetched from the network: parsing fails instead, so a parse
+ * never blocks on a remote server. Without catalogs, remote entities are fetched once and cached.
+ */
+final class CachedEntityResolver implements EntityResolver {
+  /** The default maximum total size in bytes of cached entity content. */
+  public static final long DEFAULT_MAXIMUM_WEIGHT = 64 * 1024 * 1024;
+
+  private static final Set<String> NETWORK_SCHEMES = HashSet.of("http", "https", "ftp");
+
+  private final Option<CatalogResolver> catalog;
+  private final Cache<Object, byte[]> entities;
+
+  public CachedEntityResolver(@Nonnull List<Path> catalogFiles) {
+    this(catalogFiles, DEFAULT_MAXIMUM_WEIGHT);
+  }
+
+  /**
+   * @param catalogFiles OASIS XML catalog files, consulted in order. They're read once, when this
+   *     resolver is created.
+   * @throws IllegalArgumentException if a catalog can't be read.
+   */
+  public CachedEntityResolver(@Nonnull List<Path> catalogFiles, long maximumWeight) {
+    List<Path> files =
+        Objects.requireNonNull(catalogFiles).map(f -> f.toAbsolutePath().normalize());
+    this.catalog = files.isEmpty() ? Option.none() : Option.some(loadCatalogs(files));
+    this.entities =
+        Caffeine.newBuilder()
+            .maximumWeight(maximumWeight)
+            .<Object, byte[]>weigher((key, content) -> content.length)
+            .build();
+  }
+
+  private static CatalogResolver loadCatalogs(List<Path> files) {
+    for (Path file : files) {
+      if (!Files.isRegularFile(file))
+        throw new IllegalArgumentException("XML catalog is not a file: " + file);
+    }
+    try {
+      CatalogResolver resolver =
+          CatalogManager.catalogResolver(
+              CatalogFeatures.builder().with(CatalogFeatures.Feature.RESOLVE, "continue").build(),
+              files.map(Path::toUri).toJavaArray(URI[]::new));
+      // Catalogs are parsed lazily, so make a lookup now to report invalid catalogs immediately
+      resolver.resolveEntity(null, "urn:x-xslt-nailgun:catalog-check");
+      return resolver;
+    } catch (CatalogException e) {
+      throw new IllegalArgumentException("Failed to read XML catalog: " + e.getMessage(), e);
+    }
+  }
+
+  /** The number of entities currently cached. */
+  public long size() {
+    return entities.estimatedSize();
+  }
+
+  /** Discard all cached entities. */
+  public void clear() {
+    entities.invalidateAll();
+  }
+
+  @Override
+  public InputSource resolveEntity(String publicId, String systemId)
+      throws SAXException, IOException {
+    String resolved = systemId;
+    if (catalog.isDefined()) {
+      InputSource mapped = catalog.get().resolveEntity(publicId, systemId);
+      if (mapped != null) resolved = mapped.getSystemId();
+    }
+    if (resolved == null) return null;
+
+    URI uri;
+    try {
+      uri = new URI(resolved);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+    // Relative references are left to the parser, which resolves them against the document
+    if (!uri.isAbsolute()) return null;
+
+    byte[] content;
+    if ("file".equals(uri.getScheme())) content = getFile(Path.of(uri));
+    else if (catalog.isDefined() && NETWORK_SCHEMES.contains(uri.getScheme().toLowerCase()))
+      throw new SAXException(
+          String.format(
+              "External entity %s is not mapped to a local file by an XML catalog (public ID: %s)",
+              systemId, publicId));
+    else content = getURL(uri);
+
+    InputSource source = new InputSource(new ByteArrayInputStream(content));
+    source.setPublicId(publicId);
+    source.setSystemId(resolved);
+    return source;
+  }
+
+  private byte[] getFile(Path file) throws IOException {
+    Path path = file.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    Object key =
+        Tuple.of(
+            path, Tuple.of(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size()));
+    byte[] content = entities.getIfPresent(key);
+    if (content != null) return content;
+    content = Files.readAllBytes(path);
+    entities.put(key, content);
+    return content;
+  }
+
+  private byte[] getURL(URI uri) throws IOException {
+    try {
+      return entities.get(
+          uri,
+          k -> {
+            try (InputStream in = uri.toURL().openStream()) {
+              return in.readAllBytes();
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.control.Option;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * A flag used to stop a transform which is no longer wanted, either because its deadline has
+ * expired or because its client has disconnected.
+ *
+ * <p>Saxon has no way to interrupt a running transformation, so cancellation is cooperative. The
+ * transform's input and output streams and its result documents check the flag as they're used, and
+ * an evaluation run with {@link #runInterruptibly(Evaluation)} is interrupted when it's cancelled,
+ * which ends any blocking I/O or waiting it's doing. This stops most transforms promptly. An
+ * evaluation stuck in a loop which reads and writes nothing can only be stopped with {@link
+ * #forceStop()}, which is unsafe, so it's only used when a server is configured to.
+ */
+final class Cancellation {
+  private static final Logger LOG = Logger.getLogger(Cancellation.class.getName());
+
+  enum Reason {
+    TIMEOUT("its deadline expired"),
+    CLIENT_DISCONNECTED("its client disconnected");
+
+    private final String description;
+
+    Reason(String description) {
+      this.description = description;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+  }
+
+  private volatile Reason reason;
+  private final List<Runnable> listeners = new ArrayList<>();
+  private Thread evaluatingThread;
+  private boolean stopped;
+
+  /**
+   * Cancel the operation. Only the first call has any effect.
+   *
+   * @return true if this call cancelled the operation.
+   */
+  public boolean cancel(@Nonnull Reason reason) {
+    Objects.requireNonNull(reason);
+    List<Runnable> toNotify;
+    synchronized (this) {
+      if (this.reason != null) return false;
+      this.reason = reason;
+      toNotify = new ArrayList<>(listeners);
+      listeners.clear();
+      if (evaluatingThread != null) evaluatingThread.interrupt();
+    }
+    toNotify.forEach(Runnable::run);
+    return true;
+  }
+
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  public Option<Reason> getReason() {
+    return Option.of(reason);
+  }
+
+  /** Run an action when the operation is cancelled, or immediately if it already has been. */
+  public void onCancel(@Nonnull Runnable listener) {
+    Objects.requireNonNull(listener);
+    synchronized (this) {
+      if (this.reason == null) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  /** Throw a {@link CancelledException} if the operation has been cancelled. */
+  public void check() {
+    Reason reason = this.reason;
+    if (reason != null) throw new CancelledException(reason);
+  }
+
+  public InputStream wrap(@Nonnull InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        check();
+        return super.read();
+      }
+
+      @Override
+      public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        check();
+        return super.read(b, off, len);
+      }
+    };
+  }
+
+  public OutputStream wrap(@Nonnull OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        check();
+        out.write(b);
+      }
+
+      @Override
+      public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        check();
+        out.write(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * Run an evaluation on the current thread, which is interrupted if the operation is cancelled. If
+   * the evaluation fails or is stopped by {@link #forceStop()} after the operation is cancelled, it
+   * throws a {@link CancelledException}.
+   */
+  public <T, E extends Exception> T runInterruptibly(@Nonnull Evaluation<T, E> evaluation)
+      throws E {
+    synchronized (this) {
+      if (evaluatingThread != null) throw new IllegalStateException("evaluation already running");
+      check();
+      evaluatingThread = Thread.currentThread();
+    }
+    try {
+      try {
+        return evaluation.run();
+      } finally {
+        // cancel() and forceStop() hold the lock while interrupting or stopping us, so neither
+        // can arrive after we de-register, outside the try below.
+        synchronized (this) {
+          evaluatingThread = null;
+          // Don't leave our interrupt for whatever the thread does next
+          if (reason != null) Thread.interrupted();
+        }
+      }
+    } catch (ThreadDeath e) {
+      synchronized (this) {
+        if (!stopped) throw e;
+      }
+      throw new CancelledException(reason);
+    } catch (Exception e) {
+      // Failures caused by the interrupt, or by a stream refusing to be used, are reported as the
+      // cancellation
+      Reason cancelled = this.reason;
+      if (cancelled != null && !(e instanceof CancelledException))
+        throw new CancelledException(cancelled);
+      throw e;
+    }
+  }
+
+  /** Whether an evaluation is running with {@link #runInterruptibly(Evaluation)}. */
+  public synchronized boolean isEvaluating() {
+    return evaluatingThread != null;
+  }
+
+  /**
+   * Stop an evaluation which hasn't responded to cancellation.
+   *
+   * <p>This is a last resort for evaluations which loop without reading or writing. The evaluating
+   * thread is stopped with {@link Thread#stop()}; the transform's own state is discarded, but state
+   * shared between transforms (e.g. Saxon's and the stylesheet cache's locks) could be left
+   * inconsistent if the thread happened to be updating it, and the stopped thread must not be used
+   * again. Nothing happens if the operation isn't cancelled, no evaluation is running, or the JVM
+   * doesn't support stopping threads, which Java 20 and later don't.
+   *
+   * @return The thread which was stopped, if a running evaluation was stopped.
+   */
+  @SuppressWarnings("deprecation")
+  public synchronized Option<Thread> forceStop() {
+    if (reason == null || evaluatingThread == null || stopped) return Option.none();
+    try {
+      evaluatingThread.stop();
+    } catch (UnsupportedOperationException e) {
+      LOG.log(Level.WARNING, "Unable to stop cancelled evaluation: " + e.getMessage(), e);
+      return Option.none();
+    }
+    stopped = true;
+    return Option.some(evaluatingThread);
+  }
+
+  @FunctionalInterface
+  interface Evaluation<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  /** Thrown to abort an operation which has been cancelled. */
+  static final class CancelledException extends XSLTNailException {
+    private final Reason reason;
+
+    CancelledException(Reason reason) {
+      super("Transform cancelled because " + reason.getDescription());
+      this.reason = reason;
+    }
+
+    public Reason getReason() {
+      return reason;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.Stream;
+import io.vavr.control.Option;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+
+/** The compression formats supported for transform input and output data. */
+enum Compression {
+  NONE {
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+
+    @Override
+    public CompressedOutputStream compress(OutputStream out) {
+      return new CompressedOutputStream(out) {
+        @Override
+        public void finish() throws IOException {
+          this.flush();
+        }
+      };
+    }
+  },
+  GZIP {
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    @Override
+    public CompressedOutputStream compress(OutputStream out) throws IOException {
+      GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+      return new CompressedOutputStream(gzip) {
+        @Override
+        public void finish() throws IOException {
+          gzip.finish();
+          gzip.flush();
+        }
+      };
+    }
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int GZIP_MAGIC_0 = 0x1f;
+  private static final int GZIP_MAGIC_1 = 0x8b;
+
+  /** The lowercase name used to identify the format on the command line. */
+  public String getName() {
+    return name().toLowerCase();
+  }
+
+  public static Option<Compression> fromName(@Nonnull String name) {
+    return Stream.of(values()).find(c -> c.getName().equals(name));
+  }
+
+  public abstract InputStream decompress(InputStream in) throws IOException;
+
+  /**
+   * Wrap a stream to compress data written to it. The returned stream's {@link
+   * CompressedOutputStream#finish()} method must be called to complete the compressed data. The
+   * underlying stream is not closed.
+   */
+  public abstract CompressedOutputStream compress(OutputStream out) throws IOException;
+
+  /**
+   * Determine the compression format of a stream by inspecting its first bytes.
+   *
+   * @param in A stream supporting {@link InputStream#mark(int)}, which is reset to its initial
+   *     position after inspection.
+   */
+  public static Compression detect(@Nonnull BufferedInputStream in) throws IOException {
+    in.mark(2);
+    try {
+      return in.read() == GZIP_MAGIC_0 && in.read() == GZIP_MAGIC_1 ? GZIP : NONE;
+    } finally {
+      in.reset();
+    }
+  }
+
+  /**
+   * Get the specified compression format, or detect the format from the stream's content if none is
+   * specified.
+   */
+  public static Compression detect(
+      @Nonnull BufferedInputStream in, @Nonnull Option<Compression> specified) throws IOException {
+    return specified.isDefined() ? specified.get() : detect(in);
+  }
+
+  /** Buffer a stream so that its compression format can be detected. */
+  public static BufferedInputStream buffer(@Nonnull InputStream in) {
+    return new BufferedInputStream(in, BUFFER_SIZE);
+  }
+
+  abstract static class CompressedOutputStream extends java.io.FilterOutputStream {
+    CompressedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+      // FilterOutputStream writes bytes one at a time by default
+      out.write(b, off, len);
+    }
+
+    /** Write any remaining compressed data without closing the underlying stream. */
+    public abstract void finish() throws IOException;
+  }
+}
@@ -0,0 +1,82 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.List;
+import io.vavr.collection.Stream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+
+/**
+ * Maps keys to nodes such that adding or removing a node only moves the keys of that node.
+ *
+ * <p>Each node is placed at several points on a ring of hash values, and a key belongs to the node
+ * at the first point following the key's hash. {@link #getPreferenceList(String)} continues around
+ * the ring, so when a key's node is unavailable, its keys are shared between the remaining nodes
+ * rather than all moving to one of them.
+ */
+final class ConsistentHashRing<T> {
+  /** The number of points on the ring for each node. */
+  public static final int DEFAULT_REPLICAS = 128;
+
+  private final List<T> nodes;
+  private final NavigableMap<Long, T> ring;
+
+  private ConsistentHashRing(List<T> nodes, NavigableMap<Long, T> ring) {
+    this.nodes = nodes;
+    this.ring = ring;
+  }
+
+  /**
+   * @param nodes The nodes to distribute keys between.
+   * @param nodeId A stable, unique identifier for a node, used to position it on the ring.
+   */
+  public static <T> ConsistentHashRing<T> of(
+      @Nonnull Iterable<T> nodes, @Nonnull Function<T, String> nodeId, int replicas) {
+    Objects.requireNonNull(nodeId);
+    if (replicas < 1)
+      throw new IllegalArgumentException("replicas must be >= 1; replicas=" + replicas);
+    List<T> nodeList = List.ofAll(nodes);
+    NavigableMap<Long, T> ring = new TreeMap<>();
+    for (T node : nodeList) {
+      String id = nodeId.apply(node);
+      // Collisions are vanishingly unlikely, but resolve them deterministically
+      Stream.range(0, replicas).forEach(i -> ring.putIfAbsent(hash(id + "#" + i), node));
+    }
+    return new ConsistentHashRing<>(nodeList, ring);
+  }
+
+  public static <T> ConsistentHashRing<T> of(
+      @Nonnull Iterable<T> nodes, @Nonnull Function<T, String> nodeId) {
+    return of(nodes, nodeId, DEFAULT_REPLICAS);
+  }
+
+  public List<T> getNodes() {
+    return nodes;
+  }
+
+  /** Get every node, in the order they should be tried for a key. */
+  public List<T> getPreferenceList(@Nonnull String key) {
+    long hash = hash(key);
+    // The stream is lazy, so the walk stops as soon as every node has been seen
+    return Stream.ofAll(ring.tailMap(hash, true).values())
+        .appendAll(ring.headMap(hash, false).values())
+        .distinct()
+        .take(nodes.size())
+        .toList();
+  }
+
+  static long hash(String value) {
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      return ByteBuffer.wrap(md5.digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("MD5 is required to be supported", e);
+    }
+  }
+}
@@ -14,13 +14,21 @@ public final class Constants {
   public static final int EXIT_STATUS_INTERNAL_ERROR = 1;
   public static final int EXIT_STATUS_USER_ERROR = 2;
   public static final int EXIT_STATUS_AUTOMATIC_SHUTDOWN = 3;
+  /** A transform was cancelled because its deadline expired or its client disconnected. */
+  public static final int EXIT_STATUS_CANCELLED = 4;
+
+  /** The namespace of the extension functions available to stylesheets. */
+  public static final String FUNCTIONS_NAMESPACE =
+      "https://github.com/cambridge-collection/node-xslt-nailgun/functions";
 
   public static final String VERSION = "0.0.0";
   public static final long SHUTDOWN_GRACE_PERIOD = 1000 * 5;
 
   public static final String LOG_LEVEL_ENVAR = "XSLT_NAILGUN_SERVER_LOG_LEVEL";
   public static final String LOG_DESTINATION_FILE_ENVAR = "XSLT_NAILGUN_SERVER_LOG_FILE";
-  public static final Set<String> ENVARS = API.Set(LOG_LEVEL_ENVAR, LOG_DESTINATION_FILE_ENVAR);
+  public static final String LOG_ASYNC_ENVAR = "XSLT_NAILGUN_SERVER_LOG_ASYNC";
+  public static final Set<String> ENVARS =
+      API.Set(LOG_LEVEL_ENVAR, LOG_DESTINATION_FILE_ENVAR, LOG_ASYNC_ENVAR);
 
   // Docopt doesn't provide a way to get at just the usage section of the
   // parsed help (which we need when manually printing usage), so we have to
@@ -28,6 +36,9 @@ public final class Constants {
   public static final String USAGE_TRANSFORM =
       ("Usage:\n"
           + "    xslt transform [options] [--] <xslt-file> <xml-base-uri>\n"
+          + "    xslt build [options] [--] <xslt-file> <input-dir> <output-dir>\n"
+          + "    xslt call [options] [--] <xslt-file> <name> [<argument>...]\n"
+          + "    xslt status\n"
           + "    xslt transform (--help|-h)\n"
           + "    xslt transform --version");
 
@@ -44,7 +55,7 @@ public final class Constants {
     }
   }
 
-  private static String requireResourceAsString(Class<?> clazz, String path) {
+  static String requireResourceAsString(Class<?> clazz, String path) {
     return requireResourceAsString(clazz, path, StandardCharsets.UTF_8);
   }
 
@@ -67,5 +78,8 @@ public final class Constants {
   static final String USAGE_SERVER =
       requireResourceAsString(Constants.class, "nailgun-server-usage.txt");
 
+  static final String USAGE_LOOKUP_TABLE_BUILDER =
+      requireResourceAsString(Constants.class, "lookup-table-builder-usage.txt");
+
   private Constants() {}
 }
@@ -0,0 +1,48 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.annotation.Nonnull;
+
+/** SHA-256 content digests, as lowercase hex strings. */
+final class Digests {
+  private Digests() {}
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("SHA-256 is required to be supported", e);
+    }
+  }
+
+  private static String toHex(byte[] digest) {
+    StringBuilder hex = new StringBuilder(digest.length * 2);
+    for (byte b : digest) hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  public static String sha256(@Nonnull byte[] data) {
+    return toHex(newDigest().digest(data));
+  }
+
+  public static String sha256(@Nonnull String data) {
+    return sha256(data.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static String sha256(@Nonnull Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(file)) {
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return toHex(digest.digest());
+  }
+}
@@ -0,0 +1,287 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_USER_ERROR;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.List;
+import io.vavr.collection.Stream;
+import io.vavr.control.Either;
+import io.vavr.control.Option;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.SaxonApiException;
+
+/**
+ * Executes an {@link XSLTBuildOperation}.
+ *
+ * <p>The build manifest records, for each input, the digest of the input, the version of the
+ * stylesheet (including its imported and included modules), the parameters and the output path it
+ * was last built with. Inputs for which all of these are unchanged, and whose output exists, are
+ * skipped. Other inputs are transformed in parallel, and their output is only written if its
+ * content differs from the existing output file, so that the modification times of unchanged
+ * outputs are preserved.
+ */
+final class DirectoryBuild {
+  private static final Logger LOG = Logger.getLogger(DirectoryBuild.class.getName());
+  private static final int MAX_REPORTED_FAILURES = 20;
+
+  /** Transforms a single input of the build. */
+  interface ItemTransformer {
+    Either<String, Void> transform(XSLTTransformOperation operation, OutputStream out);
+  }
+
+  private enum Outcome {
+    UP_TO_DATE,
+    UNCHANGED,
+    WRITTEN,
+    FAILED
+  }
+
+  private static final class ItemResult {
+    final String input;
+    final Outcome outcome;
+    /** The manifest entry for the input, or null if it has none. */
+    final Map<String, Object> entry;
+
+    final String error;
+
+    ItemResult(String input, Outcome outcome, Map<String, Object> entry, String error) {
+      this.input = input;
+      this.outcome = outcome;
+      this.entry = entry;
+      this.error = error;
+    }
+  }
+
+  private final XSLTBuildOperation operation;
+  private final String stylesheetVersion;
+  private final String parametersDigest;
+  private final ItemTransformer transformer;
+  private final Executor executor;
+  private final Path outputDir;
+
+  /**
+   * @param stylesheetVersion A digest identifying the stylesheet and its modules.
+   * @param executor Executes the transforms of individual inputs.
+   */
+  DirectoryBuild(
+      @Nonnull XSLTBuildOperation operation,
+      @Nonnull String stylesheetVersion,
+      @Nonnull ItemTransformer transformer,
+      @Nonnull Executor executor) {
+    this.operation = Objects.requireNonNull(operation);
+    this.stylesheetVersion = Objects.requireNonNull(stylesheetVersion);
+    this.transformer = Objects.requireNonNull(transformer);
+    this.executor = Objects.requireNonNull(executor);
+    this.parametersDigest = getParametersDigest(operation);
+    this.outputDir = operation.outputDir.toAbsolutePath().normalize();
+  }
+
+  static String getParametersDigest(XSLTBuildOperation operation) {
+    return Digests.sha256(
+        operation
+            .parameters
+            .asMap()
+            .map(param -> param._1.getClarkName() + "\0" + param._2.mkString("\0"))
+            .sorted()
+            .mkString("\1"));
+  }
+
+  /**
+   * Run the build, writing a JSON summary of the number of inputs found, and the number which were
+   * up to date, transformed with unchanged output, written and failed.
+   */
+  public Either<Tuple2<String, Integer>, Void> run(@Nonnull OutputStream out) {
+    if (!Files.isDirectory(operation.inputDir)) {
+      return Either.left(
+          Tuple.of(
+              String.format("<input-dir> \"%s\" is not a directory", operation.inputDir),
+              EXIT_STATUS_USER_ERROR));
+    }
+
+    Map<String, Map<String, Object>> previousEntries = readManifest();
+    List<Tuple2<String, Path>> inputs;
+    try {
+      inputs = findInputs();
+    } catch (IOException | UncheckedIOException e) {
+      return Either.left(
+          Tuple.of(
+              String.format("Unable to list <input-dir> \"%s\" - %s", operation.inputDir, e),
+              EXIT_STATUS_USER_ERROR));
+    }
+
+    List<CompletableFuture<ItemResult>> jobs =
+        inputs.map(
+            input ->
+                CompletableFuture.supplyAsync(
+                    () -> buildItem(input._1, input._2, previousEntries.get(input._1)), executor));
+    List<ItemResult> results;
+    try {
+      results = jobs.map(CompletableFuture::join);
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new InternalXSLTNailException("Build failed: " + e.getCause(), e.getCause());
+    }
+
+    Option<String> manifestError = writeManifest(results);
+    Either<Tuple2<String, Integer>, Void> summary = writeSummary(out, results);
+    if (manifestError.isDefined())
+      return Either.left(Tuple.of(manifestError.get(), EXIT_STATUS_USER_ERROR));
+    return summary;
+  }
+
+  private List<Tuple2<String, Path>> findInputs() throws IOException {
+    Path inputDir = operation.inputDir.toAbsolutePath().normalize();
+    Path manifest = operation.manifestPath.toAbsolutePath().normalize();
+    PathMatcher include = operation.getIncludeMatcher();
+    try (java.util.stream.Stream<Path> files = Files.walk(inputDir)) {
+      return List.ofAll(
+              files
+                  .filter(Files::isRegularFile)
+                  // Don't treat our own outputs as inputs if the output dir is in the input dir
+                  .filter(file -> !file.startsWith(outputDir) && !file.equals(manifest))
+                  .filter(file -> include.matches(inputDir.relativize(file)))
+                  .map(
+                      file ->
+                          Tuple.of(
+                              Stream.ofAll(inputDir.relativize(file))
+                                  .map(Path::toString)
+                                  .mkString("/"),
+                              file))
+                  .collect(java.util.stream.Collectors.toList()))
+          .sortBy(Tuple2::_1);
+    }
+  }
+
+  private ItemResult buildItem(String input, Path file, Map<String, Object> previous) {
+    String outputPath = operation.getOutputPath(input);
+    Path outputFile = outputDir.resolve(outputPath).normalize();
+    if (!outputFile.startsWith(outputDir) || outputFile.equals(outputDir)) {
+      return new ItemResult(
+          input,
+          Outcome.FAILED,
+          null,
+          String.format("output path \"%s\" is not inside <output-dir>", outputPath));
+    }
+
+    try {
+      Map<String, Object> entry = new java.util.LinkedHashMap<>();
+      entry.put("input", Digests.sha256(file));
+      entry.put("stylesheet", stylesheetVersion);
+      entry.put("parameters", parametersDigest);
+      entry.put("output", outputPath);
+      if (!operation.force && entry.equals(previous) && Files.exists(outputFile))
+        return new ItemResult(input, Outcome.UP_TO_DATE, entry, null);
+
+      ByteArrayOutputStream result = new ByteArrayOutputStream();
+      XSLTTransformOperation transform =
+          new XSLTTransformOperation(
+                  operation.xsltPath, Option.some(file), Option.none(), operation.parameters)
+              .withPriority(operation.priority);
+      Either<String, Void> transformed = transformer.transform(transform, result);
+      if (transformed.isLeft())
+        return new ItemResult(input, Outcome.FAILED, null, transformed.getLeft());
+
+      if (Files.exists(outputFile)
+          && Files.size(outputFile) == result.size()
+          && Digests.sha256(outputFile).equals(Digests.sha256(result.toByteArray()))) {
+        return new ItemResult(input, Outcome.UNCHANGED, entry, null);
+      }
+      ResultDocumentHandler.writeAtomically(outputFile.toUri(), result);
+      return new ItemResult(input, Outcome.WRITTEN, entry, null);
+    } catch (IOException | XSLTNailException e) {
+      return new ItemResult(input, Outcome.FAILED, null, e.getMessage());
+    }
+  }
+
+  private Map<String, Map<String, Object>> readManifest() {
+    Map<String, Map<String, Object>> entries = new java.util.HashMap<>();
+    if (operation.force || !Files.exists(operation.manifestPath)) return entries;
+    try (InputStream in = Files.newInputStream(operation.manifestPath)) {
+      Object manifest = Json.read(in);
+      Object items = manifest instanceof Map ? ((Map<?, ?>) manifest).get("items") : null;
+      if (!(items instanceof Map)) throw new IOException("manifest has no items");
+      for (Map.Entry<?, ?> item : ((Map<?, ?>) items).entrySet()) {
+        if (!(item.getValue() instanceof Map)) continue;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> entry = (Map<String, Object>) item.getValue();
+        entries.put(String.valueOf(item.getKey()), entry);
+      }
+    } catch (IOException | SaxonApiException | IllegalArgumentException e) {
+      // Losing the manifest only costs a full rebuild
+      LOG.log(
+          Level.WARNING,
+          String.format(
+              "Ignoring unreadable build manifest \"%s\": %s", operation.manifestPath, e));
+      entries.clear();
+    }
+    return entries;
+  }
+
+  private Option<String> writeManifest(List<ItemResult> results) {
+    Map<String, Object> items = new TreeMap<>();
+    results.filter(r -> r.entry != null).forEach(r -> items.put(r.input, r.entry));
+    Map<String, Object> manifest = new java.util.LinkedHashMap<>();
+    manifest.put("items", items);
+
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try {
+      Json.write(content, manifest);
+      ResultDocumentHandler.writeAtomically(
+          operation.manifestPath.toAbsolutePath().toUri(), content);
+      return Option.none();
+    } catch (SaxonApiException | XSLTNailException e) {
+      return Option.some(
+          String.format(
+              "Unable to write --build-manifest \"%s\" - %s",
+              operation.manifestPath, e.getMessage()));
+    }
+  }
+
+  private static Either<Tuple2<String, Integer>, Void> writeSummary(
+      OutputStream out, List<ItemResult> results) {
+    Map<String, Object> summary = new java.util.LinkedHashMap<>();
+    summary.put("inputs", results.size());
+    summary.put("up-to-date", results.count(r -> r.outcome == Outcome.UP_TO_DATE));
+    summary.put("unchanged", results.count(r -> r.outcome == Outcome.UNCHANGED));
+    summary.put("written", results.count(r -> r.outcome == Outcome.WRITTEN));
+    List<ItemResult> failures = results.filter(r -> r.outcome == Outcome.FAILED);
+    summary.put("failed", failures.size());
+    try {
+      Json.write(out, summary);
+      out.flush();
+    } catch (SaxonApiException | IOException e) {
+      throw new InternalXSLTNailException("Failed to write build summary: " + e.getMessage(), e);
+    }
+
+    if (failures.isEmpty()) return Either.right(null);
+    String details =
+        failures
+            .take(MAX_REPORTED_FAILURES)
+            .map(f -> String.format("%s: %s", f.input, f.error.stripTrailing()))
+            .mkString("\n");
+    if (failures.size() > MAX_REPORTED_FAILURES)
+      details += String.format("\n... and %d more", failures.size() - MAX_REPORTED_FAILURES);
+    return Either.left(
+        Tuple.of(
+            String.format(
+                "Failed to build %d of %d inputs:\n%s", failures.size(), results.size(), details),
+            EXIT_STATUS_USER_ERROR));
+  }
+}
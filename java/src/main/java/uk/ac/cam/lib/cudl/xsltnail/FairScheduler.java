@@ -0,0 +1,390 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.LinkedHashMap;
+import io.vavr.collection.Map;
+import io.vavr.collection.Stream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * A fixed-size thread pool which schedules queued tasks fairly between {@link Priority} classes,
+ * and between the keys (e.g. stylesheets) that tasks within a class are submitted for.
+ *
+ * <p>Classes are chosen using stride scheduling: each class receives a share of the pool's task
+ * starts proportional to its weight while it has tasks waiting. A class which has been idle
+ * re-joins at the current virtual time, so it can't accumulate credit while idle, but its next task
+ * is started ahead of the tasks already waiting in lower classes. Within a class, keys are served
+ * round-robin, so one key with thousands of queued tasks doesn't delay the other keys' tasks.
+ *
+ * <p>Tasks submitted through the {@link java.util.concurrent.ExecutorService} methods use the
+ * priority and key set for the submitting thread with {@link #callWithContext(Priority, Object,
+ * Supplier)}, or {@link Priority#NORMAL} and no key if none is set. This allows tasks submitted on
+ * our behalf by other code (such as a cache's loader) to be scheduled according to the request that
+ * triggered them.
+ *
+ * <p>The pool starts with its maximum number of threads. {@link #retireIdleWorkers()} stops the
+ * threads which are waiting for work, and threads are started again as tasks are queued. {@link
+ * #replaceWorker(Thread)} retires a thread once its current task finishes, starting another in its
+ * place.
+ */
+final class FairScheduler extends AbstractExecutorService {
+  private static final Logger LOG = Logger.getLogger(FairScheduler.class.getName());
+  private static final long STRIDE_SCALE = 1 << 20;
+
+  private enum State {
+    RUNNING,
+    SHUTDOWN,
+    STOP
+  }
+
+  private static final class TaskContext {
+    final Priority priority;
+    final Object key;
+
+    TaskContext(Priority priority, Object key) {
+      this.priority = priority;
+      this.key = key;
+    }
+  }
+
+  private static final ThreadLocal<TaskContext> CONTEXT = new ThreadLocal<>();
+
+  private static final class ClassQueue {
+    final long stride;
+    // Keys are served in insertion order; a key is moved to the end after each task it supplies
+    final java.util.LinkedHashMap<Object, ArrayDeque<Runnable>> tasksByKey =
+        new java.util.LinkedHashMap<>();
+    long pass;
+    int size;
+
+    ClassQueue(Priority priority) {
+      this.stride = STRIDE_SCALE / priority.getWeight();
+    }
+
+    void add(Object key, Runnable task) {
+      tasksByKey.computeIfAbsent(key, k -> new ArrayDeque<>()).add(task);
+      size++;
+    }
+
+    Runnable poll() {
+      Iterator<java.util.Map.Entry<Object, ArrayDeque<Runnable>>> keys =
+          tasksByKey.entrySet().iterator();
+      java.util.Map.Entry<Object, ArrayDeque<Runnable>> next = keys.next();
+      keys.remove();
+      Runnable task = next.getValue().poll();
+      if (!next.getValue().isEmpty()) tasksByKey.put(next.getKey(), next.getValue());
+      size--;
+      return task;
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition taskAvailable = lock.newCondition();
+  private final Condition terminated = lock.newCondition();
+  private final EnumMap<Priority, ClassQueue> queues = new EnumMap<>(Priority.class);
+  private final ThreadFactory threadFactory;
+  private final int maximumWorkers;
+  private final java.util.Set<Thread> workers = new HashSet<>();
+  private final java.util.Set<Thread> replacedWorkers = new HashSet<>();
+  private long virtualTime;
+  private int queuedTasks;
+  private int activeTasks;
+  private int liveWorkers;
+  private int waitingWorkers;
+  private int workersToRetire;
+  private State state = State.RUNNING;
+
+  public FairScheduler(int threads) {
+    this(threads, java.util.concurrent.Executors.defaultThreadFactory());
+  }
+
+  public FairScheduler(int threads, @Nonnull ThreadFactory threadFactory) {
+    if (threads < 1) throw new IllegalArgumentException("threads must be >= 1; threads=" + threads);
+    for (Priority priority : Priority.values()) queues.put(priority, new ClassQueue(priority));
+    this.threadFactory = Objects.requireNonNull(threadFactory);
+    this.maximumWorkers = threads;
+    lock.lock();
+    try {
+      for (int i = 0; i < threads; ++i) startWorker();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Must be called with the lock held. */
+  private void startWorker() {
+    Thread worker = threadFactory.newThread(this::runWorker);
+    workers.add(worker);
+    liveWorkers++;
+    worker.start();
+  }
+
+  /**
+   * Run an operation with a priority and key which will be applied to tasks submitted by the
+   * current thread while the operation runs.
+   */
+  public static <T> T callWithContext(
+      @Nonnull Priority priority, Object key, @Nonnull Supplier<T> operation) {
+    TaskContext previous = CONTEXT.get();
+    CONTEXT.set(new TaskContext(Objects.requireNonNull(priority), key));
+    try {
+      return operation.get();
+    } finally {
+      if (previous == null) CONTEXT.remove();
+      else CONTEXT.set(previous);
+    }
+  }
+
+  /** Get an Executor which submits tasks to this scheduler with a specific priority and key. */
+  public Executor forContext(@Nonnull Priority priority, Object key) {
+    Objects.requireNonNull(priority);
+    return task -> execute(priority, key, task);
+  }
+
+  @Override
+  public void execute(@Nonnull Runnable task) {
+    TaskContext context = CONTEXT.get();
+    if (context == null) execute(Priority.NORMAL, null, task);
+    else execute(context.priority, context.key, task);
+  }
+
+  public void execute(@Nonnull Priority priority, Object key, @Nonnull Runnable task) {
+    Objects.requireNonNull(task);
+    lock.lock();
+    try {
+      if (state != State.RUNNING) throw new RejectedExecutionException("scheduler is shut down");
+      ClassQueue queue = queues.get(priority);
+      if (queue.size == 0) queue.pass = Math.max(queue.pass, virtualTime);
+      queue.add(key, task);
+      queuedTasks++;
+      workersToRetire = 0;
+      if (queuedTasks > waitingWorkers && liveWorkers < maximumWorkers) startWorker();
+      taskAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Must be called with the lock held, and with at least one task queued. */
+  private Runnable pollNextTask() {
+    ClassQueue next = null;
+    // Iteration is in Priority order, so ties go to the higher priority class
+    for (ClassQueue queue : queues.values()) {
+      if (queue.size > 0 && (next == null || queue.pass < next.pass)) next = queue;
+    }
+    assert next != null;
+    virtualTime = next.pass;
+    next.pass += next.stride;
+    queuedTasks--;
+    return next.poll();
+  }
+
+  private void runWorker() {
+    try {
+      while (true) {
+        Runnable task;
+        lock.lock();
+        try {
+          while (state == State.RUNNING && queuedTasks == 0 && workersToRetire == 0) {
+            waitingWorkers++;
+            try {
+              taskAvailable.await();
+            } catch (InterruptedException e) {
+              // Interrupts are used by shutdownNow(); the state is re-checked
+            } finally {
+              waitingWorkers--;
+            }
+          }
+          if (state == State.STOP) return;
+          if (queuedTasks == 0) {
+            if (state == State.RUNNING) workersToRetire--;
+            return;
+          }
+          task = pollNextTask();
+          activeTasks++;
+        } finally {
+          lock.unlock();
+        }
+        boolean replaced;
+        try {
+          task.run();
+        } catch (RuntimeException | Error e) {
+          LOG.log(Level.WARNING, "Scheduled task failed with an uncaught exception", e);
+        } finally {
+          lock.lock();
+          try {
+            activeTasks--;
+            replaced = replacedWorkers.remove(Thread.currentThread());
+          } finally {
+            lock.unlock();
+          }
+          // Don't let an interrupt targeting a task leak into the next one
+          if (state != State.STOP) Thread.interrupted();
+        }
+        if (replaced) return;
+      }
+    } finally {
+      lock.lock();
+      try {
+        workers.remove(Thread.currentThread());
+        if (--liveWorkers == 0) terminated.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** The number of tasks waiting to be started in each priority class. */
+  public Map<Priority, Integer> getQueueDepths() {
+    lock.lock();
+    try {
+      return Stream.of(Priority.values())
+          .foldLeft(LinkedHashMap.empty(), (m, p) -> m.put(p, queues.get(p).size));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The number of tasks currently running. */
+  public int getActiveCount() {
+    lock.lock();
+    try {
+      return activeTasks;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The maximum number of threads. */
+  public int getPoolSize() {
+    return maximumWorkers;
+  }
+
+  /** The number of threads currently running, which is less than the maximum after retirement. */
+  public int getLiveThreadCount() {
+    lock.lock();
+    try {
+      return liveWorkers;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop the threads which are waiting for tasks, releasing their stacks and thread-local state.
+   * Threads are started again as tasks are submitted.
+   */
+  public void retireIdleWorkers() {
+    lock.lock();
+    try {
+      if (state != State.RUNNING) return;
+      workersToRetire = waitingWorkers;
+      taskAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Retire a worker once its current task finishes, and start another thread in its place straight
+   * away. This is used for threads whose state can't be trusted, such as ones which have been
+   * stopped.
+   *
+   * @return false if the thread isn't one of this pool's workers.
+   */
+  public boolean replaceWorker(@Nonnull Thread worker) {
+    Objects.requireNonNull(worker);
+    lock.lock();
+    try {
+      if (!workers.contains(worker) || !replacedWorkers.add(worker)) return false;
+      if (state == State.RUNNING) startWorker();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    lock.lock();
+    try {
+      if (state == State.RUNNING) state = State.SHUTDOWN;
+      taskAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Nonnull
+  @Override
+  public List<Runnable> shutdownNow() {
+    List<Runnable> pending = new ArrayList<>();
+    List<Thread> running;
+    lock.lock();
+    try {
+      state = State.STOP;
+      for (ClassQueue queue : queues.values()) {
+        while (queue.size > 0) pending.add(queue.poll());
+      }
+      queuedTasks = 0;
+      taskAvailable.signalAll();
+      running = new ArrayList<>(workers);
+    } finally {
+      lock.unlock();
+    }
+    running.forEach(Thread::interrupt);
+    return pending;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    lock.lock();
+    try {
+      return state != State.RUNNING;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isTerminated() {
+    lock.lock();
+    try {
+      return state != State.RUNNING && liveWorkers == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, @Nonnull TimeUnit unit)
+      throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (!(state != State.RUNNING && liveWorkers == 0)) {
+        if (remaining <= 0) return false;
+        remaining = terminated.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -1,6 +1,8 @@
 package uk.ac.cam.lib.cudl.xsltnail;
 
 import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import io.vavr.control.Either;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -8,7 +10,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import javax.annotation.Nonnull;
 import javax.xml.transform.stream.StreamSource;
@@ -17,25 +23,73 @@ import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 
+/**
+ * Compiles XSLT files, recompiling them when their last modified timestamp changes.
+ *
+ * <p>Compilations are shared between all the paths which refer to the same file. Paths are resolved
+ * to their real path (resolving symbolic links and relative paths) and the stylesheet is compiled
+ * using the real path as its base URI, so a cache keyed by path holds one executable for each
+ * distinct file, however many aliases it's reached through.
+ *
+ * <p>Stylesheets are linked against the {@link SharedPackages} they use with {@code
+ * xsl:use-package}, and are recompiled when those packages are.
+ */
 class FileTimestampAsyncXSLTLoader
     implements AsyncCacheLoader<Path, FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT> {
   private final Processor processor;
-  private final ThreadLocal<XsltCompiler> compiler;
-  private final ThreadLocal<MemoryLogger> logger;
+  private final SharedPackages sharedPackages;
+  private final StylesheetAccounting accounting;
+  private final ThreadLocal<Compiler> compiler = new ThreadLocal<>();
+  // Compilations are held weakly; they remain shared as long as a cache entry for any alias of
+  // the file references them.
+  private final Cache<Path, FileTimestampCachedXSLT> compilationsByRealPath =
+      Caffeine.newBuilder().weakValues().build();
+  private final ConcurrentMap<Version, CompletableFuture<FileTimestampCachedXSLT>>
+      compilationsInProgress = new ConcurrentHashMap<>();
+
+  /** A compiler and its logger, which can use the packages of a library. */
+  private static final class Compiler {
+    final SharedPackages.Library library;
+    final XsltCompiler compiler;
+    final MemoryLogger logger;
+
+    Compiler(Processor processor, SharedPackages.Library library) {
+      this.library = library;
+      this.compiler = processor.newXsltCompiler();
+      this.logger = SaxonErrors.assignThreadSafeErrorReporter(compiler::setErrorReporter);
+    }
+  }
 
   public FileTimestampAsyncXSLTLoader(Processor processor) {
-    this.processor = processor;
+    this(processor, new SharedPackages(processor, io.vavr.collection.List.empty()));
+  }
 
-    // We maintain a logger and compiler per-thread
-    this.logger = new ThreadLocal<>();
-    this.compiler =
-        ThreadLocal.withInitial(
-            () -> {
-              XsltCompiler c = this.processor.newXsltCompiler();
-              MemoryLogger logger = SaxonErrors.assignThreadSafeErrorReporter(c::setErrorReporter);
-              this.logger.set(logger);
-              return c;
-            });
+  public FileTimestampAsyncXSLTLoader(
+      @Nonnull Processor processor, @Nonnull SharedPackages sharedPackages) {
+    this(processor, sharedPackages, new StylesheetAccounting());
+  }
+
+  /** @param accounting Receives the cost of each compilation, under the stylesheet's real path. */
+  public FileTimestampAsyncXSLTLoader(
+      @Nonnull Processor processor,
+      @Nonnull SharedPackages sharedPackages,
+      @Nonnull StylesheetAccounting accounting) {
+    this.processor = Objects.requireNonNull(processor);
+    this.sharedPackages = Objects.requireNonNull(sharedPackages);
+    this.accounting = Objects.requireNonNull(accounting);
+  }
+
+  /**
+   * Get this thread's compiler. We maintain a compiler per-thread, which is replaced when the
+   * packages change, as compilers can't forget packages they've been given.
+   */
+  private Compiler getCompiler(SharedPackages.Library library) throws SaxonApiException {
+    Compiler current = this.compiler.get();
+    if (current != null && current.library == library) return current;
+    Compiler replacement = new Compiler(this.processor, library);
+    library.addTo(replacement.compiler);
+    this.compiler.set(replacement);
+    return replacement;
   }
 
   @Override
@@ -49,13 +103,116 @@ class FileTimestampAsyncXSLTLoader
       @Nonnull Path key, @Nonnull FileTimestampCachedXSLT oldValue, @Nonnull Executor executor) {
     return CompletableFuture.supplyAsync(
         () -> {
-          long lastModified = this.getLastModifiedTimestamp(key);
-          if (lastModified == oldValue.getLastModifiedTimestamp()) return oldValue;
-          return compileXslt(key, lastModified);
+          Path realPath = getRealPath(key);
+          long lastModified = this.getLastModifiedTimestamp(realPath);
+          if (realPath.equals(oldValue.getRealPath())
+              && lastModified == oldValue.getLastModifiedTimestamp()
+              && oldValue.library == this.sharedPackages.get()) return oldValue;
+          return getSharedCompilation(realPath, lastModified);
         },
         executor);
   }
 
+  /**
+   * Resolve a path to the file it refers to. Paths which can't be resolved (e.g. because the file
+   * doesn't exist) are made absolute, so that the failed compilation is also shared.
+   */
+  @Nonnull
+  private static Path getRealPath(@Nonnull Path xsltFile) {
+    try {
+      return xsltFile.toRealPath();
+    } catch (IOException e) {
+      return xsltFile.toAbsolutePath().normalize();
+    }
+  }
+
+  /**
+   * Get the compilation of a file with the specified modification time, compiling it if another
+   * alias of the file hasn't already done so.
+   */
+  @Nonnull
+  private FileTimestampCachedXSLT getSharedCompilation(@Nonnull Path realPath, long lastModified) {
+    SharedPackages.Library library = this.sharedPackages.get();
+    FileTimestampCachedXSLT existing = getCompiledVersion(realPath, lastModified, library);
+    if (existing != null) return existing;
+
+    // Concurrent loads of the same version wait for one compilation, which runs outside any lock
+    Version version = new Version(realPath, lastModified, library);
+    CompletableFuture<FileTimestampCachedXSLT> compilation = new CompletableFuture<>();
+    CompletableFuture<FileTimestampCachedXSLT> inProgress =
+        this.compilationsInProgress.putIfAbsent(version, compilation);
+    if (inProgress != null) return awaitCompilation(inProgress);
+
+    try {
+      // Another load may have finished compiling this version since we looked
+      FileTimestampCachedXSLT compiled = getCompiledVersion(realPath, lastModified, library);
+      if (compiled == null) {
+        compiled =
+            this.accounting.measure(
+                realPath,
+                StylesheetAccounting.Phase.COMPILE,
+                () -> compileXslt(realPath, lastModified, library));
+        this.compilationsByRealPath.put(realPath, compiled);
+      }
+      compilation.complete(compiled);
+      return compiled;
+    } catch (RuntimeException | Error e) {
+      compilation.completeExceptionally(e);
+      throw e;
+    } finally {
+      this.compilationsInProgress.remove(version, compilation);
+    }
+  }
+
+  private FileTimestampCachedXSLT getCompiledVersion(
+      Path realPath, long lastModified, SharedPackages.Library library) {
+    FileTimestampCachedXSLT existing = this.compilationsByRealPath.getIfPresent(realPath);
+    return existing != null
+            && existing.getLastModifiedTimestamp() == lastModified
+            && existing.library == library
+        ? existing
+        : null;
+  }
+
+  private static FileTimestampCachedXSLT awaitCompilation(
+      CompletableFuture<FileTimestampCachedXSLT> compilation) {
+    try {
+      return compilation.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error) throw (Error) e.getCause();
+      throw e;
+    }
+  }
+
+  /** A version of a file, compiled against a particular library of packages. */
+  private static final class Version {
+    final Path realPath;
+    final long lastModified;
+    final SharedPackages.Library library;
+
+    Version(Path realPath, long lastModified, SharedPackages.Library library) {
+      this.realPath = realPath;
+      this.lastModified = lastModified;
+      this.library = library;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Version)) return false;
+      Version other = (Version) o;
+      return this.lastModified == other.lastModified
+          && this.library == other.library
+          && this.realPath.equals(other.realPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.realPath, this.lastModified, System.identityHashCode(this.library));
+    }
+  }
+
   private long getLastModifiedTimestamp(@Nonnull Path xsltFile) {
     try {
       return Files.getLastModifiedTime(xsltFile).toMillis();
@@ -72,40 +229,60 @@ class FileTimestampAsyncXSLTLoader
 
   @Nonnull
   private FileTimestampCachedXSLT compileXslt(@Nonnull Path xsltFile) {
-    return compileXslt(xsltFile, this.getLastModifiedTimestamp(xsltFile));
+    Path realPath = getRealPath(xsltFile);
+    return getSharedCompilation(realPath, this.getLastModifiedTimestamp(realPath));
   }
 
   @Nonnull
-  private FileTimestampCachedXSLT compileXslt(@Nonnull Path xsltPath, long lastModified) {
-    XsltCompiler compiler = this.compiler.get();
-    MemoryLogger logger = this.logger.get();
-
-    logger.clearLoggedMessages();
+  private FileTimestampCachedXSLT compileXslt(
+      @Nonnull Path xsltPath, long lastModified, @Nonnull SharedPackages.Library library) {
     Either<String, XsltExecutable> result;
+    MemoryLogger logger = null;
     try {
+      Compiler compiler = getCompiler(library);
+      logger = compiler.logger;
+      logger.clearLoggedMessages();
       XsltExecutable xslt =
-          compiler.compile(
+          compiler.compiler.compile(
               new StreamSource(
                   new FileInputStream(xsltPath.toFile()), xsltPath.toUri().toString()));
 
       result = Either.right(xslt);
     } catch (SaxonApiException e) {
-      result = Either.left("Failed to compile XSLT: " + logger.getLoggedMessages());
+      String messages = logger == null ? "" : logger.getLoggedMessages();
+      if (messages.isEmpty()) messages = e.getMessage();
+      // The stylesheet may have failed because a package it uses failed
+      result =
+          Either.left(
+              "Failed to compile XSLT: " + library.getErrors().prepend(messages).mkString("\n"));
     } catch (FileNotFoundException e) {
       result = Either.left("Failed to compile XSLT: " + e.getMessage());
     }
-    return new FileTimestampCachedXSLT(lastModified, result);
+    return new FileTimestampCachedXSLT(xsltPath, lastModified, library, result);
   }
 
   public static final class FileTimestampCachedXSLT implements CachedXSLT {
+    private final Path realPath;
     private final long timestamp;
+    private final SharedPackages.Library library;
     private final Either<String, XsltExecutable> xsltCompilation;
 
-    public FileTimestampCachedXSLT(long timestamp, Either<String, XsltExecutable> xsltCompilation) {
+    public FileTimestampCachedXSLT(
+        Path realPath,
+        long timestamp,
+        SharedPackages.Library library,
+        Either<String, XsltExecutable> xsltCompilation) {
+      this.realPath = realPath;
       this.timestamp = timestamp;
+      this.library = library;
       this.xsltCompilation = xsltCompilation;
     }
 
+    /** The resolved path of the file which was compiled. */
+    public Path getRealPath() {
+      return this.realPath;
+    }
+
     @Override
     public Either<String, XsltExecutable> getXSLTCompilation() {
       return this.xsltCompilation;
@@ -0,0 +1,242 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import com.facebook.nailgun.NGListeningAddress;
+import com.facebook.nailgun.NGServer;
+import io.vavr.collection.List;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * Takes over the address of a running server, which keeps handling requests until the takeover is
+ * complete.
+ *
+ * <p>The running server is asked for the stylesheets it has compiled with {@code xslt handover}.
+ * The new server compiles them while listening on a temporary socket, then renames its socket over
+ * the running server's, so that there's no moment at which the address isn't accepting connections.
+ * The running server stops once it has finished the requests it was handling.
+ */
+final class Handover implements AutoCloseable {
+  private static final Logger LOG = Logger.getLogger(Handover.class.getName());
+  private static final Duration SERVER_START_TIMEOUT = Duration.ofSeconds(30);
+  private static final Duration EXIT_TIMEOUT = Duration.ofSeconds(30);
+
+  private final NailgunClient client;
+  private final ScheduledExecutorService heartbeats;
+  private final CompletableFuture<List<Path>> cachedStylesheets = new CompletableFuture<>();
+  private final CompletableFuture<String> reply = new CompletableFuture<>();
+  private final CompletableFuture<Integer> exitStatus = new CompletableFuture<>();
+  private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+  private Handover(NailgunClient client) {
+    this.client = client;
+    this.heartbeats =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "xslt-nail-handover-heartbeat");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Ask the server listening on an address to hand over to us. */
+  public static Handover begin(@Nonnull NGListeningAddress address) throws IOException {
+    Handover handover = new Handover(NailgunClient.connect(address));
+    Thread thread = new Thread(handover::run, "xslt-nail-handover");
+    thread.setDaemon(true);
+    thread.start();
+    return handover;
+  }
+
+  private void run() {
+    try {
+      exitStatus.complete(
+          client.run(
+              "xslt",
+              new String[] {"handover"},
+              java.util.Map.of(),
+              System.getProperty("user.dir"),
+              new ReplyInputStream(),
+              new StylesheetListOutputStream(),
+              stderr,
+              heartbeats));
+    } catch (IOException | RuntimeException e) {
+      exitStatus.completeExceptionally(e);
+    } finally {
+      cachedStylesheets.completeExceptionally(
+          new IOException("The running server failed to hand over: " + getError()));
+      closeQuietly();
+    }
+  }
+
+  private String getError() {
+    String message = stderr.toString(StandardCharsets.UTF_8).strip();
+    if (!message.isEmpty()) return message;
+    return exitStatus
+        .handle((status, e) -> e != null ? e.toString() : "exit status " + status)
+        .join();
+  }
+
+  /** Get the stylesheets the running server has compiled, hottest first. */
+  public List<Path> getCachedStylesheets() throws IOException {
+    return await(cachedStylesheets, EXIT_TIMEOUT);
+  }
+
+  /**
+   * Compile the running server's stylesheets with our nail, then take over its address once our
+   * server is listening on a temporary socket.
+   */
+  public void takeOver(
+      @Nonnull XSLTNail nail, @Nonnull NGServer server, @Nonnull Path socket, @Nonnull Path address)
+      throws IOException {
+    List<Path> stylesheets = getCachedStylesheets();
+    LOG.log(Level.INFO, String.format("Compiling %d handed-over stylesheets", stylesheets.size()));
+    nail.precompile(stylesheets).join();
+
+    long deadline = System.nanoTime() + SERVER_START_TIMEOUT.toNanos();
+    while (!(server.isRunning() && Files.exists(socket))) {
+      if (System.nanoTime() > deadline)
+        throw new IOException("The server did not start listening on " + socket);
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the server to start", e);
+      }
+    }
+    complete(socket, address);
+  }
+
+  /**
+   * Replace the running server's socket with ours, and tell it that it can stop.
+   *
+   * @throws IOException if the socket could not be replaced, in which case the running server keeps
+   *     its address.
+   */
+  public void complete(@Nonnull Path socket, @Nonnull Path address) throws IOException {
+    Files.move(
+        Objects.requireNonNull(socket),
+        Objects.requireNonNull(address),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    reply.complete(XSLTNail.HANDOVER_TAKEN_OVER + "\n");
+    // The address is ours now, so a failure from here on can't be undone
+    try {
+      int status = await(exitStatus, EXIT_TIMEOUT);
+      if (status != 0)
+        LOG.warning("The previous server failed to acknowledge the handover: " + getError());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "The previous server failed to acknowledge the handover", e);
+    }
+  }
+
+  /** Tell the running server to carry on serving requests. */
+  public void abandon() {
+    reply.complete("abandoned\n");
+    try {
+      await(exitStatus, EXIT_TIMEOUT);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to abandon handover", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    abandon();
+  }
+
+  private void closeQuietly() {
+    heartbeats.shutdownNow();
+    try {
+      client.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to close handover connection", e);
+    }
+  }
+
+  private static <T> T await(CompletableFuture<T> future, Duration timeout) throws IOException {
+    try {
+      return future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for the running server", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the running server", e);
+    }
+  }
+
+  /** The running server's input: blocks until we've decided whether to take over. */
+  private final class ReplyInputStream extends InputStream {
+    private byte[] remaining;
+    private int position;
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+      if (remaining == null) {
+        try {
+          remaining = reply.get().getBytes(StandardCharsets.UTF_8);
+        } catch (ExecutionException | InterruptedException e) {
+          throw new IOException("Failed to decide whether to take over", e);
+        }
+      }
+      if (position >= remaining.length) return -1;
+      int count = Math.min(length, remaining.length - position);
+      System.arraycopy(remaining, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+  }
+
+  /** The running server's output: a list of paths, ended by an empty line. */
+  private final class StylesheetListOutputStream extends OutputStream {
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private List<Path> stylesheets = List.empty();
+
+    @Override
+    public void write(int b) throws IOException {
+      if (cachedStylesheets.isDone()) return;
+      if (b != '\n') {
+        line.write(b);
+        return;
+      }
+      String path = line.toString(StandardCharsets.UTF_8);
+      line.reset();
+      if (path.isEmpty()) {
+        cachedStylesheets.complete(stylesheets);
+        return;
+      }
+      try {
+        stylesheets = stylesheets.append(Path.of(path));
+      } catch (InvalidPathException e) {
+        throw new IOException("The running server sent an invalid path: " + path, e);
+      }
+    }
+  }
+}
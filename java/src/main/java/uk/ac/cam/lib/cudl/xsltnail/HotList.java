@@ -0,0 +1,74 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.List;
+import io.vavr.collection.Stream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nonnull;
+
+/**
+ * Counts how often stylesheets are used, to find the hottest ones.
+ *
+ * <p>Counts are halved by {@link #decay()}, so that stylesheets which have stopped being used cool
+ * down. The list can be recorded in a file, one path per line, hottest first.
+ */
+final class HotList {
+  private final ConcurrentMap<Path, Long> uses = new ConcurrentHashMap<>();
+
+  public void recordUse(@Nonnull Path stylesheet) {
+    uses.merge(stylesheet, 1L, Long::sum);
+  }
+
+  /** Get the most-used stylesheets, hottest first. */
+  public List<Path> getHottest(int limit) {
+    return Stream.ofAll(uses.entrySet())
+        .sortBy(entry -> -entry.getValue())
+        .map(java.util.Map.Entry::getKey)
+        .take(limit)
+        .toList();
+  }
+
+  /** Halve the use counts, forgetting stylesheets which haven't been used recently. */
+  public void decay() {
+    uses.replaceAll((stylesheet, count) -> count / 2);
+    uses.values().removeIf(count -> count == 0);
+  }
+
+  /**
+   * Add stylesheets listed hottest first, such as a list read from a file. The listed order is kept
+   * until the stylesheets are used.
+   */
+  public void addAll(@Nonnull List<Path> hottestFirst) {
+    long count = hottestFirst.size();
+    for (Path stylesheet : hottestFirst) uses.merge(stylesheet, count--, Long::sum);
+  }
+
+  public static List<Path> read(@Nonnull Path file) throws IOException {
+    return List.ofAll(Files.readAllLines(file, StandardCharsets.UTF_8))
+        .map(String::strip)
+        .filter(line -> !line.isEmpty())
+        .map(Path::of);
+  }
+
+  /**
+   * Write the hottest stylesheets to a file. The file is replaced atomically, so a reader never
+   * sees a partially-written list.
+   */
+  public void write(@Nonnull Path file, int limit) throws IOException {
+    List<Path> hottest = getHottest(limit);
+    AtomicFiles.write(
+        Objects.requireNonNull(file),
+        out -> {
+          Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+          for (Path path : hottest) writer.write(path + System.lineSeparator());
+          writer.flush();
+        });
+  }
+}
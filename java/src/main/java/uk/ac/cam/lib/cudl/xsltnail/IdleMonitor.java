@@ -0,0 +1,91 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * Runs an action when no requests have been active for a quiet period, and another when the first
+ * request after that starts.
+ */
+final class IdleMonitor implements AutoCloseable {
+  private static final Logger LOG = Logger.getLogger(IdleMonitor.class.getName());
+  private static final long MINIMUM_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long MAXIMUM_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final long quietPeriodNanos;
+  private final Runnable onIdle;
+  private final Runnable onResume;
+  private final ScheduledExecutorService checker;
+  private int activeRequests;
+  private long lastActive;
+  private boolean idle;
+
+  public IdleMonitor(
+      @Nonnull Duration quietPeriod, @Nonnull Runnable onIdle, @Nonnull Runnable onResume) {
+    this.quietPeriodNanos = quietPeriod.toNanos();
+    if (quietPeriodNanos <= 0) throw new IllegalArgumentException("quietPeriod must be positive");
+    this.onIdle = Objects.requireNonNull(onIdle);
+    this.onResume = Objects.requireNonNull(onResume);
+    this.lastActive = System.nanoTime();
+    this.checker =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "xslt-nail-idle-monitor");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long interval =
+        Math.min(
+            MAXIMUM_CHECK_INTERVAL_NANOS,
+            Math.max(MINIMUM_CHECK_INTERVAL_NANOS, quietPeriodNanos / 10));
+    checker.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.NANOSECONDS);
+  }
+
+  /** Record the start of a request, running the resume action first if we were idle. */
+  public void requestStarted() {
+    boolean resuming;
+    synchronized (this) {
+      activeRequests++;
+      resuming = idle;
+      idle = false;
+    }
+    if (resuming) run(onResume, "resume");
+  }
+
+  public synchronized void requestFinished() {
+    activeRequests--;
+    lastActive = System.nanoTime();
+  }
+
+  public synchronized boolean isIdle() {
+    return idle;
+  }
+
+  private void check() {
+    synchronized (this) {
+      if (idle || activeRequests > 0 || System.nanoTime() - lastActive < quietPeriodNanos) return;
+      idle = true;
+    }
+    run(onIdle, "idle");
+  }
+
+  private static void run(Runnable action, String name) {
+    try {
+      action.run();
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "The " + name + " action failed", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    checker.shutdownNow();
+  }
+}
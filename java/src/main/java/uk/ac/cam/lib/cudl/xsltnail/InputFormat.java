@@ -0,0 +1,53 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.Stream;
+import io.vavr.control.Option;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import javax.annotation.Nonnull;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.ma.json.JsonHandlerMap;
+import net.sf.saxon.ma.json.JsonParser;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+
+/** The formats a transform's input data can be parsed as. */
+enum InputFormat {
+  /** The input is parsed as an XML document, which is the transform's source. */
+  XML,
+  /**
+   * The input is parsed as JSON into XDM maps and arrays, as {@code parse-json()} would, which are
+   * the transform's initial match selection and global context item.
+   */
+  JSON;
+
+  // parse-json()'s default handling of duplicate keys
+  private static final int JSON_PARSER_FLAGS = JsonParser.DUPLICATES_FIRST;
+
+  /** The lowercase name used to identify the format on the command line. */
+  public String getName() {
+    return name().toLowerCase();
+  }
+
+  public static Option<InputFormat> fromName(@Nonnull String name) {
+    return Stream.of(values()).find(f -> f.getName().equals(name));
+  }
+
+  /**
+   * Parse JSON text into its XDM representation. This uses Saxon's parser directly, rather than
+   * evaluating {@code parse-json()}, so no XPath needs to be compiled per input.
+   *
+   * @throws XPathException if the data is not valid JSON.
+   */
+  public static XdmValue parseJson(@Nonnull Processor processor, @Nonnull Reader json)
+      throws IOException, XPathException {
+    StringWriter text = new StringWriter();
+    json.transferTo(text);
+    XPathContext context = processor.getUnderlyingConfiguration().getConversionContext();
+    JsonHandlerMap handler = new JsonHandlerMap(context, JSON_PARSER_FLAGS);
+    new JsonParser().parse(text.toString(), JSON_PARSER_FLAGS, handler, context);
+    return XdmValue.wrap(handler.getResult());
+  }
+}
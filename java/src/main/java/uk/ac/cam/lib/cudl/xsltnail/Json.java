@@ -0,0 +1,104 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmArray;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmMap;
+import net.sf.saxon.s9api.XdmValue;
+
+/** Serialization of simple Java data structures as JSON, using Saxon's JSON serializer. */
+final class Json {
+  private Json() {}
+
+  // Serialization doesn't depend on any processor configuration, so one is shared
+  private static final Processor PROCESSOR = new Processor(false);
+  private static final QName JSON_VARIABLE = new QName("json");
+  private static final XPathExecutable PARSE_JSON = compileParseJson();
+
+  private static XPathExecutable compileParseJson() {
+    XPathCompiler compiler = PROCESSOR.newXPathCompiler();
+    compiler.declareVariable(JSON_VARIABLE);
+    try {
+      return compiler.compile("parse-json($json)");
+    } catch (SaxonApiException e) {
+      throw new AssertionError("Failed to compile JSON parser", e);
+    }
+  }
+
+  /**
+   * Convert a value to its XDM equivalent. Maps become XDM maps, Iterables become arrays, and other
+   * values become atomic values.
+   */
+  public static XdmValue toXdm(Object value) {
+    if (value instanceof XdmValue) return (XdmValue) value;
+    if (value instanceof Map) {
+      XdmMap map = new XdmMap();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        map = map.put(new XdmAtomicValue(String.valueOf(entry.getKey())), toXdm(entry.getValue()));
+      }
+      return map;
+    }
+    if (value instanceof Iterable) {
+      List<XdmValue> members = new ArrayList<>();
+      for (Object member : (Iterable<?>) value) members.add(toXdm(member));
+      return new XdmArray(members);
+    }
+    return XdmValue.makeValue(value);
+  }
+
+  /**
+   * Convert an XDM value to its Java equivalent, the inverse of {@link #toXdm(Object)}. Maps become
+   * LinkedHashMaps with String keys, arrays become Lists, and atomic values their Java value (e.g.
+   * String, Boolean or BigDecimal). An empty sequence becomes null.
+   */
+  public static Object fromXdm(XdmValue value) {
+    if (value instanceof XdmMap) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      ((XdmMap) value).asMap().forEach((k, v) -> map.put(k.getStringValue(), fromXdm(v)));
+      return map;
+    }
+    if (value instanceof XdmArray) {
+      List<Object> members = new ArrayList<>();
+      for (XdmValue member : ((XdmArray) value).asList()) members.add(fromXdm(member));
+      return members;
+    }
+    if (value.size() == 0) return null;
+    if (value instanceof XdmAtomicValue) return ((XdmAtomicValue) value).getValue();
+    throw new IllegalArgumentException("Unsupported JSON value: " + value);
+  }
+
+  /**
+   * Parse a JSON document into Java values, as described by {@link #fromXdm(XdmValue)}.
+   *
+   * @throws SaxonApiException if the data isn't valid JSON.
+   */
+  public static Object read(@Nonnull InputStream in) throws IOException, SaxonApiException {
+    String json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    XPathSelector parser = PARSE_JSON.load();
+    parser.setVariable(JSON_VARIABLE, new XdmAtomicValue(json));
+    return fromXdm(parser.evaluate());
+  }
+
+  public static void write(@Nonnull OutputStream out, @Nonnull Object value)
+      throws SaxonApiException {
+    Serializer serializer = PROCESSOR.newSerializer(out);
+    serializer.setOutputProperty(Serializer.Property.METHOD, "json");
+    serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
+    serializer.serializeXdmValue(toXdm(value));
+  }
+}
@@ -22,7 +22,24 @@ final class Logging {
           + ProcessHandle.current().pid()
           + " %2$s %5$s%6$s%n";
 
+  // The handler in use if logging is asynchronous
+  private static volatile AsyncLogHandler asyncHandler;
+
+  /** The number of log records dropped by asynchronous logging, if it's in use. */
+  public static Option<Long> getDroppedLogRecords() {
+    return Option.of(asyncHandler).map(AsyncLogHandler::getDroppedCount);
+  }
+
   static void configureLogging(Level level, Option<Path> destination) {
+    configureLogging(level, destination, Option.none());
+  }
+
+  /**
+   * @param async If defined, records are written by a background thread, using the specified policy
+   *     when more records are waiting than it can hold.
+   */
+  static void configureLogging(
+      Level level, Option<Path> destination, Option<AsyncLogHandler.OverflowPolicy> async) {
     Logger ngLog = Logger.getLogger(NGServer.class.getPackageName());
     Logger xsltNgLog = Logger.getLogger(XSLTNailgunServer.class.getPackageName());
     ngLog.setLevel(level);
@@ -45,6 +62,10 @@ final class Logging {
             .get();
     handler.setFormatter(newSimpleFormatter(LOG_FORMAT));
     handler.setLevel(level);
+    if (async.isDefined()) {
+      asyncHandler = new AsyncLogHandler(handler, async.get());
+      handler = asyncHandler;
+    }
 
     ngLog.addHandler(handler);
     xsltNgLog.addHandler(handler);
@@ -0,0 +1,112 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.StaticContext;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.SequenceType;
+import net.sf.saxon.value.StringValue;
+
+/**
+ * The {@code xn:lookup($table as xs:string, $key as xs:string) as xs:string?} extension function,
+ * which gets the value of a key from a {@link LookupTable} file. {@code xn} is bound to {@link
+ * Constants#FUNCTIONS_NAMESPACE}.
+ *
+ * <p>Relative table paths are resolved against the static base URI of the calling expression, which
+ * is normally the stylesheet module's location.
+ */
+final class LookupFunction extends ExtensionFunctionDefinition {
+  private static final StructuredQName NAME =
+      new StructuredQName("xn", Constants.FUNCTIONS_NAMESPACE, "lookup");
+  private static final StructuredQName ERROR_CODE =
+      new StructuredQName("xn", Constants.FUNCTIONS_NAMESPACE, "lookup-table-unavailable");
+
+  private final LookupTables tables;
+
+  public LookupFunction(@Nonnull LookupTables tables) {
+    this.tables = Objects.requireNonNull(tables);
+  }
+
+  @Override
+  public StructuredQName getFunctionQName() {
+    return NAME;
+  }
+
+  @Override
+  public SequenceType[] getArgumentTypes() {
+    return new SequenceType[] {SequenceType.SINGLE_STRING, SequenceType.SINGLE_STRING};
+  }
+
+  @Override
+  public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+    return SequenceType.OPTIONAL_STRING;
+  }
+
+  @Override
+  public ExtensionFunctionCall makeCallExpression() {
+    return new Call();
+  }
+
+  private final class Call extends ExtensionFunctionCall {
+    private String baseURI;
+
+    @Override
+    public void supplyStaticContext(StaticContext context, int locationId, Expression[] arguments) {
+      this.baseURI = context.getStaticBaseURI();
+    }
+
+    @Override
+    public void copyLocalData(ExtensionFunctionCall destination) {
+      ((Call) destination).baseURI = this.baseURI;
+    }
+
+    @Override
+    public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
+      String table = arguments[0].head().getStringValue();
+      String key = arguments[1].head().getStringValue();
+      Path path = resolve(table);
+      try {
+        return tables
+            .get(path)
+            .get(key)
+            .<Sequence>map(StringValue::new)
+            .getOrElse(EmptySequence::getInstance);
+      } catch (IOException e) {
+        XPathException error =
+            new XPathException(
+                String.format("Unable to open lookup table \"%s\": %s", path, e.getMessage()));
+        error.setErrorCodeQName(ERROR_CODE);
+        throw error;
+      }
+    }
+
+    private Path resolve(String table) throws XPathException {
+      try {
+        URI uri =
+            baseURI == null || baseURI.isEmpty()
+                ? Path.of(table).toUri()
+                : new URI(baseURI).resolve(new URI(null, null, table, null));
+        if (!"file".equals(uri.getScheme()))
+          throw new XPathException(
+              String.format("Lookup table \"%s\" is not a file: %s", table, uri));
+        return Path.of(uri);
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        XPathException error =
+            new XPathException(String.format("Invalid lookup table path \"%s\": %s", table, e));
+        error.setErrorCodeQName(ERROR_CODE);
+        throw error;
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple2;
+import io.vavr.control.Option;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+
+/**
+ * A read-only string key/value table stored in a memory-mapped file.
+ *
+ * <p>Lookups binary search the file's sorted entries in place, so opening a table doesn't parse it
+ * or copy it onto the heap, and lookups take O(log n) time. The file format is:
+ *
+ * <pre>
+ *   magic   "XNLT"
+ *   version int32 (1)
+ *   count   int32
+ *   offsets int32 * count    -- the position of each entry, in key order
+ *   entries (keyLength int32, key UTF-8, valueLength int32, value UTF-8) * count
+ * </pre>
+ *
+ * <p>Keys are ordered by their UTF-8 bytes, compared as unsigned values. Ints are big-endian. Files
+ * are limited to 2GiB, the size of a single mapping. The entries' positions and lengths are checked
+ * against the file's size when it's opened, so lookups don't need to check them.
+ */
+final class LookupTable {
+  private static final byte[] MAGIC = "XNLT".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 4 + 4;
+
+  private final ByteBuffer data;
+  private final int size;
+
+  private LookupTable(ByteBuffer data) throws IOException {
+    this.data = data;
+    byte[] magic = new byte[MAGIC.length];
+    if (data.limit() < HEADER_SIZE) throw new IOException("file is too short to be a lookup table");
+    data.duplicate().get(magic);
+    if (!Arrays.equals(magic, MAGIC)) throw new IOException("file is not a lookup table");
+    int version = data.getInt(MAGIC.length);
+    if (version != VERSION)
+      throw new IOException(String.format("unsupported lookup table version: %d", version));
+    this.size = data.getInt(MAGIC.length + 4);
+    if (size < 0 || HEADER_SIZE + (long) size * 4 > data.limit())
+      throw new IOException("lookup table is truncated");
+    validateEntries();
+  }
+
+  /**
+   * Check that every entry lies within the file, so that a truncated or corrupt table is reported
+   * when it's opened, rather than by a failure part way through a lookup.
+   */
+  private void validateEntries() throws IOException {
+    long entriesStart = HEADER_SIZE + (long) size * 4;
+    for (int i = 0; i < size; i++) {
+      long entry = Integer.toUnsignedLong(data.getInt(HEADER_SIZE + i * 4));
+      if (entry < entriesStart)
+        throw new IOException(
+            String.format("lookup table is corrupt: entry %d has an invalid offset", i));
+      long valuePosition = checkString(i, entry);
+      checkString(i, valuePosition);
+    }
+  }
+
+  /** Check a length-prefixed string of an entry, returning the position after it. */
+  private long checkString(int index, long position) throws IOException {
+    if (position + 4 > data.limit())
+      throw new IOException(String.format("lookup table is truncated at entry %d", index));
+    int length = data.getInt((int) position);
+    if (length < 0)
+      throw new IOException(
+          String.format("lookup table is corrupt: entry %d has a negative length", index));
+    long end = position + 4 + length;
+    if (end > data.limit())
+      throw new IOException(String.format("lookup table is truncated at entry %d", index));
+    return end;
+  }
+
+  /** Map a table file into memory. */
+  public static LookupTable open(@Nonnull Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("lookup tables larger than 2GiB are not supported");
+      // The mapping remains valid after the channel is closed
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new LookupTable(data);
+    }
+  }
+
+  /** The number of entries in the table. */
+  public int size() {
+    return size;
+  }
+
+  /** Get the value of a key, if the table contains it. */
+  public Option<String> get(@Nonnull String key) {
+    byte[] target = key.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = data.getInt(HEADER_SIZE + mid * 4);
+      int cmp = compareKey(entry, target);
+      if (cmp < 0) low = mid + 1;
+      else if (cmp > 0) high = mid - 1;
+      else {
+        int valuePosition = entry + 4 + data.getInt(entry);
+        return Option.some(readString(valuePosition));
+      }
+    }
+    return Option.none();
+  }
+
+  private int compareKey(int entry, byte[] target) {
+    int length = data.getInt(entry);
+    int start = entry + 4;
+    int common = Math.min(length, target.length);
+    for (int i = 0; i < common; i++) {
+      int cmp = Byte.toUnsignedInt(data.get(start + i)) - Byte.toUnsignedInt(target[i]);
+      if (cmp != 0) return cmp;
+    }
+    return length - target.length;
+  }
+
+  private String readString(int position) {
+    byte[] bytes = new byte[data.getInt(position)];
+    // Absolute bulk reads need Java 13, so read via a duplicate to remain thread safe
+    ByteBuffer view = data.duplicate();
+    view.position(position + 4);
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write a table file containing the entries. The file is written to a temporary file and moved
+   * into place, so that servers which have the previous version mapped are unaffected.
+   *
+   * @throws IllegalArgumentException if a key occurs more than once.
+   */
+  public static void write(@Nonnull Iterable<Tuple2<String, String>> entries, @Nonnull Path path)
+      throws IOException {
+    Objects.requireNonNull(path);
+    List<byte[][]> encoded = new ArrayList<>();
+    for (Tuple2<String, String> entry : entries) {
+      encoded.add(
+          new byte[][] {
+            entry._1.getBytes(StandardCharsets.UTF_8), entry._2.getBytes(StandardCharsets.UTF_8)
+          });
+    }
+    encoded.sort((a, b) -> Arrays.compareUnsigned(a[0], b[0]));
+    for (int i = 1; i < encoded.size(); i++) {
+      if (Arrays.equals(encoded.get(i - 1)[0], encoded.get(i)[0]))
+        throw new IllegalArgumentException(
+            String.format(
+                "duplicate key: \"%s\"", new String(encoded.get(i)[0], StandardCharsets.UTF_8)));
+    }
+
+    long entriesStart = HEADER_SIZE + (long) encoded.size() * 4;
+    long totalSize = entriesStart;
+    for (byte[][] entry : encoded) totalSize += 8 + entry[0].length + entry[1].length;
+    if (totalSize > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("lookup tables larger than 2GiB are not supported");
+
+    AtomicFiles.write(
+        path,
+        file -> {
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+          long position = entriesStart;
+          out.write(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(encoded.size());
+          for (byte[][] entry : encoded) {
+            out.writeInt((int) position);
+            position += 8 + entry[0].length + entry[1].length;
+          }
+          for (byte[][] entry : encoded) {
+            out.writeInt(entry[0].length);
+            out.write(entry[0]);
+            out.writeInt(entry[1].length);
+            out.write(entry[1]);
+          }
+          out.flush();
+        });
+  }
+}
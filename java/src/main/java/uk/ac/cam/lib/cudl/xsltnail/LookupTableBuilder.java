@@ -0,0 +1,74 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.Map;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.docopt.Docopt;
+
+/**
+ * Build {@link LookupTable} files from tab-separated key/value text, according to {@link
+ * Constants#USAGE_LOOKUP_TABLE_BUILDER}.
+ */
+public final class LookupTableBuilder {
+  private LookupTableBuilder() {}
+
+  public static void main(String[] args) {
+    Map<String, Object> parsedArgs =
+        HashMap.ofAll(
+            new Docopt(Constants.USAGE_LOOKUP_TABLE_BUILDER)
+                .withExit(true)
+                .withHelp(true)
+                .withVersion(Constants.VERSION)
+                .parse(args));
+    try {
+      int count =
+          build(
+              (String) parsedArgs.get("<tsv-file>").get(),
+              Path.of((String) parsedArgs.get("<table-file>").get()));
+      System.err.format("Wrote %d entries\n", count);
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.format("Error: %s\n", e.getMessage());
+      System.exit(Constants.EXIT_STATUS_USER_ERROR);
+    }
+  }
+
+  static int build(String tsvFile, Path tableFile) throws IOException {
+    try (BufferedReader reader =
+        "-".equals(tsvFile)
+            ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+            : Files.newBufferedReader(Path.of(tsvFile), StandardCharsets.UTF_8)) {
+      List<Tuple2<String, String>> entries = parseEntries(reader);
+      LookupTable.write(entries, tableFile);
+      return entries.size();
+    }
+  }
+
+  /**
+   * Parse lines of {@code key TAB value} text. Empty lines are ignored.
+   *
+   * @throws IllegalArgumentException if a line has no tab.
+   */
+  static List<Tuple2<String, String>> parseEntries(BufferedReader reader) throws IOException {
+    List<Tuple2<String, String>> entries = new ArrayList<>();
+    int lineNumber = 0;
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      lineNumber++;
+      if (line.isEmpty()) continue;
+      int tab = line.indexOf('\t');
+      if (tab < 0)
+        throw new IllegalArgumentException(
+            String.format("line %d has no tab separating its key and value", lineNumber));
+      entries.add(Tuple.of(line.substring(0, tab), line.substring(tab + 1)));
+    }
+    return entries;
+  }
+}
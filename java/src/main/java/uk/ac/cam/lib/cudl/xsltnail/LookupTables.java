@@ -0,0 +1,69 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple3;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nonnull;
+
+/**
+ * The lookup tables opened by stylesheets, shared between transforms.
+ *
+ * <p>Tables are reopened when their file is replaced. Files are checked at most once per check
+ * interval, so lookups don't normally cost a filesystem access. Only replacing a table's file
+ * atomically, as {@link LookupTable#write} and {@link LookupTableBuilder} do, is supported. A file
+ * which is modified in place may be truncated under a transform's mapping of it, which can crash
+ * the JVM with SIGBUS rather than failing the lookup.
+ */
+final class LookupTables {
+  public static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofSeconds(1);
+
+  private static final class OpenTable {
+    final LookupTable table;
+    final Tuple3<Object, Object, Object> version;
+    volatile long checkedAt;
+
+    OpenTable(LookupTable table, Tuple3<Object, Object, Object> version, long checkedAt) {
+      this.table = table;
+      this.version = version;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  private final ConcurrentMap<Path, OpenTable> tables = new ConcurrentHashMap<>();
+  private final long checkIntervalNanos;
+
+  public LookupTables() {
+    this(DEFAULT_CHECK_INTERVAL);
+  }
+
+  public LookupTables(@Nonnull Duration checkInterval) {
+    this.checkIntervalNanos = checkInterval.toNanos();
+  }
+
+  /** Get the current version of the table stored in a file. */
+  public LookupTable get(@Nonnull Path path) throws IOException {
+    Path key = path.toAbsolutePath().normalize();
+    long now = System.nanoTime();
+    OpenTable open = tables.get(key);
+    if (open != null && now - open.checkedAt < checkIntervalNanos) return open.table;
+
+    BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+    // The file key (e.g. inode) changes when a new version is moved into place
+    Tuple3<Object, Object, Object> version =
+        Tuple.of(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+    if (open != null && open.version.equals(version)) {
+      open.checkedAt = now;
+      return open.table;
+    }
+    // Concurrent lookups may both open a changed table, which is harmless
+    LookupTable table = LookupTable.open(key);
+    tables.put(key, new OpenTable(table, version, now));
+    return table;
+  }
+}
@@ -0,0 +1,189 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_ARGUMENT;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_COMMAND;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_ENVIRONMENT;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_EXIT;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_HEARTBEAT;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_SENDINPUT;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_STDERR;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_STDIN;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_STDIN_EOF;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_STDOUT;
+import static com.facebook.nailgun.NGConstants.CHUNKTYPE_WORKINGDIRECTORY;
+
+import com.facebook.nailgun.NGConstants;
+import com.facebook.nailgun.NGListeningAddress;
+import com.facebook.nailgun.NGUnixDomainSocket;
+import com.facebook.nailgun.NGUnixDomainSocketLibrary;
+import com.sun.jna.LastErrorException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * A minimal client for the Nailgun protocol, used to forward requests to another Nailgun server.
+ *
+ * <p>Each client runs a single command. Heartbeats are sent to the server while the command runs,
+ * so that the server doesn't consider the client to have disconnected.
+ */
+final class NailgunClient implements Closeable {
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private volatile boolean committed;
+
+  private NailgunClient(Socket socket) throws IOException {
+    this.socket = socket;
+    this.in = new DataInputStream(socket.getInputStream());
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  /** Connect to a Nailgun server listening on a network address or UNIX domain socket. */
+  public static NailgunClient connect(@Nonnull NGListeningAddress address) throws IOException {
+    if (address.isInetAddress()) {
+      return new NailgunClient(new Socket(address.getInetAddress(), address.getInetPort()));
+    }
+    String path = address.getLocalAddress();
+    if (System.getProperty("os.name").toLowerCase().startsWith("windows")) {
+      throw new IOException("Connecting to Windows named pipes is not supported: " + path);
+    }
+    int fd = -1;
+    try {
+      fd =
+          NGUnixDomainSocketLibrary.socket(
+              NGUnixDomainSocketLibrary.PF_LOCAL, NGUnixDomainSocketLibrary.SOCK_STREAM, 0);
+      NGUnixDomainSocketLibrary.SockaddrUn sockaddr =
+          new NGUnixDomainSocketLibrary.SockaddrUn(path);
+      NGUnixDomainSocketLibrary.connect(fd, sockaddr, sockaddr.size());
+      return new NailgunClient(new NGUnixDomainSocket(fd));
+    } catch (LastErrorException e) {
+      if (fd >= 0) NGUnixDomainSocketLibrary.close(fd);
+      throw new IOException(String.format("Unable to connect to \"%s\": %s", path, e), e);
+    }
+  }
+
+  /**
+   * Whether the command has consumed input or produced output. A command which failed before it was
+   * committed can safely be re-run elsewhere.
+   */
+  public boolean isCommitted() {
+    return committed;
+  }
+
+  /**
+   * Run a command on the server, relaying its input and output.
+   *
+   * @param heartbeats Used to schedule heartbeats while the command runs.
+   * @return The command's exit status.
+   * @throws IOException if the connection fails before the command exits.
+   */
+  public int run(
+      @Nonnull String command,
+      @Nonnull String[] args,
+      @Nonnull Map<String, String> environment,
+      @Nonnull String workingDirectory,
+      @Nonnull InputStream stdin,
+      @Nonnull OutputStream stdout,
+      @Nonnull OutputStream stderr,
+      @Nonnull ScheduledExecutorService heartbeats)
+      throws IOException {
+    Objects.requireNonNull(stdin);
+    for (String arg : args) sendChunk(CHUNKTYPE_ARGUMENT, arg);
+    for (Map.Entry<String, String> var : environment.entrySet()) {
+      sendChunk(CHUNKTYPE_ENVIRONMENT, var.getKey() + "=" + var.getValue());
+    }
+    sendChunk(CHUNKTYPE_WORKINGDIRECTORY, workingDirectory);
+    sendChunk(CHUNKTYPE_COMMAND, command);
+
+    ScheduledFuture<?> heartbeat =
+        heartbeats.scheduleAtFixedRate(
+            this::sendHeartbeat,
+            NGConstants.HEARTBEAT_INTERVAL_MILLIS,
+            NGConstants.HEARTBEAT_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+    try {
+      byte[] inputBuffer = new byte[NGConstants.MAXIMUM_CHUNK_LENGTH];
+      while (true) {
+        int length;
+        byte type;
+        try {
+          length = in.readInt();
+          type = in.readByte();
+        } catch (EOFException e) {
+          throw new IOException("Server closed the connection before the command exited", e);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        switch (type) {
+          case CHUNKTYPE_STDOUT:
+            committed = true;
+            stdout.write(payload);
+            stdout.flush();
+            break;
+          case CHUNKTYPE_STDERR:
+            committed = true;
+            stderr.write(payload);
+            stderr.flush();
+            break;
+          case CHUNKTYPE_SENDINPUT:
+            committed = true;
+            int read = stdin.read(inputBuffer);
+            if (read < 0) sendChunk(CHUNKTYPE_STDIN_EOF, new byte[0], 0);
+            else sendChunk(CHUNKTYPE_STDIN, inputBuffer, read);
+            break;
+          case CHUNKTYPE_EXIT:
+            String status = new String(payload, StandardCharsets.US_ASCII).trim();
+            try {
+              return Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+              throw new IOException("Server sent an invalid exit status: " + status, e);
+            }
+          default:
+            throw new IOException(String.format("Server sent an unexpected chunk type: %d", type));
+        }
+      }
+    } finally {
+      heartbeat.cancel(false);
+    }
+  }
+
+  private void sendHeartbeat() {
+    try {
+      sendChunk(CHUNKTYPE_HEARTBEAT, new byte[0], 0);
+    } catch (IOException e) {
+      // The command's read loop will fail too, and report the error
+    }
+  }
+
+  private void sendChunk(byte type, String payload) throws IOException {
+    byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+    sendChunk(type, bytes, bytes.length);
+  }
+
+  private synchronized void sendChunk(byte type, byte[] payload, int length) throws IOException {
+    out.writeInt(length);
+    out.writeByte(type);
+    out.write(payload, 0, length);
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
@@ -0,0 +1,316 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.Stream;
+import io.vavr.control.Option;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.functions.URIQueryParameters;
+import net.sf.saxon.lib.CollectionFinder;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.Resource;
+import net.sf.saxon.lib.ResourceCollection;
+import net.sf.saxon.om.GenericTreeInfo;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SpaceStrippingRule;
+import net.sf.saxon.resource.AbstractResourceCollection;
+import net.sf.saxon.resource.XmlResource;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.wrapper.SpaceStrippedDocument;
+
+/**
+ * Finds collections with Saxon's standard collection finder, and parses the XML documents of a
+ * collection in parallel.
+ *
+ * <p>Saxon parses a collection's documents one at a time, as the stylesheet iterates over it. This
+ * finder starts parsing the next few local files of the collection on an executor as soon as the
+ * collection is iterated, while the documents are still returned in the collection's order. Other
+ * kinds of resources, such as unparsed text, are left to Saxon. Documents are parsed with their own
+ * copy of the collection's parse options, and don't touch the transform's dynamic context, which
+ * isn't thread-safe. A document which fails to parse is parsed again by Saxon on the transform's
+ * thread, so the failure is reported according to the collection's {@code on-error} parameter.
+ *
+ * <p>Saxon orders the nodes of different documents by their document numbers, which are normally
+ * allocated when a document is parsed. Documents parsed here are numbered when the collection's
+ * iterator returns them instead, so path expressions such as {@code collection()/*} keep the
+ * collection's order.
+ *
+ * <p>Documents of a collection whose URI has the query parameter {@value #CACHE_PARAMETER}{@code
+ * =yes} come from the {@link SharedDocuments}, so they're only parsed again when their file
+ * changes. Shared documents keep the number they were given when first parsed, as other transforms
+ * may be using them, unless the stylesheet strips whitespace from them, which wraps each one in a
+ * new document. Documents whose parsing is changed by other query parameters (e.g. {@code
+ * strip-space}) are always parsed.
+ */
+final class ParallelCollectionFinder implements CollectionFinder {
+  /** The collection URI query parameter which enables sharing of a collection's documents. */
+  public static final String CACHE_PARAMETER = "cache";
+
+  private final Processor processor;
+  private final CollectionFinder collectionFinder;
+  private final SharedDocuments sharedDocuments;
+  private final Executor executor;
+  private final int maximumParsing;
+
+  /**
+   * @param maximumParsing The maximum number of documents of a collection which are parsed ahead of
+   *     the stylesheet.
+   */
+  public ParallelCollectionFinder(
+      @Nonnull Processor processor,
+      @Nonnull SharedDocuments sharedDocuments,
+      @Nonnull Executor executor,
+      int maximumParsing) {
+    if (maximumParsing < 1) throw new IllegalArgumentException("maximumParsing must be positive");
+    this.processor = Objects.requireNonNull(processor);
+    this.collectionFinder = processor.getUnderlyingConfiguration().getCollectionFinder();
+    this.sharedDocuments = Objects.requireNonNull(sharedDocuments);
+    this.executor = Objects.requireNonNull(executor);
+    this.maximumParsing = maximumParsing;
+  }
+
+  /** Create a fork-join pool of daemon threads to parse collection documents on. */
+  public static ForkJoinPool newParserPool(int parallelism) {
+    return new ForkJoinPool(
+        parallelism,
+        pool -> {
+          ForkJoinWorkerThread thread =
+              ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+          thread.setName("xslt-nail-collection-" + thread.getPoolIndex());
+          thread.setDaemon(true);
+          return thread;
+        },
+        null,
+        false);
+  }
+
+  @Override
+  public ResourceCollection findCollection(XPathContext context, String collectionURI)
+      throws XPathException {
+    ResourceCollection collection = collectionFinder.findCollection(context, collectionURI);
+    if (collection == null) return null;
+    Configuration config = context.getConfiguration();
+    Option<URIQueryParameters> parameters = getQueryParameters(config, collectionURI);
+    return new ParallelCollection(
+        collection,
+        getParseOptions(config, parameters),
+        isShared(collectionURI, parameters),
+        config);
+  }
+
+  private static Option<URIQueryParameters> getQueryParameters(
+      Configuration config, String collectionURI) throws XPathException {
+    int queryStart = collectionURI.indexOf('?');
+    if (queryStart < 0) return Option.none();
+    return Option.some(new URIQueryParameters(collectionURI.substring(queryStart + 1), config));
+  }
+
+  /**
+   * Get the options a collection's documents are parsed with, as Saxon's collections apply its
+   * query parameters. Whitespace is stripped according to the stylesheet, not the query, as Saxon's
+   * directory collections do (see {@link ParallelCollection#stripWhitespace}). Errors aren't
+   * reported, as documents which fail to parse are parsed again by Saxon.
+   */
+  private static ParseOptions getParseOptions(
+      Configuration config, Option<URIQueryParameters> parameters) {
+    ParseOptions options = new ParseOptions(config.getParseOptions());
+    for (URIQueryParameters params : parameters) {
+      if (params.getValidationMode() != null)
+        options.setSchemaValidationMode(params.getValidationMode());
+      if (params.getXInclude() != null) options.setXIncludeAware(params.getXInclude());
+      if (params.getXMLReaderMaker() != null) options.setXMLReaderMaker(params.getXMLReaderMaker());
+    }
+    options.setSpaceStrippingRule(null);
+    options.setErrorReporter(error -> {});
+    return options;
+  }
+
+  /**
+   * Whether a collection's documents come from the shared documents. They must be parsed the way
+   * the shared documents are, so only the query parameters which choose files are allowed.
+   */
+  private static boolean isShared(String collectionURI, Option<URIQueryParameters> parameters) {
+    String query = collectionURI.substring(collectionURI.indexOf('?') + 1);
+    return parameters.exists(
+        params ->
+            Stream.of(query.split("[;&]")).contains(CACHE_PARAMETER + "=yes")
+                && params.getValidationMode() == null
+                && params.getSpaceStrippingRule() == null
+                && params.getXInclude() == null
+                && params.getXMLReaderMaker() == null);
+  }
+
+  // Saxon only asks AbstractResourceCollections to strip whitespace, and otherwise wraps each
+  // document it returns in a new, unnumbered one which strips it
+  private final class ParallelCollection extends AbstractResourceCollection {
+    private final ResourceCollection collection;
+    private final ParseOptions parseOptions;
+    private final boolean shared;
+    // The stylesheet's whitespace stripping rule, if the collection applies it while parsing
+    private volatile SpaceStrippingRule whitespaceRule;
+
+    ParallelCollection(
+        ResourceCollection collection,
+        ParseOptions parseOptions,
+        boolean shared,
+        Configuration config) {
+      super(config);
+      this.collection = collection;
+      this.parseOptions = parseOptions;
+      this.shared = shared;
+    }
+
+    @Override
+    public String getCollectionURI() {
+      return collection.getCollectionURI();
+    }
+
+    @Override
+    public Iterator<String> getResourceURIs(XPathContext context) throws XPathException {
+      return collection.getResourceURIs(context);
+    }
+
+    @Override
+    public Iterator<? extends Resource> getResources(XPathContext context) throws XPathException {
+      Iterator<? extends Resource> resources = collection.getResources(context);
+      ArrayDeque<Tuple2<Resource, Option<CompletableFuture<NodeInfo>>>> parsing =
+          new ArrayDeque<>();
+      return new Iterator<Resource>() {
+        @Override
+        public boolean hasNext() {
+          return !parsing.isEmpty() || resources.hasNext();
+        }
+
+        @Override
+        public Resource next() {
+          while (parsing.size() < maximumParsing && resources.hasNext()) {
+            Resource resource = resources.next();
+            parsing.add(Tuple.of(resource, parse(resource)));
+          }
+          if (parsing.isEmpty()) throw new NoSuchElementException();
+          Tuple2<Resource, Option<CompletableFuture<NodeInfo>>> next = parsing.remove();
+          if (next._2.isEmpty()) return next._1;
+          // Shared documents are stripped here, as they're parsed without the stylesheet's rule
+          Option<SpaceStrippingRule> strip = Option.of(whitespaceRule).filter(rule -> shared);
+          // Number documents in the order they're returned, not the order they're parsed in
+          Option<Long> documentNumber =
+              shared && strip.isEmpty()
+                  ? Option.none()
+                  : Option.some(config.getDocumentNumberAllocator().allocateDocumentNumber());
+          return new ParsedResource(next._1, next._2.get(), strip, documentNumber);
+        }
+      };
+    }
+
+    @Override
+    public boolean isStable(XPathContext context) {
+      return collection.isStable(context);
+    }
+
+    @Override
+    public boolean stripWhitespace(SpaceStrippingRule rule) {
+      if (!(collection instanceof AbstractResourceCollection) || !collection.stripWhitespace(rule))
+        return false;
+      this.whitespaceRule = rule;
+      return true;
+    }
+
+    /** Start parsing a resource's document, if it's a local file. */
+    private Option<CompletableFuture<NodeInfo>> parse(Resource resource) {
+      if (!(resource instanceof XmlResource)) return Option.none();
+      URI uri;
+      try {
+        uri = URI.create(resource.getResourceURI());
+      } catch (IllegalArgumentException e) {
+        return Option.none();
+      }
+      if (!"file".equals(uri.getScheme())) return Option.none();
+      return Option.some(
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return parse(uri);
+                } catch (XPathException | IOException | SaxonApiException e) {
+                  throw new CompletionException(e);
+                }
+              },
+              executor));
+    }
+
+    private NodeInfo parse(URI uri) throws XPathException, IOException, SaxonApiException {
+      if (shared) return sharedDocuments.get(processor, Path.of(uri)).getUnderlyingNode();
+      ParseOptions options = new ParseOptions(parseOptions);
+      options.setSpaceStrippingRule(whitespaceRule);
+      return config.buildDocumentTree(new StreamSource(uri.toString()), options).getRootNode();
+    }
+  }
+
+  /** A resource whose document is being parsed on another thread. */
+  private static final class ParsedResource implements Resource {
+    private final Resource resource;
+    private final CompletableFuture<NodeInfo> document;
+    private final Option<SpaceStrippingRule> strip;
+    private final Option<Long> documentNumber;
+
+    /**
+     * @param strip The whitespace stripping rule to apply to the document, if it wasn't applied
+     *     while parsing.
+     * @param documentNumber The number to give the document, or none to keep the number it was
+     *     parsed with.
+     */
+    ParsedResource(
+        Resource resource,
+        CompletableFuture<NodeInfo> document,
+        Option<SpaceStrippingRule> strip,
+        Option<Long> documentNumber) {
+      this.resource = resource;
+      this.document = document;
+      this.strip = strip;
+      this.documentNumber = documentNumber;
+    }
+
+    @Override
+    public String getResourceURI() {
+      return resource.getResourceURI();
+    }
+
+    @Override
+    public Item getItem(XPathContext context) throws XPathException {
+      NodeInfo node;
+      try {
+        node = document.join();
+      } catch (CompletionException e) {
+        // Saxon reports the failure according to the collection's on-error parameter
+        return resource.getItem(context);
+      }
+      for (SpaceStrippingRule rule : strip)
+        node = new SpaceStrippedDocument(node.getTreeInfo(), rule).getRootNode();
+      if (documentNumber.isDefined() && node.getTreeInfo() instanceof GenericTreeInfo)
+        ((GenericTreeInfo) node.getTreeInfo()).setDocumentNumber(documentNumber.get());
+      return node;
+    }
+
+    @Override
+    public String getContentType() {
+      return resource.getContentType();
+    }
+  }
+}
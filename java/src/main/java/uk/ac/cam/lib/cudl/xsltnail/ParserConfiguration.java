@@ -0,0 +1,117 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.control.Option;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.FactoryConfigurationError;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.trans.XPathException;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * A Saxon configuration which parses documents with parsers from a chosen factory, kept in a pool
+ * for each thread, and resolves entities with an {@link EntityResolver} when parsing both documents
+ * and stylesheets.
+ *
+ * <p>Saxon keeps one pool of parsers for each configuration, which every thread returns its parser
+ * to while holding the configuration's lock. A transform parses its input and documents on its own
+ * thread, so each thread keeps the parsers it has used, and gets the same one back next time with
+ * its buffers already allocated.
+ */
+final class ParserConfiguration extends Configuration {
+  /** The name of the parser built into the JDK. */
+  public static final String JDK_PARSER = "jdk";
+
+  // Parsers are only held while a document is being parsed, so a thread rarely needs more than one
+  private static final int MAXIMUM_POOLED_PARSERS_PER_THREAD = 2;
+  private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+  private static final LexicalHandler NO_LEXICAL_HANDLER = new DefaultHandler2();
+
+  private final SAXParserFactory parserFactory;
+  private final EntityResolver entityResolver;
+  private final ThreadLocal<ArrayDeque<XMLReader>> parsers =
+      ThreadLocal.withInitial(ArrayDeque::new);
+
+  public ParserConfiguration(
+      @Nonnull SAXParserFactory parserFactory, @Nonnull EntityResolver entityResolver) {
+    this.parserFactory = Objects.requireNonNull(parserFactory);
+    this.entityResolver = Objects.requireNonNull(entityResolver);
+    getParseOptions().setEntityResolver(entityResolver);
+  }
+
+  /**
+   * Get a parser factory by name: {@value #JDK_PARSER} for the JDK's built-in parser, the class
+   * name of a {@link SAXParserFactory} on the classpath, or none for the parser that JAXP chooses.
+   *
+   * @throws IllegalArgumentException if the factory can't be created.
+   */
+  public static SAXParserFactory getParserFactory(@Nonnull Option<String> name) {
+    SAXParserFactory factory;
+    try {
+      if (name.isEmpty()) factory = SAXParserFactory.newInstance();
+      else if (JDK_PARSER.equals(name.get())) factory = SAXParserFactory.newDefaultInstance();
+      else
+        factory =
+            SAXParserFactory.newInstance(name.get(), ParserConfiguration.class.getClassLoader());
+    } catch (FactoryConfigurationError e) {
+      throw new IllegalArgumentException(
+          "Failed to create XML parser factory: " + e.getMessage(), e);
+    }
+    factory.setNamespaceAware(true);
+    try {
+      factory.newSAXParser();
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new IllegalArgumentException("Failed to create XML parser: " + e.getMessage(), e);
+    }
+    return factory;
+  }
+
+  @Override
+  public XMLReader getSourceParser() {
+    XMLReader parser = parsers.get().pollFirst();
+    if (parser != null) return parser;
+    try {
+      parser = parserFactory.newSAXParser().getXMLReader();
+      Sender.configureParser(parser);
+      if (isValidation()) parser.setFeature("http://xml.org/sax/features/validation", true);
+      return parser;
+    } catch (ParserConfigurationException | SAXException | XPathException e) {
+      throw new TransformerFactoryConfigurationError(e);
+    }
+  }
+
+  /** Reset a parser Saxon has finished with, and keep it for the next parse on this thread. */
+  @Override
+  public void reuseSourceParser(XMLReader parser) {
+    ArrayDeque<XMLReader> pool = parsers.get();
+    if (pool.size() >= MAXIMUM_POOLED_PARSERS_PER_THREAD) return;
+    try {
+      parser.setContentHandler(null);
+      if (parser.getEntityResolver() == entityResolver) parser.setEntityResolver(null);
+      parser.setDTDHandler(null);
+      parser.setErrorHandler(null);
+      parser.setProperty(LEXICAL_HANDLER, NO_LEXICAL_HANDLER);
+    } catch (SAXException e) {
+      // A parser which can't be reset is discarded rather than reused
+      return;
+    }
+    pool.offerFirst(parser);
+  }
+
+  /** Saxon parses stylesheet modules with a separate parser, which ignores the parse options. */
+  @Override
+  public synchronized XMLReader getStyleParser() {
+    XMLReader parser = super.getStyleParser();
+    parser.setEntityResolver(entityResolver);
+    return parser;
+  }
+}
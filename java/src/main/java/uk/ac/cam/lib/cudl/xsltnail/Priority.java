@@ -0,0 +1,36 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.Stream;
+import io.vavr.control.Option;
+import javax.annotation.Nonnull;
+
+/**
+ * The scheduling class of a request.
+ *
+ * <p>Work is shared between the classes in proportion to their weight when more than one class has
+ * work waiting, so lower priority work is slowed rather than starved.
+ */
+enum Priority {
+  HIGH(16),
+  NORMAL(4),
+  LOW(1);
+
+  private final int weight;
+
+  Priority(int weight) {
+    this.weight = weight;
+  }
+
+  public int getWeight() {
+    return this.weight;
+  }
+
+  /** The lowercase name used to identify the priority on the command line. */
+  public String getName() {
+    return name().toLowerCase();
+  }
+
+  public static Option<Priority> fromName(@Nonnull String name) {
+    return Stream.of(values()).find(p -> p.getName().equals(name));
+  }
+}
@@ -0,0 +1,340 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple2;
+import io.vavr.collection.List;
+import io.vavr.control.Either;
+import io.vavr.control.Option;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+
+/**
+ * Receives the secondary results created by {@code xsl:result-document} during a single transform.
+ *
+ * <p>Each result is serialized into memory on the evaluating thread, and written to disk by a
+ * shared {@link WriterExecutor} once the result document is closed. Files are written to a
+ * temporary file alongside the destination and renamed into place, so readers never observe
+ * partially-written output. The number of documents waiting to be written and their total size are
+ * bounded; when either limit is reached the evaluating thread writes the document itself, which
+ * limits the amount of buffered output held in memory. A document which grows larger than the
+ * executor's buffer size is streamed to its temporary file as it's serialized instead, so a single
+ * huge document can't exhaust the heap.
+ */
+final class ResultDocumentHandler implements Function<URI, Destination> {
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  private static final long WRITER_KEEP_ALIVE_SECONDS = 60;
+
+  /**
+   * Create an executor suitable for writing result documents.
+   *
+   * @param threads The number of writer threads.
+   * @param queueCapacity The number of closed documents which can wait to be written before the
+   *     submitting thread has to write documents itself.
+   * @param queueBytes The total size of the closed documents which can wait to be written before
+   *     the submitting thread has to write documents itself.
+   * @param bufferBytes The largest size of a document which is held in memory. Larger documents are
+   *     written to their temporary file while they're serialized.
+   */
+  public static WriterExecutor newWriterExecutor(
+      int threads, int queueCapacity, long queueBytes, long bufferBytes) {
+    return new WriterExecutor(threads, queueCapacity, queueBytes, bufferBytes);
+  }
+
+  /**
+   * A pool of threads writing result documents. Documents are only queued while the queue has room
+   * for them, both in number and in bytes, otherwise they're written by the thread submitting them.
+   * Documents submitted after the pool is shut down fail to be written.
+   */
+  static final class WriterExecutor extends ThreadPoolExecutor {
+    private final long queueBytes;
+    private final long bufferBytes;
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    WriterExecutor(int threads, int queueCapacity, long queueBytes, long bufferBytes) {
+      super(
+          threads,
+          threads,
+          WRITER_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(queueCapacity),
+          new ThreadPoolExecutor.AbortPolicy());
+      if (queueBytes < 0) throw new IllegalArgumentException("queueBytes cannot be negative");
+      if (bufferBytes < 0) throw new IllegalArgumentException("bufferBytes cannot be negative");
+      this.queueBytes = queueBytes;
+      this.bufferBytes = bufferBytes;
+      // Few stylesheets write result documents, so don't keep writer threads when there's no work
+      allowCoreThreadTimeOut(true);
+    }
+
+    /** The total size of the documents currently waiting to be written. */
+    long getQueuedBytes() {
+      return queuedBytes.get();
+    }
+
+    CompletableFuture<Void> write(URI uri, ByteArrayOutputStream content) {
+      if (isShutdown()) return failedWrite(uri);
+      long size = content.size();
+      if (queuedBytes.addAndGet(size) > queueBytes) {
+        queuedBytes.addAndGet(-size);
+        return writeOnCaller(uri, content);
+      }
+      CompletableFuture<Void> write = new CompletableFuture<>();
+      try {
+        execute(
+            () -> {
+              queuedBytes.addAndGet(-size);
+              try {
+                writeAtomically(uri, content);
+                write.complete(null);
+              } catch (RuntimeException e) {
+                write.completeExceptionally(e);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        queuedBytes.addAndGet(-size);
+        return isShutdown() ? failedWrite(uri) : writeOnCaller(uri, content);
+      }
+      return write;
+    }
+
+    private static CompletableFuture<Void> writeOnCaller(URI uri, ByteArrayOutputStream content) {
+      try {
+        writeAtomically(uri, content);
+        return CompletableFuture.completedFuture(null);
+      } catch (RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+
+    private static CompletableFuture<Void> failedWrite(URI uri) {
+      return CompletableFuture.failedFuture(
+          new ResultDocumentWriteException(
+              String.format(
+                  "Unable to write result document \"%s\" - the server is shutting down", uri),
+              null));
+    }
+  }
+
+  private final Processor processor;
+  private final WriterExecutor writeExecutor;
+  private final Cancellation cancellation;
+  private final java.util.List<CompletableFuture<ManifestEntry>> writes = new ArrayList<>();
+
+  public ResultDocumentHandler(
+      @Nonnull Processor processor, @Nonnull WriterExecutor writeExecutor) {
+    this(processor, writeExecutor, new Cancellation());
+  }
+
+  /**
+   * @param cancellation The transform's cancellation, which stops result documents being created or
+   *     serialized once it's cancelled.
+   */
+  public ResultDocumentHandler(
+      @Nonnull Processor processor,
+      @Nonnull WriterExecutor writeExecutor,
+      @Nonnull Cancellation cancellation) {
+    this.processor = Objects.requireNonNull(processor, "processor cannot be null");
+    this.writeExecutor = Objects.requireNonNull(writeExecutor, "writeExecutor cannot be null");
+    this.cancellation = Objects.requireNonNull(cancellation, "cancellation cannot be null");
+  }
+
+  @Override
+  public synchronized Destination apply(URI uri) {
+    cancellation.check();
+    DocumentBuffer buffer = new DocumentBuffer(uri, writeExecutor.bufferBytes);
+    Serializer serializer = this.processor.newSerializer(cancellation.wrap(buffer));
+    CompletableFuture<ManifestEntry> write = new CompletableFuture<>();
+    this.writes.add(write);
+
+    serializer.onClose(
+        () ->
+            buffer
+                .finish(writeExecutor)
+                .whenComplete(
+                    (ignored, err) -> {
+                      if (err != null) write.completeExceptionally(err);
+                      else write.complete(new ManifestEntry(uri, buffer.size));
+                    }));
+    return serializer;
+  }
+
+  /**
+   * A result document's content, held in memory until it grows larger than the buffer size, then
+   * streamed to a temporary file alongside its destination.
+   */
+  private static final class DocumentBuffer extends OutputStream {
+    private final URI uri;
+    private final long bufferBytes;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private Path tmp;
+    private OutputStream file;
+    long size;
+
+    DocumentBuffer(URI uri, long bufferBytes) {
+      this.uri = uri;
+      this.bufferBytes = bufferBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (file == null && size + len > bufferBytes) spill();
+      if (file == null) memory.write(b, off, len);
+      else file.write(b, off, len);
+      size += len;
+    }
+
+    private void spill() throws IOException {
+      Path destination = getDestination(uri).toAbsolutePath();
+      Files.createDirectories(destination.getParent());
+      Tuple2<Path, OutputStream> temporary = AtomicFiles.newTemporarySibling(destination);
+      tmp = temporary._1;
+      file = new BufferedOutputStream(temporary._2);
+      memory.writeTo(file);
+      memory = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (file != null) file.close();
+    }
+
+    /** Write the document to its destination, once it's closed. */
+    CompletableFuture<Void> finish(WriterExecutor writeExecutor) {
+      if (file == null) return writeExecutor.write(uri, memory);
+      // Only the rename is left to do, which needn't be queued. Saxon doesn't close the stream.
+      try {
+        file.close();
+        AtomicFiles.replace(tmp, getDestination(uri));
+        return CompletableFuture.completedFuture(null);
+      } catch (IOException | RuntimeException e) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException ignored) {
+          /* ignored */
+        }
+        return CompletableFuture.failedFuture(
+            e instanceof ResultDocumentWriteException
+                ? e
+                : new ResultDocumentWriteException(
+                    String.format(
+                        "Unable to write result document \"%s\" - %s", uri, e.getMessage()),
+                    e));
+      }
+    }
+  }
+
+  private static Path getDestination(URI uri) {
+    try {
+      return Path.of(uri);
+    } catch (IllegalArgumentException | java.nio.file.FileSystemNotFoundException e) {
+      throw new ResultDocumentWriteException(
+          String.format("Unable to write result document \"%s\": not a file URI", uri), e);
+    }
+  }
+
+  static void writeAtomically(URI uri, ByteArrayOutputStream content) {
+    Path destination = getDestination(uri);
+    try {
+      AtomicFiles.write(destination, content::writeTo);
+    } catch (IOException e) {
+      throw new ResultDocumentWriteException(
+          String.format("Unable to write result document \"%s\" - %s", uri, e.getMessage()), e);
+    }
+  }
+
+  /**
+   * Wait for all result documents created so far to be written.
+   *
+   * @return The manifest of written documents, or a message describing the first document that
+   *     could not be written.
+   */
+  public Either<String, Manifest> awaitWrites() {
+    java.util.List<CompletableFuture<ManifestEntry>> pending;
+    synchronized (this) {
+      pending = new ArrayList<>(this.writes);
+    }
+    List<ManifestEntry> entries = List.empty();
+    Option<String> error = Option.none();
+    for (CompletableFuture<ManifestEntry> write : pending) {
+      try {
+        entries = entries.append(write.get());
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof ResultDocumentWriteException)) {
+          throw new InternalXSLTNailException(
+              "Failed to write result document: " + e.getCause(), e.getCause());
+        }
+        if (error.isEmpty()) error = Option.some(e.getCause().getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InternalXSLTNailException("Interrupted while writing result documents", e);
+      }
+    }
+    return error.isDefined() ? Either.left(error.get()) : Either.right(new Manifest(entries));
+  }
+
+  static final class ManifestEntry {
+    public final URI uri;
+    public final long bytes;
+
+    ManifestEntry(URI uri, long bytes) {
+      this.uri = uri;
+      this.bytes = bytes;
+    }
+  }
+
+  /** A record of the result documents written by a transform. */
+  static final class Manifest {
+    public final List<ManifestEntry> entries;
+
+    Manifest(List<ManifestEntry> entries) {
+      this.entries = Objects.requireNonNull(entries);
+    }
+
+    public long getTotalBytes() {
+      return entries.map(e -> e.bytes).sum().longValue();
+    }
+
+    /**
+     * Serialize the manifest as a JSON object of the form {@code {"documents": [{"uri": "...",
+     * "bytes": 123}, ...], "total-bytes": 123}}.
+     */
+    public void writeJSON(OutputStream out) throws SaxonApiException {
+      java.util.Map<String, Object> manifest = new java.util.LinkedHashMap<>();
+      manifest.put(
+          "documents",
+          entries.map(e -> java.util.Map.of("uri", e.uri.toString(), "bytes", e.bytes)));
+      manifest.put("total-bytes", getTotalBytes());
+      Json.write(out, manifest);
+    }
+  }
+
+  static final class ResultDocumentWriteException extends XSLTNailException {
+    ResultDocumentWriteException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.vavr.Tuple;
+import io.vavr.Tuple3;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import javax.xml.transform.URIResolver;
+import net.sf.saxon.functions.ResolveURI;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyTree;
+
+/**
+ * Documents read by stylesheets with {@code doc()} or {@code document()}, shared between
+ * transforms.
+ *
+ * <p>Saxon holds the xsl:key indexes it builds over a document in the compiled stylesheet, keyed by
+ * the document's tree. A document parsed separately by each transform gets a new tree, so its
+ * indexes are rebuilt every time. Sharing the tree while its file is unchanged lets transforms of
+ * the same executable reuse the indexes built by earlier transforms. Saxon holds the indexes
+ * weakly, so they're released when their document is evicted or its file changes.
+ */
+final class SharedDocuments {
+  /**
+   * The default maximum total weight of cached documents. A document's weight is its number of
+   * nodes, doubled to allow for the key indexes built over it, whose size Saxon doesn't expose.
+   */
+  public static final long DEFAULT_MAXIMUM_WEIGHT = 10_000_000;
+
+  private static final class Document {
+    final Processor processor;
+    /** The file's key, modification time and size when it was parsed. */
+    final Tuple3<Object, Object, Object> version;
+
+    final XdmNode node;
+
+    Document(Processor processor, Tuple3<Object, Object, Object> version, XdmNode node) {
+      this.processor = processor;
+      this.version = version;
+      this.node = node;
+    }
+  }
+
+  // Keyed by path alone, so parsing a new version of a file replaces the old one
+  private final Cache<Path, Document> documents;
+
+  public SharedDocuments() {
+    this(DEFAULT_MAXIMUM_WEIGHT);
+  }
+
+  public SharedDocuments(long maximumWeight) {
+    this.documents =
+        Caffeine.newBuilder()
+            .maximumWeight(maximumWeight)
+            .<Path, Document>weigher(
+                (key, document) -> getWeight(document.node.getUnderlyingNode().getTreeInfo()))
+            .build();
+  }
+
+  private static int getWeight(TreeInfo tree) {
+    if (tree instanceof TinyTree) {
+      TinyTree tinyTree = (TinyTree) tree;
+      long nodes = (long) tinyTree.getNumberOfNodes() + tinyTree.getNumberOfAttributes();
+      return (int) Math.min(Integer.MAX_VALUE, nodes * 2);
+    }
+    return 1;
+  }
+
+  /** The number of documents currently cached. */
+  public long size() {
+    return documents.estimatedSize();
+  }
+
+  /** Discard all cached documents. */
+  public void clear() {
+    documents.invalidateAll();
+  }
+
+  /**
+   * Get the parsed document in a file, which is parsed again if the file has changed since it was
+   * last parsed.
+   */
+  public XdmNode get(@Nonnull Processor processor, @Nonnull Path file)
+      throws IOException, SaxonApiException {
+    Objects.requireNonNull(processor);
+    Path path = file.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    Tuple3<Object, Object, Object> version =
+        Tuple.of(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+
+    Document document = documents.getIfPresent(path);
+    // Trees can only be used with stylesheets compiled by the same configuration
+    if (document != null && document.processor == processor && document.version.equals(version))
+      return document.node;
+    document =
+        new Document(processor, version, processor.newDocumentBuilder().build(path.toFile()));
+    // Concurrent transforms may both parse a new version, in which case the last one wins
+    documents.put(path, document);
+    return document.node;
+  }
+
+  /**
+   * Create a URIResolver which resolves local files to shared documents. Other URIs are left to
+   * Saxon's standard resolver.
+   */
+  public URIResolver newResolver(@Nonnull Processor processor) {
+    Objects.requireNonNull(processor);
+    return (href, base) -> {
+      URI uri;
+      try {
+        uri = ResolveURI.makeAbsolute(href, base);
+      } catch (URISyntaxException e) {
+        return null;
+      }
+      if (!"file".equals(uri.getScheme()) || uri.getFragment() != null) return null;
+      try {
+        return get(processor, Path.of(uri)).getUnderlyingNode();
+      } catch (NoSuchFileException | IllegalArgumentException e) {
+        return null;
+      } catch (IOException | SaxonApiException e) {
+        throw new XPathException(
+            String.format("Failed to read document %s: %s", uri, e.getMessage()), e);
+      }
+    };
+  }
+}
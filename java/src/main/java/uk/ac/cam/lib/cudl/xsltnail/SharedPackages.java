@@ -0,0 +1,117 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.List;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltPackage;
+
+/**
+ * Library packages which stylesheets can use with {@code xsl:use-package}, compiled once and shared
+ * by every stylesheet which uses them.
+ *
+ * <p>Without packages, a module library which many stylesheets import is compiled again inside each
+ * of them. A package is compiled separately, and stylesheets which use it are linked against the
+ * compiled package. Packages are recompiled when any of their files change, and stylesheets
+ * compiled against an older {@link Library} must be recompiled to see the change.
+ */
+final class SharedPackages {
+  /** The packages compiled from particular versions of the package files. */
+  static final class Library {
+    private final List<Long> timestamps;
+    private final List<XsltPackage> packages;
+    private final List<String> errors;
+
+    private Library(List<Long> timestamps, List<XsltPackage> packages, List<String> errors) {
+      this.timestamps = timestamps;
+      this.packages = packages;
+      this.errors = errors;
+    }
+
+    /** The packages which compiled successfully, in the order their files were listed. */
+    public List<XsltPackage> getPackages() {
+      return packages;
+    }
+
+    /** Messages describing the packages which failed to compile. */
+    public List<String> getErrors() {
+      return errors;
+    }
+
+    /** Make the packages available to {@code xsl:use-package} declarations compiled by compiler. */
+    public void addTo(@Nonnull XsltCompiler compiler) throws SaxonApiException {
+      for (XsltPackage xsltPackage : packages) compiler.importPackage(xsltPackage);
+    }
+  }
+
+  private final Processor processor;
+  private final List<Path> files;
+  private volatile Library library;
+
+  public SharedPackages(@Nonnull Processor processor, @Nonnull List<Path> files) {
+    this.processor = Objects.requireNonNull(processor);
+    this.files = Objects.requireNonNull(files).map(file -> file.toAbsolutePath().normalize());
+    this.library = files.isEmpty() ? new Library(List.empty(), List.empty(), List.empty()) : null;
+  }
+
+  /** Get the packages compiled from the current version of the package files. */
+  public Library get() {
+    Library current = this.library;
+    if (current != null && current.timestamps.equals(getTimestamps())) return current;
+    synchronized (this) {
+      List<Long> timestamps = getTimestamps();
+      if (this.library == null || !this.library.timestamps.equals(timestamps))
+        this.library = compile(timestamps);
+      return this.library;
+    }
+  }
+
+  private List<Long> getTimestamps() {
+    return files.map(SharedPackages::getLastModifiedTimestamp);
+  }
+
+  private static long getLastModifiedTimestamp(Path file) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis();
+    } catch (NoSuchFileException e) {
+      return Long.MIN_VALUE;
+    } catch (IOException e) {
+      throw new InternalXSLTNailException(
+          "Failed to get package file modified timestamp: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Compile the packages in the order they're listed. Each package can use the packages listed
+   * before it.
+   */
+  private Library compile(List<Long> timestamps) {
+    XsltCompiler compiler = processor.newXsltCompiler();
+    MemoryLogger logger = SaxonErrors.assignThreadSafeErrorReporter(compiler::setErrorReporter);
+    List<XsltPackage> packages = List.empty();
+    List<String> errors = List.empty();
+    for (Path file : files) {
+      logger.clearLoggedMessages();
+      try {
+        XsltPackage xsltPackage = compiler.compilePackage(new StreamSource(file.toFile()));
+        compiler.importPackage(xsltPackage);
+        packages = packages.append(xsltPackage);
+      } catch (SaxonApiException e) {
+        String messages = logger.getLoggedMessages();
+        errors =
+            errors.append(
+                String.format(
+                    "Failed to compile package %s: %s",
+                    file, messages.isEmpty() ? e.getMessage() : messages));
+      }
+    }
+    return new Library(timestamps, packages, errors);
+  }
+}
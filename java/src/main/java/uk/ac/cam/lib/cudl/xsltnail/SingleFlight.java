@@ -0,0 +1,203 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * Lets concurrent identical requests share one execution.
+ *
+ * <p>The first request for a key leads a {@link Flight}: it executes normally, while the output it
+ * writes is also recorded. Requests for the same key which arrive before it finishes follow it:
+ * they wait for it, then write the recorded output. Output beyond a size limit is recorded in a
+ * temporary file rather than in memory.
+ *
+ * <p>Only successful executions are shared. If the leader fails, its followers {@link #join(Object)
+ * join} the key again, so one of them leads a new flight which the rest follow.
+ */
+final class SingleFlight {
+  private static final Logger LOG = Logger.getLogger(SingleFlight.class.getName());
+
+  /** The default number of bytes of output recorded in memory, before using a temporary file. */
+  public static final int DEFAULT_MAXIMUM_BUFFERED_BYTES = 16 * 1024 * 1024;
+
+  private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<>();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final int maximumBufferedBytes;
+
+  public SingleFlight() {
+    this(DEFAULT_MAXIMUM_BUFFERED_BYTES);
+  }
+
+  public SingleFlight(int maximumBufferedBytes) {
+    if (maximumBufferedBytes < 0)
+      throw new IllegalArgumentException("maximumBufferedBytes cannot be negative");
+    this.maximumBufferedBytes = maximumBufferedBytes;
+  }
+
+  /**
+   * An execution in progress, whose output is recorded for the requests following it. The recording
+   * is discarded once the flight has landed and every follower has {@link #leave() left}.
+   */
+  final class Flight {
+    private final Object key;
+    private final CompletableFuture<Boolean> shared = new CompletableFuture<>();
+    // Guarded by this
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+    private boolean recording = true;
+    private boolean landed;
+    private int followers;
+
+    private Flight(Object key) {
+      this.key = key;
+    }
+
+    /** Wrap the leader's output stream, so that what it writes is recorded. */
+    public OutputStream record(@Nonnull OutputStream out) {
+      return new FilterOutputStream(Objects.requireNonNull(out)) {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          recordOutput(b, off, len);
+        }
+      };
+    }
+
+    private synchronized void recordOutput(byte[] b, int off, int len) {
+      if (!recording) return;
+      try {
+        if (fileOut == null && buffer.size() + (long) len > maximumBufferedBytes) {
+          file = Files.createTempFile("xslt-nail-flight", ".tmp");
+          fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+          buffer.writeTo(fileOut);
+          buffer = null;
+        }
+        if (fileOut != null) fileOut.write(b, off, len);
+        else buffer.write(b, off, len);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to record output to share with waiting requests", e);
+        recording = false;
+        discard();
+      }
+    }
+
+    /**
+     * Finish the flight. Requests arriving from now on start a new flight.
+     *
+     * @param succeeded Whether the leader's output can be shared with its followers.
+     */
+    public void land(boolean succeeded) {
+      flights.remove(key, this);
+      boolean share;
+      synchronized (this) {
+        landed = true;
+        try {
+          if (fileOut != null) fileOut.close();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Failed to record output to share with waiting requests", e);
+          recording = false;
+        }
+        share = succeeded && recording;
+        if (!share || followers == 0) discard();
+      }
+      shared.complete(share);
+    }
+
+    /**
+     * Get whether the leader's output can be shared, once the flight has landed. If it can't, the
+     * followers must execute for themselves. The returned future can be cancelled without affecting
+     * other requests.
+     */
+    public CompletableFuture<Boolean> isShared() {
+      return shared.thenApply(result -> result);
+    }
+
+    /** Write the leader's output, once the flight has landed and its output can be shared. */
+    public void writeOutput(@Nonnull OutputStream out) throws IOException {
+      ByteArrayOutputStream buffer;
+      Path file;
+      synchronized (this) {
+        if (!landed || !recording) throw new IllegalStateException("No output to share");
+        buffer = this.buffer;
+        file = this.file;
+      }
+      if (file != null) Files.copy(file, out);
+      else buffer.writeTo(out);
+    }
+
+    /** Stop following the flight, after writing its output or giving up waiting. */
+    public synchronized void leave() {
+      followers--;
+      if (landed && followers == 0) discard();
+    }
+
+    private synchronized boolean follow() {
+      if (landed) return false;
+      followers++;
+      return true;
+    }
+
+    private synchronized void discard() {
+      recording = false;
+      buffer = null;
+      if (file == null) return;
+      try {
+        try {
+          fileOut.close();
+        } finally {
+          Files.deleteIfExists(file);
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to delete " + file, e);
+      }
+      file = null;
+    }
+  }
+
+  /**
+   * Follow the flight in progress for a key, or start one. The caller must {@link
+   * Flight#land(boolean) land} a flight it leads, and {@link Flight#leave() leave} a flight it
+   * follows.
+   *
+   * @return The flight, and whether the caller leads it.
+   */
+  public Tuple2<Flight, Boolean> join(@Nonnull Object key) {
+    Objects.requireNonNull(key);
+    while (true) {
+      Flight flight = new Flight(key);
+      Flight existing = flights.putIfAbsent(key, flight);
+      if (existing == null) return Tuple.of(flight, true);
+      // A flight which has landed has been removed, so trying again finds or starts another
+      if (existing.follow()) {
+        coalesced.incrementAndGet();
+        return Tuple.of(existing, false);
+      }
+    }
+  }
+
+  /** The number of times requests have followed another request's flight. */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+}
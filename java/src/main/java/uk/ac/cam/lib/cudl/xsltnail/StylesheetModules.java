@@ -0,0 +1,77 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.TreeMap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Identifies the version of a stylesheet, including the modules it imports and includes, so that
+ * outputs built with an older version can be detected.
+ */
+final class StylesheetModules {
+  private final Processor processor;
+  private final XPathExecutable findModules;
+
+  public StylesheetModules(@Nonnull Processor processor) {
+    this.processor = processor;
+    XPathCompiler compiler = processor.newXPathCompiler();
+    compiler.declareNamespace("xsl", "http://www.w3.org/1999/XSL/Transform");
+    try {
+      this.findModules =
+          compiler.compile("//(xsl:import|xsl:include)/resolve-uri(@href, base-uri(.))");
+    } catch (SaxonApiException e) {
+      throw new AssertionError("Failed to compile module query", e);
+    }
+  }
+
+  /**
+   * Find the stylesheet's modules: the file itself, and the files it imports or includes,
+   * recursively.
+   *
+   * @return The content digest of each module, by URI.
+   */
+  public TreeMap<URI, String> getModuleDigests(@Nonnull Path xsltPath)
+      throws IOException, SaxonApiException {
+    DocumentBuilder builder = processor.newDocumentBuilder();
+    TreeMap<URI, String> modules = TreeMap.empty();
+    Deque<URI> pending = new ArrayDeque<>();
+    pending.add(xsltPath.toAbsolutePath().normalize().toUri());
+    while (!pending.isEmpty()) {
+      URI uri = pending.remove();
+      if (modules.containsKey(uri)) continue;
+      byte[] content;
+      try (InputStream in = uri.toURL().openStream()) {
+        content = in.readAllBytes();
+      }
+      modules = modules.put(uri, Digests.sha256(content));
+
+      XdmNode module =
+          builder.build(new StreamSource(new ByteArrayInputStream(content), uri.toString()));
+      XPathSelector selector = findModules.load();
+      selector.setContextItem(module);
+      for (XdmItem href : selector) pending.add(URI.create(href.getStringValue()));
+    }
+    return modules;
+  }
+
+  /** Get a digest which changes when any of the stylesheet's modules change. */
+  public String getVersion(@Nonnull Path xsltPath) throws IOException, SaxonApiException {
+    return Digests.sha256(
+        getModuleDigests(xsltPath).map(module -> module._1 + " " + module._2).mkString("\n"));
+  }
+}
@@ -9,6 +9,8 @@ import io.vavr.collection.Map;
 import io.vavr.collection.Stream;
 import io.vavr.control.Option;
 import io.vavr.control.Try;
+import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 
@@ -63,6 +65,20 @@ final class Values {
                                 firstCastError._1))));
   }
 
+  /** Parse a positive, possibly fractional, number of seconds (e.g. "2.5") as a Duration. */
+  public static Try<Duration> parseSeconds(String value) {
+    return Try.of(() -> new BigDecimal(value))
+        .filter(seconds -> seconds.signum() > 0)
+        .map(seconds -> Duration.ofNanos(seconds.movePointRight(9).longValueExact()))
+        .filter(duration -> !duration.isZero())
+        .recoverWith(
+            e ->
+                Try.failure(
+                    new IllegalArgumentException(
+                        String.format(
+                            "must be a positive number of seconds, got: \"%s\"", value))));
+  }
+
   static <K, V> Try<V> requireKey(Map<K, V> map, K key) {
     return map.get(key)
         .toTry(
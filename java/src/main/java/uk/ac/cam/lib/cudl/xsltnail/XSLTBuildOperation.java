@@ -0,0 +1,199 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.HashMultimap;
+import io.vavr.collection.Map;
+import io.vavr.collection.Multimap;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Objects;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.QName;
+
+/** Transform every file in a directory tree, skipping files whose outputs are up to date. */
+public final class XSLTBuildOperation {
+  public static final String DEFAULT_OUTPUT_PATTERN = "{path}{ext}";
+  public static final String DEFAULT_MANIFEST_NAME = ".xslt-build-manifest.json";
+
+  public final Path xsltPath;
+  public final Path inputDir;
+  public final Path outputDir;
+  /** A glob matched against input paths relative to the input dir. If none, all files match. */
+  public final Option<String> include;
+  /**
+   * The path of an input's output, relative to the output dir. {@code {path}} is replaced with the
+   * input's relative path without its extension, and {@code {ext}} with its extension, including
+   * the dot.
+   */
+  public final String outputPattern;
+  /** The file recording the state of each input when it was last built. */
+  public final Path manifestPath;
+
+  public final Multimap<QName, String> parameters;
+  public final Priority priority;
+  /** Transform every input, even if its output is up to date. */
+  public final boolean force;
+
+  public XSLTBuildOperation(
+      @Nonnull Path xsltPath,
+      @Nonnull Path inputDir,
+      @Nonnull Path outputDir,
+      @Nonnull Option<String> include,
+      @Nonnull String outputPattern,
+      @Nonnull Path manifestPath,
+      @Nonnull Multimap<QName, String> parameters,
+      @Nonnull Priority priority,
+      boolean force) {
+    this.xsltPath = Objects.requireNonNull(xsltPath, "xsltPath cannot be null");
+    this.inputDir = Objects.requireNonNull(inputDir, "inputDir cannot be null");
+    this.outputDir = Objects.requireNonNull(outputDir, "outputDir cannot be null");
+    this.include = Objects.requireNonNull(include, "include cannot be null");
+    this.outputPattern = Objects.requireNonNull(outputPattern, "outputPattern cannot be null");
+    this.manifestPath = Objects.requireNonNull(manifestPath, "manifestPath cannot be null");
+    this.parameters = Objects.requireNonNull(parameters, "parameters cannot be null");
+    this.priority = Objects.requireNonNull(priority, "priority cannot be null");
+    this.force = force;
+    if (!outputPattern.contains("{path}"))
+      throw new IllegalArgumentException("outputPattern must contain {path}");
+  }
+
+  public XSLTBuildOperation(
+      @Nonnull Path xsltPath, @Nonnull Path inputDir, @Nonnull Path outputDir) {
+    this(
+        xsltPath,
+        inputDir,
+        outputDir,
+        Option.none(),
+        DEFAULT_OUTPUT_PATTERN,
+        outputDir.resolve(DEFAULT_MANIFEST_NAME),
+        HashMultimap.withSeq().empty(),
+        Priority.NORMAL,
+        false);
+  }
+
+  /** Get a matcher for input paths, relative to the input dir. */
+  public PathMatcher getIncludeMatcher() {
+    return include.fold(
+        () -> path -> true, glob -> inputDir.getFileSystem().getPathMatcher("glob:" + glob));
+  }
+
+  /**
+   * Get the output path of an input.
+   *
+   * @param relativeInput The input's path, relative to the input dir.
+   * @return The output path, relative to the output dir.
+   */
+  public String getOutputPath(@Nonnull String relativeInput) {
+    int slash = relativeInput.lastIndexOf('/');
+    int dot = relativeInput.lastIndexOf('.');
+    // Dot files (e.g. "a/.b") have no extension
+    boolean hasExtension = dot > slash + 1;
+    String path = hasExtension ? relativeInput.substring(0, dot) : relativeInput;
+    String ext = hasExtension ? relativeInput.substring(dot) : "";
+    return outputPattern.replace("{path}", path).replace("{ext}", ext);
+  }
+
+  /**
+   * Create an XSLTBuildOperation from a command line args map.
+   *
+   * @param args The parsed CLI arguments, which must be a build command.
+   */
+  @Nonnull
+  public static Try<XSLTBuildOperation> fromParsedArguments(@Nonnull Map<String, Object> args) {
+    Objects.requireNonNull(args);
+    if (!Values.requireKey(args, "build").flatMap(t -> Values.as(Boolean.class, t)).get())
+      throw new IllegalArgumentException("args are not a build command");
+
+    Path xsltPath = getPath(args, "<xslt-file>").get();
+    Path inputDir = getPath(args, "<input-dir>").get();
+    Path outputDir = getPath(args, "<output-dir>").get();
+    Path manifestPath =
+        getPath(args, "--build-manifest").getOrElse(() -> outputDir.resolve(DEFAULT_MANIFEST_NAME));
+    boolean force =
+        Values.requireKey(args, "--force").flatMap(v -> Values.as(Boolean.class, v)).get();
+
+    Try<Option<String>> include =
+        Try.of(
+                () ->
+                    Option.of(Values.requireKey(args, "--include").get())
+                        .flatMap(Values::ifString)
+                        .peek(glob -> FileSystems.getDefault().getPathMatcher("glob:" + glob)))
+            .recoverWith(
+                PatternSyntaxException.class,
+                e ->
+                    Try.failure(
+                        new IllegalArgumentException(
+                            "--include is not a valid glob pattern: " + e.getMessage(), e)));
+
+    String pattern =
+        Option.of(Values.requireKey(args, "--output-pattern").get())
+            .flatMap(Values::ifString)
+            .getOrElse(DEFAULT_OUTPUT_PATTERN);
+    Try<String> outputPattern =
+        pattern.contains("{path}")
+            ? Try.success(pattern)
+            : Try.failure(
+                new IllegalArgumentException(
+                    String.format("--output-pattern must contain {path}, got: \"%s\"", pattern)));
+
+    return XSLTTransformOperation.parseParameters(args)
+        .flatMap(
+            params ->
+                XSLTTransformOperation.parsePriority(args)
+                    .flatMap(
+                        prio ->
+                            include.flatMap(
+                                inc ->
+                                    outputPattern.map(
+                                        outPattern ->
+                                            new XSLTBuildOperation(
+                                                xsltPath,
+                                                inputDir,
+                                                outputDir,
+                                                inc,
+                                                outPattern,
+                                                manifestPath,
+                                                params,
+                                                prio,
+                                                force)))));
+  }
+
+  private static Option<Path> getPath(Map<String, Object> args, String key) {
+    return Option.of(Values.requireKey(args, key).get())
+        .flatMap(Values::ifString)
+        .map(path -> FileSystems.getDefault().getPath(path));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    XSLTBuildOperation that = (XSLTBuildOperation) o;
+    return force == that.force
+        && xsltPath.equals(that.xsltPath)
+        && inputDir.equals(that.inputDir)
+        && outputDir.equals(that.outputDir)
+        && include.equals(that.include)
+        && outputPattern.equals(that.outputPattern)
+        && manifestPath.equals(that.manifestPath)
+        && parameters.equals(that.parameters)
+        && priority.equals(that.priority);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(
+        xsltPath,
+        inputDir,
+        outputDir,
+        include,
+        outputPattern,
+        manifestPath,
+        parameters,
+        priority,
+        force);
+  }
+}
@@ -0,0 +1,256 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import io.vavr.collection.HashMultimap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.collection.Multimap;
+import io.vavr.collection.Set;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.QName;
+
+/**
+ * Call a stylesheet function or named template directly, without a source document.
+ *
+ * <p>Functions are called with the arguments as {@code xs:untypedAtomic} values, so they're
+ * converted to the declared types of the function's parameters. Templates are called with their
+ * parameters set from arguments of the form {@code name=value}.
+ */
+public final class XSLTCallOperation {
+  public enum Target {
+    FUNCTION,
+    TEMPLATE
+  }
+
+  /** The serialization methods which can be requested on the command line. */
+  public static final Set<String> OUTPUT_METHODS =
+      io.vavr.collection.LinkedHashSet.of("xml", "html", "xhtml", "text", "json", "adaptive");
+
+  public final Path xsltPath;
+  public final Target target;
+  public final QName name;
+  /** The function's arguments, or the template's parameters as name=value pairs. */
+  public final List<String> arguments;
+
+  public final Multimap<QName, String> parameters;
+  /** Parameters whose values are the documents parsed from files, which are shared by calls. */
+  public final Multimap<QName, Path> documentParameters;
+  /** The serialization method of the result. If none, the stylesheet's xsl:output applies. */
+  public final Option<String> outputMethod;
+
+  public final Priority priority;
+  public final Option<Duration> timeout;
+  /**
+   * Whether documents read with {@code doc()} or {@code document()} are the shared documents, or
+   * parsed again by this call.
+   */
+  public final boolean shareDocuments;
+
+  public XSLTCallOperation(
+      @Nonnull Path xsltPath,
+      @Nonnull Target target,
+      @Nonnull QName name,
+      @Nonnull List<String> arguments) {
+    this(new Builder(xsltPath, target, name, arguments));
+  }
+
+  private XSLTCallOperation(@Nonnull Builder builder) {
+    this.xsltPath = Objects.requireNonNull(builder.xsltPath, "xsltPath cannot be null");
+    this.target = Objects.requireNonNull(builder.target, "target cannot be null");
+    this.name = Objects.requireNonNull(builder.name, "name cannot be null");
+    this.arguments = Objects.requireNonNull(builder.arguments, "arguments cannot be null");
+    this.parameters = Objects.requireNonNull(builder.parameters, "parameters cannot be null");
+    this.documentParameters =
+        Objects.requireNonNull(builder.documentParameters, "documentParameters cannot be null");
+    this.outputMethod = Objects.requireNonNull(builder.outputMethod, "outputMethod cannot be null");
+    this.priority = Objects.requireNonNull(builder.priority, "priority cannot be null");
+    this.timeout = Objects.requireNonNull(builder.timeout, "timeout cannot be null");
+    this.shareDocuments = builder.shareDocuments;
+  }
+
+  public XSLTCallOperation withParameters(@Nonnull Multimap<QName, String> parameters) {
+    Builder builder = new Builder(this);
+    builder.parameters = parameters;
+    return new XSLTCallOperation(builder);
+  }
+
+  public XSLTCallOperation withDocumentParameters(
+      @Nonnull Multimap<QName, Path> documentParameters) {
+    Builder builder = new Builder(this);
+    builder.documentParameters = documentParameters;
+    return new XSLTCallOperation(builder);
+  }
+
+  public XSLTCallOperation withOutputMethod(@Nonnull Option<String> outputMethod) {
+    Builder builder = new Builder(this);
+    builder.outputMethod = outputMethod;
+    return new XSLTCallOperation(builder);
+  }
+
+  public XSLTCallOperation withPriority(@Nonnull Priority priority) {
+    Builder builder = new Builder(this);
+    builder.priority = priority;
+    return new XSLTCallOperation(builder);
+  }
+
+  public XSLTCallOperation withTimeout(@Nonnull Option<Duration> timeout) {
+    Builder builder = new Builder(this);
+    builder.timeout = timeout;
+    return new XSLTCallOperation(builder);
+  }
+
+  public XSLTCallOperation withShareDocuments(boolean shareDocuments) {
+    Builder builder = new Builder(this);
+    builder.shareDocuments = shareDocuments;
+    return new XSLTCallOperation(builder);
+  }
+
+  /** Holds field values while creating modified copies of an operation. */
+  private static final class Builder {
+    private final Path xsltPath;
+    private final Target target;
+    private final QName name;
+    private final List<String> arguments;
+    private Multimap<QName, String> parameters = HashMultimap.withSeq().empty();
+    private Multimap<QName, Path> documentParameters = HashMultimap.withSeq().empty();
+    private Option<String> outputMethod = Option.none();
+    private Priority priority = Priority.NORMAL;
+    private Option<Duration> timeout = Option.none();
+    private boolean shareDocuments = true;
+
+    private Builder(Path xsltPath, Target target, QName name, List<String> arguments) {
+      this.xsltPath = xsltPath;
+      this.target = target;
+      this.name = name;
+      this.arguments = arguments;
+    }
+
+    private Builder(XSLTCallOperation operation) {
+      this(operation.xsltPath, operation.target, operation.name, operation.arguments);
+      this.parameters = operation.parameters;
+      this.documentParameters = operation.documentParameters;
+      this.outputMethod = operation.outputMethod;
+      this.priority = operation.priority;
+      this.timeout = operation.timeout;
+      this.shareDocuments = operation.shareDocuments;
+    }
+  }
+
+  /** Get the template's parameters, parsed from the arguments. */
+  public Try<Multimap<QName, String>> getTemplateParameters() {
+    return XSLTTransformOperation.parseParameters(arguments)
+        .recoverWith(
+            IllegalArgumentException.class,
+            e -> Try.failure(new IllegalArgumentException("template " + e.getMessage(), e)));
+  }
+
+  /**
+   * Create an XSLTCallOperation from a command line args map.
+   *
+   * @param args The parsed CLI arguments, which must be a call command.
+   */
+  @Nonnull
+  public static Try<XSLTCallOperation> fromParsedArguments(@Nonnull Map<String, Object> args) {
+    Objects.requireNonNull(args);
+    if (!Values.requireKey(args, "call").flatMap(t -> Values.as(Boolean.class, t)).get())
+      throw new IllegalArgumentException("args are not a call command");
+
+    Path xsltPath =
+        Values.requireKey(args, "<xslt-file>")
+            .flatMap(Values::castToString)
+            .map(path -> FileSystems.getDefault().getPath(path))
+            .get();
+    Target target =
+        Values.requireKey(args, "--template").flatMap(v -> Values.as(Boolean.class, v)).get()
+            ? Target.TEMPLATE
+            : Target.FUNCTION;
+    String rawName = Values.requireKey(args, "<name>").flatMap(Values::castToString).get();
+    List<String> arguments =
+        Values.requireKey(args, "<argument>")
+            .flatMap(o -> Values.asList(Values::castToString, o))
+            .get();
+
+    Try<QName> name =
+        XSLTTransformOperation.parseClarkName(rawName)
+            .recoverWith(
+                e ->
+                    Try.failure(
+                        new IllegalArgumentException(
+                            String.format(
+                                "<name> must be a qname in Clark notation (\"{uri}local\"), got: \"%s\": %s",
+                                rawName, e.getMessage()),
+                            e)))
+            .filter(
+                qname -> target == Target.TEMPLATE || !qname.getNamespaceURI().isEmpty(),
+                () ->
+                    new IllegalArgumentException(
+                        String.format(
+                            "function names must be in a namespace (\"{uri}local\"), got: \"%s\"",
+                            rawName)));
+
+    Try<Option<String>> outputMethod =
+        Option.of(Values.requireKey(args, "--output-method").get())
+            .flatMap(Values::ifString)
+            .fold(
+                () -> Try.success(Option.none()),
+                method ->
+                    OUTPUT_METHODS.contains(method)
+                        ? Try.success(Option.some(method))
+                        : Try.failure(
+                            new IllegalArgumentException(
+                                String.format(
+                                    "--output-method must be %s, got: \"%s\"",
+                                    OUTPUT_METHODS.mkString(", "), method))));
+
+    boolean shareDocuments = !XSLTTransformOperation.parseNoSharedDocuments(args);
+    Try<Multimap<QName, String>> parameters = XSLTTransformOperation.parseParameters(args);
+    Try<Multimap<QName, Path>> documentParameters =
+        XSLTTransformOperation.parseDocumentParameters(args, parameters);
+
+    // Each value is applied in turn, so parsing stops at the first invalid option
+    return name.map(qname -> new XSLTCallOperation(xsltPath, target, qname, arguments))
+        .map(op -> op.withShareDocuments(shareDocuments))
+        .flatMap(op -> parameters.map(op::withParameters))
+        .flatMap(op -> documentParameters.map(op::withDocumentParameters))
+        .flatMap(op -> outputMethod.map(op::withOutputMethod))
+        .flatMap(op -> XSLTTransformOperation.parsePriority(args).map(op::withPriority))
+        .flatMap(op -> XSLTTransformOperation.parseTimeout(args).map(op::withTimeout));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    XSLTCallOperation that = (XSLTCallOperation) o;
+    return xsltPath.equals(that.xsltPath)
+        && target == that.target
+        && name.equals(that.name)
+        && arguments.equals(that.arguments)
+        && parameters.equals(that.parameters)
+        && documentParameters.equals(that.documentParameters)
+        && outputMethod.equals(that.outputMethod)
+        && priority.equals(that.priority)
+        && timeout.equals(that.timeout)
+        && shareDocuments == that.shareDocuments;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(
+        xsltPath,
+        target,
+        name,
+        arguments,
+        parameters,
+        documentParameters,
+        outputMethod,
+        priority,
+        timeout,
+        shareDocuments);
+  }
+}
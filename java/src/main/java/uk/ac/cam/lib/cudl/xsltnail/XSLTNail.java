@@ -1,9 +1,10 @@
 package uk.ac.cam.lib.cudl.xsltnail;
 
-import static java.util.concurrent.Executors.newFixedThreadPool;
+import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_CANCELLED;
 import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_INTERNAL_ERROR;
 import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_USER_ERROR;
 
+import com.facebook.nailgun.NGClientListener;
 import com.facebook.nailgun.NGContext;
 import com.facebook.nailgun.NGServer;
 import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
@@ -12,26 +13,39 @@ import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import io.vavr.Tuple;
 import io.vavr.Tuple2;
+import io.vavr.collection.List;
 import io.vavr.collection.Map;
 import io.vavr.collection.Multimap;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
+import io.vavr.control.Try;
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.lib.CollectionFinder;
 import net.sf.saxon.lib.Feature;
 import net.sf.saxon.s9api.*;
 import net.sf.saxon.trans.RecoveryPolicy;
+import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.UntypedAtomicValue;
 
 public class XSLTNail implements AutoCloseable {
@@ -39,6 +53,15 @@ public class XSLTNail implements AutoCloseable {
 
   private static final Cache<NGServer, XSLTNail> NAILS = Caffeine.newBuilder().weakKeys().build();
 
+  /**
+   * Use a specific nail instance to handle requests made to a server, rather than one created with
+   * default options on the first request.
+   */
+  public static void nailInstall(@Nonnull NGServer server, @Nonnull XSLTNail nail) {
+    Objects.requireNonNull(nail, "nail cannot be null");
+    Optional.ofNullable(NAILS.asMap().put(server, nail)).ifPresent(XSLTNail::close);
+  }
+
   public static void nailShutdown(@Nonnull NGServer server) {
     Optional.ofNullable(NAILS.getIfPresent(server))
         .ifPresent(
@@ -49,35 +72,73 @@ public class XSLTNail implements AutoCloseable {
   }
 
   public static void nailMain(@Nonnull NGContext context) {
+    // Stop work on the request if the client goes away, rather than continuing to use a worker
+    Cancellation cancellation = new Cancellation();
+    NGClientListener disconnectListener =
+        reason -> cancellation.cancel(Cancellation.Reason.CLIENT_DISCONNECTED);
+    context.addClientListener(disconnectListener);
     try {
       NGServer server = context.getNGServer();
       XSLTNail nail = NAILS.get(server, s -> XSLTNail.newInstance());
       Objects.requireNonNull(nail, "nail cache returned null");
 
-      XSLTNailArguments.parse(context.getArgs())
-          .mapLeft(XSLTNail::handleInvalidArgumentMessage)
-          .flatMap(XSLTNail::handleHelpRequest)
-          .flatMap(XSLTNail::handleVersion)
-          .flatMap(
-              args ->
-                  XSLTTransformOperation.fromParsedArguments(args)
-                      .toEither()
-                      .mapLeft(Throwable::getMessage))
-          .mapLeft(msg -> Tuple.of(msg, EXIT_STATUS_INTERNAL_ERROR))
-          .flatMap(op -> nail.transform(op, context.in, context.out))
-          .orElseRun(
-              unsuccessfulResult -> {
-                context.err.println(unsuccessfulResult._1());
-                context.exit(unsuccessfulResult._2);
-              });
+      // Counted so that a server which has handed over its address can wait for them to finish
+      nail.activeRequests.incrementAndGet();
+      try {
+        XSLTNailArguments.parse(context.getArgs())
+            .mapLeft(XSLTNail::handleInvalidArgumentMessage)
+            .flatMap(XSLTNail::handleHelpRequest)
+            .flatMap(XSLTNail::handleVersion)
+            .mapLeft(msg -> Tuple.of(msg, EXIT_STATUS_INTERNAL_ERROR))
+            .flatMap(args -> nail.dispatch(args, context, cancellation))
+            .orElseRun(
+                unsuccessfulResult -> {
+                  context.err.println(unsuccessfulResult._1());
+                  context.exit(unsuccessfulResult._2);
+                });
+      } finally {
+        nail.activeRequests.decrementAndGet();
+      }
     } catch (RuntimeException e) {
       context.err.println(
           "XSLT execution failed with an internal error, this is most likely a bug:");
       e.printStackTrace(context.err);
       context.exit(EXIT_STATUS_INTERNAL_ERROR);
+    } finally {
+      context.removeClientListener(disconnectListener);
     }
   }
 
+  /** Execute the command selected by a request's arguments. */
+  private Either<Tuple2<String, Integer>, Void> dispatch(
+      Map<String, Object> args, NGContext context, Cancellation cancellation) {
+    if (isCommand(args, "status")) return writeStatus(context.out);
+    else if (isCommand(args, "accounting")) return writeAccounting(context.out);
+    else if (isCommand(args, "handover"))
+      return handover(
+          context.in,
+          context.out,
+          DefaultShutdownManager.builder().server(context.getNGServer()).build());
+    else if (isCommand(args, "call"))
+      return toResult(XSLTCallOperation.fromParsedArguments(args))
+          .flatMap(op -> call(op, context.out, cancellation));
+    else if (isCommand(args, "build"))
+      return toResult(XSLTBuildOperation.fromParsedArguments(args))
+          .flatMap(op -> build(op, context.out, cancellation));
+    else
+      return toResult(XSLTTransformOperation.fromParsedArguments(args))
+          .flatMap(op -> transform(op, context.in, context.out, cancellation));
+  }
+
+  private static boolean isCommand(Map<String, Object> args, String command) {
+    return args.get(command).exists(Boolean.TRUE::equals);
+  }
+
+  /** Report an operation whose arguments couldn't be parsed. */
+  private static <T> Either<Tuple2<String, Integer>, T> toResult(Try<T> operation) {
+    return operation.toEither().mapLeft(e -> Tuple.of(e.getMessage(), EXIT_STATUS_INTERNAL_ERROR));
+  }
+
   private static String handleInvalidArgumentMessage(Option<String> message) {
     return message
         .map(m -> String.format("Error: %s\n\n%s", m, Constants.USAGE_TRANSFORM))
@@ -96,83 +157,1310 @@ public class XSLTNail implements AutoCloseable {
         : Either.right(args);
   }
 
+  // The number and total size of closed xsl:result-document outputs which can be held in memory
+  // waiting to be written before evaluating threads have to write them synchronously.
+  private static final int RESULT_DOCUMENT_WRITE_QUEUE_CAPACITY = 256;
+  private static final long RESULT_DOCUMENT_WRITE_QUEUE_BYTES = 64 * 1024 * 1024;
+  // Larger result documents are streamed to disk as they're serialized rather than held in memory
+  private static final long RESULT_DOCUMENT_BUFFER_BYTES = 4 * 1024 * 1024;
+
+  // How long a cancelled evaluation has to notice its cancellation before it's forcibly stopped, if
+  // stopping is enabled, or reported as still running.
+  private static final Duration CANCELLATION_GRACE_PERIOD = Duration.ofSeconds(1);
+
+  private static final int MAXIMUM_CACHED_STYLESHEETS = 100;
+
+  // How long no requests must be active for after a handover before a server stops. Requests can
+  // still arrive briefly after a handover from clients which connected before the socket moved.
+  private static final Duration HANDOVER_DRAIN_SETTLE = Duration.ofMillis(500);
+  private static final Duration HANDOVER_DRAIN_POLL_INTERVAL = Duration.ofMillis(50);
+  static final String HANDOVER_TAKEN_OVER = "taken-over";
+
+  /** How a nail releases memory after it has been idle. */
+  public static final class IdlePolicy {
+    public static final int DEFAULT_RETAINED_STYLESHEETS = 5;
+
+    public final Duration quietPeriod;
+    public final int retainedStylesheets;
+
+    /**
+     * @param quietPeriod How long no requests must be active for before memory is released.
+     * @param retainedStylesheets The number of the hottest stylesheets which remain compiled.
+     */
+    public IdlePolicy(@Nonnull Duration quietPeriod, int retainedStylesheets) {
+      if (retainedStylesheets < 0)
+        throw new IllegalArgumentException("retainedStylesheets cannot be negative");
+      this.quietPeriod = Objects.requireNonNull(quietPeriod);
+      this.retainedStylesheets = retainedStylesheets;
+    }
+  }
+
+  /** How to create a nail. Options not given take their defaults. */
+  public static final class Options {
+    /**
+     * The deadline applied to transforms which don't specify a {@code --timeout}, or none to let
+     * them run indefinitely.
+     */
+    public final Option<Duration> defaultTimeout;
+    /**
+     * How to release memory when no requests have been active for a while, or none to hold it
+     * indefinitely.
+     */
+    public final Option<IdlePolicy> idlePolicy;
+    /**
+     * A file to record the hottest stylesheets in when idle and on close. The stylesheets it lists
+     * are compiled in the background when the nail is created.
+     */
+    public final Option<Path> hotListFile;
+    /**
+     * XSLT package files which stylesheets can use with {@code xsl:use-package}. Each is compiled
+     * once and shared by all the stylesheets which use it.
+     */
+    public final List<Path> packages;
+    /**
+     * OASIS XML catalog files used to resolve the DTDs and external entities of inputs, secondary
+     * documents and stylesheets. When any are given, entities they don't map to local files are not
+     * fetched from the network.
+     */
+    public final List<Path> catalogs;
+    /**
+     * The factory of the parsers used to read input and secondary documents. Parsers are reused by
+     * the thread which last used them.
+     */
+    public final SAXParserFactory parserFactory;
+    /**
+     * Whether evaluations which are still running a grace period after they're cancelled are
+     * stopped with {@link Thread#stop()}, and their threads replaced. Stopping a thread can leave
+     * state shared between transforms inconsistent, and isn't supported by Java 20 and later, so by
+     * default such evaluations run until they finish.
+     */
+    public final boolean stopCancelledEvaluations;
+
+    public Options() {
+      this(
+          Option.none(),
+          Option.none(),
+          Option.none(),
+          List.empty(),
+          List.empty(),
+          ParserConfiguration.getParserFactory(Option.none()),
+          false);
+    }
+
+    private Options(
+        Option<Duration> defaultTimeout,
+        Option<IdlePolicy> idlePolicy,
+        Option<Path> hotListFile,
+        List<Path> packages,
+        List<Path> catalogs,
+        SAXParserFactory parserFactory,
+        boolean stopCancelledEvaluations) {
+      this.defaultTimeout = Objects.requireNonNull(defaultTimeout, "defaultTimeout cannot be null");
+      this.idlePolicy = Objects.requireNonNull(idlePolicy, "idlePolicy cannot be null");
+      this.hotListFile = Objects.requireNonNull(hotListFile, "hotListFile cannot be null");
+      this.packages = Objects.requireNonNull(packages, "packages cannot be null");
+      this.catalogs = Objects.requireNonNull(catalogs, "catalogs cannot be null");
+      this.parserFactory = Objects.requireNonNull(parserFactory, "parserFactory cannot be null");
+      this.stopCancelledEvaluations = stopCancelledEvaluations;
+    }
+
+    public Options withDefaultTimeout(@Nonnull Option<Duration> defaultTimeout) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+
+    public Options withIdlePolicy(@Nonnull Option<IdlePolicy> idlePolicy) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+
+    public Options withHotListFile(@Nonnull Option<Path> hotListFile) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+
+    public Options withPackages(@Nonnull List<Path> packages) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+
+    public Options withCatalogs(@Nonnull List<Path> catalogs) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+
+    public Options withParserFactory(@Nonnull SAXParserFactory parserFactory) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+
+    public Options withStopCancelledEvaluations(boolean stopCancelledEvaluations) {
+      return new Options(
+          defaultTimeout,
+          idlePolicy,
+          hotListFile,
+          packages,
+          catalogs,
+          parserFactory,
+          stopCancelledEvaluations);
+    }
+  }
+
   private final AsyncLoadingCache<Path, ? extends CachedXSLT> compiledXsltCache;
-  private final ExecutorService xsltCompileExecutor;
-  private final ExecutorService xsltEvaluateExecutor;
-  private boolean closeCalled = false;
+  private final FairScheduler xsltCompileExecutor;
+  private final FairScheduler xsltEvaluateExecutor;
+  private final ResultDocumentHandler.WriterExecutor resultDocumentWriteExecutor;
+  // Parses the documents of collections read with collection()
+  private final ExecutorService collectionParsePool;
+  private final SharedDocuments sharedDocuments = new SharedDocuments();
+  private final CachedEntityResolver entityResolver;
+  private final SingleFlight transforms = new SingleFlight();
+  private final StylesheetAccounting accounting;
+  private final ScheduledExecutorService cancellationExecutor;
+  private final boolean stopCancelledEvaluations;
+  private final Option<Duration> defaultTimeout;
+  private final StylesheetModules stylesheetModules;
+  private final ConcurrentMap<Path, String> builtStylesheetVersions = new ConcurrentHashMap<>();
+  private final HotList hotList = new HotList();
+  private final Option<Path> hotListFile;
+  private final Option<IdlePolicy> idlePolicy;
+  private final Option<IdleMonitor> idleMonitor;
+  // The stylesheets dropped from the cache when we last went idle, hottest first
+  private volatile List<Path> trimmedStylesheets = List.empty();
+  private volatile boolean closeCalled = false;
+  private final AtomicInteger activeRequests = new AtomicInteger();
 
   public static XSLTNail newInstance() {
-    Processor processor = new Processor(false);
+    return newInstance(new Options());
+  }
+
+  /** @throws IllegalArgumentException if a catalog can't be read. */
+  public static XSLTNail newInstance(@Nonnull Options options) {
+    CachedEntityResolver entityResolver = new CachedEntityResolver(options.catalogs);
+    Processor processor =
+        new Processor(new ParserConfiguration(options.parserFactory, entityResolver));
     processor.setConfigurationProperty(
         Feature.RECOVERY_POLICY, RecoveryPolicy.RECOVER_WITH_WARNINGS.ordinal());
-    FileTimestampAsyncXSLTLoader loader = new FileTimestampAsyncXSLTLoader(processor);
+    processor.registerExtensionFunction(new LookupFunction(new LookupTables()));
+    StylesheetAccounting accounting = new StylesheetAccounting();
+    FileTimestampAsyncXSLTLoader loader =
+        new FileTimestampAsyncXSLTLoader(
+            processor, new SharedPackages(processor, options.packages), accounting);
 
-    return new XSLTNail(loader, Duration.of(60, ChronoUnit.SECONDS));
+    return new XSLTNail(
+        loader, Duration.of(60, ChronoUnit.SECONDS), options, entityResolver, accounting);
   }
 
   XSLTNail(
-      AsyncCacheLoader<Path, ? extends CachedXSLT> xsltLoader, Duration xsltRefreshAfterCompile) {
+      AsyncCacheLoader<Path, ? extends CachedXSLT> xsltLoader,
+      Duration xsltRefreshAfterCompile,
+      Options options,
+      CachedEntityResolver entityResolver,
+      StylesheetAccounting accounting) {
+    this.stopCancelledEvaluations = options.stopCancelledEvaluations;
+    this.hotListFile = options.hotListFile;
+    this.idlePolicy = options.idlePolicy;
+    this.defaultTimeout = options.defaultTimeout;
+    this.entityResolver = Objects.requireNonNull(entityResolver, "entityResolver cannot be null");
+    this.accounting = Objects.requireNonNull(accounting, "accounting cannot be null");
+    this.stylesheetModules =
+        new StylesheetModules(
+            new Processor(new ParserConfiguration(options.parserFactory, entityResolver)));
 
-    this.xsltCompileExecutor = newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
-    this.xsltEvaluateExecutor = newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+    this.xsltCompileExecutor = new FairScheduler(Runtime.getRuntime().availableProcessors() * 2);
+    this.xsltEvaluateExecutor = new FairScheduler(Runtime.getRuntime().availableProcessors() * 2);
+    this.resultDocumentWriteExecutor =
+        ResultDocumentHandler.newWriterExecutor(
+            Runtime.getRuntime().availableProcessors(),
+            RESULT_DOCUMENT_WRITE_QUEUE_CAPACITY,
+            RESULT_DOCUMENT_WRITE_QUEUE_BYTES,
+            RESULT_DOCUMENT_BUFFER_BYTES);
+    this.collectionParsePool =
+        ParallelCollectionFinder.newParserPool(Runtime.getRuntime().availableProcessors());
+    this.cancellationExecutor =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "xslt-nail-cancellation");
+              thread.setDaemon(true);
+              return thread;
+            });
 
     this.compiledXsltCache =
         Caffeine.newBuilder()
-            .maximumSize(100)
+            .maximumSize(MAXIMUM_CACHED_STYLESHEETS)
             .refreshAfterWrite(xsltRefreshAfterCompile)
             .executor(this.xsltCompileExecutor)
             .buildAsync(xsltLoader);
+
+    this.idleMonitor =
+        idlePolicy.map(policy -> new IdleMonitor(policy.quietPeriod, this::trim, this::resume));
+    hotListFile.filter(Files::exists).forEach(this::compileRecordedHotList);
+  }
+
+  private void compileRecordedHotList(Path file) {
+    try {
+      List<Path> stylesheets = HotList.read(file).take(MAXIMUM_CACHED_STYLESHEETS);
+      this.hotList.addAll(stylesheets);
+      compileInBackground(stylesheets);
+    } catch (IOException | InvalidPathException e) {
+      LOG.log(Level.WARNING, "Failed to read hot list " + file, e);
+    }
+  }
+
+  /**
+   * Compile stylesheets at low priority, one at a time in the order they're listed, so that they
+   * don't hold up the compiles of requests which arrive meanwhile.
+   */
+  private void compileInBackground(List<Path> stylesheets) {
+    List<Path> remaining = stylesheets.dropWhile(stylesheet -> !Files.isRegularFile(stylesheet));
+    // Stop if we've gone idle (again) since starting
+    if (remaining.isEmpty() || this.closeCalled || this.idleMonitor.exists(IdleMonitor::isIdle))
+      return;
+    Path next = remaining.head();
+    try {
+      FairScheduler.callWithContext(Priority.LOW, next, () -> this.compiledXsltCache.get(next))
+          .whenComplete((compiled, error) -> compileInBackground(remaining.tail()));
+    } catch (RejectedExecutionException e) {
+      LOG.log(Level.FINE, "Not compiling stylesheets in the background after shutdown", e);
+    }
+  }
+
+  /**
+   * Release the memory we hold while idle: compiled stylesheets other than the hottest, shared
+   * documents, cached entities and idle threads. When the freed heap is returned to the OS is left
+   * to the JVM's garbage collector options.
+   */
+  private void trim() {
+    int retained = this.idlePolicy.get().retainedStylesheets;
+    List<Path> trimmed = getCachedStylesheets().drop(retained);
+    this.trimmedStylesheets = trimmed;
+    this.compiledXsltCache.synchronous().invalidateAll(trimmed);
+    this.sharedDocuments.clear();
+    this.entityResolver.clear();
+    this.xsltCompileExecutor.retireIdleWorkers();
+    this.xsltEvaluateExecutor.retireIdleWorkers();
+    writeHotList();
+    this.hotList.decay();
+    LOG.log(
+        Level.INFO,
+        String.format(
+            "Idle: released %d compiled stylesheets and shared documents", trimmed.size()));
+  }
+
+  /** Get the stylesheets which are currently compiled, hottest first. */
+  List<Path> getCachedStylesheets() {
+    java.util.Set<Path> cached =
+        new java.util.HashSet<>(this.compiledXsltCache.synchronous().asMap().keySet());
+    List<Path> hottest = this.hotList.getHottest(MAXIMUM_CACHED_STYLESHEETS);
+    return hottest.appendAll(List.ofAll(cached).removeAll(hottest)).filter(cached::contains);
+  }
+
+  /**
+   * Compile stylesheets ahead of their use, such as those a server we're taking over from had
+   * cached.
+   *
+   * @return A future which completes when every stylesheet has compiled, or failed to.
+   */
+  public CompletableFuture<Void> precompile(@Nonnull List<Path> stylesheets) {
+    this.hotList.addAll(stylesheets);
+    return CompletableFuture.allOf(
+        stylesheets
+            .filter(Files::isRegularFile)
+            .map(
+                stylesheet ->
+                    this.compiledXsltCache
+                        .get(stylesheet)
+                        .handle((compiled, error) -> null)
+                        .toCompletableFuture())
+            .toJavaList()
+            .toArray(new CompletableFuture<?>[0]));
+  }
+
+  /** Recompile the stylesheets we released when idle, hottest first. */
+  private void resume() {
+    List<Path> trimmed = this.trimmedStylesheets;
+    this.trimmedStylesheets = List.empty();
+    compileInBackground(trimmed);
+  }
+
+  private void writeHotList() {
+    this.hotListFile.forEach(
+        file -> {
+          try {
+            this.hotList.write(file, MAXIMUM_CACHED_STYLESHEETS);
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write hot list " + file, e);
+          }
+        });
+  }
+
+  /** Count a request for a stylesheet, and let the idle monitor know it's active. */
+  private <T> T trackRequest(Path xsltPath, java.util.function.Supplier<T> request) {
+    this.hotList.recordUse(xsltPath);
+    this.idleMonitor.forEach(IdleMonitor::requestStarted);
+    try {
+      return request.get();
+    } finally {
+      this.idleMonitor.forEach(IdleMonitor::requestFinished);
+    }
   }
 
   public Either<Tuple2<String, Integer>, Void> transform(
       @Nonnull XSLTTransformOperation operation,
       @Nonnull InputStream in,
       @Nonnull OutputStream out) {
+    return transform(operation, in, out, new Cancellation());
+  }
+
+  /**
+   * Execute a transform, which stops early if the cancellation is triggered, or if the operation's
+   * deadline expires.
+   *
+   * <p>Concurrent transforms of the same version of an input file, by the same version of a
+   * stylesheet, whose operations differ at most in priority and timeout, share one execution:
+   * requests which arrive while it's running wait for it, and receive its output. If it fails, one
+   * of the waiting requests executes the transform for the rest.
+   */
+  public Either<Tuple2<String, Integer>, Void> transform(
+      @Nonnull XSLTTransformOperation operation,
+      @Nonnull InputStream in,
+      @Nonnull OutputStream out,
+      @Nonnull Cancellation cancellation) {
+    return trackRequest(
+        operation.xsltPath,
+        () -> {
+          long startedNanos = System.nanoTime();
+          CompletableFuture<? extends CachedXSLT> compilation =
+              getCompilation(operation.priority, operation.xsltPath);
+          // Transforms of stdin can't be shared, as each request has its own input
+          Option<Object> key =
+              operation
+                  .xmlPath
+                  .filter(path -> !path.equals(path.getFileSystem().getPath("-")))
+                  .flatMap(
+                      xml ->
+                          awaitCompilation(
+                                  compilation, operation.timeout, startedNanos, cancellation)
+                              .flatMap(compiled -> getCoalescingKey(operation, xml, compiled)));
+          if (key.isEmpty())
+            return executeTransform(operation, compilation, in, out, cancellation, startedNanos);
+          return coalesceTransform(
+              key.get(), operation, compilation, in, out, cancellation, startedNanos);
+        });
+  }
+
+  /**
+   * Lead or follow the shared execution of a transform. Requests following an execution which fails
+   * elect a new leader between themselves, which executes the transform for the rest, in what
+   * remains of its deadline.
+   */
+  private Either<Tuple2<String, Integer>, Void> coalesceTransform(
+      Object key,
+      XSLTTransformOperation operation,
+      CompletableFuture<? extends CachedXSLT> compilation,
+      InputStream in,
+      OutputStream out,
+      Cancellation cancellation,
+      long startedNanos) {
+    while (true) {
+      Tuple2<SingleFlight.Flight, Boolean> flight = this.transforms.join(key);
+      if (flight._2)
+        return leadTransform(
+            flight._1, operation, compilation, in, out, cancellation, startedNanos);
+      Option<Either<Tuple2<String, Integer>, Void>> result;
+      try {
+        result = followTransform(flight._1, operation, out, cancellation, startedNanos);
+      } finally {
+        flight._1.leave();
+      }
+      if (result.isDefined()) return result.get();
+    }
+  }
+
+  private Either<Tuple2<String, Integer>, Void> leadTransform(
+      SingleFlight.Flight flight,
+      XSLTTransformOperation operation,
+      CompletableFuture<? extends CachedXSLT> compilation,
+      InputStream in,
+      OutputStream out,
+      Cancellation cancellation,
+      long startedNanos) {
+    boolean succeeded = false;
+    try {
+      Either<Tuple2<String, Integer>, Void> result =
+          executeTransform(
+              operation, compilation, in, flight.record(out), cancellation, startedNanos);
+      succeeded = result.isRight();
+      return result;
+    } finally {
+      flight.land(succeeded);
+    }
+  }
+
+  private Either<Tuple2<String, Integer>, Void> executeTransform(
+      XSLTTransformOperation operation,
+      CompletableFuture<? extends CachedXSLT> compilation,
+      InputStream in,
+      OutputStream out,
+      Cancellation cancellation,
+      long startedNanos) {
+    return evaluate(
+        operation.priority,
+        operation.xsltPath,
+        compilation,
+        operation.timeout,
+        startedNanos,
+        cancellation,
+        executable ->
+            executeTransform(
+                executable,
+                operation,
+                in,
+                out,
+                this.resultDocumentWriteExecutor,
+                this.sharedDocuments,
+                this.collectionParsePool,
+                cancellation));
+  }
+
+  /**
+   * Wait for a stylesheet to compile, within a request's deadline.
+   *
+   * @return The compiled stylesheet, or none if the request timed out or was cancelled first, or
+   *     the compilation failed, which its evaluation reports.
+   */
+  private Option<CachedXSLT> awaitCompilation(
+      CompletableFuture<? extends CachedXSLT> compilation,
+      Option<Duration> operationTimeout,
+      long startedNanos,
+      Cancellation cancellation) {
+    Option<Duration> timeout = operationTimeout.orElse(this.defaultTimeout);
+    // Cancelling a copy leaves the cached compilation alone
+    CompletableFuture<CachedXSLT> compiled = compilation.thenApply(result -> result);
+    cancellation.onCancel(() -> compiled.cancel(false));
+    try {
+      return Option.some(
+          timeout.isDefined()
+              ? compiled.get(getRemainingNanos(timeout.get(), startedNanos), TimeUnit.NANOSECONDS)
+              : compiled.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Option.none();
+    } catch (ExecutionException | TimeoutException | CancellationException e) {
+      return Option.none();
+    }
+  }
+
+  /**
+   * Get the key which identifies transforms that can share an execution: those of the same version
+   * of an input file, with the same version of a stylesheet, which differ only in ways which don't
+   * affect their output.
+   */
+  private static Option<Object> getCoalescingKey(
+      XSLTTransformOperation operation, Path xml, CachedXSLT cachedXslt) {
+    Object stylesheetVersion =
+        cachedXslt instanceof FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT
+            ? Tuple.of(
+                ((FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT) cachedXslt).getRealPath(),
+                ((FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT) cachedXslt)
+                    .getLastModifiedTimestamp())
+            : cachedXslt;
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(xml, BasicFileAttributes.class);
+      // Everything about the operation except its priority and timeout
+      return Option.some(
+          io.vavr.collection.List.of(
+              stylesheetVersion,
+              Tuple.of(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size()),
+              operation.xmlPath,
+              operation.inputIdentifier,
+              operation.parameters,
+              operation.documentParameters,
+              operation.resultDocumentManifest,
+              operation.inputCompression,
+              operation.inputFormat,
+              operation.initialMode,
+              operation.initialTemplate,
+              operation.globalContext,
+              operation.outputCompression,
+              operation.shareDocuments));
+    } catch (IOException e) {
+      // The transform reports the error when it tries to read the file
+      return Option.none();
+    }
+  }
+
+  /**
+   * Wait for a transform being executed for another request, then write its output.
+   *
+   * @return The result of this request, or none if the transform failed, so this request must
+   *     execute it.
+   */
+  private Option<Either<Tuple2<String, Integer>, Void>> followTransform(
+      SingleFlight.Flight flight,
+      XSLTTransformOperation operation,
+      OutputStream out,
+      Cancellation cancellation,
+      long startedNanos) {
+    Option<Duration> timeout = operation.timeout.orElse(this.defaultTimeout);
+    CompletableFuture<Boolean> shared = flight.isShared();
+    cancellation.onCancel(() -> shared.cancel(false));
+    try {
+      if (!(timeout.isDefined()
+          ? shared.get(getRemainingNanos(timeout.get(), startedNanos), TimeUnit.NANOSECONDS)
+          : shared.get())) return Option.none();
+    } catch (TimeoutException e) {
+      cancellation.cancel(Cancellation.Reason.TIMEOUT);
+      return Option.some(Either.left(getCancelledResult(cancellation, timeout)));
+    } catch (CancellationException e) {
+      return Option.some(Either.left(getCancelledResult(cancellation, timeout)));
+    } catch (InterruptedException | ExecutionException e) {
+      throw new InternalXSLTNailException("Failed to wait for shared transform: " + e, e);
+    }
+    try {
+      OutputStream cancellableOut = cancellation.wrap(out);
+      flight.writeOutput(cancellableOut);
+      cancellableOut.flush();
+    } catch (Cancellation.CancelledException e) {
+      return Option.some(Either.left(getCancelledResult(cancellation, timeout)));
+    } catch (IOException e) {
+      return Option.some(
+          Either.left(
+              Tuple.of(
+                  "Failed to write transform result: " + e.getMessage(), EXIT_STATUS_USER_ERROR)));
+    }
+    return Option.some(Either.right(null));
+  }
+
+  /** Get how much of a timeout is left, for a request which started at the given time. */
+  private static long getRemainingNanos(Duration timeout, long startedNanos) {
+    return timeout.toNanos() - (System.nanoTime() - startedNanos);
+  }
+
+  public Either<Tuple2<String, Integer>, Void> call(
+      @Nonnull XSLTCallOperation operation, @Nonnull OutputStream out) {
+    return call(operation, out, new Cancellation());
+  }
+
+  /** Call a stylesheet function or named template, writing its serialized result. */
+  public Either<Tuple2<String, Integer>, Void> call(
+      @Nonnull XSLTCallOperation operation,
+      @Nonnull OutputStream out,
+      @Nonnull Cancellation cancellation) {
+    return trackRequest(
+        operation.xsltPath,
+        () ->
+            evaluate(
+                operation.priority,
+                operation.xsltPath,
+                getCompilation(operation.priority, operation.xsltPath),
+                operation.timeout,
+                System.nanoTime(),
+                cancellation,
+                executable ->
+                    executeCall(
+                        executable,
+                        operation,
+                        out,
+                        this.resultDocumentWriteExecutor,
+                        this.sharedDocuments,
+                        this.collectionParsePool,
+                        cancellation)));
+  }
+
+  /**
+   * Compile a stylesheet, or get it from the cache. Compiles triggered by the cache lookup take the
+   * given priority.
+   */
+  private CompletableFuture<? extends CachedXSLT> getCompilation(Priority priority, Path xsltPath) {
+    return FairScheduler.callWithContext(
+        priority, xsltPath, () -> this.compiledXsltCache.get(xsltPath));
+  }
+
+  /**
+   * Evaluate a stylesheet once it's compiled, subject to the cancellation and the timeout, or this
+   * nail's default timeout if none is given. The timeout counts from {@code startedNanos}, the
+   * {@link System#nanoTime()} when the request started.
+   */
+  private Either<Tuple2<String, Integer>, Void> evaluate(
+      Priority priority,
+      Path xsltPath,
+      CompletableFuture<? extends CachedXSLT> compilation,
+      Option<Duration> operationTimeout,
+      long startedNanos,
+      Cancellation cancellation,
+      java.util.function.Function<XsltExecutable, Either<String, Void>> evaluation) {
+    Option<Duration> timeout = operationTimeout.orElse(this.defaultTimeout);
 
     // We want to keep the XSLT Executor just for executing stylesheets, so we load the stylesheet
     // in the
     // cache's executor before submitting a job to the XSLT Executor. This request handling thread
     // is blocked
     // on both executors, but that's fine.
+    // Both executors schedule work fairly between priorities, and between stylesheets within a
+    // priority.
     CompletableFuture<Either<String, Void>> transformJob =
-        this.compiledXsltCache
-            .get(operation.xsltPath)
-            .thenApplyAsync(
-                cachedXslt ->
-                    cachedXslt
-                        .getXSLTCompilation()
-                        .flatMap(executable -> executeTransform(executable, operation, in, out)),
-                this.xsltEvaluateExecutor);
-
-    try {
-      return transformJob.get().mapLeft(msg -> Tuple.of(msg, EXIT_STATUS_USER_ERROR));
-    } catch (InterruptedException | ExecutionException | CancellationException e) {
+        compilation.thenApplyAsync(
+            cachedXslt ->
+                this.accounting.measure(
+                    getAccountingPath(xsltPath, cachedXslt),
+                    StylesheetAccounting.Phase.EVALUATE,
+                    () -> cachedXslt.getXSLTCompilation().flatMap(evaluation)),
+            this.xsltEvaluateExecutor.forContext(priority, xsltPath));
+    // Cancelling the job releases this thread whether we're waiting for the compile or the
+    // evaluation. An evaluation which has started is aborted by the cancellation itself, or
+    // stopped if it doesn't notice the cancellation within the grace period.
+    cancellation.onCancel(
+        () -> {
+          transformJob.cancel(false);
+          scheduleGracePeriodEnd(cancellation);
+        });
+
+    try {
+      Either<String, Void> result =
+          timeout.isDefined()
+              ? transformJob.get(
+                  getRemainingNanos(timeout.get(), startedNanos), TimeUnit.NANOSECONDS)
+              : transformJob.get();
+      return result.mapLeft(msg -> Tuple.of(msg, EXIT_STATUS_USER_ERROR));
+    } catch (TimeoutException e) {
+      cancellation.cancel(Cancellation.Reason.TIMEOUT);
+      return Either.left(getCancelledResult(cancellation, timeout));
+    } catch (CancellationException e) {
+      return Either.left(getCancelledResult(cancellation, timeout));
+    } catch (InterruptedException | ExecutionException e) {
       Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (cause instanceof Cancellation.CancelledException)
+        return Either.left(getCancelledResult(cancellation, timeout));
       if (cause instanceof XSLTNailException) throw (XSLTNailException) cause;
       throw new InternalXSLTNailException("Failed to execute transform: " + e, cause);
     }
   }
 
+  public Either<Tuple2<String, Integer>, Void> build(
+      @Nonnull XSLTBuildOperation operation, @Nonnull OutputStream out) {
+    return build(operation, out, new Cancellation());
+  }
+
+  /**
+   * Transform the files of a directory whose outputs aren't up to date. Inputs are transformed
+   * concurrently on the evaluate executor, with the operation's priority.
+   *
+   * @see DirectoryBuild
+   */
+  public Either<Tuple2<String, Integer>, Void> build(
+      @Nonnull XSLTBuildOperation operation,
+      @Nonnull OutputStream out,
+      @Nonnull Cancellation cancellation) {
+    return trackRequest(operation.xsltPath, () -> buildDirectory(operation, out, cancellation));
+  }
+
+  private Either<Tuple2<String, Integer>, Void> buildDirectory(
+      XSLTBuildOperation operation, OutputStream out, Cancellation cancellation) {
+    Either<String, XsltExecutable> compilation;
+    Path accountingPath;
+    String stylesheetVersion;
+    try {
+      stylesheetVersion = this.stylesheetModules.getVersion(operation.xsltPath);
+      // The cache only notices changes to the stylesheet's own file, so recompile if one of its
+      // modules has changed since it was last built, otherwise outputs would be built with a stale
+      // stylesheet but recorded as up to date.
+      String previousVersion =
+          this.builtStylesheetVersions.put(operation.xsltPath, stylesheetVersion);
+      if (previousVersion != null && !previousVersion.equals(stylesheetVersion))
+        this.compiledXsltCache.synchronous().invalidate(operation.xsltPath);
+
+      CachedXSLT cachedXslt =
+          FairScheduler.callWithContext(
+                  operation.priority,
+                  operation.xsltPath,
+                  () -> this.compiledXsltCache.get(operation.xsltPath))
+              .get();
+      compilation = cachedXslt.getXSLTCompilation();
+      accountingPath = getAccountingPath(operation.xsltPath, cachedXslt);
+      if (compilation.isLeft())
+        return Either.left(Tuple.of(compilation.getLeft(), EXIT_STATUS_USER_ERROR));
+    } catch (IOException | SaxonApiException e) {
+      return Either.left(
+          Tuple.of(
+              String.format(
+                  "Unable to read modules of stylesheet \"%s\" - %s",
+                  operation.xsltPath, e.getMessage()),
+              EXIT_STATUS_USER_ERROR));
+    } catch (InterruptedException | ExecutionException e) {
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (cause instanceof XSLTNailException) throw (XSLTNailException) cause;
+      throw new InternalXSLTNailException("Failed to compile stylesheet: " + e, cause);
+    }
+
+    // Each input's evaluation has its own cancellation, as only one evaluation can be stopped per
+    // cancellation.
+    java.util.Set<Cancellation> evaluating = ConcurrentHashMap.newKeySet();
+    cancellation.onCancel(
+        () ->
+            evaluating.forEach(
+                item -> {
+                  cancellation.getReason().forEach(item::cancel);
+                  scheduleGracePeriodEnd(item);
+                }));
+    DirectoryBuild.ItemTransformer transformer =
+        (itemOperation, itemOut) -> {
+          Cancellation item = new Cancellation();
+          evaluating.add(item);
+          try {
+            cancellation.getReason().forEach(item::cancel);
+            return this.accounting.measure(
+                accountingPath,
+                StylesheetAccounting.Phase.EVALUATE,
+                () ->
+                    executeTransform(
+                        compilation.get(),
+                        itemOperation,
+                        InputStream.nullInputStream(),
+                        itemOut,
+                        this.resultDocumentWriteExecutor,
+                        this.sharedDocuments,
+                        this.collectionParsePool,
+                        item));
+          } finally {
+            evaluating.remove(item);
+          }
+        };
+
+    try {
+      return new DirectoryBuild(
+              operation,
+              stylesheetVersion,
+              transformer,
+              this.xsltEvaluateExecutor.forContext(operation.priority, operation.xsltPath))
+          .run(new BufferedOutputStream(out));
+    } catch (Cancellation.CancelledException e) {
+      return Either.left(getCancelledResult(cancellation, Option.none()));
+    }
+  }
+
+  /**
+   * Get the path a stylesheet's costs are accounted under. Compilations are accounted under the
+   * real path of the file compiled, so evaluations are too where it's known.
+   */
+  private static Path getAccountingPath(Path xsltPath, CachedXSLT cachedXslt) {
+    return cachedXslt instanceof FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT
+        ? ((FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT) cachedXslt).getRealPath()
+        : xsltPath.toAbsolutePath().normalize();
+  }
+
+  private void scheduleGracePeriodEnd(Cancellation cancellation) {
+    try {
+      this.cancellationExecutor.schedule(
+          () -> endGracePeriod(cancellation),
+          CANCELLATION_GRACE_PERIOD.toNanos(),
+          TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.log(Level.FINE, "Not checking on cancelled transform after shutdown", e);
+    }
+  }
+
+  /**
+   * Deal with an evaluation which hasn't noticed its cancellation. It's stopped if this nail is
+   * configured to, and the stopped thread is replaced, as state it was using could be corrupt.
+   */
+  private void endGracePeriod(Cancellation cancellation) {
+    if (this.stopCancelledEvaluations) {
+      cancellation
+          .forceStop()
+          .forEach(
+              thread -> {
+                LOG.log(
+                    Level.WARNING, "Stopped cancelled evaluation on thread " + thread.getName());
+                this.xsltEvaluateExecutor.replaceWorker(thread);
+              });
+    } else if (cancellation.isEvaluating()) {
+      LOG.log(
+          Level.WARNING,
+          "A cancelled evaluation is still running "
+              + CANCELLATION_GRACE_PERIOD.toSeconds()
+              + "s after it was cancelled; its thread is unavailable until it finishes");
+    }
+  }
+
+  private static Tuple2<String, Integer> getCancelledResult(
+      Cancellation cancellation, Option<Duration> timeout) {
+    Cancellation.Reason reason = cancellation.getReason().getOrElse(Cancellation.Reason.TIMEOUT);
+    String message = new Cancellation.CancelledException(reason).getMessage();
+    if (reason == Cancellation.Reason.TIMEOUT && timeout.isDefined())
+      message += String.format(" after %s seconds", formatSeconds(timeout.get()));
+    return Tuple.of(message, EXIT_STATUS_CANCELLED);
+  }
+
+  private static String formatSeconds(Duration duration) {
+    return java.math.BigDecimal.valueOf(duration.toNanos(), 9).stripTrailingZeros().toPlainString();
+  }
+
+  /** Write a JSON report of the state of this nail's executors and cache. */
+  public Either<Tuple2<String, Integer>, Void> writeStatus(@Nonnull OutputStream out) {
+    java.util.Map<String, Object> status = new java.util.LinkedHashMap<>();
+    status.put("compile", getSchedulerStatus(this.xsltCompileExecutor));
+    status.put("evaluate", getSchedulerStatus(this.xsltEvaluateExecutor));
+    status.put("cached-stylesheets", this.compiledXsltCache.synchronous().estimatedSize());
+    status.put("shared-documents", this.sharedDocuments.size());
+    status.put("cached-entities", this.entityResolver.size());
+    status.put("coalesced-transforms", this.transforms.getCoalescedCount());
+    status.put("idle", this.idleMonitor.exists(IdleMonitor::isIdle));
+    status.put("memory", getMemoryStatus());
+    Logging.getDroppedLogRecords().forEach(count -> status.put("dropped-log-records", count));
+    try {
+      OutputStream bufferedOut = new BufferedOutputStream(out);
+      Json.write(bufferedOut, status);
+      bufferedOut.flush();
+      return Either.right(null);
+    } catch (SaxonApiException | IOException e) {
+      throw new InternalXSLTNailException("Failed to write status: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Write a JSON report of the CPU time used and bytes allocated compiling and evaluating each
+   * stylesheet, since this nail was created.
+   */
+  public Either<Tuple2<String, Integer>, Void> writeAccounting(@Nonnull OutputStream out) {
+    try {
+      OutputStream bufferedOut = new BufferedOutputStream(out);
+      Json.write(bufferedOut, this.accounting.getReport());
+      bufferedOut.flush();
+      return Either.right(null);
+    } catch (SaxonApiException | IOException e) {
+      throw new InternalXSLTNailException("Failed to write accounting: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Hand over to a new server which is taking over our address.
+   *
+   * <p>The stylesheets we have compiled are written to {@code out}, hottest first, one per line and
+   * followed by an empty line, so that the new server can compile them before it accepts requests.
+   * The new server then replaces our socket and confirms by writing {@value HANDOVER_TAKEN_OVER} to
+   * {@code in}, after which we shut down once the requests we're handling have finished. If the new
+   * server gives up, we carry on serving requests.
+   */
+  public Either<Tuple2<String, Integer>, Void> handover(
+      @Nonnull InputStream in,
+      @Nonnull OutputStream out,
+      @Nonnull ShutdownManager shutdownManager) {
+    Objects.requireNonNull(shutdownManager);
+    String reply;
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      for (Path stylesheet : getCachedStylesheets()) writer.write(stylesheet + "\n");
+      writer.write("\n");
+      writer.flush();
+      reply = new String(in.readAllBytes(), StandardCharsets.UTF_8).strip();
+    } catch (IOException e) {
+      reply = "";
+    }
+    if (!HANDOVER_TAKEN_OVER.equals(reply))
+      return Either.left(
+          Tuple.of("Handover was abandoned by the new server", EXIT_STATUS_USER_ERROR));
+
+    LOG.log(Level.INFO, "Handed over to a new server, stopping once active requests finish");
+    Thread drain = new Thread(() -> drainAndShutdown(shutdownManager), "xslt-nail-handover-drain");
+    drain.setDaemon(true);
+    drain.start();
+    return Either.right(null);
+  }
+
+  // The server's shutdown interrupts the requests it's handling, so we wait for them to finish
+  private void drainAndShutdown(ShutdownManager shutdownManager) {
+    long settledSince = System.nanoTime();
+    try {
+      while (System.nanoTime() - settledSince < HANDOVER_DRAIN_SETTLE.toNanos()) {
+        Thread.sleep(HANDOVER_DRAIN_POLL_INTERVAL.toMillis());
+        if (this.activeRequests.get() > 0) settledSince = System.nanoTime();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    shutdownManager.shutdown();
+  }
+
+  /**
+   * Report the JVM's memory use. GC time is the total time spent in collections, which are pauses
+   * for the default collector's young and full collections.
+   */
+  private static java.util.Map<String, Object> getMemoryStatus() {
+    java.util.Map<String, Object> memory = new java.util.LinkedHashMap<>();
+    memory.put(
+        "heap-used-bytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    long collections = 0;
+    long collectionMillis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections += Math.max(0, gc.getCollectionCount());
+      collectionMillis += Math.max(0, gc.getCollectionTime());
+    }
+    memory.put("gc-collections", collections);
+    memory.put("gc-time-ms", collectionMillis);
+    getResidentSetSize().forEach(rss -> memory.put("rss-bytes", rss));
+    return memory;
+  }
+
+  /** Get the process's resident set size, on platforms which report it in /proc. */
+  private static Option<Long> getResidentSetSize() {
+    try (Stream<String> lines = Files.lines(Path.of("/proc/self/status"))) {
+      return Option.ofOptional(
+          lines
+              .filter(line -> line.startsWith("VmRSS:"))
+              .findFirst()
+              .map(line -> Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024));
+    } catch (IOException | UncheckedIOException | NumberFormatException e) {
+      return Option.none();
+    }
+  }
+
+  private static java.util.Map<String, Object> getSchedulerStatus(FairScheduler scheduler) {
+    java.util.Map<String, Object> status = new java.util.LinkedHashMap<>();
+    status.put("threads", scheduler.getPoolSize());
+    status.put("live-threads", scheduler.getLiveThreadCount());
+    status.put("active", scheduler.getActiveCount());
+    status.put(
+        "queued",
+        scheduler.getQueueDepths().mapKeys(Priority::getName).toLinkedMap(t -> t).toJavaMap());
+    return status;
+  }
+
   private static Either<String, Void> executeTransform(
       XsltExecutable executable,
       XSLTTransformOperation operation,
       InputStream in,
-      OutputStream out) {
+      OutputStream out,
+      ResultDocumentHandler.WriterExecutor resultDocumentWriteExecutor,
+      SharedDocuments sharedDocuments,
+      Executor collectionParseExecutor,
+      Cancellation cancellation) {
+    Either<String, PreparedEvaluation> prepared =
+        prepareEvaluation(
+            "transform",
+            executable,
+            operation.parameters,
+            operation.documentParameters,
+            operation.shareDocuments,
+            resultDocumentWriteExecutor,
+            sharedDocuments,
+            collectionParseExecutor,
+            cancellation);
+    if (prepared.isLeft()) return Either.left(prepared.getLeft());
+    Xslt30Transformer tx = prepared.get().transformer;
+    Either<String, Option<XdmNode>> globalContext =
+        loadGlobalContext(executable.getProcessor(), operation.globalContext, sharedDocuments);
+    if (globalContext.isLeft()) return Either.left(globalContext.getLeft());
+
+    return getInvocation(
+            executable.getProcessor(), operation, cancellation.wrap(in), globalContext.get())
+        .flatMap(
+            invocation ->
+                prepared
+                    .get()
+                    .run(
+                        () -> {
+                          if (operation.initialMode.isDefined())
+                            setInitialMode(tx, operation.initialMode.get());
+                          Compression.CompressedOutputStream compressedOut =
+                              operation.outputCompression.compress(
+                                  new BufferedOutputStream(cancellation.wrap(out)));
+                          cancellation.runInterruptibly(
+                              () -> {
+                                invocation.invoke(tx, tx.newSerializer(compressedOut));
+                                return null;
+                              });
+                          compressedOut.finish();
+                        }))
+        .flatMap(
+            manifest ->
+                operation.resultDocumentManifest.fold(
+                    () -> Either.right(null), path -> writeResultDocumentManifest(manifest, path)));
+  }
+
+  private static Either<String, Void> executeCall(
+      XsltExecutable executable,
+      XSLTCallOperation operation,
+      OutputStream out,
+      ResultDocumentHandler.WriterExecutor resultDocumentWriteExecutor,
+      SharedDocuments sharedDocuments,
+      Executor collectionParseExecutor,
+      Cancellation cancellation) {
+    Either<String, Map<QName, XdmValue>> templateParameters =
+        operation.target == XSLTCallOperation.Target.TEMPLATE
+            ? operation
+                .getTemplateParameters()
+                .toEither()
+                .bimap(Throwable::getMessage, XSLTNail::buildStylesheetParameters)
+            : Either.right(io.vavr.collection.HashMap.empty());
+    if (templateParameters.isLeft()) return Either.left(templateParameters.getLeft());
+    Either<String, PreparedEvaluation> prepared =
+        prepareEvaluation(
+            "call",
+            executable,
+            operation.parameters,
+            operation.documentParameters,
+            operation.shareDocuments,
+            resultDocumentWriteExecutor,
+            sharedDocuments,
+            collectionParseExecutor,
+            cancellation);
+    if (prepared.isLeft()) return Either.left(prepared.getLeft());
+    Xslt30Transformer tx = prepared.get().transformer;
+
+    return prepared
+        .get()
+        .run(
+            () -> {
+              OutputStream bufferedOut = new BufferedOutputStream(cancellation.wrap(out));
+              Serializer serializer = tx.newSerializer(bufferedOut);
+              operation.outputMethod.forEach(
+                  method -> serializer.setOutputProperty(Serializer.Property.METHOD, method));
+              cancellation.runInterruptibly(
+                  () -> {
+                    if (operation.target == XSLTCallOperation.Target.TEMPLATE) {
+                      tx.setInitialTemplateParameters(templateParameters.get().toJavaMap(), false);
+                      tx.callTemplate(operation.name, serializer);
+                    } else {
+                      XdmValue[] arguments =
+                          operation
+                              .arguments
+                              .map(arg -> XdmValue.wrap(new UntypedAtomicValue(arg)))
+                              .toJavaArray(XdmValue[]::new);
+                      tx.callFunction(operation.name, arguments, serializer);
+                    }
+                    return null;
+                  });
+              bufferedOut.flush();
+            })
+        .map(manifest -> null);
+  }
+
+  /**
+   * Create a transformer to evaluate a stylesheet for a request, reading documents through the
+   * shared documents unless the request opts out, writing result documents with the writer pool,
+   * and with the request's stylesheet parameters set.
+   */
+  private static Either<String, PreparedEvaluation> prepareEvaluation(
+      String kind,
+      XsltExecutable executable,
+      Multimap<QName, String> parameters,
+      Multimap<QName, Path> documentParameters,
+      boolean shareDocuments,
+      ResultDocumentHandler.WriterExecutor resultDocumentWriteExecutor,
+      SharedDocuments sharedDocuments,
+      Executor collectionParseExecutor,
+      Cancellation cancellation) {
+    cancellation.check();
+    Processor processor = executable.getProcessor();
+    Either<String, Map<QName, XdmValue>> documentParameterValues =
+        loadDocumentParameters(processor, documentParameters, sharedDocuments);
+    if (documentParameterValues.isLeft()) return Either.left(documentParameterValues.getLeft());
+
     Xslt30Transformer tx = executable.load30();
     MemoryLogger logger = SaxonErrors.assignThreadSafeErrorReporter(tx::setErrorReporter);
+    // Without shared documents, doc() gives each evaluation its own trees, as Saxon normally does
+    if (shareDocuments) tx.setURIResolver(sharedDocuments.newResolver(processor));
+    tx.getUnderlyingController()
+        .setCollectionFinder(
+            newCollectionFinder(processor, sharedDocuments, collectionParseExecutor));
+    ResultDocumentHandler resultDocuments =
+        new ResultDocumentHandler(processor, resultDocumentWriteExecutor, cancellation);
+    tx.setResultDocumentHandler(resultDocuments);
+    try {
+      tx.setStylesheetParameters(
+          buildStylesheetParameters(parameters).merge(documentParameterValues.get()).toJavaMap());
+    } catch (SaxonApiException e) {
+      String messages = logger.getLoggedMessages();
+      return Either.left(
+          String.format(
+              "Failed to execute %s: %s", kind, messages.isEmpty() ? e.getMessage() : messages));
+    }
+    return Either.right(new PreparedEvaluation(kind, tx, logger, resultDocuments));
+  }
 
-    return getSource(operation, in)
-        .flatMap(
-            source -> {
-              try {
-                tx.setStylesheetParameters(
-                    buildStylesheetParameters(operation.parameters).toJavaMap());
-                tx.transform(source, tx.newSerializer(new BufferedOutputStream(out)));
-                return Either.right(null);
-              } catch (SaxonApiException e) {
-                return Either.left("Failed to execute transform: " + logger.getLoggedMessages());
-              }
-            });
+  /** A transformer set up for a request, and the places it reports to. */
+  private static final class PreparedEvaluation {
+    // The kind of evaluation, e.g. "transform", used in error messages
+    final String kind;
+    final Xslt30Transformer transformer;
+    final MemoryLogger logger;
+    final ResultDocumentHandler resultDocuments;
+
+    PreparedEvaluation(
+        String kind,
+        Xslt30Transformer transformer,
+        MemoryLogger logger,
+        ResultDocumentHandler resultDocuments) {
+      this.kind = kind;
+      this.transformer = transformer;
+      this.logger = logger;
+      this.resultDocuments = resultDocuments;
+    }
+
+    /**
+     * Evaluate the stylesheet, then wait for its result documents to be written, whether or not the
+     * evaluation succeeds, so none are still being written after we've responded.
+     */
+    Either<String, ResultDocumentHandler.Manifest> run(Body body) {
+      try {
+        body.run();
+      } catch (SaxonApiException e) {
+        resultDocuments.awaitWrites();
+        // Errors such as an unknown initial mode or function aren't reported to the error reporter
+        String messages = logger.getLoggedMessages();
+        return Either.left(
+            String.format(
+                "Failed to execute %s: %s", kind, messages.isEmpty() ? e.getMessage() : messages));
+      } catch (IOException e) {
+        resultDocuments.awaitWrites();
+        return Either.left(String.format("Failed to write %s result: %s", kind, e.getMessage()));
+      } catch (Cancellation.CancelledException e) {
+        resultDocuments.awaitWrites();
+        throw e;
+      }
+      return resultDocuments.awaitWrites();
+    }
+
+    @FunctionalInterface
+    interface Body {
+      void run() throws SaxonApiException, IOException;
+    }
+  }
+
+  private static CollectionFinder newCollectionFinder(
+      Processor processor, SharedDocuments sharedDocuments, Executor collectionParseExecutor) {
+    return new ParallelCollectionFinder(
+        processor,
+        sharedDocuments,
+        collectionParseExecutor,
+        Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /** Starts a transform of its input. */
+  private interface Invocation {
+    void invoke(Xslt30Transformer tx, Destination destination) throws SaxonApiException;
+  }
+
+  /**
+   * Get the invocation which starts a transform: by calling its initial template, or by applying
+   * templates to its input, which is the global context item unless another is given.
+   */
+  private static Either<String, Invocation> getInvocation(
+      Processor processor,
+      XSLTTransformOperation operation,
+      InputStream stdin,
+      Option<XdmNode> globalContext) {
+    if (operation.initialTemplate.isDefined())
+      return Either.right(getTemplateInvocation(operation.initialTemplate.get(), globalContext));
+    return getSource(operation, stdin)
+        .flatMap(source -> getInputInvocation(processor, operation, source, globalContext));
+  }
+
+  private static Either<String, Invocation> getInputInvocation(
+      Processor processor,
+      XSLTTransformOperation operation,
+      Source source,
+      Option<XdmNode> globalContext) {
+    if (operation.inputFormat == InputFormat.XML) {
+      if (globalContext.isEmpty())
+        return Either.right((tx, destination) -> tx.transform(source, destination));
+      return Either.right(
+          (tx, destination) -> {
+            tx.setGlobalContextItem(globalContext.get());
+            tx.applyTemplates(source, destination);
+          });
+    }
+
+    XdmValue json;
+    try (Reader reader = openReader((StreamSource) source)) {
+      json = InputFormat.parseJson(processor, reader);
+    } catch (IOException e) {
+      return Either.left("Unable to read input - " + e.getMessage());
+    } catch (XPathException e) {
+      return Either.left("Unable to parse JSON input: " + e.getMessage());
+    }
+    return Either.right(
+        (tx, destination) -> {
+          if (globalContext.isDefined()) tx.setGlobalContextItem(globalContext.get());
+          else if (json.size() == 1) tx.setGlobalContextItem(json.itemAt(0));
+          tx.applyTemplates(json, destination);
+        });
+  }
+
+  /** Get the invocation which calls a named template, which has no input. */
+  private static Invocation getTemplateInvocation(QName template, Option<XdmNode> globalContext) {
+    return (tx, destination) -> {
+      if (globalContext.isDefined()) tx.setGlobalContextItem(globalContext.get());
+      tx.callTemplate(template, destination);
+    };
+  }
+
+  private static void setInitialMode(Xslt30Transformer tx, QName mode) throws SaxonApiException {
+    try {
+      tx.setInitialMode(mode);
+    } catch (IllegalArgumentException e) {
+      throw new SaxonApiException(
+          String.format("Stylesheet has no mode named %s", mode.getClarkName()), e);
+    }
+  }
+
+  private static Reader openReader(StreamSource source) throws IOException {
+    if (source.getReader() != null) return source.getReader();
+    InputStream in =
+        source.getInputStream() != null
+            ? source.getInputStream()
+            : new java.net.URL(source.getSystemId()).openStream();
+    return new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder());
+  }
+
+  private static Either<String, Void> writeResultDocumentManifest(
+      ResultDocumentHandler.Manifest manifest, Path path) {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+      manifest.writeJSON(out);
+      return Either.right(null);
+    } catch (IOException | SaxonApiException e) {
+      return Either.left(
+          String.format(
+              "Unable to write --result-document-manifest \"%s\" - %s", path, e.getMessage()));
+    }
   }
 
   private static Map<QName, XdmValue> buildStylesheetParameters(Multimap<QName, String> values) {
@@ -184,6 +1472,43 @@ public class XSLTNail implements AutoCloseable {
         .map((k, v) -> Tuple.of(k, XdmAtomicValue.makeSequence(v.map(UntypedAtomicValue::new))));
   }
 
+  /**
+   * Get the documents bound to parameters by {@code --document-parameter}. They come from the
+   * shared documents, so they're only parsed again when their file changes.
+   */
+  private static Either<String, Map<QName, XdmValue>> loadDocumentParameters(
+      Processor processor, Multimap<QName, Path> documents, SharedDocuments sharedDocuments) {
+    Map<QName, XdmValue> values = io.vavr.collection.HashMap.empty();
+    for (Tuple2<QName, ? extends Iterable<Path>> parameter : documents.asMap()) {
+      java.util.List<XdmNode> nodes = new java.util.ArrayList<>();
+      for (Path path : parameter._2) {
+        try {
+          nodes.add(sharedDocuments.get(processor, path));
+        } catch (IOException | SaxonApiException e) {
+          return Either.left(
+              String.format(
+                  "Unable to read --document-parameter %s \"%s\" - %s",
+                  parameter._1.getClarkName(), path, e.getMessage()));
+        }
+      }
+      values = values.put(parameter._1, new XdmValue(nodes));
+    }
+    return Either.right(values);
+  }
+
+  /** Get the document from {@code --global-context}, from the shared documents. */
+  private static Either<String, Option<XdmNode>> loadGlobalContext(
+      Processor processor, Option<Path> globalContext, SharedDocuments sharedDocuments) {
+    if (globalContext.isEmpty()) return Either.right(Option.none());
+    try {
+      return Either.right(Option.some(sharedDocuments.get(processor, globalContext.get())));
+    } catch (IOException | SaxonApiException e) {
+      return Either.left(
+          String.format(
+              "Unable to read --global-context \"%s\" - %s", globalContext.get(), e.getMessage()));
+    }
+  }
+
   private static Either<String, Source> getSource(
       @Nonnull XSLTTransformOperation operation, @Nonnull InputStream stdin) {
     if (!operation.xmlPath.isDefined() && operation.inputIdentifier.isDefined()) {
@@ -196,23 +1521,49 @@ public class XSLTNail implements AutoCloseable {
     Path stdinPath = fs.getPath("-");
     Path xml = operation.xmlPath.getOrElse(stdinPath);
     if (stdinPath.equals(xml)) {
-      return Either.right(
-          new StreamSource(stdin, operation.inputIdentifier.getOrElse((String) null)));
+      try {
+        BufferedInputStream data = Compression.buffer(stdin);
+        return Either.right(
+            new StreamSource(
+                Compression.detect(data, operation.inputCompression).decompress(data),
+                operation.inputIdentifier.getOrElse((String) null)));
+      } catch (IOException e) {
+        return Either.left(String.format("Unable to read stdin - %s", e.getMessage()));
+      }
     }
     // Use the contents of the file on disk; the system ID is the file:// URI of the path unless
     // overridden by
     // specifying a system identifier.
+    String systemId = operation.inputIdentifier.getOrElse(() -> xml.toUri().toString());
+    BufferedInputStream data = null;
     try {
-      return Either.right(
-          new StreamSource(
-              Files.newBufferedReader(xml),
-              operation.inputIdentifier.getOrElse(() -> xml.toUri().toString())));
+      data = Compression.buffer(Files.newInputStream(xml));
+      Compression compression = Compression.detect(data, operation.inputCompression);
+      if (compression == Compression.NONE) {
+        // Uncompressed files are decoded as UTF-8, as Files.newBufferedReader() does
+        return Either.right(
+            new StreamSource(
+                new BufferedReader(
+                    new InputStreamReader(data, StandardCharsets.UTF_8.newDecoder())),
+                systemId));
+      }
+      return Either.right(new StreamSource(compression.decompress(data), systemId));
     } catch (IOException e) {
+      closeQuietly(data);
       return Either.left(
           String.format("Unable to open <xml-file> \"%s\" - %s", xml.toString(), e.getMessage()));
     }
   }
 
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to close " + closeable, e);
+    }
+  }
+
   /**
    * Start a graceful shutdown of this XSLTNail's background threads and wait for the shutdown to
    * complete.
@@ -223,10 +1574,17 @@ public class XSLTNail implements AutoCloseable {
   @Override
   public void close() {
     this.closeCalled = true;
+    this.idleMonitor.forEach(IdleMonitor::close);
+    writeHotList();
     // We need to manually shutdown our nail's executors, otherwise their
     // threads will hang around.
     Executors.awaitTermination(
-        TimeUnit.SECONDS.toMillis(60), this.xsltCompileExecutor, this.xsltEvaluateExecutor);
+        TimeUnit.SECONDS.toMillis(60),
+        this.xsltCompileExecutor,
+        this.xsltEvaluateExecutor,
+        this.resultDocumentWriteExecutor,
+        this.collectionParsePool,
+        this.cancellationExecutor);
   }
 
   @Override
@@ -237,6 +1595,10 @@ public class XSLTNail implements AutoCloseable {
       LOG.warning("An XSLTNail instance was finalized without close() being called");
       this.xsltCompileExecutor.shutdownNow();
       this.xsltEvaluateExecutor.shutdownNow();
+      this.resultDocumentWriteExecutor.shutdownNow();
+      this.collectionParsePool.shutdownNow();
+      this.cancellationExecutor.shutdownNow();
+      this.idleMonitor.forEach(IdleMonitor::close);
     }
   }
 }
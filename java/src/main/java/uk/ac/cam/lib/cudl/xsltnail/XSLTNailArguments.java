@@ -6,6 +6,7 @@ import static uk.ac.cam.lib.cudl.xsltnail.XSLTNailArguments.Parsers.*;
 import io.vavr.API;
 import io.vavr.Tuple;
 import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
 import io.vavr.collection.List;
 import io.vavr.collection.Map;
 import io.vavr.collection.Set;
@@ -172,23 +173,41 @@ class XSLTNailArguments {
   }
 
   private static final Map<String, Object> DEFAULT_RESULT =
-      Map(
-          "--",
-          false,
-          "--help",
-          false,
-          "--version",
-          false,
-          "--system-identifier",
-          null,
-          "--parameter",
-          List.empty(),
-          "transform",
-          false,
-          "<xslt-file>",
-          null,
-          "<xml-file>",
-          null);
+      HashMap.<String, Object>empty()
+          .put("--", false)
+          .put("--help", false)
+          .put("--version", false)
+          .put("--system-identifier", null)
+          .put("--parameter", List.empty())
+          .put("--document-parameter", List.empty())
+          .put("--result-document-manifest", null)
+          .put("--input-compression", null)
+          .put("--input-format", null)
+          .put("--initial-mode", null)
+          .put("--initial-template", null)
+          .put("--global-context", null)
+          .put("--output-compression", null)
+          .put("--priority", null)
+          .put("--timeout", null)
+          .put("--no-shared-documents", false)
+          .put("--include", null)
+          .put("--output-pattern", null)
+          .put("--build-manifest", null)
+          .put("--force", false)
+          .put("transform", false)
+          .put("build", false)
+          .put("call", false)
+          .put("--template", false)
+          .put("--output-method", null)
+          .put("<name>", null)
+          .put("<argument>", List.empty())
+          .put("status", false)
+          .put("accounting", false)
+          .put("handover", false)
+          .put("<xslt-file>", null)
+          .put("<xml-file>", null)
+          .put("<input-dir>", null)
+          .put("<output-dir>", null);
 
   private static class XSLTNailArgumentsParser {
     private XSLTNailArgumentsParser() {}
@@ -197,7 +216,8 @@ class XSLTNailArguments {
       return regex("^(?:|(?!--).+)$", key);
     }
 
-    public static final Set<String> MULTI_VALUED_OPTIONS = API.Set("--parameter");
+    public static final Set<String> MULTI_VALUED_OPTIONS =
+        API.Set("--parameter", "--document-parameter", "<argument>");
 
     private static final Parser HELP_OPTION = firstOf(option("--help"), option("-h", "--help"));
     private static final Parser VERSION_OPTION = option("--version");
@@ -206,12 +226,44 @@ class XSLTNailArguments {
     private static final Parser ARG_SEPARATOR = constant("--");
     private static final Parser SYSTEM_ID_OPTION = optionWithValue("--system-identifier");
     private static final Parser PARAMETER_OPTION = optionWithValue("--parameter");
+    private static final Parser DOCUMENT_PARAMETER_OPTION = optionWithValue("--document-parameter");
+    private static final Parser RESULT_DOCUMENT_MANIFEST_OPTION =
+        optionWithValue("--result-document-manifest");
+    private static final Parser INPUT_COMPRESSION_OPTION = optionWithValue("--input-compression");
+    private static final Parser INPUT_FORMAT_OPTION = optionWithValue("--input-format");
+    private static final Parser INITIAL_MODE_OPTION = optionWithValue("--initial-mode");
+    private static final Parser INITIAL_TEMPLATE_OPTION = optionWithValue("--initial-template");
+    private static final Parser GLOBAL_CONTEXT_OPTION = optionWithValue("--global-context");
+    private static final Parser OUTPUT_COMPRESSION_OPTION = optionWithValue("--output-compression");
+    private static final Parser PRIORITY_OPTION = optionWithValue("--priority");
+    private static final Parser TIMEOUT_OPTION = optionWithValue("--timeout");
+    private static final Parser NO_SHARED_DOCUMENTS_OPTION = option("--no-shared-documents");
     private static final Parser OPTIONS =
-        times(firstOf(PARAMETER_OPTION, SYSTEM_ID_OPTION, HELP_OPTION), 0);
+        times(
+            firstOf(
+                PARAMETER_OPTION,
+                DOCUMENT_PARAMETER_OPTION,
+                SYSTEM_ID_OPTION,
+                RESULT_DOCUMENT_MANIFEST_OPTION,
+                INPUT_COMPRESSION_OPTION,
+                INPUT_FORMAT_OPTION,
+                INITIAL_MODE_OPTION,
+                INITIAL_TEMPLATE_OPTION,
+                GLOBAL_CONTEXT_OPTION,
+                OUTPUT_COMPRESSION_OPTION,
+                PRIORITY_OPTION,
+                TIMEOUT_OPTION,
+                NO_SHARED_DOCUMENTS_OPTION,
+                HELP_OPTION),
+            0);
     private static final Parser XSLT_FILE = value("<xslt-file>");
     private static final Parser XML_FILE = value("<xml-file>");
     private static final Parser NOT_OPTLIKE_XSLT_FILE = unambiguousValue("<xslt-file>");
     private static final Parser NOT_OPTLIKE_XML_FILE = unambiguousValue("<xml-file>");
+    private static final Parser INPUT_DIR = value("<input-dir>");
+    private static final Parser OUTPUT_DIR = value("<output-dir>");
+    private static final Parser NOT_OPTLIKE_INPUT_DIR = unambiguousValue("<input-dir>");
+    private static final Parser NOT_OPTLIKE_OUTPUT_DIR = unambiguousValue("<output-dir>");
 
     private static final Parser TRANSFORM =
         firstOf(
@@ -224,13 +276,81 @@ class XSLTNailArguments {
             // Don't allow options after the -- argument separator
             allOf(SUBCOMMAND_TRANSFORM, OPTIONS, ARG_SEPARATOR, XSLT_FILE, opt(XML_FILE)));
 
+    private static final Parser SUBCOMMAND_BUILD = constant("build");
+    private static final Parser INCLUDE_OPTION = optionWithValue("--include");
+    private static final Parser OUTPUT_PATTERN_OPTION = optionWithValue("--output-pattern");
+    private static final Parser BUILD_MANIFEST_OPTION = optionWithValue("--build-manifest");
+    private static final Parser FORCE_OPTION = option("--force");
+    private static final Parser BUILD_OPTIONS =
+        times(
+            firstOf(
+                PARAMETER_OPTION,
+                INCLUDE_OPTION,
+                OUTPUT_PATTERN_OPTION,
+                BUILD_MANIFEST_OPTION,
+                FORCE_OPTION,
+                PRIORITY_OPTION,
+                HELP_OPTION),
+            0);
+
+    private static final Parser BUILD =
+        firstOf(
+            allOf(
+                SUBCOMMAND_BUILD,
+                BUILD_OPTIONS,
+                NOT_OPTLIKE_XSLT_FILE,
+                BUILD_OPTIONS,
+                NOT_OPTLIKE_INPUT_DIR,
+                BUILD_OPTIONS,
+                NOT_OPTLIKE_OUTPUT_DIR,
+                BUILD_OPTIONS),
+            // Don't allow options after the -- argument separator
+            allOf(
+                SUBCOMMAND_BUILD, BUILD_OPTIONS, ARG_SEPARATOR, XSLT_FILE, INPUT_DIR, OUTPUT_DIR));
+
+    private static final Parser SUBCOMMAND_CALL = constant("call");
+    private static final Parser TEMPLATE_OPTION = option("--template");
+    private static final Parser OUTPUT_METHOD_OPTION = optionWithValue("--output-method");
+    private static final Parser CALL_OPTION =
+        firstOf(
+            PARAMETER_OPTION,
+            DOCUMENT_PARAMETER_OPTION,
+            TEMPLATE_OPTION,
+            OUTPUT_METHOD_OPTION,
+            PRIORITY_OPTION,
+            TIMEOUT_OPTION,
+            NO_SHARED_DOCUMENTS_OPTION,
+            HELP_OPTION);
+    private static final Parser CALL_OPTIONS = times(CALL_OPTION, 0);
+    private static final Parser NAME = value("<name>");
+    private static final Parser ARGUMENT = value("<argument>");
+    private static final Parser NOT_OPTLIKE_NAME = unambiguousValue("<name>");
+    private static final Parser NOT_OPTLIKE_ARGUMENT = unambiguousValue("<argument>");
+
+    private static final Parser CALL =
+        firstOf(
+            allOf(
+                SUBCOMMAND_CALL,
+                CALL_OPTIONS,
+                NOT_OPTLIKE_XSLT_FILE,
+                CALL_OPTIONS,
+                NOT_OPTLIKE_NAME,
+                times(firstOf(CALL_OPTION, NOT_OPTLIKE_ARGUMENT), 0)),
+            // Don't allow options after the -- argument separator
+            allOf(
+                SUBCOMMAND_CALL, CALL_OPTIONS, ARG_SEPARATOR, XSLT_FILE, NAME, times(ARGUMENT, 0)));
+
     // Help matches when --help/-h exists anywhere in the args. However it
     // only matches if the args don't match a real usage pattern.
     private static final Parser HELP =
         allOf(times(allOf(not(HELP_OPTION, "not --help"), any()), 0), HELP_OPTION, times(any(), 0));
 
+    private static final Parser STATUS = constant("status");
+    private static final Parser ACCOUNTING = constant("accounting");
+    private static final Parser HANDOVER = constant("handover");
     private static final Parser VERSION = VERSION_OPTION;
-    private static final Parser ROOT = firstOf(TRANSFORM, HELP, VERSION);
+    private static final Parser ROOT =
+        firstOf(TRANSFORM, BUILD, CALL, STATUS, ACCOUNTING, HANDOVER, HELP, VERSION);
   }
 
   public static Either<Option<String>, Map<String, Object>> parse(String... args) {
@@ -14,18 +14,24 @@ import io.vavr.PartialFunction;
 import io.vavr.Predicates;
 import io.vavr.Tuple;
 import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
 import io.vavr.collection.Map;
 import io.vavr.collection.Stream;
 import io.vavr.control.Option;
 import io.vavr.control.Try;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.xml.parsers.SAXParserFactory;
 import org.docopt.Docopt;
 
 public final class XSLTNailgunServer {
@@ -94,17 +100,56 @@ public final class XSLTNailgunServer {
         environment
             .get(Constants.LOG_DESTINATION_FILE_ENVAR)
             .filter(val -> !val.isEmpty())
-            .map(Path::of));
+            .map(Path::of),
+        environment
+            .get(Constants.LOG_ASYNC_ENVAR)
+            .filter(val -> !val.isEmpty())
+            .map(
+                policy ->
+                    AsyncLogHandler.OverflowPolicy.fromName(policy)
+                        .getOrElseThrow(
+                            () ->
+                                new FatalError(
+                                    format(
+                                        "Invalid %s: must be \"drop\" or \"block\", got: \"%s\"",
+                                        Constants.LOG_ASYNC_ENVAR, policy)))));
 
+    Option<Duration> defaultTimeout = getDefaultTimeout(args);
+    boolean stopCancelled = requireKey(args, "--stop-cancelled").get().equals(true);
+    Option<XSLTNail.IdlePolicy> idlePolicy = getIdlePolicy(args);
+    Option<Path> hotListFile =
+        Option.of(requireKey(args, "--hot-list").get()).flatMap(Values::ifString).map(Path::of);
+    List<XSLTRouter.Backend> backends = getBackends(args);
+    List<Path> packages = getPaths(args, "--package");
+    List<Path> catalogs = getPaths(args, "--catalog");
+    SAXParserFactory parserFactory = getParserFactory(args);
     NGListeningAddress listenAddress = getAddress(args);
-    NGServer server = serverFactory.createServer(listenAddress);
+    Option<Handover> handover =
+        requireKey(args, "--handover").get().equals(true)
+            ? Option.some(beginHandover(listenAddress, backends))
+            : Option.none();
+    // A server taking over an address listens on a temporary socket until it's ready
+    Option<Path> temporarySocket =
+        handover.map(
+            h -> Path.of(listenAddress.getLocalAddress() + "." + ProcessHandle.current().pid()));
+    temporarySocket.forEach(XSLTNailgunServer::deleteStaleSocket);
+    NGServer server =
+        serverFactory.createServer(
+            temporarySocket
+                .map(Path::toString)
+                .map(NGListeningAddress::new)
+                .getOrElse(listenAddress));
     ShutdownManager shutdownManager = DefaultShutdownManager.builder().server(server).build();
 
     server.setAllowNailsByClassName(false);
     removeDefaultAliases(server.getAliasManager());
     server
         .getAliasManager()
-        .addAlias(new Alias("xslt", "Apply an XSLT program to an XML document.", XSLTNail.class));
+        .addAlias(
+            new Alias(
+                "xslt",
+                "Apply an XSLT program to an XML document.",
+                backends.isEmpty() ? XSLTNail.class : XSLTRouter.class));
 
     ifString(requireKey(args, "--require-running-process").get())
         .peek(
@@ -146,17 +191,105 @@ public final class XSLTNailgunServer {
                   shutdownLogger.log(Level.FINEST, "Shutdown hook finished");
                 }));
 
+    AtomicReference<IOException> handoverFailure = new AtomicReference<>();
     try {
+      if (backends.isEmpty()) {
+        XSLTNail nail;
+        try {
+          nail =
+              XSLTNail.newInstance(
+                  new XSLTNail.Options()
+                      .withDefaultTimeout(defaultTimeout)
+                      .withIdlePolicy(idlePolicy)
+                      .withHotListFile(hotListFile)
+                      .withPackages(packages)
+                      .withCatalogs(catalogs)
+                      .withParserFactory(parserFactory)
+                      .withStopCancelledEvaluations(stopCancelled));
+        } catch (IllegalArgumentException e) {
+          throw new FatalError("Invalid --catalog: " + e.getMessage(), e);
+        }
+        XSLTNail.nailInstall(server, nail);
+        handover.forEach(
+            h ->
+                startTakeOver(
+                    h,
+                    nail,
+                    server,
+                    temporarySocket.get(),
+                    Path.of(listenAddress.getLocalAddress()),
+                    handoverFailure));
+      } else XSLTRouter.nailInstall(server, XSLTRouter.newInstance(backends));
       server.run();
+      if (handoverFailure.get() != null)
+        throw new FatalError(
+            "Failed to take over from the running server: " + handoverFailure.get().getMessage(),
+            handoverFailure.get());
     } finally {
       // Support for nailShutdown() was removed from Nailgun server in
       // this PR: https://github.com/facebook/nailgun/pull/131
       // It doesn't seem to have been announced though, example code
       // still uses it. We'll invoke it ourselves for now.
-      XSLTNail.nailShutdown(server);
+      if (backends.isEmpty()) XSLTNail.nailShutdown(server);
+      else XSLTRouter.nailShutdown(server);
+    }
+  }
+
+  private static Handover beginHandover(
+      NGListeningAddress address, List<XSLTRouter.Backend> backends) {
+    if (!backends.isEmpty()) throw new FatalError("--handover cannot be used with --backend");
+    if (address.isInetAddress()
+        || System.getProperty("os.name").toLowerCase().startsWith("windows"))
+      throw new FatalError("--handover requires <address> to be a UNIX domain socket");
+    try {
+      return Handover.begin(address);
+    } catch (IOException e) {
+      throw new FatalError(
+          format("Unable to take over from the server at %s: %s", address, e.getMessage()), e);
     }
   }
 
+  private static void deleteStaleSocket(Path socket) {
+    try {
+      Files.deleteIfExists(socket);
+    } catch (IOException e) {
+      throw new FatalError(
+          format("Unable to remove stale socket %s: %s", socket, e.getMessage()), e);
+    }
+  }
+
+  /**
+   * Take over the running server's address once our server is ready. If we can't, the running
+   * server carries on and we stop.
+   */
+  private static void startTakeOver(
+      Handover handover,
+      XSLTNail nail,
+      NGServer server,
+      Path socket,
+      Path address,
+      AtomicReference<IOException> failure) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                handover.takeOver(nail, server, socket, address);
+              } catch (IOException e) {
+                failure.set(e);
+                handover.abandon();
+                try {
+                  Files.deleteIfExists(socket);
+                } catch (IOException deleteFailed) {
+                  e.addSuppressed(deleteFailed);
+                }
+                server.shutdown();
+              }
+            },
+            "xslt-nail-take-over");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
   static void setupShutdownOnRequiredProcessExit(
       ProcessHandle requiredProcess, ShutdownManager shutdownManager) {
     AutomaticShutdownManager.triggeredByProcessExit(requiredProcess, shutdownManager).start();
@@ -176,6 +309,76 @@ public final class XSLTNailgunServer {
             });
   }
 
+  private static Option<Duration> getDefaultTimeout(Map<String, Object> args) {
+    return Option.of(requireKey(args, "--default-timeout").get())
+        .flatMap(Values::ifString)
+        .map(
+            value ->
+                Values.parseSeconds(value)
+                    .getOrElseThrow(
+                        e -> new FatalError("Invalid --default-timeout: " + e.getMessage(), e)));
+  }
+
+  private static Option<XSLTNail.IdlePolicy> getIdlePolicy(Map<String, Object> args) {
+    Option<Duration> quietPeriod =
+        Option.of(requireKey(args, "--idle-timeout").get())
+            .flatMap(Values::ifString)
+            .map(
+                value ->
+                    Values.parseSeconds(value)
+                        .getOrElseThrow(
+                            e -> new FatalError("Invalid --idle-timeout: " + e.getMessage(), e)));
+    String keep =
+        Option.of(requireKey(args, "--idle-keep-stylesheets").get())
+            .flatMap(Values::ifString)
+            .getOrElse(String.valueOf(XSLTNail.IdlePolicy.DEFAULT_RETAINED_STYLESHEETS));
+    int retainedStylesheets =
+        Try.of(() -> Integer.parseInt(keep))
+            .filter(count -> count >= 0)
+            .getOrElseThrow(
+                e ->
+                    new FatalError(
+                        format(
+                            "Invalid --idle-keep-stylesheets: must be a non-negative integer, got: \"%s\"",
+                            keep),
+                        e));
+    return quietPeriod.map(period -> new XSLTNail.IdlePolicy(period, retainedStylesheets));
+  }
+
+  private static List<XSLTRouter.Backend> getBackends(Map<String, Object> args) {
+    List<String> addresses =
+        Option.of(requireKey(args, "--backend").get())
+            .map(value -> (java.util.List<?>) value)
+            .map(List::ofAll)
+            .getOrElse(List.empty())
+            .map(String.class::cast);
+    return addresses.map(address -> new XSLTRouter.Backend(address, parseAddress(address)));
+  }
+
+  private static List<Path> getPaths(Map<String, Object> args, String option) {
+    return Option.of(requireKey(args, option).get())
+        .map(value -> (java.util.List<?>) value)
+        .map(List::ofAll)
+        .getOrElse(List.empty())
+        .map(String.class::cast)
+        .map(Path::of);
+  }
+
+  private static SAXParserFactory getParserFactory(Map<String, Object> args) {
+    Option<String> name =
+        Option.of(requireKey(args, "--xml-parser").get()).flatMap(Values::ifString);
+    try {
+      return ParserConfiguration.getParserFactory(name);
+    } catch (IllegalArgumentException e) {
+      throw new FatalError("Invalid --xml-parser: " + e.getMessage(), e);
+    }
+  }
+
+  /** Parse a local socket path or host:port network address. */
+  static NGListeningAddress parseAddress(String address) {
+    return AddressType.guessAddressType(address).parseAddress(address);
+  }
+
   private static NGListeningAddress getAddress(Map<String, Object> args) {
     String address = requireKey(args, "<address>").flatMap(Values::castToString).get();
     AddressType type =
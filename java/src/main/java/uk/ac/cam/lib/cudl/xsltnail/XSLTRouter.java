@@ -0,0 +1,330 @@
+package uk.ac.cam.lib.cudl.xsltnail;
+
+import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_INTERNAL_ERROR;
+
+import com.facebook.nailgun.NGClientListener;
+import com.facebook.nailgun.NGContext;
+import com.facebook.nailgun.NGListeningAddress;
+import com.facebook.nailgun.NGServer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import net.sf.saxon.s9api.SaxonApiException;
+
+/**
+ * Forwards {@code xslt} requests to a set of backend xslt-nailgun servers.
+ *
+ * <p>Requests are routed by a consistent hash of their stylesheet path, so each backend compiles
+ * and caches a disjoint subset of the stylesheets in use. Backends are health-checked periodically
+ * and concurrently by running {@code xslt status}. A backend which fails a health check or refuses
+ * a connection is skipped until it passes a health check again, and its stylesheets are shared
+ * between the remaining backends in the meantime.
+ */
+public class XSLTRouter implements AutoCloseable {
+  private static final Logger LOG = Logger.getLogger(XSLTRouter.class.getName());
+
+  private static final Cache<NGServer, XSLTRouter> ROUTERS =
+      Caffeine.newBuilder().weakKeys().build();
+
+  static final Duration HEALTH_CHECK_INTERVAL = Duration.ofSeconds(5);
+  static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(5);
+
+  /** Use a router to handle the requests made to a server. */
+  public static void nailInstall(@Nonnull NGServer server, @Nonnull XSLTRouter router) {
+    Objects.requireNonNull(router, "router cannot be null");
+    Optional.ofNullable(ROUTERS.asMap().put(server, router)).ifPresent(XSLTRouter::close);
+  }
+
+  public static void nailShutdown(@Nonnull NGServer server) {
+    Optional.ofNullable(ROUTERS.asMap().remove(server)).ifPresent(XSLTRouter::close);
+  }
+
+  public static void nailMain(@Nonnull NGContext context) {
+    XSLTRouter router = ROUTERS.getIfPresent(context.getNGServer());
+    if (router == null) {
+      context.err.println("XSLT router is not installed on this server");
+      context.exit(EXIT_STATUS_INTERNAL_ERROR);
+      return;
+    }
+    router.forward(context);
+  }
+
+  /** A server which requests can be forwarded to. */
+  static final class Backend {
+    public final String name;
+    public final NGListeningAddress address;
+    private volatile boolean healthy = true;
+
+    Backend(@Nonnull String name, @Nonnull NGListeningAddress address) {
+      this.name = Objects.requireNonNull(name);
+      this.address = Objects.requireNonNull(address);
+    }
+
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    void setHealthy(boolean healthy, String reason) {
+      if (this.healthy == healthy) return;
+      this.healthy = healthy;
+      if (healthy) LOG.info(String.format("Backend \"%s\" is available", name));
+      else LOG.warning(String.format("Backend \"%s\" is unavailable: %s", name, reason));
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final ConsistentHashRing<Backend> backends;
+  private final ScheduledExecutorService heartbeatExecutor;
+  private final ScheduledExecutorService healthCheckExecutor;
+  // Each backend's health check runs on its own thread, so a slow backend doesn't delay the others
+  private final ExecutorService healthProbeExecutor;
+
+  /**
+   * Create a router, and start health-checking its backends.
+   *
+   * @param backends The names and addresses of the backend servers. Names must be unique, and
+   *     should be the same each time the router starts, as they determine how stylesheets are
+   *     distributed.
+   */
+  public static XSLTRouter newInstance(@Nonnull Iterable<Backend> backends) {
+    XSLTRouter router = new XSLTRouter(backends);
+    router.healthCheckExecutor.scheduleWithFixedDelay(
+        router::checkHealth, 0, HEALTH_CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    return router;
+  }
+
+  XSLTRouter(@Nonnull Iterable<Backend> backends) {
+    List<Backend> backendList = List.ofAll(backends);
+    if (backendList.isEmpty()) throw new IllegalArgumentException("backends cannot be empty");
+    if (backendList.distinctBy(b -> b.name).size() != backendList.size())
+      throw new IllegalArgumentException("backend names must be unique");
+    this.backends = ConsistentHashRing.of(backendList, b -> b.name);
+    this.heartbeatExecutor = newDaemonExecutor("xslt-router-heartbeat");
+    this.healthCheckExecutor = newDaemonExecutor("xslt-router-health-check");
+    this.healthProbeExecutor =
+        java.util.concurrent.Executors.newFixedThreadPool(
+            backendList.size(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "xslt-router-health-probe");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  private static ScheduledExecutorService newDaemonExecutor(String name) {
+    return new ScheduledThreadPoolExecutor(
+        1,
+        runnable -> {
+          Thread thread = new Thread(runnable, name);
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  public List<Backend> getBackends() {
+    return backends.getNodes();
+  }
+
+  /**
+   * Get the backends a request should be sent to, in the order they should be tried. Healthy
+   * backends come first, in order of preference for the request's stylesheet. Unhealthy backends
+   * are only tried if the healthy ones all fail.
+   *
+   * @param workingDirectory The client's working directory, which relative paths in the request are
+   *     resolved against.
+   */
+  public List<Backend> route(@Nonnull String[] args, @Nonnull String workingDirectory) {
+    return backends
+        .getPreferenceList(getRoutingKey(args, workingDirectory))
+        .sortBy(backend -> backend.isHealthy() ? 0 : 1);
+  }
+
+  /**
+   * Get the path of a request's stylesheet, resolved against the client's working directory, so the
+   * same stylesheet is routed the same way whichever directory it's named from.
+   */
+  static String getRoutingKey(String[] args, String workingDirectory) {
+    return XSLTNailArguments.parse(args)
+        .toOption()
+        .flatMap(parsed -> parsed.get("<xslt-file>").flatMap(Values::ifString))
+        // Requests which aren't transforms (e.g. --help) aren't cached, so can go anywhere
+        .map(path -> Path.of(workingDirectory).resolve(path).normalize().toString())
+        .getOrElse("");
+  }
+
+  private static boolean isStatusRequest(String[] args) {
+    return XSLTNailArguments.parse(args)
+        .exists(parsed -> parsed.get("status").exists(Boolean.TRUE::equals));
+  }
+
+  void forward(@Nonnull NGContext context) {
+    String[] args = context.getArgs();
+    if (isStatusRequest(args)) {
+      writeStatus(context.out);
+      return;
+    }
+
+    // Close the backend connection if our client goes away, which cancels its transform
+    AtomicReference<NailgunClient> currentClient = new AtomicReference<>();
+    NGClientListener disconnectListener =
+        reason -> Option.of(currentClient.getAndSet(null)).forEach(XSLTRouter::closeQuietly);
+    context.addClientListener(disconnectListener);
+    try {
+      java.util.Map<String, String> environment = new java.util.LinkedHashMap<>();
+      context
+          .getEnv()
+          .stringPropertyNames()
+          .forEach(k -> environment.put(k, context.getEnv().getProperty(k)));
+
+      for (Backend backend : route(args, context.getWorkingDirectory())) {
+        if (!context.isClientConnected()) return;
+        NailgunClient client = null;
+        try {
+          client = NailgunClient.connect(backend.address);
+          currentClient.set(client);
+          int status =
+              client.run(
+                  context.getCommand(),
+                  args,
+                  environment,
+                  context.getWorkingDirectory(),
+                  context.in,
+                  context.out,
+                  context.err,
+                  this.heartbeatExecutor);
+          backend.setHealthy(true, null);
+          if (status != 0) context.exit(status);
+          return;
+        } catch (IOException e) {
+          if (client != null && client.isCommitted()) {
+            context.err.format(
+                "Backend \"%s\" failed while handling the request: %s%n", backend, e.getMessage());
+            context.exit(EXIT_STATUS_INTERNAL_ERROR);
+            return;
+          }
+          // Nothing has been sent to our client, so the request can be retried elsewhere
+          if (context.isClientConnected()) backend.setHealthy(false, e.getMessage());
+        } finally {
+          currentClient.set(null);
+          if (client != null) closeQuietly(client);
+        }
+      }
+      context.err.println("No backend server is available to handle the request");
+      context.exit(EXIT_STATUS_INTERNAL_ERROR);
+    } finally {
+      context.removeClientListener(disconnectListener);
+    }
+  }
+
+  /** Write a JSON report of the backends and their health. */
+  public void writeStatus(@Nonnull OutputStream out) {
+    java.util.Map<String, Object> status = new java.util.LinkedHashMap<>();
+    status.put(
+        "backends",
+        getBackends()
+            .map(
+                b ->
+                    HashMap.<String, Object>of("name", b.name, "healthy", b.isHealthy())
+                        .toJavaMap()));
+    try {
+      OutputStream bufferedOut = new BufferedOutputStream(out);
+      Json.write(bufferedOut, status);
+      bufferedOut.flush();
+    } catch (SaxonApiException | IOException e) {
+      throw new InternalXSLTNailException("Failed to write status: " + e.getMessage(), e);
+    }
+  }
+
+  /** Check the health of every backend concurrently, and wait for the checks to finish. */
+  void checkHealth() {
+    CompletableFuture<?>[] checks =
+        getBackends()
+            .map(
+                backend ->
+                    CompletableFuture.runAsync(() -> updateHealth(backend), healthProbeExecutor))
+            .toJavaList()
+            .toArray(new CompletableFuture<?>[0]);
+    try {
+      // Each check times out by itself, so this doesn't wait long for an unresponsive backend
+      CompletableFuture.allOf(checks).join();
+    } catch (CompletionException | CancellationException e) {
+      LOG.log(Level.WARNING, "Failed to check backend health", e);
+    }
+  }
+
+  private void updateHealth(Backend backend) {
+    try {
+      backend.setHealthy(checkHealth(backend), "xslt status failed");
+    } catch (IOException e) {
+      backend.setHealthy(false, e.getMessage());
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Health check of backend \"" + backend + "\" failed", e);
+      backend.setHealthy(false, e.toString());
+    }
+  }
+
+  private boolean checkHealth(Backend backend) throws IOException {
+    try (NailgunClient client = NailgunClient.connect(backend.address)) {
+      ScheduledFuture<?> timeout =
+          this.heartbeatExecutor.schedule(
+              () -> closeQuietly(client), HEALTH_CHECK_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+      try {
+        return client.run(
+                "xslt",
+                new String[] {"status"},
+                java.util.Map.of(),
+                System.getProperty("user.dir"),
+                new ByteArrayInputStream(new byte[0]),
+                OutputStream.nullOutputStream(),
+                OutputStream.nullOutputStream(),
+                this.heartbeatExecutor)
+            == 0;
+      } finally {
+        timeout.cancel(false);
+      }
+    }
+  }
+
+  private static void closeQuietly(NailgunClient client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to close backend connection", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    Executors.awaitTermination(
+        TimeUnit.SECONDS.toMillis(5),
+        this.healthCheckExecutor,
+        this.healthProbeExecutor,
+        this.heartbeatExecutor);
+  }
+}
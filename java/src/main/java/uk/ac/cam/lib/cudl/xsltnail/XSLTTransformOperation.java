@@ -8,6 +8,7 @@ import io.vavr.control.Option;
 import io.vavr.control.Try;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
 import javax.annotation.Nonnull;
 import net.sf.saxon.s9api.QName;
@@ -17,6 +18,41 @@ public final class XSLTTransformOperation {
   public final Option<Path> xmlPath;
   public final Option<String> inputIdentifier;
   public final Multimap<QName, String> parameters;
+  /**
+   * Parameters whose values are the documents parsed from files, which are shared by transforms.
+   */
+  public final Multimap<QName, Path> documentParameters;
+
+  public final Option<Path> resultDocumentManifest;
+  /** The compression of the input data, or none if it should be detected automatically. */
+  public final Option<Compression> inputCompression;
+  /** How the input data is parsed. */
+  public final InputFormat inputFormat;
+  /** The mode templates are first applied to the input in, or none for the default mode. */
+  public final Option<QName> initialMode;
+  /**
+   * The named template the transform starts by calling, instead of applying templates to an input.
+   */
+  public final Option<QName> initialTemplate;
+  /**
+   * A file whose document is the global context item, instead of the input. The document is shared
+   * by transforms until it changes.
+   */
+  public final Option<Path> globalContext;
+
+  public final Compression outputCompression;
+  /** The scheduling class of the transform's compilation and evaluation work. */
+  public final Priority priority;
+  /**
+   * The maximum time the transform may take, including waiting for its stylesheet to compile. If
+   * none, the server's default applies.
+   */
+  public final Option<Duration> timeout;
+  /**
+   * Whether documents read with {@code doc()} or {@code document()} are the shared documents, or
+   * parsed again by this transform.
+   */
+  public final boolean shareDocuments;
 
   public XSLTTransformOperation(
       @Nonnull Path xsltPath,
@@ -30,17 +66,160 @@ public final class XSLTTransformOperation {
       @Nonnull Option<Path> xmlPath,
       @Nonnull Option<String> inputIdentifier,
       @Nonnull Multimap<QName, String> parameters) {
-    Objects.requireNonNull(xsltPath, "xsltPath cannot be null");
-    Objects.requireNonNull(xmlPath, "xmlPath cannot be null");
-    Objects.requireNonNull(inputIdentifier, "inputIdentifier cannot be null");
-    Objects.requireNonNull(parameters, "parameters cannot be null");
-    if (xmlPath.isDefined()) Objects.requireNonNull(xmlPath.get(), "xmlPath cannot contain null");
-    if (inputIdentifier.isDefined())
-      Objects.requireNonNull(inputIdentifier.get(), "inputIdentifier cannot contain null");
-    this.xsltPath = xsltPath;
-    this.xmlPath = xmlPath;
-    this.inputIdentifier = inputIdentifier;
-    this.parameters = parameters;
+    this(new Builder(xsltPath, xmlPath, inputIdentifier, parameters));
+  }
+
+  private XSLTTransformOperation(@Nonnull Builder builder) {
+    Objects.requireNonNull(builder.xsltPath, "xsltPath cannot be null");
+    Objects.requireNonNull(builder.xmlPath, "xmlPath cannot be null");
+    Objects.requireNonNull(builder.inputIdentifier, "inputIdentifier cannot be null");
+    Objects.requireNonNull(builder.parameters, "parameters cannot be null");
+    Objects.requireNonNull(builder.documentParameters, "documentParameters cannot be null");
+    Objects.requireNonNull(builder.resultDocumentManifest, "resultDocumentManifest cannot be null");
+    Objects.requireNonNull(builder.inputCompression, "inputCompression cannot be null");
+    Objects.requireNonNull(builder.inputFormat, "inputFormat cannot be null");
+    Objects.requireNonNull(builder.initialMode, "initialMode cannot be null");
+    Objects.requireNonNull(builder.initialTemplate, "initialTemplate cannot be null");
+    Objects.requireNonNull(builder.globalContext, "globalContext cannot be null");
+    Objects.requireNonNull(builder.outputCompression, "outputCompression cannot be null");
+    Objects.requireNonNull(builder.priority, "priority cannot be null");
+    Objects.requireNonNull(builder.timeout, "timeout cannot be null");
+    if (builder.xmlPath.isDefined())
+      Objects.requireNonNull(builder.xmlPath.get(), "xmlPath cannot contain null");
+    if (builder.inputIdentifier.isDefined())
+      Objects.requireNonNull(builder.inputIdentifier.get(), "inputIdentifier cannot contain null");
+    this.xsltPath = builder.xsltPath;
+    this.xmlPath = builder.xmlPath;
+    this.inputIdentifier = builder.inputIdentifier;
+    this.parameters = builder.parameters;
+    this.documentParameters = builder.documentParameters;
+    this.resultDocumentManifest = builder.resultDocumentManifest;
+    this.inputCompression = builder.inputCompression;
+    this.inputFormat = builder.inputFormat;
+    this.initialMode = builder.initialMode;
+    this.initialTemplate = builder.initialTemplate;
+    this.globalContext = builder.globalContext;
+    this.outputCompression = builder.outputCompression;
+    this.priority = builder.priority;
+    this.timeout = builder.timeout;
+    this.shareDocuments = builder.shareDocuments;
+  }
+
+  /**
+   * Get a copy of this operation which writes a manifest of its {@code xsl:result-document} outputs
+   * to a file.
+   */
+  public XSLTTransformOperation withResultDocumentManifest(
+      @Nonnull Option<Path> resultDocumentManifest) {
+    Builder builder = new Builder(this);
+    builder.resultDocumentManifest = resultDocumentManifest;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withDocumentParameters(
+      @Nonnull Multimap<QName, Path> documentParameters) {
+    Builder builder = new Builder(this);
+    builder.documentParameters = documentParameters;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withInputCompression(@Nonnull Option<Compression> compression) {
+    Builder builder = new Builder(this);
+    builder.inputCompression = compression;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withInputFormat(@Nonnull InputFormat format) {
+    Builder builder = new Builder(this);
+    builder.inputFormat = format;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withInitialMode(@Nonnull Option<QName> mode) {
+    Builder builder = new Builder(this);
+    builder.initialMode = mode;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withInitialTemplate(@Nonnull Option<QName> template) {
+    Builder builder = new Builder(this);
+    builder.initialTemplate = template;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withGlobalContext(@Nonnull Option<Path> globalContext) {
+    Builder builder = new Builder(this);
+    builder.globalContext = globalContext;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withOutputCompression(@Nonnull Compression compression) {
+    Builder builder = new Builder(this);
+    builder.outputCompression = compression;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withPriority(@Nonnull Priority priority) {
+    Builder builder = new Builder(this);
+    builder.priority = priority;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withTimeout(@Nonnull Option<Duration> timeout) {
+    Builder builder = new Builder(this);
+    builder.timeout = timeout;
+    return new XSLTTransformOperation(builder);
+  }
+
+  public XSLTTransformOperation withShareDocuments(boolean shareDocuments) {
+    Builder builder = new Builder(this);
+    builder.shareDocuments = shareDocuments;
+    return new XSLTTransformOperation(builder);
+  }
+
+  /** Holds field values while creating modified copies of an operation. */
+  private static final class Builder {
+    private final Path xsltPath;
+    private final Option<Path> xmlPath;
+    private final Option<String> inputIdentifier;
+    private final Multimap<QName, String> parameters;
+    private Multimap<QName, Path> documentParameters = HashMultimap.withSeq().empty();
+    private Option<Path> resultDocumentManifest = Option.none();
+    private Option<Compression> inputCompression = Option.none();
+    private InputFormat inputFormat = InputFormat.XML;
+    private Option<QName> initialMode = Option.none();
+    private Option<QName> initialTemplate = Option.none();
+    private Option<Path> globalContext = Option.none();
+    private Compression outputCompression = Compression.NONE;
+    private Priority priority = Priority.NORMAL;
+    private Option<Duration> timeout = Option.none();
+    private boolean shareDocuments = true;
+
+    private Builder(
+        Path xsltPath,
+        Option<Path> xmlPath,
+        Option<String> inputIdentifier,
+        Multimap<QName, String> parameters) {
+      this.xsltPath = xsltPath;
+      this.xmlPath = xmlPath;
+      this.inputIdentifier = inputIdentifier;
+      this.parameters = parameters;
+    }
+
+    private Builder(XSLTTransformOperation operation) {
+      this(operation.xsltPath, operation.xmlPath, operation.inputIdentifier, operation.parameters);
+      this.documentParameters = operation.documentParameters;
+      this.resultDocumentManifest = operation.resultDocumentManifest;
+      this.inputCompression = operation.inputCompression;
+      this.inputFormat = operation.inputFormat;
+      this.initialMode = operation.initialMode;
+      this.initialTemplate = operation.initialTemplate;
+      this.globalContext = operation.globalContext;
+      this.outputCompression = operation.outputCompression;
+      this.priority = operation.priority;
+      this.timeout = operation.timeout;
+      this.shareDocuments = operation.shareDocuments;
+    }
   }
 
   /**
@@ -82,18 +261,217 @@ public final class XSLTTransformOperation {
     Option<String> inputIdentifier =
         Option.of(Values.requireKey(args, "--system-identifier").get()).flatMap(Values::ifString);
 
-    List<String> rawParameters =
+    Try<Multimap<QName, String>> parameters = parseParameters(args);
+    Try<Multimap<QName, Path>> documentParameters = parseDocumentParameters(args, parameters);
+
+    Option<Path> resultDocumentManifest =
+        Option.of(Values.requireKey(args, "--result-document-manifest").get())
+            .flatMap(Values::ifString)
+            .map(path -> FileSystems.getDefault().getPath(path));
+
+    Try<Option<Compression>> inputCompression =
+        flip(
+            Option.of(Values.requireKey(args, "--input-compression").get())
+                .flatMap(Values::ifString)
+                .filter(name -> !"auto".equals(name))
+                .map(name -> parseCompression("--input-compression", "auto, none or gzip", name)));
+
+    Try<InputFormat> inputFormat =
+        flip(Option.of(Values.requireKey(args, "--input-format").get())
+                .flatMap(Values::ifString)
+                .map(
+                    name ->
+                        InputFormat.fromName(name)
+                            .toTry(
+                                () ->
+                                    new IllegalArgumentException(
+                                        String.format(
+                                            "--input-format must be xml or json, got: \"%s\"",
+                                            name)))))
+            .map(f -> f.getOrElse(InputFormat.XML));
+
+    Try<Tuple2<Option<QName>, Option<QName>>> entryPoint = parseEntryPoint(args);
+
+    Option<Path> globalContext =
+        Option.of(Values.requireKey(args, "--global-context").get())
+            .flatMap(Values::ifString)
+            .map(path -> FileSystems.getDefault().getPath(path));
+
+    Try<Compression> outputCompression =
+        flip(Option.of(Values.requireKey(args, "--output-compression").get())
+                .flatMap(Values::ifString)
+                .map(name -> parseCompression("--output-compression", "none or gzip", name)))
+            .map(c -> c.getOrElse(Compression.NONE));
+
+    Try<Priority> priority = parsePriority(args);
+
+    Try<Option<Duration>> timeout = parseTimeout(args);
+
+    boolean shareDocuments = !parseNoSharedDocuments(args);
+
+    // Each value is applied in turn, so parsing stops at the first invalid option
+    return parameters
+        .map(
+            params ->
+                new XSLTTransformOperation(xsltPath, xmlPath, inputIdentifier, params)
+                    .withResultDocumentManifest(resultDocumentManifest)
+                    .withGlobalContext(globalContext)
+                    .withShareDocuments(shareDocuments))
+        .flatMap(op -> documentParameters.map(op::withDocumentParameters))
+        .flatMap(op -> inputCompression.map(op::withInputCompression))
+        .flatMap(op -> inputFormat.map(op::withInputFormat))
+        .flatMap(
+            op ->
+                entryPoint.map(entry -> op.withInitialMode(entry._1).withInitialTemplate(entry._2)))
+        .flatMap(op -> outputCompression.map(op::withOutputCompression))
+        .flatMap(op -> priority.map(op::withPriority))
+        .flatMap(op -> timeout.map(op::withTimeout));
+  }
+
+  /** Parse the {@code --parameter} values of a command line args map. */
+  static Try<Multimap<QName, String>> parseParameters(Map<String, Object> args) {
+    return parseParameters(
         Values.requireKey(args, "--parameter")
+            .flatMap(o -> Values.asList(Values::castToString, o))
+            .get());
+  }
+
+  /**
+   * Parse the {@code --document-parameter} values of a command line args map. A parameter can't be
+   * set by both {@code --parameter} and {@code --document-parameter}.
+   */
+  static Try<Multimap<QName, Path>> parseDocumentParameters(
+      Map<String, Object> args, Try<Multimap<QName, String>> parameters) {
+    List<String> rawParameters =
+        Values.requireKey(args, "--document-parameter")
             .flatMap(o -> Values.asList(Values::castToString, o))
             .get();
-    Try<Multimap<QName, String>> parameters =
-        foldSuccessful(
-            Stream.ofAll(rawParameters).map(XSLTTransformOperation::parseParameter),
-            HashMultimap.withSeq().empty(),
-            Multimap::put);
+    return parameters.flatMap(params -> parseDocumentParameters(rawParameters, params));
+  }
+
+  private static Try<Multimap<QName, Path>> parseDocumentParameters(
+      List<String> rawParameters, Multimap<QName, String> parameters) {
+    return parseParameters(rawParameters)
+        .recoverWith(
+            IllegalArgumentException.class,
+            e -> Try.failure(new IllegalArgumentException("document " + e.getMessage(), e)))
+        .flatMap(
+            documents ->
+                documents
+                    .keySet()
+                    .find(parameters::containsKey)
+                    .fold(
+                        () ->
+                            Try.success(
+                                documents.map(
+                                    (name, path) ->
+                                        Tuple.of(name, FileSystems.getDefault().getPath(path)))),
+                        name ->
+                            Try.failure(
+                                new IllegalArgumentException(
+                                    String.format(
+                                        "parameter \"%s\" cannot be set by both --parameter and --document-parameter",
+                                        name.getClarkName())))));
+  }
+
+  /** Parse parameters of the form {@code name=value}, where the name is in Clark notation. */
+  static Try<Multimap<QName, String>> parseParameters(List<String> rawParameters) {
+    return foldSuccessful(
+        Stream.ofAll(rawParameters).map(XSLTTransformOperation::parseParameter),
+        HashMultimap.withSeq().empty(),
+        Multimap::put);
+  }
+
+  /**
+   * Parse the {@code --initial-mode} and {@code --initial-template} values of a command line args
+   * map. A transform either applies templates to its input, optionally in a mode, or calls a
+   * template and has no input.
+   */
+  static Try<Tuple2<Option<QName>, Option<QName>>> parseEntryPoint(Map<String, Object> args) {
+    boolean hasInput =
+        Option.of(Values.requireKey(args, "<xml-file>").get()).flatMap(Values::ifString).isDefined()
+            || Option.of(Values.requireKey(args, "--system-identifier").get())
+                .flatMap(Values::ifString)
+                .isDefined();
+    Try<Option<QName>> initialMode = parseNameOption(args, "--initial-mode");
+    Try<Option<QName>> initialTemplate = parseNameOption(args, "--initial-template");
+    return initialMode.flatMap(
+        mode ->
+            initialTemplate.flatMap(
+                template -> {
+                  if (template.isDefined() && mode.isDefined())
+                    return Try.failure(
+                        new IllegalArgumentException(
+                            "--initial-mode and --initial-template cannot both be specified"));
+                  if (template.isDefined() && hasInput)
+                    return Try.failure(
+                        new IllegalArgumentException(
+                            "--initial-template transforms have no <xml-file> or --system-identifier, use --global-context to set the global context item"));
+                  return Try.success(Tuple.of(mode, template));
+                }));
+  }
+
+  private static Try<Option<QName>> parseNameOption(Map<String, Object> args, String option) {
+    return flip(
+        Option.of(Values.requireKey(args, option).get())
+            .flatMap(Values::ifString)
+            .map(
+                name ->
+                    parseClarkName(name)
+                        .recoverWith(
+                            e ->
+                                Try.failure(
+                                    new IllegalArgumentException(
+                                        String.format(
+                                            "%s must be a qname in Clark notation (\"{uri}local\"), got: \"%s\": %s",
+                                            option, name, e.getMessage()),
+                                        e)))));
+  }
+
+  /** Parse the {@code --priority} value of a command line args map. */
+  static Try<Priority> parsePriority(Map<String, Object> args) {
+    return flip(Option.of(Values.requireKey(args, "--priority").get())
+            .flatMap(Values::ifString)
+            .map(
+                name ->
+                    Priority.fromName(name)
+                        .toTry(
+                            () ->
+                                new IllegalArgumentException(
+                                    String.format(
+                                        "--priority must be high, normal or low, got: \"%s\"",
+                                        name)))))
+        .map(p -> p.getOrElse(Priority.NORMAL));
+  }
+
+  /** Parse the {@code --timeout} value of a command line args map. */
+  static Try<Option<Duration>> parseTimeout(Map<String, Object> args) {
+    return flip(
+        Option.of(Values.requireKey(args, "--timeout").get())
+            .flatMap(Values::ifString)
+            .map(
+                value ->
+                    Values.parseSeconds(value)
+                        .recoverWith(
+                            e ->
+                                Try.failure(
+                                    new IllegalArgumentException("--timeout " + e.getMessage())))));
+  }
+
+  /** Parse the {@code --no-shared-documents} flag of a command line args map. */
+  static boolean parseNoSharedDocuments(Map<String, Object> args) {
+    return Values.requireKey(args, "--no-shared-documents")
+        .flatMap(v -> Values.as(Boolean.class, v))
+        .get();
+  }
 
-    return parameters.map(
-        params -> new XSLTTransformOperation(xsltPath, xmlPath, inputIdentifier, params));
+  private static Try<Compression> parseCompression(
+      String option, String allowedValues, String name) {
+    return Compression.fromName(name)
+        .toTry(
+            () ->
+                new IllegalArgumentException(
+                    String.format("%s must be %s, got: \"%s\"", option, allowedValues, name)));
   }
 
   private static <T> Try<Option<T>> flip(Option<Try<T>> opt) {
@@ -129,7 +507,7 @@ public final class XSLTTransformOperation {
             qname -> Try.success(Tuple.of(qname, value)));
   }
 
-  private static Try<QName> parseClarkName(String clarkName) {
+  static Try<QName> parseClarkName(String clarkName) {
     return Try.of(() -> QName.fromClarkName(clarkName))
         .flatMap(
             qname ->
@@ -145,11 +523,38 @@ public final class XSLTTransformOperation {
     XSLTTransformOperation that = (XSLTTransformOperation) o;
     return xsltPath.equals(that.xsltPath)
         && xmlPath.equals(that.xmlPath)
-        && inputIdentifier.equals(that.inputIdentifier);
+        && inputIdentifier.equals(that.inputIdentifier)
+        && parameters.equals(that.parameters)
+        && documentParameters.equals(that.documentParameters)
+        && resultDocumentManifest.equals(that.resultDocumentManifest)
+        && inputCompression.equals(that.inputCompression)
+        && inputFormat.equals(that.inputFormat)
+        && initialMode.equals(that.initialMode)
+        && initialTemplate.equals(that.initialTemplate)
+        && globalContext.equals(that.globalContext)
+        && outputCompression.equals(that.outputCompression)
+        && priority.equals(that.priority)
+        && timeout.equals(that.timeout)
+        && shareDocuments == that.shareDocuments;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(xsltPath, xmlPath, inputIdentifier);
+    return Objects.hash(
+        xsltPath,
+        xmlPath,
+        inputIdentifier,
+        parameters,
+        documentParameters,
+        resultDocumentManifest,
+        inputCompression,
+        inputFormat,
+        initialMode,
+        initialTemplate,
+        globalContext,
+        outputCompression,
+        priority,
+        timeout,
+        shareDocuments);
   }
 }
@@ -0,0 +1,112 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.logging.Handler
+import java.util.logging.Level
+import java.util.logging.LogRecord
+
+class AsyncLogHandlerSpec extends Specification {
+    /** Records the messages it's given, after waiting for the latch to open. */
+    static class RecordingHandler extends Handler {
+        final java.util.List<String> messages = new CopyOnWriteArrayList<>()
+        final CountDownLatch latch
+        volatile boolean closed
+
+        RecordingHandler(CountDownLatch latch = new CountDownLatch(0)) {
+            this.latch = latch
+        }
+
+        @Override
+        void publish(LogRecord record) {
+            latch.await()
+            messages.add(record.message)
+        }
+
+        @Override
+        void flush() {}
+
+        @Override
+        void close() {
+            closed = true
+        }
+    }
+
+    static LogRecord record(String message) {
+        return new LogRecord(Level.INFO, message)
+    }
+
+    def "records are written to the delegate in order"() {
+        given:
+        def delegate = new RecordingHandler()
+        def handler = new AsyncLogHandler(delegate, AsyncLogHandler.OverflowPolicy.DROP)
+
+        when:
+        (1..1000).each { handler.publish(record("message ${it}")) }
+        handler.flush()
+
+        then:
+        delegate.messages == (1..1000).collect { "message ${it}".toString() }
+        handler.droppedCount == 0
+
+        cleanup:
+        handler.close()
+    }
+
+    def "records are dropped and counted when the buffer is full with the drop policy"() {
+        given:
+        def latch = new CountDownLatch(1)
+        def delegate = new RecordingHandler(latch)
+        def handler = new AsyncLogHandler(delegate, AsyncLogHandler.OverflowPolicy.DROP, 4)
+
+        when:
+        (1..20).each { handler.publish(record("message ${it}")) }
+        latch.countDown()
+        handler.flush()
+        handler.close()
+
+        then:
+        // The writer may hold one record while it's blocked, and the buffer holds 4 more
+        handler.droppedCount >= 15
+        delegate.messages.size() == 20 - handler.droppedCount + 1
+        delegate.messages.last() ==~ /Dropped \d+ log records because the log buffer was full \(\d+ in total\)/
+        delegate.closed
+    }
+
+    def "logging threads wait for space when the buffer is full with the block policy"() {
+        given:
+        def latch = new CountDownLatch(1)
+        def delegate = new RecordingHandler(latch)
+        def handler = new AsyncLogHandler(delegate, AsyncLogHandler.OverflowPolicy.BLOCK, 4)
+        def logging = Thread.start { (1..20).each { handler.publish(record("message ${it}")) } }
+
+        when:
+        logging.join(200)
+
+        then:
+        logging.isAlive()
+
+        when:
+        latch.countDown()
+        logging.join(5000)
+        handler.flush()
+
+        then:
+        !logging.isAlive()
+        delegate.messages == (1..20).collect { "message ${it}".toString() }
+        handler.droppedCount == 0
+
+        cleanup:
+        handler.close()
+    }
+
+    def "ring buffer capacity must be a power of two"() {
+        when:
+        new AsyncLogHandler.RingBuffer(3)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
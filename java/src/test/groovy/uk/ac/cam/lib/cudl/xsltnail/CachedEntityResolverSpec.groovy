@@ -0,0 +1,139 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import io.vavr.control.Option
+import net.sf.saxon.s9api.Processor
+import net.sf.saxon.s9api.SaxonApiException
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.xml.transform.stream.StreamSource
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+import static io.vavr.API.List
+
+class CachedEntityResolverSpec extends Specification {
+    private static final DOCUMENT = """<!DOCTYPE doc PUBLIC "-//Example//DTD Doc//EN" "http://example.invalid/doc.dtd">
+<doc>&greeting;</doc>"""
+
+    Path dir
+    Path catalog
+    Path dtd
+
+    def setup() {
+        dir = Files.createTempDirectory("cached-entity-resolver-spec_")
+        dtd = dir.resolve("doc.dtd")
+        dtd.text = '<!ENTITY greeting "hello">'
+        catalog = dir.resolve("catalog.xml")
+        catalog.text = """<catalog xmlns="urn:oasis:names:tc:entity:xmlns:xml:catalog">
+    <public publicId="-//Example//DTD Doc//EN" uri="doc.dtd"/>
+</catalog>"""
+    }
+
+    def cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    static Processor newProcessor(CachedEntityResolver resolver) {
+        return new Processor(new ParserConfiguration(ParserConfiguration.getParserFactory(Option.none()), resolver))
+    }
+
+    def "documents are parsed with DTDs mapped by catalogs"() {
+        given:
+        def doc = dir.resolve("doc.xml")
+        doc.text = DOCUMENT
+        def processor = newProcessor(new CachedEntityResolver(List(catalog)))
+
+        expect:
+        processor.newDocumentBuilder().build(doc.toFile()).getStringValue() == "hello"
+    }
+
+    def "stylesheets are compiled with DTDs mapped by catalogs"() {
+        given:
+        def xslt = dir.resolve("a.xsl")
+        xslt.text = """<!DOCTYPE xsl:stylesheet PUBLIC "-//Example//DTD Doc//EN" "http://example.invalid/doc.dtd">
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" version="3.0">
+    <xsl:template name="xsl:initial-template">&greeting;</xsl:template>
+</xsl:stylesheet>"""
+        def processor = newProcessor(new CachedEntityResolver(List(catalog)))
+
+        when:
+        def transformer = processor.newXsltCompiler().compile(new StreamSource(xslt.toFile())).load30()
+        def out = new StringWriter()
+        transformer.callTemplate(null, processor.newSerializer(out))
+
+        then:
+        out.toString().endsWith("hello")
+    }
+
+    def "entities which catalogs don't map to local files are not fetched"() {
+        given:
+        def doc = dir.resolve("doc.xml")
+        doc.text = DOCUMENT.replace("-//Example//DTD Doc//EN", "-//Example//DTD Other//EN")
+        def processor = newProcessor(new CachedEntityResolver(List(catalog)))
+
+        when:
+        processor.newDocumentBuilder().build(doc.toFile())
+
+        then:
+        def e = thrown(SaxonApiException)
+        e.message.contains("External entity http://example.invalid/doc.dtd is not mapped to a local file by an XML catalog")
+    }
+
+    def "entity content is cached until its file changes"() {
+        given:
+        def resolver = new CachedEntityResolver(List(catalog))
+
+        when:
+        def first = resolver.resolveEntity("-//Example//DTD Doc//EN", "http://example.invalid/doc.dtd")
+        def second = resolver.resolveEntity("-//Example//DTD Doc//EN", "http://example.invalid/doc.dtd")
+
+        then:
+        Path.of(URI.create(first.systemId)) == dtd
+        first.byteStream.text == dtd.text
+        second.byteStream.text == dtd.text
+        resolver.size() == 1
+
+        when:
+        dtd.text = '<!ENTITY greeting "bonjour">'
+        Files.setLastModifiedTime(dtd, FileTime.fromMillis(System.currentTimeMillis() + 10000))
+
+        then:
+        resolver.resolveEntity("-//Example//DTD Doc//EN", "http://example.invalid/doc.dtd").byteStream.text == dtd.text
+
+        when:
+        resolver.clear()
+
+        then:
+        resolver.size() == 0
+    }
+
+    def "local entities are resolved without catalogs"() {
+        given:
+        def resolver = new CachedEntityResolver(List())
+
+        expect:
+        resolver.resolveEntity(null, dtd.toUri().toString()).byteStream.text == dtd.text
+        resolver.resolveEntity(null, "doc.dtd") == null
+    }
+
+    @Unroll
+    def "#name catalogs are rejected"() {
+        given:
+        def invalid = dir.resolve("invalid.xml")
+        invalid.text = "<catalog"
+
+        when:
+        new CachedEntityResolver(List(dir.resolve(name)))
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message.startsWith(msg)
+
+        where:
+        name          | msg
+        "missing.xml" | "XML catalog is not a file: "
+        "invalid.xml" | "Failed to read XML catalog: "
+    }
+}
@@ -0,0 +1,62 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import spock.lang.Specification
+
+import java.util.function.Function
+
+class ConsistentHashRingSpec extends Specification {
+    static final Function<String, String> ID = { it } as Function<String, String>
+    static final List<String> KEYS = (0..<2000).collect { "/stylesheets/${it}.xsl".toString() }
+
+    def "preference lists contain each node once"() {
+        given:
+        def ring = ConsistentHashRing.of(["a", "b", "c"], ID)
+
+        expect:
+        KEYS.every { ring.getPreferenceList(it).toJavaList().sort() == ["a", "b", "c"] }
+    }
+
+    def "routing is stable"() {
+        given:
+        def ring1 = ConsistentHashRing.of(["a", "b", "c"], ID)
+        def ring2 = ConsistentHashRing.of(["c", "b", "a"], ID)
+
+        expect:
+        KEYS.every { ring1.getPreferenceList(it) == ring2.getPreferenceList(it) }
+    }
+
+    def "keys are spread evenly between nodes"() {
+        given:
+        def ring = ConsistentHashRing.of(["a", "b", "c", "d"], ID)
+
+        when:
+        def counts = KEYS.countBy { ring.getPreferenceList(it).head() }
+
+        then:
+        counts.keySet() == ["a", "b", "c", "d"] as Set
+        counts.values().every { it > KEYS.size() / 4 * 0.7 && it < KEYS.size() / 4 * 1.3 }
+    }
+
+    def "removing a node only moves its own keys, which are shared between the remaining nodes"() {
+        given:
+        def ring = ConsistentHashRing.of(["a", "b", "c", "d"], ID)
+        def reduced = ConsistentHashRing.of(["a", "b", "c"], ID)
+
+        when:
+        def moved = KEYS.findAll { ring.getPreferenceList(it).head() != reduced.getPreferenceList(it).head() }
+
+        then:
+        moved.every { ring.getPreferenceList(it).head() == "d" }
+        // Skipping an unavailable node in the preference list is equivalent to removing it
+        KEYS.every { ring.getPreferenceList(it).remove("d") == reduced.getPreferenceList(it) }
+        moved.countBy { reduced.getPreferenceList(it).head() }.keySet() == ["a", "b", "c"] as Set
+    }
+
+    def "invalid replicas are rejected"() {
+        when:
+        ConsistentHashRing.of(["a"], ID, 0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,162 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+class FairSchedulerSpec extends Specification {
+    FairScheduler scheduler = new FairScheduler(1)
+    CountDownLatch release = new CountDownLatch(1)
+    List<String> started = Collections.synchronizedList([])
+
+    def setup() {
+        // Occupy the single worker so that subsequent tasks queue up
+        CountDownLatch blocking = new CountDownLatch(1)
+        scheduler.execute(Priority.NORMAL, "blocker", { blocking.countDown(); release.await() })
+        blocking.await()
+    }
+
+    def cleanup() {
+        // Let the blocker finish rather than interrupting it, so its worker exits quietly
+        release.countDown()
+        scheduler.shutdown()
+        if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+            scheduler.shutdownNow()
+            scheduler.awaitTermination(5, TimeUnit.SECONDS)
+        }
+    }
+
+    def record(String name) {
+        return { started.add(name) } as Runnable
+    }
+
+    def runQueuedTasks() {
+        release.countDown()
+        scheduler.shutdown()
+        assert scheduler.awaitTermination(5, TimeUnit.SECONDS)
+    }
+
+    def "queued tasks are started in proportion to their priority class's weight"() {
+        given:
+        def perClass = 21
+        for (int i = 0; i < perClass; ++i) {
+            Priority.values().each { scheduler.execute(it, null, record(it.getName())) }
+        }
+
+        when:
+        runQueuedTasks()
+        def firstShare = started.take(21).countBy { it }
+
+        then:
+        started.size() == perClass * 3
+        firstShare["high"] >= 15
+        firstShare["normal"] >= 3
+        firstShare["low"] <= 2
+    }
+
+    def "tasks for different keys within a class are started round-robin"() {
+        given:
+        ["a1", "a2", "a3"].each { scheduler.execute(Priority.NORMAL, "a", record(it)) }
+        scheduler.execute(Priority.NORMAL, "b", record("b1"))
+
+        when:
+        runQueuedTasks()
+
+        then:
+        started == ["a1", "b1", "a2", "a3"]
+    }
+
+    def "execute() uses the priority and key of the submitting thread's context"() {
+        given:
+        FairScheduler.callWithContext(Priority.LOW, "x", {
+            scheduler.execute(record("low"))
+        })
+        scheduler.execute(record("normal"))
+        scheduler.forContext(Priority.HIGH, "y").execute(record("high"))
+
+        expect:
+        scheduler.getQueueDepths().toJavaMap() == [(Priority.HIGH): 1, (Priority.NORMAL): 1, (Priority.LOW): 1]
+        scheduler.getActiveCount() == 1
+
+        when:
+        runQueuedTasks()
+
+        then:
+        started == ["high", "low", "normal"]
+    }
+
+    def "tasks are rejected after shutdown, but queued tasks still run"() {
+        given:
+        scheduler.execute(record("queued"))
+        scheduler.shutdown()
+
+        when:
+        scheduler.execute(record("rejected"))
+
+        then:
+        thrown(RejectedExecutionException)
+
+        when:
+        release.countDown()
+
+        then:
+        scheduler.awaitTermination(5, TimeUnit.SECONDS)
+        scheduler.isTerminated()
+        started == ["queued"]
+    }
+
+    def "retireIdleWorkers() stops waiting threads, which are started again when tasks are queued"() {
+        given:
+        def pool = new FairScheduler(2)
+        def done = new CountDownLatch(1)
+
+        expect:
+        XSLTNailSpec.waitUntil(5000) { pool.retireIdleWorkers(); pool.getLiveThreadCount() == 0 }
+        pool.getPoolSize() == 2
+
+        when:
+        pool.execute(Priority.NORMAL, null, { done.countDown() })
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        pool.getLiveThreadCount() == 1
+
+        cleanup:
+        pool.shutdownNow()
+        pool.awaitTermination(5, TimeUnit.SECONDS)
+    }
+
+    def "replaceWorker() retires a worker once its task finishes, starting another in its place"() {
+        given:
+        def pool = new FairScheduler(1)
+        def worker = new java.util.concurrent.CompletableFuture<Thread>()
+        def finish = new CountDownLatch(1)
+        def done = new CountDownLatch(1)
+        pool.execute(Priority.NORMAL, null, { worker.complete(Thread.currentThread()); finish.await() })
+
+        when:
+        def replaced = pool.replaceWorker(worker.get(5, TimeUnit.SECONDS))
+
+        then:
+        replaced
+        !pool.replaceWorker(Thread.currentThread())
+        pool.getLiveThreadCount() == 2
+
+        when:
+        pool.execute(Priority.NORMAL, null, { done.countDown() })
+        finish.countDown()
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        XSLTNailSpec.waitUntil(5000) { pool.getLiveThreadCount() == 1 }
+        worker.get().join(5000) == null
+        !worker.get().isAlive()
+
+        cleanup:
+        finish.countDown()
+        pool.shutdown()
+        pool.awaitTermination(5, TimeUnit.SECONDS)
+    }
+}
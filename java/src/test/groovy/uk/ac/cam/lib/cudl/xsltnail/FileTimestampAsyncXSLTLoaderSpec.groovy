@@ -0,0 +1,170 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import net.sf.saxon.s9api.Processor
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class FileTimestampAsyncXSLTLoaderSpec extends Specification {
+    private static final XSLT = """\
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:template match="/"><result/></xsl:template>
+</xsl:stylesheet>
+"""
+    Path dir
+    Path xsltFile
+    FileTimestampAsyncXSLTLoader loader
+    Executor executor = { Runnable r -> r.run() }
+
+    def setup() {
+        dir = Files.createTempDirectory("xslt-nail-test_")
+        xsltFile = dir.resolve("a.xsl")
+        xsltFile.write(XSLT)
+        Files.setLastModifiedTime(xsltFile, FileTime.from(0, TimeUnit.MILLISECONDS))
+        loader = new FileTimestampAsyncXSLTLoader(new Processor(false))
+    }
+
+    def cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    def load(Path path) {
+        loader.asyncLoad(path, executor).get()
+    }
+
+    def "paths referring to the same file share one compilation"() {
+        given:
+        def link = Files.createSymbolicLink(dir.resolve("link.xsl"), xsltFile)
+        def indirect = dir.resolve("sub/../a.xsl")
+        Files.createDirectory(dir.resolve("sub"))
+
+        when:
+        def compilations = [xsltFile, link, indirect].collect { load(it) }
+
+        then:
+        compilations.every { it.XSLTCompilation.isRight() }
+        compilations.every { it.realPath == xsltFile.toRealPath() }
+        compilations.collect { System.identityHashCode(it.XSLTCompilation.get()) }.unique().size() == 1
+    }
+
+    def "concurrent loads of the same file via different paths share one compilation"() {
+        given:
+        def links = (0..<8).collect { Files.createSymbolicLink(dir.resolve("link-${it}.xsl"), xsltFile) }
+        def pool = Executors.newFixedThreadPool(links.size())
+        def start = new CountDownLatch(1)
+
+        when:
+        def futures = links.collect { link ->
+            CompletableFuture.supplyAsync({ start.await(); load(link) }, pool)
+        }
+        start.countDown()
+        def compilations = futures.collect { it.get(10, TimeUnit.SECONDS) }
+
+        then:
+        compilations.collect { System.identityHashCode(it) }.unique().size() == 1
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    def "separate files are compiled separately"() {
+        given:
+        def copy = Files.copy(xsltFile, dir.resolve("copy.xsl"))
+
+        expect:
+        !load(xsltFile).XSLTCompilation.get().is(load(copy).XSLTCompilation.get())
+    }
+
+    def "reloading an alias reuses a compilation of the current file version made via another alias"() {
+        given:
+        def link = Files.createSymbolicLink(dir.resolve("link.xsl"), xsltFile)
+        def original = load(link)
+
+        when:
+        xsltFile.write(XSLT)
+        def updated = load(xsltFile)
+        def reloaded = loader.asyncReload(link, original, executor).get()
+
+        then:
+        !updated.XSLTCompilation.get().is(original.XSLTCompilation.get())
+        reloaded.is(updated)
+    }
+
+    static final String PACKAGE = """\
+<xsl:package name="http://example.com/greetings" package-version="1.0" version="3.0"
+             xmlns:xsl="http://www.w3.org/1999/XSL/Transform" xmlns:g="http://example.com/greetings">
+    <xsl:function name="g:greet" visibility="public"><xsl:param name="name"/>GREETING <xsl:value-of select="\$name"/></xsl:function>
+</xsl:package>
+"""
+
+    static final String USES_PACKAGE = """\
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform" xmlns:g="http://example.com/greetings">
+    <xsl:use-package name="http://example.com/greetings" package-version="1.0"/>
+    <xsl:template match="/"><result><xsl:value-of select="g:greet('Alice')"/></result></xsl:template>
+</xsl:stylesheet>
+"""
+
+    def transform(FileTimestampAsyncXSLTLoader.FileTimestampCachedXSLT compiled) {
+        def out = new StringWriter()
+        def tx = compiled.XSLTCompilation.get().load30()
+        tx.applyTemplates(new javax.xml.transform.stream.StreamSource(new StringReader("<x/>")),
+            tx.newSerializer(out))
+        return out.toString()
+    }
+
+    def "stylesheets are linked against shared packages, which are recompiled when they change"() {
+        given:
+        def processor = new Processor(false)
+        def packageFile = dir.resolve("greetings.xsl")
+        packageFile.write(PACKAGE)
+        Files.setLastModifiedTime(packageFile, FileTime.from(0, TimeUnit.MILLISECONDS))
+        def packages = new SharedPackages(processor, io.vavr.collection.List.of(packageFile))
+        loader = new FileTimestampAsyncXSLTLoader(processor, packages)
+        def a = dir.resolve("uses-a.xsl")
+        def b = dir.resolve("uses-b.xsl")
+        [a, b].each { it.write(USES_PACKAGE) }
+
+        when:
+        def library = packages.get()
+        def compiledA = load(a)
+        def compiledB = load(b)
+
+        then:
+        transform(compiledA).contains("GREETING Alice")
+        transform(compiledB).contains("GREETING Alice")
+        packages.get().is(library)
+        loader.asyncReload(a, compiledA, executor).get().is(compiledA)
+
+        when:
+        packageFile.write(PACKAGE.replace("GREETING", "HELLO"))
+        def reloaded = loader.asyncReload(a, compiledA, executor).get()
+
+        then:
+        !packages.get().is(library)
+        !reloaded.is(compiledA)
+        transform(reloaded).contains("HELLO Alice")
+    }
+
+    def "stylesheet compile errors include packages which failed to compile"() {
+        given:
+        def processor = new Processor(false)
+        def packageFile = dir.resolve("greetings.xsl")
+        packageFile.write(PACKAGE.replace("</xsl:function>", ""))
+        loader = new FileTimestampAsyncXSLTLoader(
+            processor, new SharedPackages(processor, io.vavr.collection.List.of(packageFile)))
+        xsltFile.write(USES_PACKAGE)
+
+        when:
+        def compiled = load(xsltFile)
+
+        then:
+        compiled.XSLTCompilation.getLeft().contains("Failed to compile package ${packageFile}")
+    }
+}
@@ -0,0 +1,101 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import com.facebook.nailgun.NGListeningAddress
+import com.facebook.nailgun.NGServer
+import io.vavr.collection.List
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Executors
+
+import static uk.ac.cam.lib.cudl.xsltnail.XSLTRouterSpec.getResourceAsPath
+import static uk.ac.cam.lib.cudl.xsltnail.XSLTRouterSpec.startBackend
+import static uk.ac.cam.lib.cudl.xsltnail.XSLTRouterSpec.stopBackend
+
+class HandoverSpec extends Specification {
+    @Shared SecurityManager securityManager = System.getSecurityManager()
+
+    Path socketDir
+    Path address
+    NGServer oldServer
+    NGServer newServer
+    def heartbeats = Executors.newSingleThreadScheduledExecutor()
+
+    def setup() {
+        socketDir = Files.createTempDirectory("xslt-handover")
+        address = socketDir.resolve("server")
+        oldServer = startBackend(new NGListeningAddress(address.toString()))
+        assert run(address, "<foo/>", "transform", getResourceAsPath("a.xsl").toString(), "-") == 0
+    }
+
+    def cleanup() {
+        if (newServer != null) stopBackend(newServer)
+        stopBackend(oldServer)
+        heartbeats.shutdownNow()
+        System.setSecurityManager(securityManager)
+        socketDir.toFile().deleteDir()
+    }
+
+    int run(Path socket, String input, String... args) {
+        NailgunClient.connect(new NGListeningAddress(socket.toString())).withCloseable { client ->
+            return client.run("xslt", args, [:], System.getProperty("user.dir"),
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                OutputStream.nullOutputStream(), OutputStream.nullOutputStream(), heartbeats)
+        }
+    }
+
+    static void waitUntil(Closure<Boolean> condition) {
+        def deadline = System.currentTimeMillis() + 10000
+        while (!condition()) {
+            assert System.currentTimeMillis() < deadline
+            Thread.sleep(10)
+        }
+    }
+
+    def "the running server lists its compiled stylesheets"() {
+        when:
+        def handover = Handover.begin(new NGListeningAddress(address.toString()))
+
+        then:
+        handover.getCachedStylesheets() == List.of(getResourceAsPath("a.xsl"))
+
+        cleanup:
+        handover.abandon()
+    }
+
+    def "a new server takes over the address with the running server's stylesheets compiled"() {
+        given:
+        def handover = Handover.begin(new NGListeningAddress(address.toString()))
+        def socket = socketDir.resolve("server.new")
+        def nail = XSLTNail.newInstance()
+        newServer = startBackend(new NGListeningAddress(socket.toString()))
+        XSLTNail.nailInstall(newServer, nail)
+
+        when:
+        handover.takeOver(nail, newServer, socket, address)
+
+        then:
+        nail.getCachedStylesheets() == List.of(getResourceAsPath("a.xsl"))
+        !Files.exists(socket)
+        run(address, "", "status") == 0
+        waitUntil { !oldServer.isRunning() }
+        run(address, "<foo/>", "transform", getResourceAsPath("a.xsl").toString(), "-") == 0
+    }
+
+    def "the running server carries on if the handover is abandoned"() {
+        given:
+        def handover = Handover.begin(new NGListeningAddress(address.toString()))
+        handover.getCachedStylesheets()
+
+        when:
+        handover.abandon()
+        Thread.sleep(1000)
+
+        then:
+        oldServer.isRunning()
+        run(address, "<foo/>", "transform", getResourceAsPath("a.xsl").toString(), "-") == 0
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import io.vavr.collection.List
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class HotListSpec extends Specification {
+    HotList hotList = new HotList()
+
+    def use(String stylesheet, int times) {
+        times.times { hotList.recordUse(Path.of(stylesheet)) }
+    }
+
+    def "getHottest() lists the most-used stylesheets first"() {
+        given:
+        use("/a.xsl", 1)
+        use("/b.xsl", 3)
+        use("/c.xsl", 2)
+
+        expect:
+        hotList.getHottest(10) == List.of(Path.of("/b.xsl"), Path.of("/c.xsl"), Path.of("/a.xsl"))
+        hotList.getHottest(1) == List.of(Path.of("/b.xsl"))
+    }
+
+    def "decay() forgets stylesheets which haven't been used recently"() {
+        given:
+        use("/a.xsl", 1)
+        use("/b.xsl", 4)
+
+        when:
+        hotList.decay()
+        use("/c.xsl", 3)
+
+        then:
+        hotList.getHottest(10) == List.of(Path.of("/c.xsl"), Path.of("/b.xsl"))
+    }
+
+    def "lists written to a file are read back in the same order"() {
+        given:
+        def file = Files.createTempFile("hot-list", ".txt")
+        use("/a.xsl", 1)
+        use("/b.xsl", 2)
+        def restored = new HotList()
+
+        when:
+        hotList.write(file, 10)
+        restored.addAll(HotList.read(file))
+
+        then:
+        restored.getHottest(10) == List.of(Path.of("/b.xsl"), Path.of("/a.xsl"))
+
+        cleanup:
+        Files.deleteIfExists(file)
+    }
+
+    def "lists are written with the permissions of a newly created file"() {
+        given:
+        def dir = Files.createTempDirectory("hot-list")
+        def reference = Files.createFile(dir.resolve("reference"))
+        use("/a.xsl", 1)
+
+        when:
+        hotList.write(dir.resolve("hot.txt"), 10)
+
+        then:
+        Files.getPosixFilePermissions(dir.resolve("hot.txt")) == Files.getPosixFilePermissions(reference)
+
+        cleanup:
+        dir.toFile().deleteDir()
+    }
+}
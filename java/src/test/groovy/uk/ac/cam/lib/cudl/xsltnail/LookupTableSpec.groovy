@@ -0,0 +1,168 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+
+import static io.vavr.API.None
+import static io.vavr.API.Some
+import static io.vavr.API.Tuple
+
+class LookupTableSpec extends Specification {
+    Path dir
+
+    def setup() {
+        dir = Files.createTempDirectory("lookup-table-spec_")
+    }
+
+    def cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    def "written tables contain their entries"() {
+        given:
+        def entries = [Tuple("b", "2"), Tuple("a", "1"), Tuple("", "empty"), Tuple("é", "e-acute"),
+                       Tuple("z", ""), Tuple("😀", "emoji"), Tuple("ab", "3")]
+        LookupTable.write(entries, dir.resolve("t.xnlt"))
+
+        when:
+        def table = LookupTable.open(dir.resolve("t.xnlt"))
+
+        then:
+        table.size() == entries.size()
+        entries.every { table.get(it._1) == Some(it._2) }
+        table.get("c") == None()
+        table.get("a\u0000") == None()
+        table.get("￿") == None()
+    }
+
+    def "empty tables can be written"() {
+        when:
+        LookupTable.write([], dir.resolve("t.xnlt"))
+        def table = LookupTable.open(dir.resolve("t.xnlt"))
+
+        then:
+        table.size() == 0
+        table.get("a") == None()
+    }
+
+    def "written tables have the permissions of a newly created file"() {
+        given:
+        def reference = Files.createFile(dir.resolve("reference"))
+
+        when:
+        LookupTable.write([Tuple("a", "1")], dir.resolve("t.xnlt"))
+
+        then:
+        Files.getPosixFilePermissions(dir.resolve("t.xnlt")) == Files.getPosixFilePermissions(reference)
+        Files.list(dir).count() == 2
+    }
+
+    def "duplicate keys are rejected"() {
+        when:
+        LookupTable.write([Tuple("a", "1"), Tuple("a", "2")], dir.resolve("t.xnlt"))
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == 'duplicate key: "a"'
+        !Files.exists(dir.resolve("t.xnlt"))
+    }
+
+    def "files which aren't tables are rejected"() {
+        given:
+        dir.resolve("t.xnlt").text = "not a lookup table"
+
+        when:
+        LookupTable.open(dir.resolve("t.xnlt"))
+
+        then:
+        def e = thrown(IOException)
+        e.message == "file is not a lookup table"
+    }
+
+    def "truncated or corrupt tables are rejected when they're opened"() {
+        given:
+        def file = dir.resolve("t.xnlt")
+        LookupTable.write([Tuple("a", "1"), Tuple("b", "2")], file)
+        def bytes = Files.readAllBytes(file)
+        corrupt(java.nio.ByteBuffer.wrap(bytes))
+        Files.write(file, bytes.length > length ? Arrays.copyOf(bytes, length) : bytes)
+
+        when:
+        LookupTable.open(file)
+
+        then:
+        def e = thrown(IOException)
+        e.message == message
+
+        where:
+        length | corrupt                                        | message
+        30     | { it }                                         | "lookup table is truncated at entry 1"
+        34     | { it }                                         | "lookup table is truncated at entry 1"
+        1000   | { it.putInt(12, 0) }                           | "lookup table is corrupt: entry 0 has an invalid offset"
+        1000   | { it.putInt(16, Integer.MAX_VALUE) }           | "lookup table is truncated at entry 1"
+        1000   | { it.putInt(it.getInt(12), -1) }               | "lookup table is corrupt: entry 0 has a negative length"
+        1000   | { it.putInt(it.getInt(12) + 5, 1000) }         | "lookup table is truncated at entry 0"
+    }
+
+    def "LookupTables reopens tables when their file is replaced"() {
+        given:
+        def tables = new LookupTables(Duration.ZERO)
+        def path = dir.resolve("t.xnlt")
+        LookupTable.write([Tuple("a", "1")], path)
+
+        expect:
+        tables.get(path).get("a") == Some("1")
+        tables.get(path).is(tables.get(path))
+
+        when:
+        LookupTable.write([Tuple("a", "2")], path)
+
+        then:
+        tables.get(path).get("a") == Some("2")
+    }
+
+    def "LookupTables doesn't check files again within the check interval"() {
+        given:
+        def tables = new LookupTables(Duration.ofHours(1))
+        def path = dir.resolve("t.xnlt")
+        LookupTable.write([Tuple("a", "1")], path)
+        def table = tables.get(path)
+
+        when:
+        Files.delete(path)
+
+        then:
+        tables.get(path).is(table)
+    }
+
+    def "LookupTableBuilder parses tab-separated entries"() {
+        given:
+        def tsv = dir.resolve("t.tsv")
+        tsv.text = "a\t1\n\nb\t2\twith tab\n"
+
+        when:
+        def count = LookupTableBuilder.build(tsv.toString(), dir.resolve("t.xnlt"))
+        def table = LookupTable.open(dir.resolve("t.xnlt"))
+
+        then:
+        count == 2
+        table.get("a") == Some("1")
+        table.get("b") == Some("2\twith tab")
+    }
+
+    def "LookupTableBuilder rejects lines without a tab"() {
+        given:
+        def tsv = dir.resolve("t.tsv")
+        tsv.text = "a\t1\nb\n"
+
+        when:
+        LookupTableBuilder.build(tsv.toString(), dir.resolve("t.xnlt"))
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == "line 2 has no tab separating its key and value"
+    }
+}
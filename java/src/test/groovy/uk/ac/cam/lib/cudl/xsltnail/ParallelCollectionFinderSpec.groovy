@@ -0,0 +1,147 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import net.sf.saxon.s9api.Processor
+import net.sf.saxon.s9api.QName
+import net.sf.saxon.s9api.SaxonApiException
+import net.sf.saxon.s9api.XdmAtomicValue
+import spock.lang.Specification
+
+import javax.xml.transform.stream.StreamSource
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.atomic.AtomicInteger
+
+class ParallelCollectionFinderSpec extends Specification {
+    private static final XSLT = """\
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:output method="text"/>
+    <xsl:strip-space elements="stripped"/>
+    <xsl:param name="uri"/>
+    <xsl:template name="xsl:initial-template">
+        <xsl:value-of select="collection(\$uri) ! local-name(*)" separator=" "/>
+    </xsl:template>
+    <xsl:template name="path">
+        <xsl:value-of select="collection(\$uri)/* ! local-name()" separator=" "/>
+    </xsl:template>
+    <xsl:template name="text-nodes">
+        <xsl:value-of select="collection(\$uri) ! count(//text())" separator=" "/>
+    </xsl:template>
+</xsl:stylesheet>
+"""
+
+    Path dir
+    ExecutorService pool = ParallelCollectionFinder.newParserPool(4)
+    AtomicInteger parsed = new AtomicInteger()
+    Executor executor = { Runnable task -> parsed.incrementAndGet(); pool.execute(task) }
+    Processor processor = new Processor(false)
+    SharedDocuments sharedDocuments = new SharedDocuments()
+
+    def setup() {
+        dir = Files.createTempDirectory("parallel-collection-finder-spec_")
+        (1..20).each { dir.resolve("doc${it}.xml").text = "<doc${it}/>" }
+        dir.resolve("notes.txt").text = "not XML"
+    }
+
+    def cleanup() {
+        pool.shutdownNow()
+        dir.toFile().deleteDir()
+    }
+
+    String collection(String query, boolean parallel = true, String template = null) {
+        def tx = processor.newXsltCompiler().compile(new StreamSource(new StringReader(XSLT))).load30()
+        if (parallel)
+            tx.getUnderlyingController().setCollectionFinder(
+                new ParallelCollectionFinder(processor, sharedDocuments, executor, 3))
+        tx.setStylesheetParameters([(new QName("uri")): new XdmAtomicValue("${dir.toUri()}?${query}")])
+        def out = new StringWriter()
+        tx.callTemplate(template == null ? null : new QName(template), processor.newSerializer(out))
+        return out.toString()
+    }
+
+    def "documents are parsed on the executor and returned in the collection's order"() {
+        when:
+        def result = collection("select=*.xml")
+
+        then:
+        result == collection("select=*.xml", false)
+        result.split(" ") as Set == (1..20).collect { "doc${it}" } as Set
+        parsed.get() == 20
+        sharedDocuments.size() == 0
+    }
+
+    def "path expressions keep the collection's order"() {
+        given:
+        // Make the first documents the slowest to parse, so they finish after the others
+        (1..5).each { n -> dir.resolve("doc${n}.xml").text = "<doc${n}>${"<x>text</x>" * 50_000}</doc${n}>" }
+
+        when:
+        def result = collection(query, true, "path")
+
+        then:
+        result == collection(query, true)
+        result == collection(query, false, "path")
+
+        where:
+        // The stylesheet strips whitespace, so shared documents are wrapped and numbered too
+        query << ["select=*.xml", "select=*.xml;cache=yes"]
+    }
+
+    def "documents are parsed with the same options as Saxon's"() {
+        given:
+        (1..20).each {
+            def name = it % 2 ? "stripped" : "doc"
+            dir.resolve("doc${it}.xml").text = "<${name}> <a/> </${name}>"
+        }
+
+        expect:
+        collection(query, true, "text-nodes") == collection(query, false, "text-nodes")
+        collection(query, true, "text-nodes").split(" ") as Set == ["0", "2"] as Set
+
+        where:
+        query << ["select=*.xml", "select=*.xml;strip-space=yes", "select=*.xml;cache=yes"]
+    }
+
+    def "documents of collections with cache=yes are shared until their file changes"() {
+        when:
+        collection("select=*.xml;cache=yes")
+
+        then:
+        sharedDocuments.size() == 20
+
+        when:
+        dir.resolve("doc1.xml").text = "<changed/>"
+        def result = collection("select=*.xml;cache=yes")
+
+        then:
+        result.split(" ") as Set == (["changed"] + (2..20).collect { "doc${it}" }) as Set
+        sharedDocuments.size() == 20
+    }
+
+    def "documents are not shared when the collection changes how they're parsed"() {
+        when:
+        collection("select=*.xml;cache=yes;strip-space=yes")
+
+        then:
+        sharedDocuments.size() == 0
+        parsed.get() == 20
+    }
+
+    def "documents which fail to parse are reported according to on-error"() {
+        given:
+        dir.resolve("broken.xml").text = "<broken"
+
+        when:
+        def result = collection("select=*.xml;on-error=ignore")
+
+        then:
+        result.split(" ").length == 20
+
+        when:
+        collection("select=*.xml")
+
+        then:
+        thrown(SaxonApiException)
+    }
+}
@@ -0,0 +1,94 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import io.vavr.control.Option
+import net.sf.saxon.s9api.Processor
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.xml.parsers.SAXParser
+import javax.xml.parsers.SAXParserFactory
+import javax.xml.transform.stream.StreamSource
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicInteger
+
+import static io.vavr.API.List
+import static io.vavr.API.Option
+
+class CountingSAXParserFactory extends SAXParserFactory {
+    static final AtomicInteger created = new AtomicInteger()
+    private final SAXParserFactory delegate = SAXParserFactory.newDefaultInstance()
+
+    @Override
+    SAXParser newSAXParser() {
+        created.incrementAndGet()
+        delegate.setNamespaceAware(isNamespaceAware())
+        return delegate.newSAXParser()
+    }
+
+    @Override
+    void setFeature(String name, boolean value) { delegate.setFeature(name, value) }
+
+    @Override
+    boolean getFeature(String name) { return delegate.getFeature(name) }
+}
+
+class ParserConfigurationSpec extends Specification {
+    def resolver = new CachedEntityResolver(List())
+
+    @Unroll
+    def "parsers are created by the #name factory"() {
+        expect:
+        ParserConfiguration.getParserFactory(Option(name)).isNamespaceAware()
+        ParserConfiguration.getParserFactory(Option(name)).getClass().name == className
+
+        where:
+        name                                    | className
+        "jdk"                                   | SAXParserFactory.newDefaultInstance().getClass().name
+        CountingSAXParserFactory.class.name     | CountingSAXParserFactory.class.name
+        null                                    | SAXParserFactory.newInstance().getClass().name
+    }
+
+    def "unknown factories are rejected"() {
+        when:
+        ParserConfiguration.getParserFactory(Option("com.example.MissingSAXParserFactory"))
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message.startsWith("Failed to create XML parser factory: ")
+    }
+
+    def "each thread reuses its parsers"() {
+        given:
+        def config = new ParserConfiguration(ParserConfiguration.getParserFactory(Option.none()), resolver)
+
+        when:
+        def parser = config.getSourceParser()
+        config.reuseSourceParser(parser)
+
+        then:
+        config.getSourceParser().is(parser)
+
+        when:
+        config.reuseSourceParser(parser)
+        def otherThreadParser = CompletableFuture.supplyAsync({ config.getSourceParser() }).join()
+
+        then:
+        !otherThreadParser.is(parser)
+        config.getSourceParser().is(parser)
+    }
+
+    def "documents parsed repeatedly on a thread share a parser"() {
+        given:
+        def processor = new Processor(new ParserConfiguration(
+            ParserConfiguration.getParserFactory(Option(CountingSAXParserFactory.class.name)), resolver))
+        def builder = processor.newDocumentBuilder()
+        def before = CountingSAXParserFactory.created.get()
+
+        when:
+        def docs = (1..10).collect { builder.build(new StreamSource(new StringReader("<a>${it}</a>"))) }
+
+        then:
+        docs*.stringValue == (1..10).collect { it as String }
+        CountingSAXParserFactory.created.get() - before == 1
+    }
+}
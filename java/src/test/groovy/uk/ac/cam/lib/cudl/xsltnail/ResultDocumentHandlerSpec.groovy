@@ -0,0 +1,122 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import net.sf.saxon.s9api.Processor
+import net.sf.saxon.s9api.Serializer
+import spock.lang.Specification
+import spock.lang.Timeout
+
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermission
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ResultDocumentHandlerSpec extends Specification {
+    def dir = Files.createTempDirectory("result-documents")
+    def executor = ResultDocumentHandler.newWriterExecutor(1, 4, 1024, 2048)
+
+    def cleanup() {
+        executor.shutdownNow()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+    }
+
+    def content(int size) {
+        def buffer = new ByteArrayOutputStream()
+        buffer.write(new byte[size])
+        return buffer
+    }
+
+    def "documents are written to their URI"() {
+        given:
+        def file = dir.resolve("a/out.xml")
+
+        when:
+        executor.write(file.toUri(), content(10)).join()
+
+        then:
+        Files.size(file) == 10
+    }
+
+    def "documents get the permissions of a newly created file, not a temporary file's"() {
+        given:
+        def file = dir.resolve("out.xml")
+        def reference = Files.createFile(dir.resolve("reference.xml"))
+
+        when:
+        executor.write(file.toUri(), content(10)).join()
+
+        then:
+        Files.getPosixFilePermissions(file) == Files.getPosixFilePermissions(reference)
+        Files.getPosixFilePermissions(file).contains(PosixFilePermission.OWNER_READ)
+        Files.list(dir).count() == 2
+    }
+
+    @Timeout(10)
+    def "documents written after the executor is shut down fail instead of never completing"() {
+        given:
+        def handler = new ResultDocumentHandler(new Processor(false), executor)
+        executor.shutdown()
+
+        when:
+        def destination = handler.apply(dir.resolve("out.xml").toUri())
+        destination.closeAndNotify()
+        def result = handler.awaitWrites()
+
+        then:
+        result.left.contains("the server is shutting down")
+        !Files.exists(dir.resolve("out.xml"))
+    }
+
+    def "documents larger than the buffer size are streamed to a temporary file as they're serialized"() {
+        given:
+        def handler = new ResultDocumentHandler(new Processor(false), executor)
+        def serializer = handler.apply(dir.resolve("large.xml").toUri()) as Serializer
+        def writer = serializer.getXMLStreamWriter()
+
+        when:
+        writer.writeStartElement("a")
+        writer.writeCharacters("x" * 100_000)
+        writer.flush()
+
+        then:
+        !Files.exists(dir.resolve("large.xml"))
+        Files.list(dir).collect { it.fileName.toString() }.any { it.startsWith(".large.xml.") }
+        executor.getQueuedBytes() == 0
+
+        when:
+        writer.writeEndElement()
+        writer.close()
+        serializer.closeAndNotify()
+        def result = handler.awaitWrites()
+
+        then:
+        result.isRight()
+        result.get().getTotalBytes() == Files.size(dir.resolve("large.xml"))
+        Files.size(dir.resolve("large.xml")) > 100_000
+        Files.list(dir).count() == 1
+    }
+
+    @Timeout(10)
+    def "documents larger than the queue's byte limit are written by the submitting thread"() {
+        given:
+        def blocked = new CountDownLatch(1)
+        executor.execute { blocked.await() }
+
+        when:
+        def small = executor.write(dir.resolve("small.xml").toUri(), content(512))
+        def large = executor.write(dir.resolve("large.xml").toUri(), content(1000))
+
+        then:
+        executor.getQueuedBytes() == 512
+        !small.isDone()
+        large.isDone()
+        Files.size(dir.resolve("large.xml")) == 1000
+
+        when:
+        blocked.countDown()
+        small.join()
+
+        then:
+        Files.size(dir.resolve("small.xml")) == 512
+        executor.getQueuedBytes() == 0
+    }
+}
@@ -0,0 +1,104 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import net.sf.saxon.s9api.Processor
+import net.sf.saxon.trans.XPathException
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class SharedDocumentsSpec extends Specification {
+    Path dir
+    Processor processor = new Processor(false)
+    SharedDocuments documents = new SharedDocuments()
+
+    def setup() {
+        dir = Files.createTempDirectory("shared-documents-spec_")
+    }
+
+    def cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    def "unchanged files are parsed once"() {
+        given:
+        def file = dir.resolve("a.xml")
+        file.text = "<a/>"
+
+        expect:
+        documents.get(processor, file).is(documents.get(processor, file))
+        documents.get(processor, file).is(documents.get(processor, dir.resolve("./x/../a.xml")))
+        documents.size() == 1
+    }
+
+    def "changed files are parsed again and the old version is discarded"() {
+        given:
+        def file = dir.resolve("a.xml")
+        file.text = "<a/>"
+        def first = documents.get(processor, file)
+
+        when:
+        file.text = "<b/>"
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000))
+        def second = documents.get(processor, file)
+
+        then:
+        !second.is(first)
+        second.toString() == "<b/>"
+        documents.size() == 1
+    }
+
+    def "files are cached by path, whatever their versions"() {
+        given:
+        def files = (1..3).collect { dir.resolve("${it}.xml") }
+        files.each { it.text = "<a/>" }
+
+        when:
+        files.each { documents.get(processor, it) }
+        files.each {
+            it.text = "<b/>"
+            Files.setLastModifiedTime(it, FileTime.fromMillis(System.currentTimeMillis() + 10000))
+            documents.get(processor, it)
+        }
+
+        then:
+        documents.size() == 3
+        files.every { documents.get(processor, it).toString() == "<b/>" }
+    }
+
+    def "documents are not shared between processors"() {
+        given:
+        def file = dir.resolve("a.xml")
+        file.text = "<a/>"
+
+        expect:
+        documents.get(new Processor(false), file).processor != documents.get(processor, file).processor
+    }
+
+    def "resolver resolves local files relative to the base URI"() {
+        given:
+        dir.resolve("a.xml").text = "<a/>"
+        def resolver = documents.newResolver(processor)
+        def base = dir.resolve("main.xsl").toUri().toString()
+
+        expect:
+        resolver.resolve("a.xml", base).is(documents.get(processor, dir.resolve("a.xml")).getUnderlyingNode())
+        resolver.resolve("missing.xml", base) == null
+        resolver.resolve("http://example.com/a.xml", base) == null
+        resolver.resolve("a.xml#frag", base) == null
+    }
+
+    def "resolver reports documents which can't be parsed"() {
+        given:
+        dir.resolve("a.xml").text = "<a>"
+        def resolver = documents.newResolver(processor)
+
+        when:
+        resolver.resolve("a.xml", dir.resolve("main.xsl").toUri().toString())
+
+        then:
+        def e = thrown(XPathException)
+        e.message.startsWith("Failed to read document ")
+    }
+}
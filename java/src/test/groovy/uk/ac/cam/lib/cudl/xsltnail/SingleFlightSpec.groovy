@@ -0,0 +1,89 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+class SingleFlightSpec extends Specification {
+    def "followers receive the leader's output once it lands"() {
+        given:
+        def flights = new SingleFlight()
+        def leaderOut = new ByteArrayOutputStream()
+        def followerOut = new ByteArrayOutputStream()
+
+        when:
+        def leader = flights.join("key")
+        def follower = flights.join("key")
+        def shared = follower._1.isShared()
+        leader._1.record(leaderOut).write("output".getBytes(StandardCharsets.UTF_8))
+
+        then:
+        leader._2
+        !follower._2
+        follower._1.is(leader._1)
+        !shared.isDone()
+        flights.coalescedCount == 1
+
+        when:
+        leader._1.land(true)
+        follower._1.writeOutput(followerOut)
+        follower._1.leave()
+
+        then:
+        shared.get()
+        leaderOut.toString("UTF-8") == "output"
+        followerOut.toString("UTF-8") == "output"
+    }
+
+    def "output larger than the buffer is recorded in a temporary file, which is deleted when the followers leave"() {
+        given:
+        def flights = new SingleFlight(4)
+        def leader = flights.join("key")._1
+        def follower = flights.join("key")._1
+        def out = leader.record(new ByteArrayOutputStream())
+        def followerOut = new ByteArrayOutputStream()
+
+        when:
+        out.write("ab".getBytes(StandardCharsets.UTF_8))
+        out.write("cdef".getBytes(StandardCharsets.UTF_8))
+        out.write("g".getBytes(StandardCharsets.UTF_8))
+        leader.land(true)
+        def file = leader.@file
+
+        then:
+        file != null
+        Files.exists(file)
+
+        when:
+        follower.writeOutput(followerOut)
+        follower.leave()
+
+        then:
+        followerOut.toString("UTF-8") == "abcdefg"
+        !Files.exists(file)
+    }
+
+    def "followers of a failed flight join a new flight, which one of them leads"() {
+        given:
+        def flights = new SingleFlight()
+        def leader = flights.join("key")._1
+        def followers = (1..2).collect { flights.join("key")._1 }
+
+        when:
+        leader.land(false)
+
+        then:
+        followers.every { !it.isShared().get() }
+
+        when:
+        followers.each { it.leave() }
+        def rejoined = (1..2).collect { flights.join("key") }
+
+        then:
+        rejoined.count { it._2 } == 1
+        rejoined.every { it._1.is(rejoined[0]._1) }
+        !rejoined[0]._1.is(leader)
+        flights.coalescedCount == 3
+    }
+}
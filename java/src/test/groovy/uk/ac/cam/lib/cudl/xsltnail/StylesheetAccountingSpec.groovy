@@ -0,0 +1,61 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import spock.lang.Specification
+
+import java.nio.file.Path
+
+class StylesheetAccountingSpec extends Specification {
+    def accounting = new StylesheetAccounting()
+
+    def "work is totalled per stylesheet and phase, most costly first"() {
+        given:
+        def cheap = Path.of("/cheap.xsl")
+        def costly = Path.of("/costly.xsl")
+
+        when:
+        accounting.measure(cheap, StylesheetAccounting.Phase.COMPILE, { null })
+        3.times {
+            accounting.measure(costly, StylesheetAccounting.Phase.EVALUATE, {
+                (1..100_000).collect { it.toString() }.size()
+            })
+        }
+        def report = accounting.getReport()
+
+        then:
+        report["stylesheets"]*.path as Set == [costly.toString(), cheap.toString()] as Set
+        !report["cpu-time-measured"] || report["stylesheets"]*.path == [costly.toString(), cheap.toString()]
+        with(report["stylesheets"].find { it.path == costly.toString() }) {
+            compile["count"] == 0
+            evaluate["count"] == 3
+            !report["allocation-measured"] || evaluate["allocated-bytes"] > 100_000
+        }
+        with(report["stylesheets"].find { it.path == cheap.toString() }) {
+            compile["count"] == 1
+            evaluate["count"] == 0
+        }
+    }
+
+    def "work which fails is still accounted"() {
+        when:
+        accounting.measure(Path.of("/a.xsl"), StylesheetAccounting.Phase.EVALUATE, {
+            throw new IllegalStateException("boom")
+        })
+
+        then:
+        thrown(IllegalStateException)
+        accounting.getReport()["stylesheets"][0]["evaluate"]["count"] == 1
+    }
+
+    def "totals are kept for a bounded number of stylesheets"() {
+        given:
+        def accounting = new StylesheetAccounting(2)
+
+        when:
+        10.times {
+            accounting.measure(Path.of("/${it}.xsl"), StylesheetAccounting.Phase.EVALUATE, { null })
+        }
+
+        then:
+        accounting.getReport()["stylesheets"].size() <= 2
+    }
+}
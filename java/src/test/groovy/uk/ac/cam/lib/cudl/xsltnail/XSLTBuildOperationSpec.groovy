@@ -0,0 +1,76 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import io.vavr.collection.HashMap
+import io.vavr.collection.HashMultimap
+import io.vavr.collection.List
+import net.sf.saxon.s9api.QName
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Path
+
+import static io.vavr.API.None
+import static io.vavr.API.Some
+
+class XSLTBuildOperationSpec extends Specification {
+    private static final ARGS = HashMap.ofAll([
+        "build": true, "<xslt-file>": "/foo.xsl", "<input-dir>": "/in", "<output-dir>": "/out",
+        "--parameter": List.empty(), "--include": null, "--output-pattern": null, "--build-manifest": null,
+        "--force": false, "--priority": null])
+
+    def "fromParsedArguments() applies defaults"() {
+        when:
+        def op = XSLTBuildOperation.fromParsedArguments(ARGS).get()
+
+        then:
+        op == new XSLTBuildOperation(Path.of("/foo.xsl"), Path.of("/in"), Path.of("/out"))
+        op.manifestPath == Path.of("/out/.xslt-build-manifest.json")
+    }
+
+    def "fromParsedArguments() uses specified options"() {
+        when:
+        def op = XSLTBuildOperation.fromParsedArguments(ARGS.merge(HashMap.ofAll([
+            "--parameter": List.of("a=b"), "--include": "**.xml", "--output-pattern": "{path}.html",
+            "--build-manifest": "/m.json", "--force": true, "--priority": "low"]), { a, b -> b })).get()
+
+        then:
+        op == new XSLTBuildOperation(
+            Path.of("/foo.xsl"), Path.of("/in"), Path.of("/out"), Some("**.xml"), "{path}.html", Path.of("/m.json"),
+            HashMultimap.withSeq().of(new QName("a"), "b"), Priority.LOW, true)
+    }
+
+    @Unroll
+    def "fromParsedArguments() rejects #option=#value"(String option, String value, String message) {
+        when:
+        def result = XSLTBuildOperation.fromParsedArguments(ARGS.put(option, value))
+
+        then:
+        result.isFailure()
+        result.getCause().getMessage().startsWith(message)
+
+        where:
+        option             | value         | message
+        "--include"        | "[a"          | "--include is not a valid glob pattern: "
+        "--output-pattern" | "out.xml"     | "--output-pattern must contain {path}, got: \"out.xml\""
+        "--priority"       | "urgent"      | "--priority"
+    }
+
+    @Unroll
+    def "getOutputPath(#input) with pattern #pattern is #expected"(String pattern, String input, String expected) {
+        given:
+        def op = new XSLTBuildOperation(
+            Path.of("/foo.xsl"), Path.of("/in"), Path.of("/out"), None(), pattern, Path.of("/m.json"),
+            HashMultimap.withSeq().empty(), Priority.NORMAL, false)
+
+        expect:
+        op.getOutputPath(input) == expected
+
+        where:
+        pattern           | input            | expected
+        "{path}{ext}"     | "a/b.xml"        | "a/b.xml"
+        "{path}.html"     | "a/b.xml"        | "a/b.html"
+        "html/{path}.htm" | "b.tar.xml"      | "html/b.tar.htm"
+        "{path}.html"     | "a.d/b"          | "a.d/b.html"
+        "{path}-x{ext}"   | "a/.hidden"      | "a/.hidden-x"
+    }
+}
@@ -0,0 +1,83 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import io.vavr.collection.HashMap
+import io.vavr.collection.HashMultimap
+import io.vavr.collection.List
+import net.sf.saxon.s9api.QName
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Path
+import java.time.Duration
+
+import static io.vavr.API.Some
+
+class XSLTCallOperationSpec extends Specification {
+    private static final ARGS = HashMap.ofAll([
+        "call": true, "<xslt-file>": "/foo.xsl", "<name>": "{x}f", "<argument>": List.of("a", "b"),
+        "--template": false, "--parameter": List.empty(), "--document-parameter": List.empty(), "--output-method": null, "--priority": null,
+        "--timeout": null, "--no-shared-documents": false])
+
+    def "fromParsedArguments() creates function calls"() {
+        when:
+        def op = XSLTCallOperation.fromParsedArguments(ARGS).get()
+
+        then:
+        op == new XSLTCallOperation(
+            Path.of("/foo.xsl"), XSLTCallOperation.Target.FUNCTION, new QName("x", "f"), List.of("a", "b"))
+    }
+
+    def "fromParsedArguments() uses specified options"() {
+        when:
+        def op = XSLTCallOperation.fromParsedArguments(ARGS.merge(HashMap.ofAll([
+            "--template": true, "<name>": "t", "--parameter": List.of("p=1"), "--output-method": "json",
+            "--priority": "high", "--timeout": "2", "--no-shared-documents": true]), { a, b -> b })).get()
+
+        then:
+        op == new XSLTCallOperation(
+            Path.of("/foo.xsl"), XSLTCallOperation.Target.TEMPLATE, new QName("t"), List.of("a", "b"))
+            .withParameters(HashMultimap.withSeq().of(new QName("p"), "1"))
+            .withOutputMethod(Some("json"))
+            .withPriority(Priority.HIGH)
+            .withTimeout(Some(Duration.ofSeconds(2)))
+            .withShareDocuments(false)
+    }
+
+    @Unroll
+    def "fromParsedArguments() rejects #args"(Map args, String message) {
+        when:
+        def result = XSLTCallOperation.fromParsedArguments(ARGS.merge(HashMap.ofAll(args), { a, b -> b }))
+
+        then:
+        result.getCause().getMessage() == message
+
+        where:
+        args                                   | message
+        ["<name>": "f"]                        | "function names must be in a namespace (\"{uri}local\"), got: \"f\""
+        ["<name>": "{x"]                       | "<name> must be a qname in Clark notation (\"{uri}local\"), got: \"{x\": No closing '}' in Clark name"
+        ["--output-method": "yaml"]            | "--output-method must be xml, html, xhtml, text, json, adaptive, got: \"yaml\""
+        ["--priority": "urgent"]               | "--priority must be high, normal or low, got: \"urgent\""
+        ["--document-parameter": List.of("d")] | "document parameters must be of the form \"Name=Value\", got: \"d\""
+    }
+
+    def "fromParsedArguments() reports the first of several invalid options"() {
+        when:
+        def result = XSLTCallOperation.fromParsedArguments(ARGS.merge(HashMap.ofAll([
+            "--output-method": "yaml", "--priority": "urgent"]), { a, b -> b }))
+
+        then:
+        result.getCause().getMessage() == "--output-method must be xml, html, xhtml, text, json, adaptive, got: \"yaml\""
+    }
+
+    def "template parameters are parsed from the arguments"() {
+        given:
+        def op = new XSLTCallOperation(
+            Path.of("/foo.xsl"), XSLTCallOperation.Target.TEMPLATE, new QName("t"), List.of("a=1", "{x}b=2", "a=3"))
+
+        expect:
+        op.getTemplateParameters().get() ==
+            HashMultimap.withSeq().of(new QName("a"), "1", new QName("x", "b"), "2", new QName("a"), "3")
+        !new XSLTCallOperation(Path.of("/foo.xsl"), XSLTCallOperation.Target.TEMPLATE, new QName("t"), List.of("a"))
+            .getTemplateParameters().isSuccess()
+    }
+}
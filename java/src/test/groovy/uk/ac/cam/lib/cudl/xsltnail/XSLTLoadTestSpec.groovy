@@ -0,0 +1,127 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import com.facebook.nailgun.NGListeningAddress
+import com.facebook.nailgun.NGServer
+import io.vavr.collection.List
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+
+import static uk.ac.cam.lib.cudl.xsltnail.XSLTRouterSpec.getResourceAsPath
+import static uk.ac.cam.lib.cudl.xsltnail.XSLTRouterSpec.startBackend
+import static uk.ac.cam.lib.cudl.xsltnail.XSLTRouterSpec.stopBackend
+
+class XSLTLoadTestSpec extends Specification {
+    @Shared SecurityManager securityManager = System.getSecurityManager()
+
+    Path dir
+    NGServer server
+    XSLTLoadTest loadTest
+
+    def setup() {
+        dir = Files.createTempDirectory("xslt-load-test")
+        def address = new NGListeningAddress(dir.resolve("server.sock").toString())
+        server = startBackend(address)
+        def stylesheet = Files.copy(getResourceAsPath("a.xsl"), dir.resolve("a.xsl"))
+        loadTest = new XSLTLoadTest(
+            address, List.of(new XSLTLoadTest.Stylesheet(stylesheet, 1)), 0.5,
+            Duration.ofMillis(200), Duration.ofMillis(500))
+    }
+
+    def cleanup() {
+        loadTest.close()
+        stopBackend(server)
+        System.setSecurityManager(securityManager)
+        dir.toFile().deleteDir()
+    }
+
+    @Unroll
+    def "Stylesheet.parse() parses #value"(String value, String path, int weight) {
+        expect:
+        XSLTLoadTest.Stylesheet.parse(value) == new XSLTLoadTest.Stylesheet(Path.of(path), weight)
+
+        where:
+        value            | path             | weight
+        "/a/b.xsl"       | "/a/b.xsl"       | 1
+        "3=/a/b.xsl"     | "/a/b.xsl"       | 3
+        "/a/x=1.xsl"     | "/a/x=1.xsl"     | 1
+    }
+
+    def "Stylesheet.parse() rejects zero weights"() {
+        when:
+        XSLTLoadTest.Stylesheet.parse("0=/a.xsl")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "parseList() parses comma-separated values"() {
+        expect:
+        XSLTLoadTest.parseList("1, 2,4", XSLTLoadTest.&parseCount) == List.of(1, 2, 4)
+    }
+
+    @Unroll
+    def "percentile() returns the nearest-rank #p percentile"(double p, long expected) {
+        expect:
+        XSLTLoadTest.percentile((1..100).collect { it as long } as long[], p) == expected
+
+        where:
+        p    | expected
+        50   | 50
+        90   | 90
+        99.9 | 100
+        100  | 100
+        0    | 1
+    }
+
+    def "generateInput() generates XML documents of at least the requested size"() {
+        when:
+        def input = XSLTLoadTest.generateInput(size)
+
+        then:
+        input.length >= size
+        input.length < size + 100
+        new XmlSlurper().parse(new ByteArrayInputStream(input)).name() == "records"
+
+        where:
+        size << [1, 100, 10_000]
+    }
+
+    def "runClosed() measures requests from concurrent clients"() {
+        when:
+        def result = loadTest.runClosed(2, 1024)
+
+        then:
+        result["mode"] == "closed"
+        result["concurrency"] == 2
+        result["requests"] > 0
+        result["errors"] == 0
+        result["throughput"] > 0
+        result["latency-ms"]["p50"] <= result["latency-ms"]["max"]
+        result["server"].keySet().containsAll(["gc-collections", "gc-time-ms", "heap-used-bytes"])
+    }
+
+    def "runOpen() measures requests arriving at a fixed rate"() {
+        when:
+        def result = loadTest.runOpen(20, 100)
+
+        then:
+        result["mode"] == "open"
+        result["rate"] == 20
+        result["requests"] > 0
+        result["errors"] == 0
+        result["dropped"] == 0
+    }
+
+    def "cache misses don't leave stylesheet copies behind"() {
+        when:
+        loadTest.runClosed(1, 100)
+
+        then:
+        Files.list(dir).collect { it.fileName.toString() }.sort() == ["a.xsl", "server.sock"]
+    }
+}
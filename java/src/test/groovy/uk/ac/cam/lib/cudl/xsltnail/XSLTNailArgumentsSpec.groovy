@@ -9,7 +9,6 @@ import io.vavr.control.Option
 import spock.lang.Specification
 import spock.lang.Unroll
 
-import static io.vavr.API.Map
 import static uk.ac.cam.lib.cudl.xsltnail.XSLTNailArguments.Parsers.*
 
 class XSLTNailArgumentsSpec extends Specification {
@@ -260,15 +259,41 @@ class XSLTNailArgumentsSpec extends Specification {
         ]
     }
 
-    private static final Map<String, Object> PARSE_DEFAULTS = Map(
-        "--", false,
-        "--help", false,
-        "--version", false,
-        "--system-identifier", null,
-        "--parameter", List.empty(),
-        "transform", false,
-        "<xslt-file>", null,
-        "<xml-file>", null)
+    private static final Map<String, Object> PARSE_DEFAULTS = HashMap.ofAll([
+        "--": false,
+        "--help": false,
+        "--version": false,
+        "--system-identifier": null,
+        "--parameter": List.empty(),
+        "--document-parameter": List.empty(),
+        "--result-document-manifest": null,
+        "--input-compression": null,
+        "--input-format": null,
+        "--initial-mode": null,
+        "--initial-template": null,
+        "--global-context": null,
+        "--output-compression": null,
+        "--priority": null,
+        "--timeout": null,
+        "--no-shared-documents": false,
+        "--include": null,
+        "--output-pattern": null,
+        "--build-manifest": null,
+        "--force": false,
+        "--template": false,
+        "--output-method": null,
+        "transform": false,
+        "build": false,
+        "call": false,
+        "status": false,
+        "accounting": false,
+        "handover": false,
+        "<xslt-file>": null,
+        "<xml-file>": null,
+        "<input-dir>": null,
+        "<output-dir>": null,
+        "<name>": null,
+        "<argument>": List.empty()])
 
     @Unroll
     def "parse(#args)"(args, expected) {
@@ -322,6 +347,48 @@ class XSLTNailArgumentsSpec extends Specification {
               "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
               "--parameter": List.of("foo", "bar", "baz=123", "baz=123")]],
 
+            [["transform", "foo", "bar", "--document-parameter", "{}config=a.xml", "--document-parameter=lookup=b.xml"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--document-parameter": List.of("{}config=a.xml", "lookup=b.xml")]],
+
+            [["transform", "--result-document-manifest", "/tmp/manifest.json", "foo", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--result-document-manifest": "/tmp/manifest.json"]],
+
+            [["transform", "--input-compression=gzip", "--output-compression", "gzip", "foo", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--input-compression": "gzip", "--output-compression": "gzip"]],
+
+            [["transform", "--input-format", "json", "foo", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--input-format": "json"]],
+
+            [["transform", "--initial-mode={uri}summary", "--global-context", "ctx.xml", "foo", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--initial-mode": "{uri}summary", "--global-context": "ctx.xml"]],
+            [["transform", "--initial-template", "report", "foo"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": null,
+              "--parameter": List.empty(), "--initial-template": "report"]],
+
+            [["transform", "--priority=high", "foo", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--priority": "high"]],
+            [["transform", "--timeout", "2.5", "foo", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--timeout": "2.5"]],
+            [["transform", "foo", "--no-shared-documents", "bar"],
+             ["--": false, "--help": false, "--version": false, "transform": true,
+              "--system-identifier": null, "<xslt-file>": "foo", "<xml-file>": "bar",
+              "--parameter": List.empty(), "--no-shared-documents": true]],
+
             // Argument separator (--) prevents subsequent values being interpreted as options
             [["transform", "--system-identifier=abc", "--", "--foo", "--bar"],
              ["--": true, "--help": false, "--version": false, "transform": true,
@@ -332,10 +399,50 @@ class XSLTNailArgumentsSpec extends Specification {
               "--system-identifier": null, "<xslt-file>": "./foo.xsl", "<xml-file>": "--system-identifier=abc",
               "--parameter": List.empty()]],
 
+            [["build", "foo", "in", "out"],
+             PARSE_DEFAULTS.put("build", true).put("<xslt-file>", "foo").put("<input-dir>", "in")
+                 .put("<output-dir>", "out")],
+            [["build", "--include=**.xml", "foo", "--parameter", "a=b", "in", "--force", "out",
+              "--output-pattern", "{path}.html", "--build-manifest", "m.json", "--priority=low"],
+             PARSE_DEFAULTS.put("build", true).put("<xslt-file>", "foo").put("<input-dir>", "in")
+                 .put("<output-dir>", "out").put("--include", "**.xml").put("--parameter", List.of("a=b"))
+                 .put("--force", true).put("--output-pattern", "{path}.html")
+                 .put("--build-manifest", "m.json").put("--priority", "low")],
+            [["build", "--", "--foo", "--in", "--out"],
+             PARSE_DEFAULTS.put("build", true).put("--", true).put("<xslt-file>", "--foo")
+                 .put("<input-dir>", "--in").put("<output-dir>", "--out")],
+            [["build", "foo", "in"], null],
+            [["build", "--timeout=1", "foo", "in", "out"], null],
+            [["build", "--no-shared-documents", "foo", "in", "out"], null],
+
+            [["call", "foo", "{x}f"],
+             PARSE_DEFAULTS.put("call", true).put("<xslt-file>", "foo").put("<name>", "{x}f")],
+            [["call", "--output-method=json", "foo", "{x}f", "a", "--parameter", "p=1", "-2", "--priority=high"],
+             PARSE_DEFAULTS.put("call", true).put("<xslt-file>", "foo").put("<name>", "{x}f")
+                 .put("<argument>", List.of("a", "-2")).put("--output-method", "json")
+                 .put("--parameter", List.of("p=1")).put("--priority", "high")],
+            [["call", "--template", "foo", "t", "a=b"],
+             PARSE_DEFAULTS.put("call", true).put("--template", true).put("<xslt-file>", "foo").put("<name>", "t")
+                 .put("<argument>", List.of("a=b"))],
+            [["call", "--timeout", "1", "--", "foo", "{x}f", "--a", "--template"],
+             PARSE_DEFAULTS.put("call", true).put("--", true).put("--timeout", "1").put("<xslt-file>", "foo")
+                 .put("<name>", "{x}f").put("<argument>", List.of("--a", "--template"))],
+            [["call", "--no-shared-documents", "foo", "{x}f"],
+             PARSE_DEFAULTS.put("call", true).put("--no-shared-documents", true).put("<xslt-file>", "foo")
+                 .put("<name>", "{x}f")],
+            [["call", "foo"], null],
+            [["call", "foo", "{x}f", "--force"], null],
+
             [["--version"], PARSE_DEFAULTS.put("--version", true)],
             [["--foo", "--version"], null],
             [["--version", "--foo"], null],
 
+            [["status"], PARSE_DEFAULTS.put("status", true)],
+            [["status", "foo"], null],
+            [["accounting"], PARSE_DEFAULTS.put("accounting", true)],
+            [["accounting", "foo"], null],
+            [["handover"], PARSE_DEFAULTS.put("handover", true)],
+
             [[], null],
             [["transform"], null],
             [["nottransform", "--foo"], null],
@@ -351,7 +458,7 @@ class XSLTNailArgumentsSpec extends Specification {
             Object _expected = it[1]
             def actualExpectation
             if(_expected instanceof java.util.Map)
-                actualExpectation = Either.right(HashMap.ofAll(_expected))
+                actualExpectation = Either.right(HashMap.ofAll(_expected).merge(PARSE_DEFAULTS))
             else if(_expected instanceof Map)
                 actualExpectation = Either.right(_expected)
             else
@@ -2,6 +2,7 @@ package uk.ac.cam.lib.cudl.xsltnail
 
 import com.facebook.nailgun.NGContext
 import com.facebook.nailgun.NGServer
+import groovy.json.JsonSlurper
 import io.vavr.collection.HashMultimap
 import io.vavr.collection.Multimap
 import io.vavr.control.Option
@@ -24,13 +25,18 @@ import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
 import java.util.function.BiFunction
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
 
 import static io.vavr.API.*
 import static org.xmlunit.matchers.CompareMatcher.isSimilarTo
 import static spock.util.matcher.HamcrestSupport.expect
+import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_CANCELLED
 import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_USER_ERROR
 
 class XSLTNailSpec extends Specification {
+    static final String ENTRY_POINTS_NS = "http://example.com/entry-points"
+
     static def path(String segment, String... segments) {
         return FileSystems.getDefault().getPath(segment, segments)
     }
@@ -216,6 +222,200 @@ class XSLTNailSpec extends Specification {
           "match=\"/\" on line 17 of params.xsl"
     }
 
+    def "transform() writes xsl:result-document outputs and reports them in a manifest"() {
+        given:
+        def outputDir = Files.createTempDirectory("xslt-nail-test_")
+        def manifestPath = outputDir.resolve("manifest.json")
+        def params = parameters(HashMultimap.withSeq().of("output-dir", outputDir.toUri().toString()))
+        def op = new XSLTTransformOperation(getResourceAsPath("result-documents.xsl"), Some(path("-")), None(), params)
+            .withResultDocumentManifest(Some(manifestPath))
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream("<a/>"), out) }
+
+        then:
+        result.isRight()
+        expect Input.fromByteArray(out.toByteArray()), isSimilarTo(Input.from("<result/>"))
+        (1..3).each {
+            def page = outputDir.resolve("pages/page-${it}.xml")
+            assert expect(Input.fromPath(page), isSimilarTo(Input.from("<page n=\"${it}\"/>" as String)))
+        }
+        // No temporary files are left behind
+        Files.list(outputDir.resolve("pages")).count() == 3
+
+        def manifest = new groovy.json.JsonSlurper().parse(manifestPath.toFile())
+        manifest.documents.collect { Path.of(URI.create(it.uri)) } as Set ==
+            (1..3).collect { outputDir.resolve("pages/page-${it}.xml") } as Set
+        manifest.documents.every { it.bytes == Files.size(Path.of(URI.create(it.uri))) }
+        manifest["total-bytes"] == manifest.documents*.bytes.sum()
+
+        cleanup:
+        outputDir.toFile().deleteDir()
+    }
+
+    static byte[] gzip(String s) {
+        def bytes = new ByteArrayOutputStream()
+        new GZIPOutputStream(bytes).withCloseable { it.write(s.getBytes(StandardCharsets.UTF_8)) }
+        return bytes.toByteArray()
+    }
+
+    @Unroll
+    def "transform() decompresses gzip input from #desc with --input-compression=#compression"(
+        desc, boolean fromFile, Option<Compression> compression) {
+        given:
+        def tmpFile = Files.createTempFile("input-", ".xml.gz")
+        tmpFile.toFile().bytes = gzip("<a/>")
+        def op = new XSLTTransformOperation(getResourceAsPath("a.xsl"), Some(fromFile ? tmpFile : path("-")), None())
+            .withInputCompression(compression)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn ->
+            xn.transform(op, new ByteArrayInputStream(fromFile ? new byte[0] : gzip("<a/>")), out)
+        }
+
+        then:
+        result.isRight()
+        expect Input.fromByteArray(out.toByteArray()), isSimilarTo(Input.from("<result><a/></result>"))
+
+        cleanup:
+        Files.delete(tmpFile)
+
+        where:
+        [desc, fromFile, compression] << [
+            ["file", true, None()],
+            ["file", true, Some(Compression.GZIP)],
+            ["stdin", false, None()],
+            ["stdin", false, Some(Compression.GZIP)],
+        ]
+    }
+
+    def "transform() reports error when input is not in the specified compression format"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("a.xsl"), Some(path("-")), None())
+            .withInputCompression(Some(Compression.GZIP))
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream("<a/>"), new ByteArrayOutputStream()) }
+
+        then:
+        result.left._1 == "Unable to read stdin - Not in GZIP format"
+        result.left._2 == EXIT_STATUS_USER_ERROR
+    }
+
+    def "transform() compresses output with --output-compression=gzip"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("a.xsl"), Some(path("-")), None())
+            .withOutputCompression(Compression.GZIP)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream("<a/>"), out) }
+
+        then:
+        result.isRight()
+        def decompressed = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())).bytes
+        expect Input.fromByteArray(decompressed), isSimilarTo(Input.from("<result><a/></result>"))
+    }
+
+    @Unroll
+    def "transform() parses JSON input from #desc with --input-format=json"(desc, boolean fromFile) {
+        given:
+        def json = '{"name": "x", "items": [1, 2.5]}'
+        def tmpFile = Files.createTempFile("input-", ".json")
+        tmpFile.text = json
+        def op = new XSLTTransformOperation(getResourceAsPath("json.xsl"), Some(fromFile ? tmpFile : path("-")), None())
+            .withInputFormat(InputFormat.JSON)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream(fromFile ? "" : json), out) }
+
+        then:
+        result.isRight()
+        expect Input.fromByteArray(out.toByteArray()), isSimilarTo(Input.from(
+            '<result name="x" count="2" global-context-is-map="true"><number>2</number><number>5</number></result>'))
+
+        cleanup:
+        Files.delete(tmpFile)
+
+        where:
+        [desc, fromFile] << [["file", true], ["stdin", false]]
+    }
+
+    @Unroll
+    def "transform() starts from the entry point selected by #desc"(desc, Closure<XSLTTransformOperation> configure, String input, String expected) {
+        given:
+        def context = Files.createTempFile("global-context-", ".xml")
+        context.text = "<context/>"
+        def op = configure(new XSLTTransformOperation(getResourceAsPath("entry-points.xsl"), Some(path("-")), None()), context)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream(input), out) }
+
+        then:
+        result.isRight()
+        expect Input.fromByteArray(out.toByteArray()), isSimilarTo(Input.from(expected))
+
+        cleanup:
+        Files.delete(context)
+
+        where:
+        [desc, configure, input, expected] << [
+            ["default", { o, ctx -> o }, "<a/>", '<default input="a" context="a"/>'],
+            ["--initial-mode", { o, ctx -> o.withInitialMode(Some(new QName(ENTRY_POINTS_NS, "summary"))) }, "<a/>",
+             '<summary input="a" context="a"/>'],
+            ["--global-context", { o, ctx -> o.withGlobalContext(Some(ctx)) }, "<a/>",
+             '<default input="a" context="context"/>'],
+            ["--initial-mode and --global-context",
+             { o, ctx -> o.withInitialMode(Some(new QName(ENTRY_POINTS_NS, "summary"))).withGlobalContext(Some(ctx)) }, "<a/>",
+             '<summary input="a" context="context"/>'],
+            ["--initial-template", { o, ctx -> o.withInitialTemplate(Some(new QName(ENTRY_POINTS_NS, "hello"))) }, "",
+             '<hello/>'],
+            ["--initial-template and --global-context",
+             { o, ctx -> o.withInitialTemplate(Some(new QName(ENTRY_POINTS_NS, "report"))).withGlobalContext(Some(ctx)) }, "",
+             '<report context="context"/>'],
+        ]
+    }
+
+    @Unroll
+    def "transform() reports error when the #desc does not exist"(desc, Closure<XSLTTransformOperation> configure, String msg) {
+        given:
+        def op = configure(new XSLTTransformOperation(getResourceAsPath("entry-points.xsl"), Some(path("-")), None()))
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream("<a/>"), new ByteArrayOutputStream()) }
+
+        then:
+        result.left._1.contains(msg)
+        result.left._2 == EXIT_STATUS_USER_ERROR
+
+        where:
+        [desc, configure, msg] << [
+            ["initial mode", { o -> o.withInitialMode(Some(new QName(ENTRY_POINTS_NS, "missing"))) },
+             "Failed to execute transform: Stylesheet has no mode named {${ENTRY_POINTS_NS}}missing"],
+            ["initial template", { o -> o.withInitialTemplate(Some(new QName(ENTRY_POINTS_NS, "missing"))) },
+             "Failed to execute transform: "],
+            ["global context", { o -> o.withGlobalContext(Some(path("/missing/context.xml"))) },
+             "Unable to read --global-context \"/missing/context.xml\""],
+        ]
+    }
+
+    def "transform() reports error when --input-format=json input is not valid JSON"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("json.xsl"), Some(path("-")), None())
+            .withInputFormat(InputFormat.JSON)
+
+        when:
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.transform(op, stream("<a/>"), new ByteArrayOutputStream()) }
+
+        then:
+        result.left._1.startsWith("Unable to parse JSON input: ")
+        result.left._2 == EXIT_STATUS_USER_ERROR
+    }
+
     def "transform() returns error message on invalid input data"() {
         given:
         def input = "<a>..."  // invalid XML
@@ -297,7 +497,7 @@ class XSLTNailSpec extends Specification {
         def input = "<a/>"
         def op = new XSLTTransformOperation(xsltFile.toPath(), Option(null), Option(null))
         def out = new ByteArrayOutputStream()
-        def nail = new XSLTNail(loader, Duration.of(1, ChronoUnit.NANOS))
+        def nail = new XSLTNail(loader, Duration.of(1, ChronoUnit.NANOS), new XSLTNail.Options(), new CachedEntityResolver(io.vavr.collection.List.empty()), new StylesheetAccounting())
 
         when:
         nail.transform(op, stream(input), out)
@@ -346,7 +546,7 @@ class XSLTNailSpec extends Specification {
         def input = "<a/>"
         def op = new XSLTTransformOperation(xsltFile.toPath(), Option(null), Option(null))
         def out = new ByteArrayOutputStream()
-        def nail = new XSLTNail(loader, Duration.of(1, ChronoUnit.NANOS))
+        def nail = new XSLTNail(loader, Duration.of(1, ChronoUnit.NANOS), new XSLTNail.Options(), new CachedEntityResolver(io.vavr.collection.List.empty()), new StylesheetAccounting())
 
         when:
         nail.transform(op, stream(input), out)
@@ -382,6 +582,817 @@ class XSLTNailSpec extends Specification {
         ]
     }
 
+    def "transform() is cancelled with a distinct status when its --timeout expires"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("infinite-output.xsl"), Some(path("-")), None())
+            .withTimeout(Some(Duration.ofMillis(500)))
+        def nail = XSLTNail.newInstance()
+
+        when:
+        def result = nail.transform(op, stream("<a/>"), new ByteArrayOutputStream())
+
+        then:
+        result == Left(Tuple("Transform cancelled because its deadline expired after 0.5 seconds", EXIT_STATUS_CANCELLED))
+        // The evaluation stops, freeing its worker
+        waitUntil(5000) { nail.xsltEvaluateExecutor.getActiveCount() == 0 }
+
+        cleanup:
+        nail.close()
+    }
+
+    def "transform() applies the default timeout when --timeout is not specified"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("infinite-output.xsl"), Some(path("-")), None())
+        def nail = XSLTNail.newInstance(new XSLTNail.Options().withDefaultTimeout(Some(Duration.ofMillis(250))))
+
+        when:
+        def result = nail.transform(op, stream("<a/>"), new ByteArrayOutputStream())
+
+        then:
+        result == Left(Tuple("Transform cancelled because its deadline expired after 0.25 seconds", EXIT_STATUS_CANCELLED))
+
+        cleanup:
+        nail.close()
+    }
+
+    def "transform() stops when cancelled by a client disconnect"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("infinite-output.xsl"), Some(path("-")), None())
+        def nail = XSLTNail.newInstance()
+        def cancellation = new Cancellation()
+
+        when:
+        def result = CompletableFuture.supplyAsync { nail.transform(op, stream("<a/>"), new ByteArrayOutputStream(), cancellation) }
+        waitUntil(5000) { nail.xsltEvaluateExecutor.getActiveCount() == 1 }
+        cancellation.cancel(Cancellation.Reason.CLIENT_DISCONNECTED)
+
+        then:
+        result.get(5, TimeUnit.SECONDS) == Left(Tuple("Transform cancelled because its client disconnected", EXIT_STATUS_CANCELLED))
+        waitUntil(5000) { nail.xsltEvaluateExecutor.getActiveCount() == 0 }
+
+        cleanup:
+        nail.close()
+    }
+
+    def "an evaluation which ignores its cancellation is stopped and its thread replaced when enabled"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("infinite-loop.xsl"), Some(path("-")), None())
+            .withTimeout(Some(Duration.ofMillis(250)))
+        def nail = XSLTNail.newInstance(new XSLTNail.Options().withStopCancelledEvaluations(true))
+        def workers = nail.xsltEvaluateExecutor.getLiveThreadCount()
+
+        when:
+        def result = nail.transform(op, stream("<a/>"), new ByteArrayOutputStream())
+
+        then:
+        result == Left(Tuple("Transform cancelled because its deadline expired after 0.25 seconds", EXIT_STATUS_CANCELLED))
+        waitUntil(5000) { nail.xsltEvaluateExecutor.getActiveCount() == 0 }
+        waitUntil(5000) { nail.xsltEvaluateExecutor.getLiveThreadCount() == workers }
+
+        cleanup:
+        nail.close()
+    }
+
+    /** An output stream whose first write waits until it's released. */
+    static class BlockingOutputStream extends ByteArrayOutputStream {
+        final CountDownLatch writing = new CountDownLatch(1)
+        final CountDownLatch released = new CountDownLatch(1)
+
+        @Override
+        void write(byte[] b, int off, int len) {
+            writing.countDown()
+            released.await()
+            super.write(b, off, len)
+        }
+    }
+
+    def "concurrent identical transforms share one execution"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-spec_")
+        def input = dir.resolve("input.xml")
+        input.text = "<a/>"
+        def op = new XSLTTransformOperation(getResourceAsPath("params.xsl"), Some(input), None(), parameters(DEFAULT_PARAMS))
+        def nail = XSLTNail.newInstance()
+        def leaderOut = new BlockingOutputStream()
+        def followerOuts = (1..3).collect { new ByteArrayOutputStream() }
+
+        when:
+        def leader = CompletableFuture.supplyAsync { nail.transform(op, stream(""), leaderOut) }
+        leaderOut.writing.await(5, TimeUnit.SECONDS)
+        def followers = followerOuts.collect { out -> CompletableFuture.supplyAsync { nail.transform(op, stream(""), out) } }
+        def differentParams = new ByteArrayOutputStream()
+        def other = nail.transform(new XSLTTransformOperation(getResourceAsPath("params.xsl"), Some(input), None(), parameters(DEFAULT_PARAMS.remove("default-param2").put("default-param2", "other value"))), stream(""), differentParams)
+        waitUntil(5000) { nailStatus(nail)["coalesced-transforms"] == 3 }
+        leaderOut.released.countDown()
+
+        then:
+        other.isRight()
+        leader.get(5, TimeUnit.SECONDS).isRight()
+        followers.every { it.get(5, TimeUnit.SECONDS).isRight() }
+        followerOuts.every { it.toString("UTF-8") == leaderOut.toString("UTF-8") }
+        leaderOut.toString("UTF-8").contains("foo")
+        differentParams.toString("UTF-8") != leaderOut.toString("UTF-8")
+        nailStatus(nail)["coalesced-transforms"] == 3
+
+        cleanup:
+        leaderOut.released.countDown()
+        nail?.close()
+        dir?.toFile()?.deleteDir()
+    }
+
+    def "transforms which differ only in their priority or timeout share one execution"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-spec_")
+        def input = dir.resolve("input.xml")
+        input.text = "<a/>"
+        def op = new XSLTTransformOperation(getResourceAsPath("params.xsl"), Some(input), None(), parameters(DEFAULT_PARAMS))
+        def nail = XSLTNail.newInstance()
+        def leaderOut = new BlockingOutputStream()
+        def followerOps = [op.withPriority(Priority.LOW), op.withTimeout(Some(Duration.ofSeconds(30)))]
+        def followerOuts = followerOps.collect { new ByteArrayOutputStream() }
+
+        when:
+        def leader = CompletableFuture.supplyAsync { nail.transform(op, stream(""), leaderOut) }
+        leaderOut.writing.await(5, TimeUnit.SECONDS)
+        def followers = [followerOps, followerOuts].transpose().collect { followerOp, out ->
+            CompletableFuture.supplyAsync { nail.transform(followerOp, stream(""), out) }
+        }
+        waitUntil(5000) { nailStatus(nail)["coalesced-transforms"] == 2 }
+        leaderOut.released.countDown()
+
+        then:
+        leader.get(5, TimeUnit.SECONDS).isRight()
+        followers.every { it.get(5, TimeUnit.SECONDS).isRight() }
+        followerOuts.every { it.toString("UTF-8") == leaderOut.toString("UTF-8") }
+        nailStatus(nail)["coalesced-transforms"] == 2
+
+        cleanup:
+        leaderOut.released.countDown()
+        nail?.close()
+        dir?.toFile()?.deleteDir()
+    }
+
+    def "requests waiting for a transform which fails elect one of themselves to execute it"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-spec_")
+        def input = dir.resolve("input.xml")
+        input.text = "<a/>"
+        def op = new XSLTTransformOperation(getResourceAsPath("params.xsl"), Some(input), None(), parameters(DEFAULT_PARAMS))
+        def nail = XSLTNail.newInstance()
+        def leaderOut = new BlockingOutputStream()
+        def leaderCancellation = new Cancellation()
+        def followerOuts = (1..2).collect { new BlockingOutputStream() }
+
+        when:
+        def leader = CompletableFuture.supplyAsync { nail.transform(op, stream(""), leaderOut, leaderCancellation) }
+        leaderOut.writing.await(5, TimeUnit.SECONDS)
+        def followers = followerOuts.collect { out -> CompletableFuture.supplyAsync { nail.transform(op, stream(""), out) } }
+        waitUntil(5000) { nailStatus(nail)["coalesced-transforms"] == 2 }
+        leaderCancellation.cancel(Cancellation.Reason.CLIENT_DISCONNECTED)
+
+        then:
+        leader.get(5, TimeUnit.SECONDS) == Left(Tuple("Transform cancelled because its client disconnected", EXIT_STATUS_CANCELLED))
+        // One follower leads a new execution, which the other follows
+        waitUntil(5000) { nailStatus(nail)["coalesced-transforms"] == 3 }
+        followerOuts.count { it.writing.count == 0 } == 1
+
+        when:
+        followerOuts.each { it.released.countDown() }
+
+        then:
+        followers.every { it.get(5, TimeUnit.SECONDS).isRight() }
+        followerOuts.every { it.toString("UTF-8").contains("foo") }
+
+        cleanup:
+        leaderOut.released.countDown()
+        followerOuts.each { it.released.countDown() }
+        nail?.close()
+        dir?.toFile()?.deleteDir()
+    }
+
+    def "a request which executes a transform after waiting for one which failed keeps its original deadline"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-spec_")
+        def input = dir.resolve("input.xml")
+        input.text = "<a/>"
+        def op = new XSLTTransformOperation(getResourceAsPath("infinite-output.xsl"), Some(input), None())
+            .withTimeout(Some(Duration.ofSeconds(1)))
+        def nail = XSLTNail.newInstance()
+        def leaderOut = new BlockingOutputStream()
+        def leaderCancellation = new Cancellation()
+
+        when:
+        def leader = CompletableFuture.supplyAsync { nail.transform(op, stream(""), leaderOut, leaderCancellation) }
+        leaderOut.writing.await(5, TimeUnit.SECONDS)
+        def started = System.nanoTime()
+        def follower = CompletableFuture.supplyAsync { nail.transform(op, stream(""), new ByteArrayOutputStream()) }
+        waitUntil(5000) { nailStatus(nail)["coalesced-transforms"] == 1 }
+        Thread.sleep(700)
+        leaderCancellation.cancel(Cancellation.Reason.CLIENT_DISCONNECTED)
+        def result = follower.get(5, TimeUnit.SECONDS)
+        def elapsed = Duration.ofNanos(System.nanoTime() - started)
+
+        then:
+        result == Left(Tuple("Transform cancelled because its deadline expired after 1 seconds", EXIT_STATUS_CANCELLED))
+        elapsed < Duration.ofMillis(1600)
+
+        cleanup:
+        leaderOut.released.countDown()
+        nail?.close()
+        dir?.toFile()?.deleteDir()
+    }
+
+    static Map nailStatus(XSLTNail nail) {
+        def out = new ByteArrayOutputStream()
+        assert nail.writeStatus(out).isRight()
+        return new JsonSlurper().parseText(out.toString("UTF-8")) as Map
+    }
+
+    static boolean waitUntil(long timeoutMillis, Closure<Boolean> condition) {
+        long end = System.currentTimeMillis() + timeoutMillis
+        while (!condition()) {
+            if (System.currentTimeMillis() > end) return false
+            Thread.sleep(10)
+        }
+        return true
+    }
+
+    static void writeBuildStylesheet(Path dir, String moduleResult) {
+        dir.resolve("main.xsl").text = """\
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:import href="module.xsl"/>
+    <xsl:param name="thing" select="'default'"/>
+</xsl:stylesheet>
+"""
+        dir.resolve("module.xsl").text = """\
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:template match="/*">
+        <${moduleResult} input="{local-name()}" thing="{\$thing}"/>
+    </xsl:template>
+</xsl:stylesheet>
+"""
+    }
+
+    static Map build(XSLTNail nail, XSLTBuildOperation op) {
+        def out = new ByteArrayOutputStream()
+        def result = nail.build(op, out)
+        assert result.isRight()
+        return new JsonSlurper().parseText(out.toString("UTF-8")) as Map
+    }
+
+    def "build() transforms inputs and skips them while they're up to date"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-build_")
+        writeBuildStylesheet(dir, "result")
+        Files.createDirectories(dir.resolve("in/sub"))
+        dir.resolve("in/a.xml").text = "<a/>"
+        dir.resolve("in/sub/b.xml").text = "<b/>"
+        dir.resolve("in/ignored.txt").text = "not xml"
+        def op = new XSLTBuildOperation(
+            dir.resolve("main.xsl"), dir.resolve("in"), dir.resolve("out"), Some("**.xml"),
+            "{path}.out{ext}", dir.resolve("manifest.json"), HashMultimap.withSeq().empty(), Priority.NORMAL,
+            false)
+        def nail = XSLTNail.newInstance()
+        def output = { String name -> dir.resolve("out/${name}.out.xml") }
+
+        when: "the first build transforms every input"
+        def summary = build(nail, op)
+
+        then:
+        summary == [inputs: 2, "up-to-date": 0, unchanged: 0, written: 2, failed: 0]
+        expect Input.fromPath(output("a")), isSimilarTo(Input.from('<result input="a" thing="default"/>'))
+        expect Input.fromPath(output("sub/b")), isSimilarTo(Input.from('<result input="b" thing="default"/>'))
+        !Files.exists(dir.resolve("out/ignored.out.txt"))
+
+        when: "nothing has changed"
+        Files.setLastModifiedTime(output("a"), FileTime.fromMillis(0))
+        summary = build(nail, op)
+
+        then:
+        summary == [inputs: 2, "up-to-date": 2, unchanged: 0, written: 0, failed: 0]
+        Files.getLastModifiedTime(output("a")) == FileTime.fromMillis(0)
+
+        when: "an input's content changes, but its output doesn't"
+        dir.resolve("in/a.xml").text = "<a>\n</a>"
+        summary = build(nail, op)
+
+        then:
+        summary == [inputs: 2, "up-to-date": 1, unchanged: 1, written: 0, failed: 0]
+        Files.getLastModifiedTime(output("a")) == FileTime.fromMillis(0)
+
+        when: "an imported module changes"
+        writeBuildStylesheet(dir, "changed")
+        summary = build(nail, op)
+
+        then:
+        summary == [inputs: 2, "up-to-date": 0, unchanged: 0, written: 2, failed: 0]
+        expect Input.fromPath(output("a")), isSimilarTo(Input.from('<changed input="a" thing="default"/>'))
+
+        when: "the parameters change"
+        summary = build(nail, new XSLTBuildOperation(
+            op.xsltPath, op.inputDir, op.outputDir, op.include, op.outputPattern, op.manifestPath,
+            HashMultimap.withSeq().of(new QName("thing"), "x"), op.priority, false))
+
+        then:
+        summary == [inputs: 2, "up-to-date": 0, unchanged: 0, written: 2, failed: 0]
+        expect Input.fromPath(output("sub/b")), isSimilarTo(Input.from('<changed input="b" thing="x"/>'))
+
+        when: "an output is deleted"
+        Files.delete(output("sub/b"))
+        summary = build(nail, op)
+
+        then:
+        summary["written"] == 2
+        Files.exists(output("sub/b"))
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    def "build() reports inputs which fail to transform, and retries them on the next build"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-build_")
+        writeBuildStylesheet(dir, "result")
+        Files.createDirectories(dir.resolve("in"))
+        dir.resolve("in/a.xml").text = "<a/>"
+        dir.resolve("in/b.xml").text = "<b"
+        def op = new XSLTBuildOperation(dir.resolve("main.xsl"), dir.resolve("in"), dir.resolve("out"))
+        def nail = XSLTNail.newInstance()
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def result = nail.build(op, out)
+
+        then:
+        result.isLeft()
+        result.getLeft()._2 == EXIT_STATUS_USER_ERROR
+        result.getLeft()._1.startsWith("Failed to build 1 of 2 inputs:\nb.xml: ")
+        new JsonSlurper().parseText(out.toString("UTF-8")) ==
+            [inputs: 2, "up-to-date": 0, unchanged: 0, written: 1, failed: 1]
+        Files.exists(dir.resolve("out/${XSLTBuildOperation.DEFAULT_MANIFEST_NAME}"))
+
+        when:
+        dir.resolve("in/b.xml").text = "<b/>"
+        def summary = build(nail, op)
+
+        then:
+        summary == [inputs: 2, "up-to-date": 1, unchanged: 0, written: 1, failed: 0]
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    def "build() writes outputs and its manifest with the permissions of a newly created file"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-build_")
+        writeBuildStylesheet(dir, "result")
+        Files.createDirectories(dir.resolve("in"))
+        dir.resolve("in/a.xml").text = "<a/>"
+        def op = new XSLTBuildOperation(dir.resolve("main.xsl"), dir.resolve("in"), dir.resolve("out"))
+        def nail = XSLTNail.newInstance()
+        def permissions = Files.getPosixFilePermissions(Files.createFile(dir.resolve("reference")))
+
+        when:
+        build(nail, op)
+
+        then:
+        Files.getPosixFilePermissions(dir.resolve("out/a.xml")) == permissions
+        Files.getPosixFilePermissions(dir.resolve("out/${XSLTBuildOperation.DEFAULT_MANIFEST_NAME}")) == permissions
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    static final String FUNCTIONS_NS = "http://example.com/functions"
+
+    static def callOperation(XSLTCallOperation.Target target, String name, List<String> args,
+                             Map<String, String> params = [:], String outputMethod = null) {
+        return new XSLTCallOperation(
+            getResourceAsPath("call.xsl"), target, QName.fromClarkName(name), io.vavr.collection.List.ofAll(args))
+            .withParameters(parameters(HashMultimap.withSeq().ofEntries(params.collect { Tuple(it.key, it.value) })))
+            .withOutputMethod(Option(outputMethod))
+    }
+
+    static def runCall(XSLTCallOperation op) {
+        def out = new ByteArrayOutputStream()
+        def result = XSLTNail.newInstance().withCloseable { xn -> xn.call(op, out) }
+        return result.map { out.toString("UTF-8") }
+    }
+
+    @Unroll
+    def "call() calls function with arguments converted to their declared types (#outputMethod)"(
+        params, outputMethod, expected) {
+        when:
+        def result = runCall(callOperation(
+            XSLTCallOperation.Target.FUNCTION, "{${FUNCTIONS_NS}}shelfmark", ["add", "42"], params, outputMethod))
+
+        then:
+        result.get() == expected
+
+        where:
+        params           | outputMethod | expected
+        [:]              | "text"       | "MS ADD.0042"
+        ["prefix": "CS"] | "text"       | "CS ADD.0042"
+        [:]              | "json"       | '"MS ADD.0042"'
+    }
+
+    def "call() serializes function results as JSON"() {
+        when:
+        def result = runCall(callOperation(
+            XSLTCallOperation.Target.FUNCTION, "{${FUNCTIONS_NS}}describe", ["abc"], [:], "json"))
+
+        then:
+        new JsonSlurper().parseText(result.get()) == [id: "abc", length: 3]
+    }
+
+    @Unroll
+    def "call() calls named template with parameters #args"(args, expected) {
+        when:
+        def result = runCall(callOperation(XSLTCallOperation.Target.TEMPLATE, "greeting", args))
+
+        then:
+        expect result.get(), isSimilarTo(expected)
+
+        where:
+        args           | expected
+        []             | "<greeting>Hello world</greeting>"
+        ["name=there"] | "<greeting>Hello there</greeting>"
+    }
+
+    @Unroll
+    def "call() reports error when #desc"(desc, target, name, args, error) {
+        when:
+        def result = runCall(callOperation(target, name, args))
+
+        then:
+        result.getLeft()._2 == EXIT_STATUS_USER_ERROR
+        result.getLeft()._1.contains(error)
+
+        where:
+        [desc, target, name, args, error] << [
+            ["function does not exist", XSLTCallOperation.Target.FUNCTION, "{${FUNCTIONS_NS}}missing".toString(), [],
+             "Failed to execute call: "],
+            ["function has a different arity", XSLTCallOperation.Target.FUNCTION,
+             "{${FUNCTIONS_NS}}shelfmark".toString(), ["add"], "Failed to execute call: "],
+            ["argument cannot be converted", XSLTCallOperation.Target.FUNCTION,
+             "{${FUNCTIONS_NS}}shelfmark".toString(), ["add", "x"], "FORG0001"],
+            ["template does not exist", XSLTCallOperation.Target.TEMPLATE, "missing", [],
+             "Failed to execute call: "],
+            ["template parameter is malformed", XSLTCallOperation.Target.TEMPLATE, "greeting", ["name"],
+             "template parameters must be of the form \"Name=Value\", got: \"name\""],
+        ]
+    }
+
+    def "stylesheets can look up keys in lookup tables relative to the stylesheet"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-lookup_")
+        LookupTable.write([Tuple("MS-ADD-00042", "Add. MS 42")], dir.resolve("labels.xnlt"))
+        def xslt = dir.resolve("lookup.xsl")
+        xslt.text = """\
+            <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                            xmlns:xs="http://www.w3.org/2001/XMLSchema"
+                            xmlns:xn="${Constants.FUNCTIONS_NAMESPACE}" xmlns:f="${FUNCTIONS_NS}">
+              <xsl:function name="f:label" visibility="public">
+                <xsl:param name="table" as="xs:string"/>
+                <xsl:param name="id" as="xs:string"/>
+                <xsl:sequence select="(xn:lookup(\$table, \$id), '(none)')[1]"/>
+              </xsl:function>
+            </xsl:stylesheet>""".stripIndent()
+        def call = { String... args ->
+            runCall(new XSLTCallOperation(
+                xslt, XSLTCallOperation.Target.FUNCTION, new QName(FUNCTIONS_NS, "label"),
+                io.vavr.collection.List.of(args))
+                .withOutputMethod(Some("text")))
+        }
+
+        expect:
+        call("labels.xnlt", "MS-ADD-00042").get() == "Add. MS 42"
+        call("labels.xnlt", "MS-ADD-00043").get() == "(none)"
+        call(dir.resolve("labels.xnlt").toString(), "MS-ADD-00042").get() == "Add. MS 42"
+        call("missing.xnlt", "MS-ADD-00042").getLeft()._1.contains("Unable to open lookup table")
+
+        cleanup:
+        dir.toFile().deleteDir()
+    }
+
+    def "documents read with doc() are shared between transforms until they change"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-shared-docs_")
+        def names = dir.resolve("names.xml")
+        names.text = '<names><name id="a">Alice</name><name id="b">Bob</name></names>'
+        def xslt = dir.resolve("names.xsl")
+        xslt.text = """\
+            <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+              <xsl:key name="name" match="name" use="@id"/>
+              <xsl:template match="person">
+                <person><xsl:value-of select="key('name', @ref, doc('names.xml'))"/></person>
+              </xsl:template>
+            </xsl:stylesheet>""".stripIndent()
+        def nail = XSLTNail.newInstance()
+        def transform = { String input ->
+            def out = new ByteArrayOutputStream()
+            nail.transform(new XSLTTransformOperation(xslt, None(), None()), stream(input), out).get()
+            return out.toString("UTF-8")
+        }
+        def status = {
+            def out = new ByteArrayOutputStream()
+            nail.writeStatus(out)
+            return new JsonSlurper().parseText(out.toString("UTF-8"))
+        }
+
+        expect:
+        transform('<person ref="a"/>').contains("<person>Alice</person>")
+        transform('<person ref="b"/>').contains("<person>Bob</person>")
+        status()["shared-documents"] == 1
+
+        when:
+        names.text = '<names><name id="a">Alicia</name></names>'
+        Files.setLastModifiedTime(names, FileTime.fromMillis(System.currentTimeMillis() + 10000))
+
+        then:
+        transform('<person ref="a"/>').contains("<person>Alicia</person>")
+        status()["shared-documents"] == 1
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    def "transforms with --no-shared-documents parse documents read with doc() themselves"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-unshared-docs_")
+        dir.resolve("names.xml").text = '<names><name id="a">Alice</name></names>'
+        def xslt = dir.resolve("names.xsl")
+        xslt.text = """\
+            <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+              <xsl:template match="person">
+                <person><xsl:value-of select="doc('names.xml')//name[@id = current()/@ref]"/></person>
+              </xsl:template>
+            </xsl:stylesheet>""".stripIndent()
+        def nail = XSLTNail.newInstance()
+        def out = new ByteArrayOutputStream()
+
+        when:
+        nail.transform(
+            new XSLTTransformOperation(xslt, None(), None()).withShareDocuments(false),
+            stream('<person ref="a"/>'), out).get()
+        def status = new ByteArrayOutputStream()
+        nail.writeStatus(status)
+
+        then:
+        out.toString("UTF-8").contains("<person>Alice</person>")
+        new JsonSlurper().parseText(status.toString("UTF-8"))["shared-documents"] == 0
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    def "documents of collections with cache=yes are shared with doc()"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-collection-")
+        (1..5).each { dir.resolve("doc${it}.xml").text = "<doc${it}/>" }
+        def xslt = dir.resolve("collection.xsl")
+        xslt.text = """\
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:output method="text"/>
+    <xsl:template match="/">
+        <xsl:for-each select="collection('.?select=doc*.xml;cache=yes')">
+            <xsl:sort select="document-uri(.)"/>
+            <xsl:value-of select="local-name(*), . is doc(document-uri(.))" separator=":"/>
+            <xsl:text> </xsl:text>
+        </xsl:for-each>
+    </xsl:template>
+</xsl:stylesheet>
+"""
+        def op = new XSLTTransformOperation(xslt, Some(path("-")), None())
+        def nail = XSLTNail.newInstance()
+
+        when:
+        def out = new ByteArrayOutputStream()
+        def result = nail.transform(op, stream("<a/>"), out)
+
+        then:
+        result.isRight()
+        out.toString("UTF-8") == "doc1:true doc2:true doc3:true doc4:true doc5:true "
+        nailStatus(nail)["shared-documents"] == 5
+
+        cleanup:
+        nail?.close()
+        dir?.toFile()?.deleteDir()
+    }
+
+    def "document parameters are parsed once and shared between transforms"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-document-params_")
+        def config = dir.resolve("config.xml")
+        config.text = '<config><greeting>Hello</greeting></config>'
+        def xslt = dir.resolve("greet.xsl")
+        xslt.text = """\
+            <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+              <xsl:param name="config" as="document-node()"/>
+              <xsl:template match="person">
+                <greeting><xsl:value-of select="\$config/config/greeting, ."/></greeting>
+              </xsl:template>
+            </xsl:stylesheet>""".stripIndent()
+        def nail = XSLTNail.newInstance()
+        def op = new XSLTTransformOperation(xslt, None(), None())
+            .withDocumentParameters(HashMultimap.withSeq().of(new QName("config"), config))
+        def transform = { String input ->
+            def out = new ByteArrayOutputStream()
+            def transformed = nail.transform(op, stream(input), out)
+            return transformed.map { out.toString("UTF-8") }
+        }
+        def status = {
+            def out = new ByteArrayOutputStream()
+            nail.writeStatus(out)
+            return new JsonSlurper().parseText(out.toString("UTF-8"))
+        }
+
+        expect:
+        transform('<person>Alice</person>').get().contains("<greeting>Hello Alice</greeting>")
+        transform('<person>Bob</person>').get().contains("<greeting>Hello Bob</greeting>")
+        status()["shared-documents"] == 1
+
+        when:
+        Files.delete(config)
+        def result = transform('<person>Alice</person>')
+
+        then:
+        result.getLeft()._1.startsWith("Unable to read --document-parameter config \"${config}\"")
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    def "idle nails release memory and recompile the hottest stylesheets when requests resume"() {
+        given:
+        def dir = Files.createTempDirectory("xslt-nail-idle_")
+        def stylesheets = ["a", "b", "c"].collect { name ->
+            def xslt = dir.resolve("${name}.xsl")
+            xslt.text = """\
+                <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+                  <xsl:template match="/"><${name}/></xsl:template>
+                </xsl:stylesheet>""".stripIndent()
+            return xslt
+        }
+        def hotListFile = dir.resolve("hot-list.txt")
+        def nail = XSLTNail.newInstance(new XSLTNail.Options()
+            .withIdlePolicy(Some(new XSLTNail.IdlePolicy(Duration.ofSeconds(1), 1)))
+            .withHotListFile(Some(hotListFile)))
+        def transform = { Path xslt ->
+            nail.transform(new XSLTTransformOperation(xslt, None(), None()), stream("<a/>"), new ByteArrayOutputStream()).get()
+        }
+        def status = {
+            def out = new ByteArrayOutputStream()
+            nail.writeStatus(out)
+            return new JsonSlurper().parseText(out.toString("UTF-8"))
+        }
+
+        when:
+        // b is the hottest, then c, then a
+        [1, 0, 1, 2, 1, 2].each { transform(stylesheets[it]) }
+
+        then:
+        status()["cached-stylesheets"] == 3
+        // Memory is released after the nail is reported as idle
+        waitUntil(5000) {
+            def s = status()
+            s["idle"] && s["cached-stylesheets"] == 1 && s["evaluate"]["live-threads"] == 0 && Files.exists(hotListFile)
+        }
+        hotListFile.readLines() == [1, 2, 0].collect { stylesheets[it].toString() }
+
+        when:
+        transform(stylesheets[1])
+
+        then:
+        !status()["idle"]
+        waitUntil(5000) { status()["cached-stylesheets"] == 3 }
+
+        cleanup:
+        nail?.close()
+        dir.toFile().deleteDir()
+    }
+
+    def "stylesheets listed in the hot list file are compiled when the nail is created"() {
+        given:
+        def hotListFile = Files.createTempFile("hot-list", ".txt")
+        hotListFile.text = "${getResourceAsPath("a.xsl")}\n/does-not-exist.xsl\n"
+
+        when:
+        def nail = XSLTNail.newInstance(new XSLTNail.Options().withHotListFile(Some(hotListFile)))
+
+        then:
+        waitUntil(5000) { nail.compiledXsltCache.synchronous().estimatedSize() == 1 }
+
+        cleanup:
+        nail?.close()
+        Files.deleteIfExists(hotListFile)
+    }
+
+    def "call can be invoked via nailgun API"() {
+        given:
+        def server = Mock(NGServer)
+        def context = Mock(NGContext)
+        def out = new ByteArrayOutputStream()
+        context.@out = new PrintStream(out, true, "UTF-8")
+        context.@err = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8")
+
+        when:
+        XSLTNail.nailMain(context)
+
+        then:
+        1 * context.getNGServer() >> server
+        1 * context.getArgs() >> ([
+            "call", "--output-method=text", getResourceAsPath("call.xsl").toString(),
+            "{${FUNCTIONS_NS}}shelfmark".toString(), "add", "-1"] as String[])
+        0 * context.exit(_)
+        out.toString("UTF-8") == "MS ADD.-0001"
+
+        cleanup:
+        XSLTNail.nailShutdown(server)
+    }
+
+    def "writeStatus() reports scheduler queues and cached stylesheets as JSON"() {
+        given:
+        def op = new XSLTTransformOperation(getResourceAsPath("a.xsl"), Some(path("-")), None())
+            .withPriority(Priority.HIGH)
+        def out = new ByteArrayOutputStream()
+        def nail = XSLTNail.newInstance()
+
+        when:
+        nail.transform(op, stream("<a/>"), new ByteArrayOutputStream())
+        def result = nail.writeStatus(out)
+        def status = new JsonSlurper().parseText(out.toString("UTF-8"))
+
+        then:
+        result.isRight()
+        status["cached-stylesheets"] == 1
+        status["shared-documents"] == 0
+        status["cached-entities"] == 0
+        status["memory"]["heap-used-bytes"] > 0
+        status["memory"]["gc-collections"] >= 0
+        ["compile", "evaluate"].every { pool ->
+            status[pool]["threads"] == Runtime.getRuntime().availableProcessors() * 2 &&
+                status[pool]["queued"] == ["high": 0, "normal": 0, "low": 0]
+        }
+
+        cleanup:
+        nail.close()
+    }
+
+    def "writeAccounting() reports the cost of compiling and evaluating each stylesheet as JSON"() {
+        given:
+        def xsltPath = getResourceAsPath("a.xsl")
+        def op = new XSLTTransformOperation(xsltPath, Some(path("-")), None())
+        def out = new ByteArrayOutputStream()
+        def nail = XSLTNail.newInstance()
+
+        when:
+        2.times { nail.transform(op, stream("<a/>"), new ByteArrayOutputStream()) }
+        def result = nail.writeAccounting(out)
+        def report = new JsonSlurper().parseText(out.toString("UTF-8"))
+
+        then:
+        result.isRight()
+        report["stylesheets"].size() == 1
+        with(report["stylesheets"][0]) {
+            path == xsltPath.toRealPath().toString()
+            compile["count"] == 1
+            evaluate["count"] == 2
+            [compile, evaluate].every { it["cpu-time-ns"] >= 0 && it["allocated-bytes"] >= 0 }
+        }
+        !report["allocation-measured"] || report["stylesheets"][0]["compile"]["allocated-bytes"] > 0
+
+        cleanup:
+        nail.close()
+    }
+
+    def "status command can be invoked via nailgun API"() {
+        given:
+        def server = Mock(NGServer)
+        def context = Mock(NGContext)
+        def out = new ByteArrayOutputStream()
+        context.@out = new PrintStream(out, true, "UTF-8")
+        context.@err = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8")
+
+        when:
+        XSLTNail.nailMain(context)
+
+        then:
+        1 * context.getNGServer() >> server
+        1 * context.getArgs() >> (["status"] as String[])
+        0 * context.exit(_)
+        new JsonSlurper().parseText(out.toString("UTF-8"))["cached-stylesheets"] == 0
+
+        cleanup:
+        XSLTNail.nailShutdown(server)
+    }
+
     @Unroll
     def "transform can be invoked via nailgun API"(xsltPath, input, assertResult) {
         given:
@@ -400,6 +1411,8 @@ class XSLTNailSpec extends Specification {
         then:
         1 * context.getNGServer() >> server
         1 * context.getArgs() >> (["transform", "--system-identifier", "file:///tmp/foo.xml", xsltPath, "-"] as String[])
+        1 * context.addClientListener(_)
+        1 * context.removeClientListener(_)
         _ * context.exit(_) >> { int s -> status = s }
         0 * context._
         _ * server.hashCode()
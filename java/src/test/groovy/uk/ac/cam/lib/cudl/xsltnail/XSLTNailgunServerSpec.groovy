@@ -9,7 +9,7 @@ import spock.lang.Specification
 import spock.lang.Unroll
 
 class XSLTNailgunServerSpec extends Specification {
-    private static final OPTIONAL_ARGS = HashMap.ofAll(["--address-type": null, "--log-level": null, "--require-running-process": null])
+    private static final OPTIONAL_ARGS = HashMap.ofAll(["--address-type": null, "--log-level": null, "--require-running-process": null, "--default-timeout": null, "--stop-cancelled": false, "--idle-timeout": null, "--idle-keep-stylesheets": null, "--hot-list": null, "--handover": false, "--package": [], "--catalog": [], "--xml-parser": null, "--backend": []])
 
     NGServer server
     AliasManager aliasManager
@@ -69,6 +69,80 @@ class XSLTNailgunServerSpec extends Specification {
         ].collect { [HashMap.ofAll(it[0]).merge(OPTIONAL_ARGS), HashMap.empty(), it[1]] }
     }
 
+    def "server rejects an invalid --default-timeout"() {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "./foo", "--default-timeout": "never"]).merge(OPTIONAL_ARGS), HashMap.empty(), serverFactory)
+
+        then:
+        def e = thrown(XSLTNailgunServer.FatalError)
+        e.message == "Invalid --default-timeout: must be a positive number of seconds, got: \"never\""
+        0 * server.run()
+    }
+
+    @Unroll
+    def "server rejects an invalid #option"(String option, String value, String message) {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "./foo", (option): value]).merge(OPTIONAL_ARGS), HashMap.empty(), serverFactory)
+
+        then:
+        def e = thrown(XSLTNailgunServer.FatalError)
+        e.message == message
+        0 * server.run()
+
+        where:
+        option                    | value  | message
+        "--idle-timeout"          | "0"    | "Invalid --idle-timeout: must be a positive number of seconds, got: \"0\""
+        "--idle-keep-stylesheets" | "-1"   | "Invalid --idle-keep-stylesheets: must be a non-negative integer, got: \"-1\""
+    }
+
+    def "server rejects an --xml-parser which isn't on the classpath"() {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "./foo", "--xml-parser": "com.example.MissingSAXParserFactory"]).merge(OPTIONAL_ARGS), HashMap.empty(), serverFactory)
+
+        then:
+        def e = thrown(XSLTNailgunServer.FatalError)
+        e.message.startsWith("Invalid --xml-parser: Failed to create XML parser factory: ")
+        0 * server.run()
+    }
+
+    def "server rejects an invalid XSLT_NAILGUN_SERVER_LOG_ASYNC"() {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "./foo"]).merge(OPTIONAL_ARGS), HashMap.of(Constants.LOG_ASYNC_ENVAR, "sometimes"), serverFactory)
+
+        then:
+        def e = thrown(XSLTNailgunServer.FatalError)
+        e.message == "Invalid XSLT_NAILGUN_SERVER_LOG_ASYNC: must be \"drop\" or \"block\", got: \"sometimes\""
+        0 * server.run()
+    }
+
+    def "server rejects --handover for a network address"() {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "127.0.0.1:2048"]).merge(OPTIONAL_ARGS).put("--handover", true), HashMap.empty(), serverFactory)
+
+        then:
+        def e = thrown(XSLTNailgunServer.FatalError)
+        e.message == "--handover requires <address> to be a UNIX domain socket"
+        0 * server.run()
+    }
+
+    def "server runs as a router when backends are specified"() {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "./foo", "--backend": ["./a", "127.0.0.1:2048"]]).merge(OPTIONAL_ARGS), HashMap.empty(), serverFactory)
+
+        then:
+        1 * server.run()
+        aliasManager.getAlias("xslt").getAliasedClass() == XSLTRouter.class
+    }
+
+    def "server executes transforms itself when no backends are specified"() {
+        when:
+        XSLTNailgunServer.main(HashMap.ofAll(["<address>": "./foo"]).merge(OPTIONAL_ARGS), HashMap.empty(), serverFactory)
+
+        then:
+        1 * server.run()
+        aliasManager.getAlias("xslt").getAliasedClass() == XSLTNail.class
+    }
+
     static def isSameAddress(NGListeningAddress a, NGListeningAddress b) {
         if(a.isInetAddress()) {
             return b.isInetAddress() && a.getInetAddress() == b.getInetAddress() && a.getInetPort() == b.getInetPort()
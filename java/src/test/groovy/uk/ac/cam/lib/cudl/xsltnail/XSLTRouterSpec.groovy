@@ -0,0 +1,203 @@
+package uk.ac.cam.lib.cudl.xsltnail
+
+import com.facebook.nailgun.Alias
+import com.facebook.nailgun.NGConstants
+import com.facebook.nailgun.NGContext
+import com.facebook.nailgun.NGListeningAddress
+import com.facebook.nailgun.NGServer
+import groovy.json.JsonSlurper
+import org.xmlunit.builder.Input
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static org.xmlunit.matchers.CompareMatcher.isSimilarTo
+import static spock.util.matcher.HamcrestSupport.expect
+import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_INTERNAL_ERROR
+import static uk.ac.cam.lib.cudl.xsltnail.Constants.EXIT_STATUS_USER_ERROR
+
+class XSLTRouterSpec extends Specification {
+    // NGServer installs a security manager which prevents System.exit(). Each server restores the
+    // one it replaced when it stops, which only leaves the original in place if they stop in order.
+    @Shared SecurityManager securityManager = System.getSecurityManager()
+
+    Path socketDir
+    Map<String, NGServer> servers = [:]
+    static Map<NGServer, Thread> serverThreads = Collections.synchronizedMap([:])
+    XSLTRouter router
+    ByteArrayOutputStream out = new ByteArrayOutputStream()
+    ByteArrayOutputStream err = new ByteArrayOutputStream()
+
+    def setup() {
+        socketDir = Files.createTempDirectory("xslt-router")
+        router = new XSLTRouter(["a", "b"].collect { name ->
+            def address = new NGListeningAddress(socketDir.resolve(name).toString())
+            servers[name] = startBackend(address)
+            new XSLTRouter.Backend(name, address)
+        })
+    }
+
+    def cleanup() {
+        router.close()
+        servers.values().each { stopBackend(it) }
+        System.setSecurityManager(securityManager)
+        socketDir.toFile().deleteDir()
+    }
+
+    static NGServer startBackend(NGListeningAddress address) {
+        def server = new NGServer(address, 2, NGConstants.HEARTBEAT_TIMEOUT_MILLIS)
+        server.setAllowNailsByClassName(false)
+        server.getAliasManager().addAlias(new Alias("xslt", "", XSLTNail.class))
+        def thread = new Thread(server)
+        serverThreads[server] = thread
+        thread.start()
+        def deadline = System.currentTimeMillis() + 5000
+        while (!(server.isRunning() && Files.exists(Path.of(address.getLocalAddress())))) {
+            assert System.currentTimeMillis() < deadline
+            Thread.sleep(10)
+        }
+        return server
+    }
+
+    static void stopBackend(NGServer server) {
+        if (server.isRunning()) server.shutdown()
+        serverThreads[server].join(5000)
+        XSLTNail.nailShutdown(server)
+    }
+
+    static def getResourceAsPath(String path) {
+        return new File(XSLTRouterSpec.class.getResource(path).toURI()).toPath()
+    }
+
+    NGContext context(String input, String... args) {
+        def context = Mock(NGContext) {
+            getArgs() >> args
+            getCommand() >> "xslt"
+            getEnv() >> new Properties()
+            getWorkingDirectory() >> System.getProperty("user.dir")
+            isClientConnected() >> true
+        }
+        context.@in = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))
+        context.@out = new PrintStream(out, true, "UTF-8")
+        context.@err = new PrintStream(err, true, "UTF-8")
+        return context
+    }
+
+    static String text(ByteArrayOutputStream stream) {
+        return stream.toString(StandardCharsets.UTF_8)
+    }
+
+    int cachedStylesheets(String backend) {
+        def status = new ByteArrayOutputStream()
+        def client = NailgunClient.connect(router.getBackends().find { it.name == backend }.address)
+        try {
+            assert client.run("xslt", ["status"] as String[], [:], "/", new ByteArrayInputStream(new byte[0]), status, status, router.heartbeatExecutor) == 0
+        } finally {
+            client.close()
+        }
+        return new JsonSlurper().parseText(text(status))["cached-stylesheets"]
+    }
+
+    def "stylesheets are routed by their path relative to the client's working directory"() {
+        expect:
+        XSLTRouter.getRoutingKey(["transform", "a.xsl", "-"] as String[], "/data/xslt") == "/data/xslt/a.xsl"
+        XSLTRouter.getRoutingKey(["transform", "../xslt/a.xsl", "-"] as String[], "/data/input") == "/data/xslt/a.xsl"
+        XSLTRouter.getRoutingKey(["transform", "/data/xslt/a.xsl", "-"] as String[], "/elsewhere") == "/data/xslt/a.xsl"
+        XSLTRouter.getRoutingKey(["--help"] as String[], "/data") == ""
+    }
+
+    def "transforms are forwarded to the preferred backend for their stylesheet"() {
+        given:
+        def xslt = getResourceAsPath("a.xsl").toString()
+        def args = ["transform", "--parameter", "thing=foo", xslt, "-"] as String[]
+        def preferred = router.route(args, "/").head().name
+        def ctx = context("<foo/>", args)
+
+        when:
+        router.forward(ctx)
+
+        then:
+        0 * ctx.exit(_)
+        expect text(out), isSimilarTo(Input.from("<result thing=\"foo\"><foo/></result>"))
+        cachedStylesheets(preferred) == 1
+        cachedStylesheets(["a", "b"].find { it != preferred }) == 0
+    }
+
+    def "backend error statuses and messages are forwarded"() {
+        given:
+        def ctx = context("", "transform", getResourceAsPath("invalid-syntax.xsl").toString(), "-")
+
+        when:
+        router.forward(ctx)
+
+        then:
+        1 * ctx.exit(EXIT_STATUS_USER_ERROR)
+        text(err).contains("Failed to compile XSLT")
+    }
+
+    def "requests are re-routed when a backend is unavailable"() {
+        given:
+        def args = ["transform", getResourceAsPath("a.xsl").toString(), "-"] as String[]
+        def preferred = router.route(args, "/").head()
+        stopBackend(servers[preferred.name])
+        def ctx = context("<foo/>", args)
+
+        when:
+        router.forward(ctx)
+
+        then:
+        0 * ctx.exit(_)
+        expect text(out), isSimilarTo(Input.from("<result><foo/></result>"))
+        !preferred.isHealthy()
+        router.route(args, "/").head() != preferred
+    }
+
+    def "health checks mark backends unavailable and available again"() {
+        given:
+        def backend = router.getBackends().head()
+
+        when:
+        stopBackend(servers[backend.name])
+        router.checkHealth()
+
+        then:
+        !backend.isHealthy()
+        router.getBackends().tail().every { it.isHealthy() }
+
+        when:
+        Files.deleteIfExists(Path.of(backend.address.getLocalAddress()))
+        servers[backend.name] = startBackend(backend.address)
+        router.checkHealth()
+
+        then:
+        backend.isHealthy()
+    }
+
+    def "requests fail when no backend is available"() {
+        given:
+        servers.values().each { stopBackend(it) }
+        def ctx = context("<foo/>", "transform", getResourceAsPath("a.xsl").toString(), "-")
+
+        when:
+        router.forward(ctx)
+
+        then:
+        1 * ctx.exit(EXIT_STATUS_INTERNAL_ERROR)
+        text(err).contains("No backend server is available to handle the request")
+    }
+
+    def "status reports the health of the router's backends"() {
+        given:
+        def ctx = context("", "status")
+
+        when:
+        router.forward(ctx)
+
+        then:
+        0 * ctx.exit(_)
+        new JsonSlurper().parseText(text(out)) == [backends: [[name: "a", healthy: true], [name: "b", healthy: true]]]
+    }
+}
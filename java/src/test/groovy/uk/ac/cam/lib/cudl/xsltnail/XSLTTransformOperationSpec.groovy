@@ -10,11 +10,19 @@ import spock.lang.Specification
 import spock.lang.Unroll
 
 import java.nio.file.FileSystems
+import java.time.Duration
 
 import static io.vavr.API.List
 import static io.vavr.API.Option;
 
 class XSLTTransformOperationSpec extends Specification {
+    private static final REQUIRED_ARGS = HashMap.ofAll([
+        "transform": true, "<xslt-file>": "/foo", "<xml-file>": null, "--system-identifier": null, "--parameter": List()])
+    private static final OPTIONAL_ARGS = HashMap.ofAll([
+        "--document-parameter": List(), "--result-document-manifest": null, "--input-compression": null, "--input-format": null,
+        "--initial-mode": null, "--initial-template": null, "--global-context": null, "--output-compression": null,
+        "--priority": null, "--timeout": null, "--no-shared-documents": false])
+
     def "properties follow constructor arguments"() {
         given:
         def xsltPath = FileSystems.getDefault().getPath("/foo")
@@ -39,14 +47,15 @@ class XSLTTransformOperationSpec extends Specification {
         thrown(NoSuchElementException.class)
 
         where:
-        values << [
+        values << ([
             [:],
             [/*              */ "<xslt-file>": "/foo", "<xml-file>": null, "--system-identifier": null, "--parameter": List()],
             ["transform": true, /*                  */ "<xml-file>": null, "--system-identifier": null, "--parameter": List()],
             ["transform": true, "<xslt-file>": "/foo", /*               */ "--system-identifier": null, "--parameter": List()],
             ["transform": true, "<xslt-file>": "/foo", "<xml-file>": null, /*                        */ "--parameter": List()],
             ["transform": true, "<xslt-file>": "/foo", "<xml-file>": null, "--system-identifier": null, /*                 */],
-        ].collect { HashMap.ofAll(it) }
+        ].collect { HashMap.ofAll(it).merge(OPTIONAL_ARGS) } +
+            OPTIONAL_ARGS.keySet().collect { REQUIRED_ARGS.merge(OPTIONAL_ARGS.remove(it)) })
     }
 
     @Unroll
@@ -54,7 +63,7 @@ class XSLTTransformOperationSpec extends Specification {
         when:
         def result = XSLTTransformOperation.fromParsedArguments(HashMap.ofAll([
             "transform": true, "<xslt-file>": "/foo", "<xml-file>": null, "--system-identifier": null, "--parameter": values
-        ]))
+        ]).merge(OPTIONAL_ARGS))
         then:
         result.isFailure()
 
@@ -77,6 +86,178 @@ class XSLTTransformOperationSpec extends Specification {
         })
     }
 
+    def "fromParsedArguments() reads --result-document-manifest"() {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(
+            REQUIRED_ARGS.put("--result-document-manifest", "/tmp/manifest.json").merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().resultDocumentManifest == Option(FileSystems.getDefault().getPath("/tmp/manifest.json"))
+    }
+
+    @Unroll
+    def "fromParsedArguments() reads --priority #args"(args, priority) {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(HashMap.ofAll(args)).merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().priority == priority
+
+        where:
+        [args, priority] << [
+            [[:], Priority.NORMAL],
+            [["--priority": "high"], Priority.HIGH],
+            [["--priority": "low"], Priority.LOW],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reads --timeout #args"(args, timeout) {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(HashMap.ofAll(args)).merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().timeout == timeout
+
+        where:
+        [args, timeout] << [
+            [[:], Option(null)],
+            [["--timeout": "30"], Option(Duration.ofSeconds(30))],
+            [["--timeout": "0.25"], Option(Duration.ofMillis(250))],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reads --no-shared-documents #args"(args, shareDocuments) {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(HashMap.ofAll(args)).merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().shareDocuments == shareDocuments
+
+        where:
+        [args, shareDocuments] << [
+            [[:], true],
+            [["--no-shared-documents": true], false],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reads compression options #args"(args, inputCompression, outputCompression) {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(HashMap.ofAll(args)).merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().inputCompression == inputCompression
+        result.get().outputCompression == outputCompression
+
+        where:
+        [args, inputCompression, outputCompression] << [
+            [[:], Option(null), Compression.NONE],
+            [["--input-compression": "auto"], Option(null), Compression.NONE],
+            [["--input-compression": "none"], Option(Compression.NONE), Compression.NONE],
+            [["--input-compression": "gzip", "--output-compression": "gzip"], Option(Compression.GZIP), Compression.GZIP],
+            [["--output-compression": "none"], Option(null), Compression.NONE],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reads --input-format #args"(args, format) {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(HashMap.ofAll(args)).merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().inputFormat == format
+
+        where:
+        [args, format] << [
+            [[:], InputFormat.XML],
+            [["--input-format": "xml"], InputFormat.XML],
+            [["--input-format": "json"], InputFormat.JSON],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reads entry point options #args"(args, mode, template, context) {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(HashMap.ofAll(args).merge(REQUIRED_ARGS).merge(OPTIONAL_ARGS))
+
+        then:
+        result.get().initialMode == mode
+        result.get().initialTemplate == template
+        result.get().globalContext == context
+
+        where:
+        [args, mode, template, context] << [
+            [[:], Option(null), Option(null), Option(null)],
+            [["--initial-mode": "{uri}summary", "<xml-file>": "-"], Option(new QName("uri", "summary")), Option(null), Option(null)],
+            [["--initial-template": "report", "--global-context": "/context.xml"], Option(null), Option(new QName("report")),
+             Option(FileSystems.getDefault().getPath("/context.xml"))],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reports invalid entry point options #args"(args, msg) {
+        when:
+        XSLTTransformOperation.fromParsedArguments(HashMap.ofAll(args).merge(REQUIRED_ARGS).merge(OPTIONAL_ARGS)).get()
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message.startsWith(msg)
+
+        where:
+        [args, msg] << [
+            [["--initial-mode": "{uri"], "--initial-mode must be a qname in Clark notation (\"{uri}local\"), got: \"{uri\""],
+            [["--initial-template": "1st"], "--initial-template must be a qname in Clark notation (\"{uri}local\"), got: \"1st\""],
+            [["--initial-mode": "a", "--initial-template": "b"], "--initial-mode and --initial-template cannot both be specified"],
+            [["--initial-template": "b", "<xml-file>": "-"], "--initial-template transforms have no <xml-file> or --system-identifier"],
+            [["--initial-template": "b", "--system-identifier": "file:///a.xml"], "--initial-template transforms have no <xml-file> or --system-identifier"],
+        ]
+    }
+
+    @Unroll
+    def "fromParsedArguments() reports invalid compression options #args"(args, msg) {
+        when:
+        XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(HashMap.ofAll(args)).merge(OPTIONAL_ARGS)).get()
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == msg
+
+        where:
+        [args, msg] << [
+            [["--input-compression": "zip"], "--input-compression must be auto, none or gzip, got: \"zip\""],
+            [["--output-compression": "auto"], "--output-compression must be none or gzip, got: \"auto\""],
+            [["--input-format": "yaml"], "--input-format must be xml or json, got: \"yaml\""],
+            [["--priority": "urgent"], "--priority must be high, normal or low, got: \"urgent\""],
+            [["--timeout": "0"], "--timeout must be a positive number of seconds, got: \"0\""],
+            [["--timeout": "-1"], "--timeout must be a positive number of seconds, got: \"-1\""],
+            [["--timeout": "soon"], "--timeout must be a positive number of seconds, got: \"soon\""],
+        ]
+    }
+
+    def "fromParsedArguments() parses --document-parameter values as paths"() {
+        when:
+        def op = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(OPTIONAL_ARGS).put(
+            "--document-parameter", List("{uri}config=/config.xml", "lookup=a.xml", "lookup=b.xml"))).get()
+
+        then:
+        op.documentParameters == HashMultimap.withSeq().ofEntries([
+            Tuple.of(new QName("uri", "config"), FileSystems.getDefault().getPath("/config.xml")),
+            Tuple.of(new QName("lookup"), FileSystems.getDefault().getPath("a.xml")),
+            Tuple.of(new QName("lookup"), FileSystems.getDefault().getPath("b.xml"))])
+    }
+
+    def "fromParsedArguments() rejects parameters set by both --parameter and --document-parameter"() {
+        when:
+        def result = XSLTTransformOperation.fromParsedArguments(REQUIRED_ARGS.merge(OPTIONAL_ARGS)
+            .put("--parameter", List("{uri}config=x"))
+            .put("--document-parameter", List("{uri}config=/config.xml")))
+
+        then:
+        result.getCause().getMessage() == "parameter \"{uri}config\" cannot be set by both --parameter and --document-parameter"
+    }
+
     @Unroll
     def "fromParsedArguments() accepts valid args"(Map<String, Object> args, expected) {
         when:
@@ -97,7 +278,7 @@ class XSLTTransformOperationSpec extends Specification {
                 Tuple.of(new QName("uri", "local"), "boz")]]]
         ].collect { it ->
             return [
-            HashMap.ofAll(it[0]),
+            HashMap.ofAll(it[0]).merge(OPTIONAL_ARGS),
             new XSLTTransformOperation(
                 FileSystems.getDefault().getPath(it[1][0]),
                 Option(it[1][1]).map(FileSystems.getDefault().&getPath),
@@ -0,0 +1,24 @@
+<?xml version="1.0"?>
+<xsl:stylesheet version="3.0"
+                xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:xs="http://www.w3.org/2001/XMLSchema"
+                xmlns:f="http://example.com/functions"
+                exclude-result-prefixes="xs f">
+    <xsl:param name="prefix" select="'MS'"/>
+
+    <xsl:function name="f:shelfmark" as="xs:string" visibility="public">
+        <xsl:param name="collection" as="xs:string"/>
+        <xsl:param name="number" as="xs:integer"/>
+        <xsl:sequence select="$prefix || ' ' || upper-case($collection) || '.' || format-integer($number, '0000')"/>
+    </xsl:function>
+
+    <xsl:function name="f:describe" as="map(*)" visibility="public">
+        <xsl:param name="id" as="xs:string"/>
+        <xsl:sequence select="map{'id': $id, 'length': string-length($id)}"/>
+    </xsl:function>
+
+    <xsl:template name="greeting" visibility="public">
+        <xsl:param name="name" select="'world'"/>
+        <greeting>Hello <xsl:value-of select="$name"/></greeting>
+    </xsl:template>
+</xsl:stylesheet>
@@ -0,0 +1,23 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:ep="http://example.com/entry-points"
+                version="3.0">
+    <xsl:global-context-item use="optional"/>
+    <xsl:variable name="context" select="local-name(/*)"/>
+
+    <xsl:template match="/*">
+        <default input="{local-name()}" context="{$context}"/>
+    </xsl:template>
+
+    <xsl:template match="/*" mode="ep:summary">
+        <summary input="{local-name()}" context="{$context}"/>
+    </xsl:template>
+
+    <xsl:template name="ep:hello">
+        <hello/>
+    </xsl:template>
+
+    <xsl:template name="ep:report">
+        <report context="{$context}"/>
+    </xsl:template>
+</xsl:stylesheet>
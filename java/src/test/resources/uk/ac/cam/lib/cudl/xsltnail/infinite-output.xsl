@@ -0,0 +1,12 @@
+<?xml version="1.0"?>
+<xsl:stylesheet version="3.0"
+                xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:template match="/">
+        <xsl:call-template name="loop"/>
+    </xsl:template>
+
+    <xsl:template name="loop">
+        <xsl:text>output </xsl:text>
+        <xsl:call-template name="loop"/>
+    </xsl:template>
+</xsl:stylesheet>
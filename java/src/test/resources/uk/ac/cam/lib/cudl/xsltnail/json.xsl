@@ -0,0 +1,16 @@
+<?xml version="1.0"?>
+<xsl:stylesheet version="3.0"
+                xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:xs="http://www.w3.org/2001/XMLSchema"
+                xmlns:array="http://www.w3.org/2005/xpath-functions/array"
+                exclude-result-prefixes="xs array">
+    <xsl:template match=".[. instance of map(*)]">
+        <result name="{?name}" count="{array:size(?items)}" global-context-is-map="{$root instance of map(*)}">
+            <xsl:apply-templates select="?items?*"/>
+        </result>
+    </xsl:template>
+    <xsl:template match=".[. instance of xs:double]">
+        <number><xsl:value-of select=". * 2"/></number>
+    </xsl:template>
+    <xsl:variable name="root" select="."/>
+</xsl:stylesheet>
@@ -0,0 +1,14 @@
+<?xml version="1.0"?>
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:param name="output-dir"/>
+
+    <xsl:template match="/">
+        <result>
+            <xsl:for-each select="1 to 3">
+                <xsl:result-document href="{$output-dir}/pages/page-{.}.xml">
+                    <page n="{.}"/>
+                </xsl:result-document>
+            </xsl:for-each>
+        </result>
+    </xsl:template>
+</xsl:stylesheet>
@@ -0,0 +1,14 @@
+#!/usr/bin/env bash
+set -euo pipefail
+DIR="$(readlink -f "$(dirname "${BASH_SOURCE[0]}")")"
+JARS="$DIR/../java/target/jars"
+LOAD_TEST_JARS="$DIR/../java/target/load-test"
+
+for dir in "$JARS" "$LOAD_TEST_JARS"; do
+  if [[ ! -d "$dir" ]]; then
+    echo "Error: $dir does not exist, build the Java code with: make compile-java" 1>&2
+    exit 1
+  fi
+done
+
+exec java -cp "$JARS/*:$LOAD_TEST_JARS/*" uk.ac.cam.lib.cudl.xsltnail.XSLTLoadTest "$@"
@@ -3,13 +3,16 @@ import {name} from 'xml-name-validator';
 import assert from 'assert';
 import BufferListStream from 'bl';
 import {ChildProcess, spawn} from 'child_process';
+import {randomBytes} from 'crypto';
 import createDebug from 'debug';
 import {EventEmitter} from 'events';
+import fs from 'fs';
 import jsonStableStringify from 'json-stable-stringify';
+import os from 'os';
 import path from 'path';
 import readline from 'readline';
 import RingBuffer from 'ringbufferjs';
-import {Readable} from 'stream';
+import {PassThrough, Readable} from 'stream';
 import {AsyncParallelHook, SyncBailHook, SyncHook} from 'tapable';
 import TraceError from 'trace-error';
 import * as util from 'util';
@@ -117,6 +120,14 @@ export interface CreateOptions {
    * before killing it and failing the XSLT execution.
    */
   jvmStartupTimeout?: number;
+
+  /**
+   * The kind of socket the xslt-nailgun server listens on. 'local' (the
+   * default) uses a temporary UNIX domain socket (or a named pipe on Windows),
+   * which avoids the overhead of TCP for each execute() call. 'network' listens
+   * on a random port on the loopback interface.
+   */
+  jvmAddressType?: AddressType;
 }
 type StrictCreateOptions = Required<CreateOptions>;
 
@@ -167,7 +178,10 @@ export class IPServerAddress {
 }
 
 export interface JVMProcessOptions
-  extends Omit<StrictCreateOptions, 'jvmKeepAliveTimeout' | 'jvmProcessID'>,
+  extends Omit<
+      StrictCreateOptions,
+      'jvmKeepAliveTimeout' | 'jvmProcessID' | 'jvmAddressType'
+    >,
     ServerAddress {
   classpath: string;
   /**
@@ -195,6 +209,10 @@ function populateDefaults(options: CreateOptions): StrictCreateOptions {
       options.jvmStartupTimeout === undefined
         ? DEFAULT_JVM_STARTUP_TIMEOUT
         : options.jvmStartupTimeout,
+    jvmAddressType:
+      options.jvmAddressType === undefined
+        ? AddressType.local
+        : options.jvmAddressType,
   };
 }
 
@@ -532,6 +550,15 @@ type RandomPortJVMProcessOptions = Omit<
   JVMProcessOptions,
   'addressType' | 'listenAddress'
 >;
+type TemporarySocketJVMProcessOptions = RandomPortJVMProcessOptions;
+
+function createTemporarySocketPath(): string {
+  const name = `xslt-nailgun-${process.pid}-${randomBytes(8).toString('hex')}`;
+  if (process.platform === 'win32') {
+    return `\\\\.\\pipe\\${name}`;
+  }
+  return path.join(os.tmpdir(), `${name}.sock`);
+}
 
 export class JVMProcess implements Closable {
   static async listeningOnRandomPort(
@@ -544,6 +571,22 @@ export class JVMProcess implements Closable {
     });
   }
 
+  /**
+   * Create a server listening on a newly-created local socket, which is
+   * removed when the process is closed.
+   */
+  static async listeningOnTemporarySocket(
+    options: TemporarySocketJVMProcessOptions
+  ): Promise<JVMProcess> {
+    const jvmProcess = new JVMProcess({
+      ...options,
+      addressType: AddressType.local,
+      listenAddress: createTemporarySocketPath(),
+    });
+    jvmProcess.removeSocketOnClose = process.platform !== 'win32';
+    return jvmProcess;
+  }
+
   private static createExitObject(
     code: number | null,
     signal: string | null
@@ -567,6 +610,7 @@ export class JVMProcess implements Closable {
   private readonly stderrLines: RingBuffer<string>;
   private readonly boundOnProcessExit = this.onProcessExit.bind(this);
   private closeCalled = false;
+  private removeSocketOnClose = false;
 
   constructor(options: JVMProcessOptions) {
     const startupTimeout = options.jvmStartupTimeout;
@@ -796,6 +840,17 @@ nailgun server's stderr will no longer be monitored as the server has started an
       DEBUG.jvmProcess('stopped JVM; pid=%d', this.process.pid);
     }
     process.removeListener('exit', this.boundOnProcessExit);
+    if (this.removeSocketOnClose) {
+      await fs.promises.unlink(this.address.listenAddress).catch(error => {
+        if (error.code !== 'ENOENT') {
+          DEBUG.jvmProcess(
+            'failed to remove server socket; path=%s, error=%s',
+            this.address.listenAddress,
+            error
+          );
+        }
+      });
+    }
   }
 
   getCurrentStderr(): string {
@@ -925,8 +980,13 @@ function getServerProcessReference(
         );
       }
     }
-    const jvmProcess = JVMProcess.listeningOnRandomPort({
-      ...options,
+    const {jvmAddressType, ...processOptions} = options;
+    const jvmProcess = (
+      jvmAddressType === AddressType.local
+        ? JVMProcess.listeningOnTemporarySocket
+        : JVMProcess.listeningOnRandomPort
+    )({
+      ...processOptions,
       classpath: getClasspath(),
     });
     const autoCloser = new DefaultAutoCloser<JVMProcess>(
@@ -997,6 +1057,7 @@ function getServerProcessReference(
 const EXIT_STATUS_OK = 0;
 const EXIT_STATUS_INTERNAL_ERROR = 1;
 const EXIT_STATUS_USER_ERROR = 2;
+const EXIT_STATUS_CANCELLED = 4;
 
 interface Parameters {
   [name: string]: string | string[];
@@ -1030,6 +1091,29 @@ interface BaseExecuteOptions {
    * ```
    */
   parameters?: Parameters;
+
+  /**
+   * Global parameters whose values are XML documents, parsed from the files at the given paths.
+   *
+   * Keys are parameter names in Clark notation, as with `parameters`. The server parses each document once and
+   * shares it between transforms until its file changes, so large configuration or lookup documents aren't
+   * re-parsed for every transform. A parameter can't be set by both `parameters` and `documentParameters`.
+   */
+  documentParameters?: Parameters;
+
+  /**
+   * The scheduling class of the transform. When the server is busy, queued work is shared between the classes
+   * in proportion to their weight, so `'high'` priority interactive requests aren't held up by `'low'` priority
+   * bulk jobs. Defaults to `'normal'`.
+   */
+  priority?: 'high' | 'normal' | 'low';
+
+  /**
+   * The maximum number of seconds the transform may take, including waiting for its stylesheet to compile. The
+   * transform is cancelled and the promise rejected with an InternalError if it takes longer. Defaults to the
+   * server's default timeout, if it has one.
+   */
+  timeout?: number;
 }
 
 interface XMLViaValue {
@@ -1069,10 +1153,20 @@ export class XSLTExecutor implements Closable {
       options.systemIdentifier === undefined
         ? []
         : ['--system-identifier', options.systemIdentifier];
+    const priority =
+      options.priority === undefined ? [] : [`--priority=${options.priority}`];
+    const timeout =
+      options.timeout === undefined ? [] : [`--timeout=${options.timeout}`];
     let parameters: string[];
     try {
       parameters = XSLTExecutor.encodeParameterOptions(
+        '--parameter',
         options.parameters || {}
+      ).concat(
+        XSLTExecutor.encodeParameterOptions(
+          '--document-parameter',
+          options.documentParameters || {}
+        )
       );
     } catch (e) {
       assert(e instanceof Error);
@@ -1108,6 +1202,8 @@ No input specified in options - at least one of xml, xmlPath, systemIdentifier m
     return {
       args: ['transform']
         .concat(systemIdentifier)
+        .concat(priority)
+        .concat(timeout)
         .concat(parameters)
         .concat(['--', options.xsltPath])
         .concat(xmlPath),
@@ -1115,7 +1211,10 @@ No input specified in options - at least one of xml, xmlPath, systemIdentifier m
     };
   }
 
-  private static encodeParameterOptions(parameters: Parameters): string[] {
+  private static encodeParameterOptions(
+    option: string,
+    parameters: Parameters
+  ): string[] {
     const options = [];
     for (const clarkQname of Object.keys(parameters)) {
       // Ensure a valid Clark qname is used
@@ -1123,7 +1222,7 @@ No input specified in options - at least one of xml, xmlPath, systemIdentifier m
 
       const values = parameters[clarkQname];
       for (const value of typeof values === 'string' ? [values] : values) {
-        options.push(`--parameter=${clarkQname}=${value}`);
+        options.push(`${option}=${clarkQname}=${value}`);
       }
     }
     return options;
@@ -1131,7 +1230,7 @@ No input specified in options - at least one of xml, xmlPath, systemIdentifier m
 
   private readonly serverProcessRef: AutoCloserReference<JVMProcess>;
   private closeStarted: boolean;
-  private readonly activeExecutions: Set<Promise<Buffer>>;
+  private readonly activeExecutions: Set<Promise<unknown>>;
 
   private constructor(serverProcessRef: AutoCloserReference<JVMProcess>) {
     this.serverProcessRef = serverProcessRef;
@@ -1151,14 +1250,52 @@ No input specified in options - at least one of xml, xmlPath, systemIdentifier m
   }
 
   execute(options: ExecuteOptions): Promise<Buffer> {
-    const pendingResult = this.doExecute(options);
+    // FIXME: cast to include EventEmitter is required currently, as the bl mod
+    // uses readable-stream, and it (incorrectly) doesn't include all the
+    // EventEmitter methods. .pipe() requires an EventEmitter.
+    const stdoutData = new BufferListStream() as BufferListStream &
+      EventEmitter;
+    return this.trackExecution(this.doExecute(options, stdoutData)).then(() =>
+      stdoutData.slice()
+    );
+  }
+
+  /**
+   * Execute a transform, streaming its result rather than buffering it in
+   * memory.
+   *
+   * The returned stream is only ended once the transform has completed
+   * successfully. If the transform fails, the stream is destroyed with the
+   * error that execute() would have rejected with, after emitting any output
+   * produced before the failure. Reading is subject to back-pressure: the
+   * server stops receiving output when the stream's consumer stops reading.
+   * Destroying the stream before it ends kills the transform.
+   */
+  executeStream(options: ExecuteOptions): Readable {
+    const output = new PassThrough();
+    this.trackExecution(this.doExecute(options, output)).then(
+      () => output.end(),
+      error => output.destroy(error)
+    );
+    return output;
+  }
+
+  private trackExecution<T>(pendingResult: Promise<T>): Promise<T> {
     this.activeExecutions.add(pendingResult);
     return pendingResult.finally(() => {
       this.activeExecutions.delete(pendingResult);
     });
   }
 
-  private async doExecute(options: ExecuteOptions): Promise<Buffer> {
+  /**
+   * Execute a transform, writing its output to stdout. stdout is not ended, as
+   * whether the transform succeeded is only known after its output has been
+   * written.
+   */
+  private async doExecute(
+    options: ExecuteOptions,
+    stdout: NodeJS.WritableStream
+  ): Promise<void> {
     if (this.closeStarted) {
       throw new Error('execute() called following close()');
     }
@@ -1167,11 +1304,12 @@ No input specified in options - at least one of xml, xmlPath, systemIdentifier m
 
     const process = await (await this.serverProcessRef).resource;
     const address = await process.serverStarted;
-    if (address.addressType !== AddressType.network) {
-      throw new Error(`\
-Unsupported address type: ${process.address.addressType} - jvmpin only supports TCP connections`);
-    }
-    const conn = jvmpin.createConnection(address.port, address.host);
+    // The nailgun protocol only permits one command per connection, so
+    // connections can't be reused. Local sockets keep connecting cheap.
+    const conn =
+      address.addressType === AddressType.local
+        ? jvmpin.createConnection({path: address.listenAddress})
+        : jvmpin.createConnection(address.port, address.host);
 
     const error = new Promise<never>((resolve, reject) => {
       conn.on('error', e => {
@@ -1212,24 +1350,32 @@ Error communicating with xslt-nailgun server. Nailgun server stderr${serverError
       });
     });
 
-    // FIXME: cast to include EventEmitter is required currently, as the bl mod
-    // uses readable-stream, and it (incorrectly) doesn't include all the
-    // EventEmitter methods. .pipe() requires an EventEmitter.
-    const stdoutData = new BufferListStream() as BufferListStream &
-      EventEmitter;
     const stderrData = new BufferListStream() as BufferListStream &
       EventEmitter;
-    proc.stdout.pipe(stdoutData);
+    const stdoutEnded = new Promise<void>(resolve => {
+      proc.stdout.once('end', () => resolve());
+    });
+    // If the consumer of a stream gives up, stop the transform
+    const onStdoutClosed = () => proc.kill();
+    stdout.once('close', onStdoutClosed);
+    proc.stdout.pipe(stdout, {end: false});
     proc.stderr.pipe(stderrData);
     proc.stdin.end(stdin);
 
-    const [status] = await abortOnError(
-      Promise.all([exitStatus, connectionClosed]),
-      error
-    );
+    let status: number;
+    try {
+      [status] = await abortOnError(
+        Promise.all([exitStatus, connectionClosed]),
+        error
+      );
+    } finally {
+      stdout.removeListener('close', onStdoutClosed);
+    }
 
     if (status === EXIT_STATUS_OK) {
-      return stdoutData.slice();
+      // Output buffered in proc.stdout may still be waiting to be piped
+      await stdoutEnded;
+      proc.stdout.unpipe(stdout);
     } else if (status === EXIT_STATUS_USER_ERROR) {
       throw new UserError(
         `\
@@ -1237,7 +1383,13 @@ XSLT evaluation produced an error: ${stderrData.toString()}`,
         options
       );
     } else {
-      if (status === EXIT_STATUS_INTERNAL_ERROR) {
+      if (status === EXIT_STATUS_CANCELLED) {
+        throw new InternalError(`\
+XSLT nail cancelled the transform${errorMessageOrFallback(
+  stderrData.toString(),
+  ' but no error message is available.'
+)}`);
+      } else if (status === EXIT_STATUS_INTERNAL_ERROR) {
         throw new InternalError(`\
 XSLT nail failed to execute transform due to an internal error\
 ${errorMessageOrFallback(
@@ -1293,3 +1445,13 @@ export async function execute(options: ExecuteOptions & CreateOptions) {
     executor.execute(options)
   );
 }
+
+export function executeStream(
+  options: ExecuteOptions & CreateOptions
+): Readable {
+  const executor = XSLTExecutor.getInstance(options);
+  const output = executor.executeStream(options);
+  // The executor closes once the stream's execution has completed
+  executor.close().catch(error => output.destroy(error));
+  return output;
+}
@@ -1,4 +1,5 @@
 export {
+  AddressType,
   CreateOptions,
   ExecuteOptions,
   InternalError,
@@ -6,6 +7,7 @@ export {
   XSLTExecutor,
   XSLTNailgunError,
   execute,
+  executeStream,
   hooks,
 } from './_internals';
 
@@ -1,9 +1,13 @@
 import 'jest-xml-matcher';
+import fs from 'fs';
 import path from 'path';
 import * as os from 'os';
+import {tmpName} from 'tmp-promise';
 import {InternalError, UserError, using, XSLTExecutor} from '../src';
 import {
+  AddressType,
   execute,
+  executeStream,
   ExecuteOptions,
   IPServerAddress,
   JVMProcess,
@@ -14,6 +18,7 @@ import {
   aXslPath,
   paramsXslPath,
   baseURIXslPath,
+  infiniteLoopXslPath,
   aXmlPath,
   aXmlURI,
   testResourcesDir,
@@ -139,6 +144,69 @@ test.each<[ExecuteOptions, string]>([
   }
 );
 
+test.each<[string | string[], string]>([
+  ['<doc>foo</doc>', '<result thing="foo"><a/></result>'],
+  [
+    ['<doc>foo</doc>', '<doc>bar</doc>'],
+    '<result thing="foo bar"><a/></result>',
+  ],
+])(
+  'execute() provides documentParameters to XSLT: %j',
+  async (documents: string | string[], expected: string) => {
+    const paths: string[] = [];
+    for (const document of ([] as string[]).concat(documents)) {
+      const documentPath = await tmpName({postfix: '.xml'});
+      await fs.promises.writeFile(documentPath, document);
+      paths.push(documentPath);
+    }
+
+    const result = await using(XSLTExecutor.getInstance(), async executor => {
+      return executor.execute({
+        xml: '<a/>',
+        xsltPath: aXslPath,
+        documentParameters: {
+          thing: typeof documents === 'string' ? paths[0] : paths,
+        },
+      });
+    });
+
+    await expect(result.toString()).toEqualXML(
+      `<?xml version="1.0" encoding="UTF-8"?>${expected}`
+    );
+  }
+);
+
+test.each<[ExecuteOptions['priority']]>([['high'], ['normal'], ['low']])(
+  'execute() transforms XML with priority %s',
+  async priority => {
+    const result = await using(XSLTExecutor.getInstance(), async executor => {
+      return executor.execute({xml: '<a/>', xsltPath: aXslPath, priority});
+    });
+
+    await expect(result.toString()).toEqualXML(`\
+<?xml version="1.0" encoding="UTF-8"?>
+<result><a/></result>`);
+  }
+);
+
+test('execute() rejects with InternalError when the transform exceeds its timeout', async () => {
+  const result = using(
+    XSLTExecutor.getInstance({jvmProcessID: nextProcessID()}),
+    async executor => {
+      return executor.execute({
+        xml: '<a/>',
+        xsltPath: infiniteLoopXslPath,
+        timeout: 0.5,
+      });
+    }
+  );
+
+  await expect(result).rejects.toThrow(InternalError);
+  await expect(result).rejects.toThrow(
+    /^XSLT nail cancelled the transform: Transform cancelled because its deadline expired after 0.5 seconds/
+  );
+});
+
 test('execute() transforms XML with XSLT (without async)', () => {
   const result = using(XSLTExecutor.getInstance(), executor => {
     return executor
@@ -164,6 +232,47 @@ test('execute() rejects with UserError on invalid input data', async () => {
   await expect(result).rejects.toThrow(/Error reported by XML parser:/);
 });
 
+async function readAll(stream: NodeJS.ReadableStream): Promise<Buffer> {
+  const chunks: Buffer[] = [];
+  for await (const chunk of stream) {
+    chunks.push(chunk as Buffer);
+  }
+  return Buffer.concat(chunks);
+}
+
+test('executeStream() streams the transform result', async () => {
+  const result = await using(XSLTExecutor.getInstance(), async executor => {
+    return readAll(
+      executor.executeStream({xml: '<foo>hi</foo>', xsltPath: aXslPath})
+    );
+  });
+
+  await expect(result.toString()).toEqualXML(`\
+<?xml version="1.0" encoding="UTF-8"?>
+<result><foo>hi</foo></result>`);
+});
+
+test('executeStream() destroys the stream with UserError on invalid input data', async () => {
+  const result = using(XSLTExecutor.getInstance(), async executor => {
+    return readAll(
+      executor.executeStream({xml: '<a>...', xsltPath: aXslPath})
+    );
+  });
+
+  await expect(result).rejects.toThrow(UserError);
+  await expect(result).rejects.toThrow(/Error reported by XML parser:/);
+});
+
+test('top-level executeStream() function streams the transform result', async () => {
+  const result = await readAll(
+    executeStream({xml: '<a/>', xsltPath: aXslPath})
+  );
+
+  await expect(result.toString()).toEqualXML(`\
+<?xml version="1.0" encoding="UTF-8"?>
+<result><a/></result>`);
+});
+
 test('execute() rejects with UserError on syntactically invalid XSLT', async () => {
   const result = using(XSLTExecutor.getInstance(), async executor => {
     return executor.execute({
@@ -197,6 +306,51 @@ test('execute() rejects with UserError when execution of XSLT raises an error',
   await expect(result).rejects.toThrow(/FOAR0001 +Integer division by zero/);
 });
 
+test('executors use a server listening on a local address by default', async () => {
+  await using(
+    XSLTExecutor.getInstance({jvmProcessID: nextProcessID()}),
+    async executor => {
+      const serverProcess: JVMProcess = await executor['serverProcessRef']
+        .resource;
+      expect((await serverProcess.serverStarted).addressType).toBe(
+        AddressType.local
+      );
+    }
+  );
+});
+
+test.each<[AddressType]>([[AddressType.local], [AddressType.network]])(
+  'execute() communicates with a server listening on a %s address',
+  async jvmAddressType => {
+    await using(
+      XSLTExecutor.getInstance({jvmProcessID: nextProcessID(), jvmAddressType}),
+      async executor => {
+        const serverProcess: JVMProcess = await executor['serverProcessRef']
+          .resource;
+        const address = await serverProcess.serverStarted;
+        expect(address.addressType).toBe(jvmAddressType);
+
+        const result = await executor.execute({
+          xml: '<a/>',
+          xsltPath: aXslPath,
+        });
+        await expect(result.toString()).toEqualXML(`\
+<?xml version="1.0" encoding="UTF-8"?>
+<result><a/></result>`);
+
+        // Temporary sockets are removed when the server is closed
+        await serverProcess.close();
+        if (
+          address.addressType === AddressType.local &&
+          os.platform() !== 'win32'
+        ) {
+          expect(fs.existsSync(address.listenAddress)).toBe(false);
+        }
+      }
+    );
+  }
+);
+
 test('execute() cannot be invoked after executor is closed', async () => {
   const executor = XSLTExecutor.getInstance({jvmProcessID: nextProcessID()});
   await executor.close();
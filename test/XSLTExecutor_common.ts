@@ -9,6 +9,10 @@ export const testResourcesDir = path.resolve(
 );
 export const aXslPath = path.resolve(testResourcesDir, 'a.xsl');
 export const paramsXslPath = path.resolve(testResourcesDir, 'params.xsl');
+export const infiniteLoopXslPath = path.resolve(
+  testResourcesDir,
+  'infinite-loop.xsl'
+);
 export const baseURIXslPath = path.resolve(testResourcesDir, 'base-uri.xsl');
 export const aXmlPath = path.resolve(testResourcesDir, 'a.xml');
 export const aXmlURI = new URL(aXmlPath, 'file://').toString();